@@ -0,0 +1,159 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.image.test;
+
+import java.util.Random;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.objectplanet.image.PngEncoder;
+
+import org.polymap.core.data.image.ParallelPngEncoder;
+import org.polymap.core.runtime.Timer;
+
+/**
+ * Compares {@link ParallelPngEncoder} with the {@link PngEncoder} used so far,
+ * for tiles of 256 and 1024 pixels, with few colors (palette) and with
+ * antialiased lines (truecolor). Checks that the encoded images decode to the
+ * same pixels.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class PngEncoderPerfTest
+        extends TestCase {
+
+    public static final int     LOOPS = 50;
+
+    PrintStream                 log = System.err;
+
+
+    public void testTile256Palette() throws Exception {
+        run( "256/palette", createTile( 256, false ) );
+    }
+
+
+    public void testTile256Truecolor() throws Exception {
+        run( "256/truecolor", createTile( 256, true ) );
+    }
+
+
+    public void testTile1024Palette() throws Exception {
+        run( "1024/palette", createTile( 1024, false ) );
+    }
+
+
+    public void testTile1024Truecolor() throws Exception {
+        run( "1024/truecolor", createTile( 1024, true ) );
+    }
+
+
+    protected void run( String name, BufferedImage image ) throws Exception {
+        ParallelPngEncoder encoder = new ParallelPngEncoder();
+        byte[] encoded = null, old = null;
+
+        // warm up
+        for (int i=0; i<LOOPS/5; i++) {
+            encoded = encode( encoder, image );
+            old = encodeOld( image );
+        }
+        assertSamePixels( image, ImageIO.read( new ByteArrayInputStream( encoded ) ) );
+
+        Timer timer = new Timer();
+        for (int i=0; i<LOOPS; i++) {
+            encodeOld( image );
+        }
+        long oldTime = timer.elapsedTime();
+
+        timer.start();
+        for (int i=0; i<LOOPS; i++) {
+            encode( encoder, image );
+        }
+        long time = timer.elapsedTime();
+
+        log.println( name + ": PngEncoder: " + oldTime/LOOPS + "ms, " + old.length + " bytes"
+                + " -- ParallelPngEncoder: " + time/LOOPS + "ms, " + encoded.length + " bytes" );
+    }
+
+
+    protected byte[] encode( ParallelPngEncoder encoder, BufferedImage image ) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 64*1024 );
+        encoder.encode( image, out );
+        return out.toByteArray();
+    }
+
+
+    protected byte[] encodeOld( BufferedImage image ) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 64*1024 );
+        new PngEncoder( PngEncoder.COLOR_TRUECOLOR_ALPHA ).encode( image, out );
+        return out.toByteArray();
+    }
+
+
+    protected void assertSamePixels( BufferedImage expected, BufferedImage decoded ) {
+        assertEquals( expected.getWidth(), decoded.getWidth() );
+        assertEquals( expected.getHeight(), decoded.getHeight() );
+        for (int y=0; y<expected.getHeight(); y++) {
+            for (int x=0; x<expected.getWidth(); x++) {
+                int argb = expected.getRGB( x, y );
+                int decodedArgb = decoded.getRGB( x, y );
+                if ((argb >>> 24) == 0) {
+                    assertEquals( 0, decodedArgb >>> 24 );
+                }
+                else {
+                    assertEquals( "pixel: " + x + "/" + y, argb, decodedArgb );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A transparent tile with random lines and polygons, like rendered map
+     * tiles.
+     */
+    protected BufferedImage createTile( int size, boolean antialias ) {
+        BufferedImage result = new BufferedImage( size, size, BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = result.createGraphics();
+        g.setRenderingHint( RenderingHints.KEY_ANTIALIASING, antialias
+                ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF );
+        Random rand = new Random( 1 );
+        Color[] colors = { Color.RED, Color.BLUE, new Color( 0, 128, 0, 128 ), Color.DARK_GRAY };
+        for (int i=0; i<size/4; i++) {
+            g.setColor( colors[i % colors.length] );
+            g.setStroke( new BasicStroke( 1 + rand.nextInt( 3 ) ) );
+            int x = rand.nextInt( size ), y = rand.nextInt( size );
+            if (i % 8 == 0) {
+                g.fillRect( x, y, rand.nextInt( size/8 ), rand.nextInt( size/8 ) );
+            }
+            else {
+                g.drawLine( x, y, x + rand.nextInt( size/4 ) - size/8, y + rand.nextInt( size/4 ) - size/8 );
+            }
+        }
+        g.dispose();
+        return result;
+    }
+
+}
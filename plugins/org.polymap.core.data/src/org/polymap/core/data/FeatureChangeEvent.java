@@ -17,6 +17,7 @@ package org.polymap.core.data;
 import java.util.EventObject;
 import java.util.Set;
 
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.filter.identity.FeatureId;
 
 import org.apache.commons.logging.Log;
@@ -47,11 +48,23 @@ public class FeatureChangeEvent
     
     private Type                    type;
     
+    private ReferencedEnvelope      bounds;
+    
     
     public FeatureChangeEvent( Object source, Type type, Set<FeatureId> fids ) {
+        this( source, type, fids, null );
+    }
+
+    /**
+     * 
+     * @param bounds The bounds of the changed features, including their
+     *        original state, or null if not known.
+     */
+    public FeatureChangeEvent( Object source, Type type, Set<FeatureId> fids, ReferencedEnvelope bounds ) {
         super( source );
         this.type = type;
         this.fids = fids;
+        this.bounds = bounds;
     }
 
     public ILayer getSource() {
@@ -66,4 +79,14 @@ public class FeatureChangeEvent
         return type;
     }
 
+    /**
+     * The bounds of the changed features, including the bounds of their
+     * original state, in the CRS of the features.
+     * 
+     * @return The bounds, or null if not known.
+     */
+    public ReferencedEnvelope getBounds() {
+        return bounds;
+    }
+
 }
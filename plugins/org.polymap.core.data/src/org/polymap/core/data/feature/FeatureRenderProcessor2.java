@@ -23,7 +23,9 @@
 
 package org.polymap.core.data.feature;
 
+import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -59,6 +61,7 @@ import org.apache.commons.logging.LogFactory;
 
 import com.google.common.base.Supplier;
 
+import org.polymap.core.data.FeatureChangeEvent;
 import org.polymap.core.data.PipelineFeatureSource;
 import org.polymap.core.data.image.GetLayerTypesRequest;
 import org.polymap.core.data.image.GetLayerTypesResponse;
@@ -68,6 +71,7 @@ import org.polymap.core.data.image.ImageResponse;
 import org.polymap.core.data.pipeline.ITerminalPipelineProcessor;
 import org.polymap.core.data.pipeline.PipelineExecutor.ProcessorContext;
 import org.polymap.core.data.pipeline.PipelineIncubationException;
+import org.polymap.core.data.pipeline.PipelinePool;
 import org.polymap.core.data.pipeline.ProcessorRequest;
 import org.polymap.core.data.pipeline.ProcessorResponse;
 import org.polymap.core.data.pipeline.ProcessorSignature;
@@ -75,7 +79,11 @@ import org.polymap.core.project.ILayer;
 import org.polymap.core.project.LayerUseCase;
 import org.polymap.core.runtime.CachedLazyInit;
 import org.polymap.core.runtime.LazyInit;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventFilter;
 import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+import org.polymap.core.style.IStyle;
 import org.polymap.core.style.geotools.DefaultStyles;
 
 /**
@@ -101,6 +109,15 @@ public class FeatureRenderProcessor2
             new Class[] {ImageResponse.class, GetLayerTypesResponse.class}
             );
 
+    /**
+     * System property that enables metatiling: the number of tiles of a metatile
+     * in the form <code>&lt;cols&gt;x&lt;rows&gt;</code>, for example "4x4".
+     * Defaults to "1x1", which disables metatiling.
+     *
+     * @see MetaTiler
+     */
+    public static final String METATILE_PROP = "org.polymap.core.data.feature.metatile";
+
     public static ProcessorSignature signature( LayerUseCase usecase ) {
         return signature;
     }
@@ -133,8 +150,23 @@ public class FeatureRenderProcessor2
      */
     protected ConcurrentMap<ILayer,LayerStyleListener> watchedLayers = new ConcurrentHashMap();
     
+    protected MetaTiler                         metaTiler;
+    
+    /** Clears the {@link #metaTiler} on feature changes; created with the first metatile. */
+    protected MetaTileListener                  metaTileListener;
+    
     
     public void init( Properties props ) {
+        String metatile = System.getProperty( METATILE_PROP, "1x1" );
+        try {
+            String[] size = metatile.toLowerCase().split( "x" );
+            metaTiler = new MetaTiler( Integer.parseInt( size[0].trim() ), 
+                    Integer.parseInt( size[size.length-1].trim() ) );
+        }
+        catch (Exception e) {
+            log.warn( "Illegal value of " + METATILE_PROP + ": " + metatile );
+            metaTiler = new MetaTiler( 1, 1 );
+        }
     }
 
 
@@ -143,6 +175,9 @@ public class FeatureRenderProcessor2
         for (Map.Entry<ILayer,LayerStyleListener> entry : watchedLayers.entrySet()) {
             entry.getKey().removePropertyChangeListener( entry.getValue() );
         }
+        if (metaTileListener != null) {
+            metaTileListener.dispose();
+        }
         mapContextRef.clear();
     }
 
@@ -154,7 +189,28 @@ public class FeatureRenderProcessor2
             GetMapRequest request = (GetMapRequest)r;
             
             long start = System.currentTimeMillis();
-            Image image = getMap( context.getLayers(), request.getWidth(), request.getHeight(), request.getBoundingBox() );
+            final Set<ILayer> layers = context.getLayers();
+            Image image = null;
+            if (metaTiler.supports( request.getWidth(), request.getHeight(), request.getBoundingBox() )) {
+                // mapContext was cleared by a style change -> drop the rendered metatiles
+                if (!mapContextRef.isInitialized()) {
+                    metaTiler.clear();
+                }
+                synchronized (this) {
+                    if (metaTileListener == null) {
+                        metaTileListener = new MetaTileListener( layers, metaTiler );
+                    }
+                }
+                image = metaTiler.getTile( request.getWidth(), request.getHeight(), request.getBoundingBox(), 
+                        new MetaTiler.Renderer() {
+                    public BufferedImage render( int width, int height, ReferencedEnvelope bbox ) {
+                        return getMap( layers, width, height, bbox );
+                    }
+                });
+            }
+            else {
+                image = getMap( layers, request.getWidth(), request.getHeight(), request.getBoundingBox() );
+            }
             log.debug( "   ...done: (" + (System.currentTimeMillis()-start) + "ms)." );
 
             context.sendResponse( new ImageResponse( image ) );
@@ -183,7 +239,7 @@ public class FeatureRenderProcessor2
     }
 
 
-    protected Image getMap( final Set<ILayer> layers, int width, int height, final ReferencedEnvelope bbox ) {
+    protected BufferedImage getMap( final Set<ILayer> layers, int width, int height, final ReferencedEnvelope bbox ) {
 //        Logger wfsLog = Logging.getLogger( "org.geotools.data.wfs.protocol.http" );
 //        wfsLog.setLevel( Level.FINEST );
 
@@ -306,11 +362,19 @@ public class FeatureRenderProcessor2
      * Static class listening to changes of the Style of a layer. This does not reference
      * the Processor, so it does not prevent the Processor from being GCed. The finalyze()
      * of the Processor clears the listeners. 
+     * <p/>
+     * A style change also invalidates the pipelines of the layer in the
+     * {@link PipelinePool} and the {@link IStyle#fingerprint() fingerprint} of the
+     * style.
      */
     public static class LayerStyleListener {
         
         private LazyInit        mapContextRef;
         
+        /**
+         * 
+         * @param mapContextRef The MapContext to clear on style change, or null.
+         */
         public LayerStyleListener( LazyInit mapContextRef ) {
             this.mapContextRef = mapContextRef;
         }
@@ -318,13 +382,55 @@ public class FeatureRenderProcessor2
         @EventHandler
         public void propertyChange( PropertyChangeEvent ev ) {
             if (ev.getPropertyName().equals( ILayer.PROP_STYLE )) {
-                log.debug( "clearing: " + mapContextRef );
-                mapContextRef.clear();
+                if (mapContextRef != null) {
+                    log.debug( "clearing: " + mapContextRef );
+                    mapContextRef.clear();
+                }
+                ILayer layer = (ILayer)ev.getSource();
+                layer.getStyle().styleChanged();
+                PipelinePool.instance().styleChanged( layer.id() );
             }
         }
     }
 
     
+    /**
+     * Static class listening to {@link FeatureChangeEvent}s of the layers of the
+     * processor in all sessions. It clears the rendered metatiles, so that the
+     * tiles of changed features are not sliced from an outdated metatile. This
+     * does not reference the Processor; the listener is weakly referenced by the
+     * {@link EventManager} and is reclaimed together with the Processor.
+     */
+    static class MetaTileListener {
+
+        private MetaTiler       metaTiler;
+
+        public MetaTileListener( Set<ILayer> layers, MetaTiler metaTiler ) {
+            this.metaTiler = metaTiler;
+            final Set<String> layerIds = new HashSet();
+            for (ILayer layer : layers) {
+                layerIds.add( layer.id() );
+            }
+            EventManager.instance().subscribe( this, new EventFilter<EventObject>() {
+                public boolean apply( EventObject ev ) {
+                    return ev instanceof FeatureChangeEvent
+                            && layerIds.contains( ((FeatureChangeEvent)ev).getSource().id() );
+                }
+            });
+        }
+
+        public void dispose() {
+            EventManager.instance().unsubscribe( this );
+        }
+
+        @EventHandler(scope=Event.Scope.JVM)
+        protected void featuresChanged( FeatureChangeEvent ev ) {
+            log.debug( "Features changed: clearing metatiles of: " + ev.getSource().getLabel() );
+            metaTiler.clear();
+        }
+    }
+
+
     protected void drawErrorMsg( Graphics2D g, String msg, Throwable e ) {
         g.setColor( Color.RED );
         g.setStroke( new BasicStroke( 1 ) );
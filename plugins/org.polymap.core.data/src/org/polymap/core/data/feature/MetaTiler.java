@@ -0,0 +1,338 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.feature;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Renders tiles as part of a bigger metatile of NM tiles. The metatile is
+ * rendered once, sliced into tiles, and the slices are kept for a short time so
+ * that the requests for the other tiles of the metatile (which tiled clients
+ * like OpenLayers send right after) are answered without rendering. Concurrent
+ * requests for tiles of the same metatile wait for the one render run.
+ * <p/>
+ * The metatile grid is aligned to multiples of the metatile extent; the tiles
+ * of a request are expected to be aligned to the tile extent, as they are for
+ * tiled clients.
+ * <p/>
+ * The rendered metatiles of all MetaTilers of the JVM share one memory budget
+ * of {@link #MAX_MEMORY} bytes. The owner of a MetaTiler has to {@link #clear()}
+ * it when the style or the features of its layers have been changed.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class MetaTiler {
+
+    private static Log log = LogFactory.getLog( MetaTiler.class );
+
+    /** Tiles bigger than this are not metatiled, they are most probably not tiles. */
+    public static final int         MAX_TILE_SIZE = 512;
+
+    /** Time in millis a rendered metatile is kept for the requests of its tiles. */
+    public static final long        TIMEOUT = 30 * 1000;
+
+    /** System property: the max memory of the rendered metatiles of the JVM in MB. Default: 64. */
+    public static final String      MAX_MEMORY_PROP = "org.polymap.core.data.feature.metatile.maxmem";
+
+    /** The max memory in bytes of the rendered metatiles of all MetaTilers of the JVM. */
+    public static final long        MAX_MEMORY = Long.getLong( MAX_MEMORY_PROP, 64 ) * 1024 * 1024;
+
+    /** Tolerance of the tile alignment, in tiles. */
+    private static final double     EPS = 1e-6;
+
+    /**
+     * Renders an image of the given size and bounds.
+     */
+    interface Renderer {
+        BufferedImage render( int width, int height, ReferencedEnvelope bbox );
+    }
+
+
+    /** The metatiles of all MetaTilers; the key contains the owning MetaTiler. */
+    private static ConcurrentMap<MetaTileKey,MetaTile> metaTiles = new ConcurrentHashMap();
+
+
+    // instance *******************************************
+
+    private int                     cols, rows;
+
+    /** Incremented by {@link #clear()}; metatiles of an older generation are outdated. */
+    private volatile int            generation;
+
+
+    public MetaTiler( int cols, int rows ) {
+        assert cols > 0 && rows > 0;
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+
+    public boolean isEnabled() {
+        return cols * rows > 1;
+    }
+
+
+    /**
+     * True if the given request is a tile that can be rendered as part of a
+     * metatile.
+     */
+    public boolean supports( int width, int height, ReferencedEnvelope bbox ) {
+        return isEnabled()
+                && width > 0 && width <= MAX_TILE_SIZE
+                && height > 0 && height <= MAX_TILE_SIZE
+                && bbox != null && bbox.getWidth() > 0 && bbox.getHeight() > 0;
+    }
+
+
+    /**
+     * Returns the tile of the given size and bounds. The tile is sliced from the
+     * metatile that contains it. The metatile is rendered using the given
+     * renderer if it was not rendered before or if it has been expired.
+     */
+    public BufferedImage getTile( int width, int height, ReferencedEnvelope bbox, Renderer renderer )
+    throws InterruptedException {
+        expire();
+
+        double tileWidth = bbox.getWidth(), tileHeight = bbox.getHeight();
+        double metaWidth = tileWidth * cols, metaHeight = tileHeight * rows;
+
+        // grid cell of the metatile and position of the tile in it
+        long mx = (long)Math.floor( bbox.getMinX() / metaWidth + EPS );
+        long my = (long)Math.floor( bbox.getMinY() / metaHeight + EPS );
+        int tx = (int)Math.floor( (bbox.getMinX() - mx * metaWidth) / tileWidth + EPS );
+        int ty = (int)Math.floor( (bbox.getMinY() - my * metaHeight) / tileHeight + EPS );
+        tx = Math.max( 0, Math.min( cols-1, tx ) );
+        ty = Math.max( 0, Math.min( rows-1, ty ) );
+
+        MetaTileKey key = new MetaTileKey( this, bbox, width, height, mx, my );
+        MetaTile metaTile = metaTiles.get( key );
+        if (metaTile == null) {
+            MetaTile newMetaTile = new MetaTile( generation );
+            metaTile = metaTiles.putIfAbsent( key, newMetaTile );
+            // we are the first: render
+            if (metaTile == null) {
+                metaTile = newMetaTile;
+                double minX = bbox.getMinX() - tx * tileWidth;
+                double minY = bbox.getMinY() - ty * tileHeight;
+                ReferencedEnvelope metaBbox = new ReferencedEnvelope(
+                        minX, minX + metaWidth, minY, minY + metaHeight,
+                        bbox.getCoordinateReferenceSystem() );
+                try {
+                    metaTile.render( width * cols, height * rows, metaBbox, renderer );
+                }
+                catch (RuntimeException e) {
+                    metaTiles.remove( key, metaTile );
+                    throw e;
+                }
+                log.debug( "Metatile rendered: " + key + ", cached: " + metaTiles.size() );
+            }
+        }
+        BufferedImage image = metaTile.await();
+        if (image == null || metaTile.generation != generation) {
+            // render run failed in another thread, or cleared while rendering
+            return renderer.render( width, height, bbox );
+        }
+        // image y axis points downwards
+        return slice( image, tx * width, (rows - 1 - ty) * height, width, height );
+    }
+
+
+    /**
+     * Drops the rendered metatiles of this MetaTiler. Metatiles that are
+     * currently rendered are not used for the waiting requests.
+     */
+    public void clear() {
+        generation ++;
+        for (Iterator<MetaTileKey> it=metaTiles.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().owner == this) {
+                it.remove();
+            }
+        }
+    }
+
+
+    protected BufferedImage slice( BufferedImage image, int x, int y, int width, int height ) {
+        // copy so that the slice does not reference the entire metatile raster
+        BufferedImage result = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage( image.getSubimage( x, y, width, height ), 0, 0, null );
+        }
+        finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+
+    /**
+     * Drops the expired metatiles of all MetaTilers, and the oldest ones until
+     * the rendered metatiles fit into {@link #MAX_MEMORY}.
+     */
+    protected static void expire() {
+        long now = System.currentTimeMillis();
+        long memory = 0;
+        for (Iterator<MetaTile> it=metaTiles.values().iterator(); it.hasNext(); ) {
+            MetaTile metaTile = it.next();
+            if (metaTile.isDone() && now - metaTile.created > TIMEOUT) {
+                it.remove();
+            }
+            else {
+                memory += metaTile.memSize;
+            }
+        }
+        // drop the oldest rendered metatiles
+        while (memory > MAX_MEMORY) {
+            MetaTile oldest = null;
+            for (MetaTile metaTile : metaTiles.values()) {
+                if (metaTile.isDone() && (oldest == null || metaTile.created < oldest.created)) {
+                    oldest = metaTile;
+                }
+            }
+            if (oldest == null || !metaTiles.values().remove( oldest )) {
+                break;
+            }
+            memory -= oldest.memSize;
+        }
+    }
+
+
+    /**
+     * A metatile that is rendered by the first requesting thread; the other
+     * threads {@link #await()} the result.
+     */
+    static class MetaTile {
+
+        private CountDownLatch          done = new CountDownLatch( 1 );
+
+        private volatile BufferedImage  image;
+
+        volatile long                   created = System.currentTimeMillis();
+
+        /** The memory of the rendered image in bytes; 0 until rendered. */
+        volatile long                   memSize;
+
+        final int                       generation;
+
+
+        MetaTile( int generation ) {
+            this.generation = generation;
+        }
+
+        void render( int width, int height, ReferencedEnvelope bbox, Renderer renderer ) {
+            try {
+                image = renderer.render( width, height, bbox );
+                memSize = (long)width * height * 4;
+            }
+            finally {
+                created = System.currentTimeMillis();
+                done.countDown();
+            }
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits for the render run to finish.
+         *
+         * @return The metatile image, or null if rendering failed.
+         */
+        BufferedImage await() throws InterruptedException {
+            if (!done.await( TIMEOUT, TimeUnit.MILLISECONDS )) {
+                log.warn( "Timeout waiting for metatile." );
+            }
+            return image;
+        }
+    }
+
+
+    /**
+     * The grid cell of a metatile.
+     */
+    static class MetaTileKey {
+
+        /** Compared by identity. */
+        private MetaTiler   owner;
+
+        private String      crs;
+
+        private int         width, height;
+
+        /** The tile extent, in float precision to tolerate rounding errors of the requested bounds. */
+        private float       tileWidth, tileHeight;
+
+        private long        mx, my;
+
+
+        MetaTileKey( MetaTiler owner, ReferencedEnvelope bbox, int width, int height, long mx, long my ) {
+            this.owner = owner;
+            this.crs = String.valueOf( bbox.getCoordinateReferenceSystem() );
+            this.width = width;
+            this.height = height;
+            this.tileWidth = (float)bbox.getWidth();
+            this.tileHeight = (float)bbox.getHeight();
+            this.mx = mx;
+            this.my = my;
+        }
+
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + System.identityHashCode( owner );
+            result = prime * result + crs.hashCode();
+            result = prime * result + width;
+            result = prime * result + height;
+            result = prime * result + Float.floatToIntBits( tileWidth );
+            result = prime * result + Float.floatToIntBits( tileHeight );
+            result = prime * result + (int)(mx ^ (mx >>> 32));
+            result = prime * result + (int)(my ^ (my >>> 32));
+            return result;
+        }
+
+        public boolean equals( Object obj ) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof MetaTileKey) {
+                MetaTileKey rhs = (MetaTileKey)obj;
+                return owner == rhs.owner
+                        && mx == rhs.mx && my == rhs.my
+                        && width == rhs.width && height == rhs.height
+                        && tileWidth == rhs.tileWidth && tileHeight == rhs.tileHeight
+                        && crs.equals( rhs.crs );
+            }
+            return false;
+        }
+
+        public String toString() {
+            return "MetaTileKey[" + mx + "/" + my + ", tile=" + width + "x" + height + "]";
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.feature.buffer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opengis.feature.Feature;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.Or;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.identity.Identifier;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.filter.spatial.Beyond;
+import org.opengis.filter.spatial.BinarySpatialOperator;
+import org.opengis.filter.spatial.DWithin;
+import org.opengis.filter.spatial.Disjoint;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+/**
+ * Spatial index of the features of a {@link MemoryFeatureBuffer}. The
+ * {@link #candidates(Filter)} of a filter are the fids of the buffered features
+ * that might match the filter, found by pre-analysing the filter: {@link Id}
+ * filters give the fids directly, spatial filters on the default geometry are
+ * answered by a {@link Quadtree}.
+ * <p/>
+ * The envelope of an entry covers the original <b>and</b> the current geometry
+ * of the feature. So the candidates also contain the buffered features whose
+ * original state is inside the area of the filter, which is what
+ * {@link MemoryFeatureBuffer#blendFeatures(org.geotools.data.Query, List)} needs.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class BufferIndex {
+
+    private static Log log = LogFactory.getLog( BufferIndex.class );
+
+    private Quadtree                spatial = new Quadtree();
+
+    /** The envelopes of the indexed features, needed to remove them from the tree. */
+    private Map<String,Envelope>    bounds = new HashMap( MemoryFeatureBuffer.INITIAL_CAPACITY );
+
+    /** The name of the default geometry; null until the first feature is indexed. */
+    private String                  geomName;
+
+
+    /**
+     * Adds the given state to the index, or updates the index entry after the
+     * geometry of the feature has been changed.
+     */
+    public synchronized void update( String fid, FeatureBufferState state ) {
+        remove( fid );
+
+        Envelope envelope = envelope( state.original() );
+        if (state.feature() != state.original()) {
+            Envelope current = envelope( state.feature() );
+            if (envelope == null) {
+                envelope = current;
+            }
+            else if (current != null) {
+                envelope.expandToInclude( current );
+            }
+        }
+        if (envelope != null) {
+            spatial.insert( envelope, fid );
+            bounds.put( fid, envelope );
+        }
+    }
+
+
+    public synchronized void remove( String fid ) {
+        Envelope envelope = bounds.remove( fid );
+        if (envelope != null) {
+            spatial.remove( envelope, fid );
+        }
+    }
+
+
+    public synchronized void clear() {
+        spatial = new Quadtree();
+        bounds.clear();
+    }
+
+
+    /**
+     * The fids of the buffered features that might match the given filter. This is
+     * a superset of the matching features; the caller has to evaluate the filter
+     * against the candidates.
+     *
+     * @return The fids of the candidates, or null if the filter cannot be
+     *         analysed and all features have to be checked.
+     */
+    public synchronized Set<String> candidates( Filter filter ) {
+        if (filter == null || filter == Filter.INCLUDE) {
+            return null;
+        }
+        else if (filter == Filter.EXCLUDE) {
+            return Collections.EMPTY_SET;
+        }
+        // Id
+        else if (filter instanceof Id) {
+            Set<String> result = new HashSet();
+            for (Identifier identifier : ((Id)filter).getIdentifiers()) {
+                result.add( identifier.getID().toString() );
+            }
+            return result;
+        }
+        // And: intersection of the analysable children
+        else if (filter instanceof And) {
+            Set<String> result = null;
+            for (Filter child : ((And)filter).getChildren()) {
+                Set<String> childResult = candidates( child );
+                if (childResult != null) {
+                    if (result == null) {
+                        result = new HashSet( childResult );
+                    }
+                    else {
+                        result.retainAll( childResult );
+                    }
+                }
+            }
+            return result;
+        }
+        // Or: union, if all children are analysable
+        else if (filter instanceof Or) {
+            Set<String> result = new HashSet();
+            for (Filter child : ((Or)filter).getChildren()) {
+                Set<String> childResult = candidates( child );
+                if (childResult == null) {
+                    return null;
+                }
+                result.addAll( childResult );
+            }
+            return result;
+        }
+        // spatial
+        else if (filter instanceof BinarySpatialOperator) {
+            Envelope envelope = queryEnvelope( (BinarySpatialOperator)filter );
+            if (envelope == null) {
+                return null;
+            }
+            Set<String> result = new HashSet();
+            for (Object fid : spatial.query( envelope )) {
+                // the tree returns the items of all nodes that intersect
+                Envelope indexed = bounds.get( fid );
+                if (indexed != null && indexed.intersects( envelope )) {
+                    result.add( (String)fid );
+                }
+            }
+            log.debug( "Spatial candidates: " + result.size() + " of " + bounds.size() );
+            return result;
+        }
+        else {
+            return null;
+        }
+    }
+
+
+    /**
+     * The area of the given spatial filter on the default geometry.
+     *
+     * @return The envelope, or null if the filter does not restrict the default
+     *         geometry to an area.
+     */
+    protected Envelope queryEnvelope( BinarySpatialOperator op ) {
+        if (op instanceof Disjoint || op instanceof Beyond) {
+            return null;
+        }
+        if (op instanceof BBOX) {
+            BBOX bbox = (BBOX)op;
+            return isDefaultGeom( bbox.getPropertyName() )
+                    ? new Envelope( bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY() )
+                    : null;
+        }
+        Expression prop = op.getExpression1();
+        Expression literal = op.getExpression2();
+        if (!(prop instanceof PropertyName)) {
+            prop = op.getExpression2();
+            literal = op.getExpression1();
+        }
+        if (!(prop instanceof PropertyName) || !(literal instanceof Literal)
+                || !isDefaultGeom( ((PropertyName)prop).getPropertyName() )) {
+            return null;
+        }
+        Geometry geom = literal.evaluate( null, Geometry.class );
+        if (geom == null) {
+            return null;
+        }
+        Envelope result = new Envelope( geom.getEnvelopeInternal() );
+        if (op instanceof DWithin) {
+            result.expandBy( ((DWithin)op).getDistance() );
+        }
+        return result;
+    }
+
+
+    protected boolean isDefaultGeom( String propName ) {
+        if (propName == null || propName.length() == 0) {
+            return true;
+        }
+        int index = propName.indexOf( ':' );
+        String localName = index >= 0 ? propName.substring( index + 1 ) : propName;
+        return geomName == null || localName.equals( geomName );
+    }
+
+
+    protected Envelope envelope( Feature feature ) {
+        GeometryAttribute prop = feature.getDefaultGeometryProperty();
+        if (prop == null) {
+            return null;
+        }
+        if (geomName == null) {
+            geomName = prop.getName().getLocalPart();
+        }
+        Geometry geom = (Geometry)prop.getValue();
+        return geom != null && !geom.isEmpty() ? new Envelope( geom.getEnvelopeInternal() ) : null;
+    }
+
+}
@@ -75,6 +75,17 @@ public class FeatureBufferState
         timestamp = featureTimestamp != null ? featureTimestamp : System.currentTimeMillis();
     }
     
+    /**
+     * Restores a state that was serialized by {@link SpillingFeatureBuffer}.
+     */
+    FeatureBufferState( Feature original, Feature feature, State state, long timestamp ) {
+        this.original = original;
+        this.feature = feature;
+        this.state = state;
+        this.timestamp = timestamp;
+        this.feature.getUserData().put( BUFFER_STATE_KEY, state.toString() );
+    }
+    
     /**
      *
      * @param modify Indicates that the returned feature is intended to be modified by the caller.
@@ -131,6 +142,10 @@ public class FeatureBufferState
         return state;
     }
     
+    public State state() {
+        return state;
+    }
+    
     public boolean isAdded() {
         return state == State.ADDED;
     }
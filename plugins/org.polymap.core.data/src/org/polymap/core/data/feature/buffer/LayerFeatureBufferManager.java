@@ -33,6 +33,7 @@ import org.geotools.data.Transaction;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureCollections;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
@@ -43,6 +44,7 @@ import org.opengis.filter.FilterFactory;
 import org.opengis.filter.Id;
 import org.opengis.filter.identity.FeatureId;
 import org.opengis.filter.identity.Identifier;
+import org.opengis.geometry.BoundingBox;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
@@ -167,7 +169,10 @@ public class LayerFeatureBufferManager
         this.layer = layer;
         this.layerTimestamp = System.currentTimeMillis();
         
-        buffer = new MemoryFeatureBuffer();
+        // bulk operations may produce more modified features than the heap can hold
+        buffer = SpillingFeatureBuffer.HEAP_SIZE > 0
+                ? new SpillingFeatureBuffer( SpillingFeatureBuffer.HEAP_SIZE )
+                : new MemoryFeatureBuffer();
         buffer.init( new IFeatureBufferSite() {
             @Override
             public void fireFeatureChangeEvent( Type type, Collection<Feature> features ) {
@@ -189,12 +194,32 @@ public class LayerFeatureBufferManager
     
     protected void fireFeatureChangeEvent( FeatureChangeEvent.Type type, Collection<Feature> features ) {
         FidSet fids = new FidSet( features.size() * 2 );
+        ReferencedEnvelope bounds = null;
         for (Feature feature : features) {
             fids.add( feature.getIdentifier() );
+            
+            // a modified feature might have moved; include its original bounds
+            bounds = include( bounds, feature.getBounds() );
+            FeatureBufferState buffered = buffer.contains( feature.getIdentifier() );
+            if (buffered != null && buffered.original() != feature) {
+                bounds = include( bounds, buffered.original().getBounds() );
+            }
         }
-        FeatureChangeEvent ev = new FeatureChangeEvent( layer, type, fids );
+        FeatureChangeEvent ev = new FeatureChangeEvent( layer, type, fids, bounds );
         EventManager.instance().publish( ev );
     }
+
+
+    private ReferencedEnvelope include( ReferencedEnvelope bounds, BoundingBox bbox ) {
+        if (bbox == null || bbox.isEmpty()) {
+            return bounds;
+        }
+        if (bounds == null) {
+            bounds = new ReferencedEnvelope( bbox.getCoordinateReferenceSystem() );
+        }
+        bounds.include( bbox );
+        return bounds;
+    }
     
     
     public ILayer getLayer() {
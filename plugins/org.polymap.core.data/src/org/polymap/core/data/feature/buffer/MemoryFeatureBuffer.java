@@ -36,6 +36,10 @@ import org.polymap.core.data.feature.FidSet;
 
 /**
  * Provides a simple in-memory feature buffer backed by a {@link ConcurrentHashMap}.
+ * <p/>
+ * The buffered features are indexed by a {@link BufferIndex}. So filters with
+ * fids or with a spatial restriction are evaluated just against the features in
+ * the area, which keeps map refreshes fast even with many pending changes.
  * 
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -46,7 +50,9 @@ class MemoryFeatureBuffer
     
     public static final int                 INITIAL_CAPACITY = 1024;
     
-    private ConcurrentMap<String,FeatureBufferState>  buffer = new ConcurrentHashMap( INITIAL_CAPACITY, 0.75f, 4 );
+    protected ConcurrentMap<String,FeatureBufferState> buffer = new ConcurrentHashMap( INITIAL_CAPACITY, 0.75f, 4 );
+    
+    private BufferIndex                     index = new BufferIndex();
     
     private IFeatureBufferSite              site;
     
@@ -70,6 +76,7 @@ class MemoryFeatureBuffer
     public void clear()
     throws Exception {
         buffer.clear();
+        index.clear();
         //site.fireFeatureChangeEvent( Type.FLUSHED, null );
     }
 
@@ -89,14 +96,17 @@ class MemoryFeatureBuffer
 
 
     public FeatureBufferState contains( FeatureId identifier ) {
-        return buffer.get( identifier.getID() );
+        return state( identifier.getID() );
     }
 
 
     public void registerFeatures( Collection<Feature> features ) {
         for (Feature original : features) {
             String fid = original.getIdentifier().getID();
-            buffer.putIfAbsent( fid, new FeatureBufferState( original) );
+            FeatureBufferState state = new FeatureBufferState( original );
+            if (addState( fid, state )) {
+                updated( fid, state );
+            }
         }
     }
 
@@ -104,7 +114,8 @@ class MemoryFeatureBuffer
     public void unregisterFeatures( Collection<Feature> features ) {
         for (Feature feature : features) {
             String fid = feature.getIdentifier().getID();
-            buffer.remove( fid );
+            removeState( fid );
+            index.remove( fid );
         }
     }
 
@@ -121,12 +132,13 @@ class MemoryFeatureBuffer
 
         for (Feature feature : features) {
             FeatureId identifier = feature.getIdentifier();
-            FeatureBufferState buffered = buffer.get( identifier.getID() );
+            FeatureBufferState buffered = state( identifier.getID() );
             if (buffered == null) {
                 throw new IllegalStateException( "Feature is not registered with this buffer: " + identifier.getID() );
             }
 
             buffered.evolveState( FeatureBufferState.State.ADDED );
+            updated( identifier.getID(), buffered );
             result.add( identifier );
         }
 
@@ -138,14 +150,16 @@ class MemoryFeatureBuffer
     @Override
     public Set<FeatureId> markModified( Filter filter, AttributeDescriptor[] type, Object[] value )
     throws Exception {
-        List<Feature> features = new ArrayList( buffer.size() );
-        FidSet fids = new FidSet( buffer.size() );
+        List<Feature> features = new ArrayList();
+        FidSet fids = new FidSet();
 
-        for (FeatureBufferState buffered : buffer.values()) {
+        for (FeatureBufferState buffered : candidates( filter )) {
 
             if (filter.evaluate( buffered.feature() )) {
                 buffered.evolveState( FeatureBufferState.State.MODIFIED );
                 modifyFeature( buffered.feature(), type, value );
+                // the geometry might have been changed
+                updated( buffered.feature().getIdentifier().getID(), buffered );
 
                 features.add( buffered.feature() );
                 fids.add( buffered.feature().getIdentifier() );
@@ -160,13 +174,14 @@ class MemoryFeatureBuffer
     @Override
     public Set<FeatureId> markRemoved( Filter filter )
     throws Exception {
-        List<Feature> features = new ArrayList( buffer.size() );
-        FidSet fids = new FidSet( buffer.size() );
+        List<Feature> features = new ArrayList();
+        FidSet fids = new FidSet();
 
-        for (FeatureBufferState buffered : buffer.values()) {
+        for (FeatureBufferState buffered : candidates( filter )) {
 
             if (filter.evaluate( buffered.feature() )) {
                 buffered.evolveState( FeatureBufferState.State.REMOVED );
+                updated( buffered.feature().getIdentifier().getID(), buffered );
 
                 features.add( buffered.feature() );
                 fids.add( buffered.feature().getIdentifier() );
@@ -181,7 +196,12 @@ class MemoryFeatureBuffer
     @Override
     public List<Feature> blendFeatures( Query query, List<Feature> features )
     throws Exception {
-        if (buffer.isEmpty()) {
+        if (isEmpty()) {
+            return features;
+        }
+        // no buffered feature in the area of the query
+        Set<String> candidates = index.candidates( query.getFilter() );
+        if (candidates != null && candidates.isEmpty()) {
             return features;
         }
         else {
@@ -190,7 +210,7 @@ class MemoryFeatureBuffer
             // sent already, removed features are skipped altogether
             for (Feature feature : features) {
                 String fid = feature.getIdentifier().getID();
-                if (!buffer.containsKey( fid )) {
+                if (!containsState( fid )) {
                     result.add( feature );
                 }
             }
@@ -201,9 +221,9 @@ class MemoryFeatureBuffer
     
     @Override
     public List<Feature> modifiedFeatures( Filter filter ) throws Exception {
-        List<Feature> result = new ArrayList( buffer.size() );
+        List<Feature> result = new ArrayList();
 
-        for (FeatureBufferState buffered : buffer.values()) {
+        for (FeatureBufferState buffered : candidates( filter )) {
             if (buffered.isAdded() || buffered.isModified()) {
                 if (filter.evaluate( buffered.feature() )) {
                     result.add( buffered.feature() );
@@ -216,7 +236,7 @@ class MemoryFeatureBuffer
     
     public int featureSizeDifference( Query query ) throws Exception {
         int result = 0;
-        for (FeatureBufferState buffered : buffer.values()) {
+        for (FeatureBufferState buffered : candidates( query.getFilter() )) {
             if (query.getFilter().evaluate( buffered.feature() )) {
                 if (buffered.isAdded()) {
                     result ++;
@@ -230,6 +250,73 @@ class MemoryFeatureBuffer
     }
 
 
+    // storage of the states; overridden by SpillingFeatureBuffer
+
+    protected FeatureBufferState state( String fid ) {
+        return buffer.get( fid );
+    }
+
+
+    protected Collection<FeatureBufferState> states() {
+        return buffer.values();
+    }
+
+
+    /**
+     * The states of the given fids; fids that are not buffered are skipped.
+     */
+    protected Collection<FeatureBufferState> states( Collection<String> fids ) {
+        List<FeatureBufferState> result = new ArrayList( fids.size() );
+        for (String fid : fids) {
+            FeatureBufferState buffered = state( fid );
+            if (buffered != null) {
+                result.add( buffered );
+            }
+        }
+        return result;
+    }
+
+
+    protected boolean containsState( String fid ) {
+        return buffer.containsKey( fid );
+    }
+
+
+    /**
+     * Adds the given state if the buffer does not yet contain the fid.
+     *
+     * @return True if the state was added.
+     */
+    protected boolean addState( String fid, FeatureBufferState state ) {
+        return buffer.putIfAbsent( fid, state ) == null;
+    }
+
+
+    protected void removeState( String fid ) {
+        buffer.remove( fid );
+    }
+
+
+    /**
+     * Called after the given state was registered or its state/feature has been
+     * changed.
+     */
+    protected void updated( String fid, FeatureBufferState state ) {
+        index.update( fid, state );
+    }
+
+
+    /**
+     * The buffered features that might match the given filter, found by the
+     * {@link BufferIndex}; or all buffered features if the filter cannot be
+     * analysed.
+     */
+    protected Collection<FeatureBufferState> candidates( Filter filter ) {
+        Set<String> fids = index.candidates( filter );
+        return fids != null ? states( fids ) : states();
+    }
+
+
     protected void modifyFeature( Feature feature, AttributeDescriptor[] type, Object[] value ) {
         for (int i=0; i<type.length; i++ ) {
             if (feature instanceof SimpleFeature) {
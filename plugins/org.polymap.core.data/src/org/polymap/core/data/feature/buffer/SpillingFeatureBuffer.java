@@ -0,0 +1,439 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.feature.buffer;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.runtime.Polymap;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.IRecordFieldSelector;
+import org.polymap.core.runtime.recordstore.IRecordState;
+import org.polymap.core.runtime.recordstore.IRecordStore.Updater;
+import org.polymap.core.runtime.recordstore.lucene.LuceneRecordStore;
+
+/**
+ * A {@link MemoryFeatureBuffer} that holds at most {@link #heapSize} states on the
+ * heap. If the buffer grows beyond, then states are serialized into a local
+ * {@link LuceneRecordStore} and loaded from there on demand. So bulk operations
+ * with hundreds of thousands of modified features do not keep all the feature
+ * copies on the heap of the server.
+ * <p/>
+ * The fids and the envelopes of the {@link BufferIndex} are kept on the heap for
+ * all states. Reading a spilled state does not move it to the heap; a state
+ * that is changed is held on the heap until it is spilled again. States are
+ * spilled as soon as the heap budget is exceeded, also in the middle of a bulk
+ * operation. The record store is created when the heap budget is exceeded
+ * first and it is deleted by {@link #clear()}.
+ * <p/>
+ * Just {@link SimpleFeature}s are supported. Attribute values have to be
+ * {@link java.io.Serializable}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class SpillingFeatureBuffer
+        extends MemoryFeatureBuffer {
+
+    private static Log log = LogFactory.getLog( SpillingFeatureBuffer.class );
+
+    /** System property: the max number of states on the heap. Default: 10000; 0 disables spilling. */
+    public static final String      HEAP_SIZE_PROP = "org.polymap.core.data.feature.buffer.heapsize";
+
+    public static final int         HEAP_SIZE = Integer.getInteger( HEAP_SIZE_PROP, 10000 );
+
+    private static final String     PAYLOAD_KEY = "payload";
+
+    private static final int        MAX_OBSOLETE = 1000;
+
+    private static final IRecordFieldSelector NO_INDEX = new IRecordFieldSelector() {
+        public boolean accept( String key ) {
+            return false;
+        }
+    };
+
+
+    // instance *******************************************
+
+    private int                     heapSize;
+
+    /** The fids of all buffered states, on the heap or in the {@link #store}. */
+    private Set<String>             fids = Collections.newSetFromMap( new ConcurrentHashMap() );
+
+    /**
+     * fid -> record id of the spilled states. A state that is on the heap too is
+     * more recent than its record; the record is updated when the state is
+     * spilled again.
+     */
+    private Map<String,String>      spilled = new ConcurrentHashMap();
+
+    /** The records of unregistered states, removed with the next {@link #spill()}. */
+    private List<String>            obsolete = new ArrayList();
+
+    private LuceneRecordStore       store;
+
+    private File                    storeDir;
+
+    private SimpleFeatureType       schema;
+
+
+    SpillingFeatureBuffer( int heapSize ) {
+        this.heapSize = heapSize;
+    }
+
+
+    public synchronized void clear()
+    throws Exception {
+        super.clear();
+        fids.clear();
+        spilled.clear();
+        obsolete.clear();
+        closeStore();
+    }
+
+
+    public boolean isEmpty() {
+        return fids.isEmpty();
+    }
+
+
+    public int size() {
+        return fids.size();
+    }
+
+
+    public Collection<FeatureBufferState> content() {
+        // lazy, so that the spilled states are not loaded all at once
+        return states();
+    }
+
+
+    public synchronized void registerFeatures( Collection<Feature> features ) {
+        super.registerFeatures( features );
+        spill();
+    }
+
+
+    public synchronized void unregisterFeatures( Collection<Feature> features ) {
+        super.unregisterFeatures( features );
+        spill();
+    }
+
+
+    public synchronized Set<FeatureId> markAdded( Collection<Feature> features )
+    throws Exception {
+        try {
+            return super.markAdded( features );
+        }
+        finally {
+            spill();
+        }
+    }
+
+
+    public synchronized Set<FeatureId> markModified( Filter filter, AttributeDescriptor[] type, Object[] value )
+    throws Exception {
+        try {
+            return super.markModified( filter, type, value );
+        }
+        finally {
+            spill();
+        }
+    }
+
+
+    public synchronized Set<FeatureId> markRemoved( Filter filter )
+    throws Exception {
+        try {
+            return super.markRemoved( filter );
+        }
+        finally {
+            spill();
+        }
+    }
+
+
+    // storage ********************************************
+
+    protected FeatureBufferState state( String fid ) {
+        FeatureBufferState result = super.state( fid );
+        if (result == null) {
+            String recordId = spilled.get( fid );
+            if (recordId != null) {
+                result = load( fid, recordId );
+            }
+        }
+        return result;
+    }
+
+
+    protected Collection<FeatureBufferState> states() {
+        return states( fids );
+    }
+
+
+    /**
+     * Lazily loads the spilled states while iterating, so that bulk operations
+     * do not load all states at once.
+     */
+    protected Collection<FeatureBufferState> states( Collection<String> _fids ) {
+        final List<String> snapshot = new ArrayList( _fids );
+        return new AbstractCollection<FeatureBufferState>() {
+            public int size() {
+                return snapshot.size();
+            }
+            public Iterator<FeatureBufferState> iterator() {
+                return new Iterator<FeatureBufferState>() {
+                    private Iterator<String>    it = snapshot.iterator();
+                    private FeatureBufferState  next;
+
+                    public boolean hasNext() {
+                        // skip states that were unregistered meanwhile
+                        while (next == null && it.hasNext()) {
+                            next = state( it.next() );
+                        }
+                        return next != null;
+                    }
+                    public FeatureBufferState next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        FeatureBufferState result = next;
+                        next = null;
+                        return result;
+                    }
+                    public void remove() {
+                        throw new UnsupportedOperationException( "remove()" );
+                    }
+                };
+            }
+        };
+    }
+
+
+    protected boolean containsState( String fid ) {
+        return fids.contains( fid );
+    }
+
+
+    protected boolean addState( String fid, FeatureBufferState state ) {
+        if (fids.contains( fid )) {
+            return false;
+        }
+        if (schema == null) {
+            if (!(state.original() instanceof SimpleFeature)) {
+                throw new RuntimeException( "Complex features are not yet supported." );
+            }
+            schema = ((SimpleFeature)state.original()).getFeatureType();
+        }
+        super.addState( fid, state );
+        fids.add( fid );
+        return true;
+    }
+
+
+    protected void removeState( String fid ) {
+        super.removeState( fid );
+        fids.remove( fid );
+        String recordId = spilled.remove( fid );
+        if (recordId != null) {
+            obsolete.add( recordId );
+        }
+    }
+
+
+    protected void updated( String fid, FeatureBufferState state ) {
+        super.updated( fid, state );
+        // a spilled state that has been changed is held on the heap until the next spill()
+        buffer.put( fid, state );
+        // spill inside bulk operations, before all their states are on the heap
+        if (buffer.size() > heapSize) {
+            spill();
+        }
+    }
+
+
+    /**
+     * Writes states to the {@link #store} until the heap holds 3/4 of
+     * {@link #heapSize} states, and removes the records of unregistered states.
+     * Called as soon as a state is added or changed beyond the heap budget, and
+     * at the end of every operation that adds, changes or removes states.
+     */
+    protected void spill() {
+        // obsolete records are not visible, removing them can wait
+        if (buffer.size() <= heapSize && obsolete.size() < MAX_OBSOLETE) {
+            return;
+        }
+        Timer timer = new Timer();
+        Updater tx = null;
+        try {
+            ensureStore();
+            tx = store.prepareUpdate();
+            for (String recordId : obsolete) {
+                IRecordState record = store.get( recordId );
+                if (record != null) {
+                    tx.remove( record );
+                }
+            }
+            Map<String,IRecordState> written = new HashMap();
+            int excess = buffer.size() - (heapSize * 3 / 4);
+            for (Iterator<Map.Entry<String,FeatureBufferState>> it=buffer.entrySet().iterator(); it.hasNext() && excess > 0; excess--) {
+                Map.Entry<String,FeatureBufferState> entry = it.next();
+                String recordId = spilled.get( entry.getKey() );
+                IRecordState record = recordId != null ? store.get( recordId ) : null;
+                record = record != null ? record : store.newRecord();
+                record.put( PAYLOAD_KEY, encode( entry.getValue() ) );
+                tx.store( record );
+                written.put( entry.getKey(), record );
+            }
+            tx.apply();
+            tx = null;
+            obsolete.clear();
+
+            // make the records visible before the states are removed from the heap
+            for (Map.Entry<String,IRecordState> entry : written.entrySet()) {
+                spilled.put( entry.getKey(), (String)entry.getValue().id() );
+                buffer.remove( entry.getKey() );
+            }
+            log.debug( "Spilled: " + written.size() + ", heap: " + buffer.size() + ", total: " + fids.size() + " (" + timer.elapsedTime() + "ms)" );
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException( "Unable to spill feature buffer.", e );
+        }
+        finally {
+            if (tx != null) {
+                tx.discard();
+            }
+        }
+    }
+
+
+    protected FeatureBufferState load( String fid, String recordId ) {
+        try {
+            IRecordState record = store.get( recordId );
+            if (record == null) {
+                throw new IllegalStateException( "No record for spilled feature: " + fid );
+            }
+            return decode( fid, (byte[])record.get( PAYLOAD_KEY ) );
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException( "Unable to load spilled feature: " + fid, e );
+        }
+    }
+
+
+    protected void ensureStore() throws IOException {
+        if (store == null) {
+            storeDir = new File( Polymap.getCacheDir(), "featureBuffer_" + UUID.randomUUID() );
+            store = new LuceneRecordStore( storeDir, true );
+            store.setIndexFieldSelector( NO_INDEX );
+            // temporary store; deleted on close
+            store.setCommitPolicy( 3000, LuceneRecordStore.DEFAULT_COMMIT_MAX_OPS );
+        }
+    }
+
+
+    protected void closeStore() {
+        if (store != null) {
+            store.close();
+            store = null;
+            FileUtils.deleteQuietly( storeDir );
+            storeDir = null;
+        }
+    }
+
+
+    /**
+     * Serializes the state, the timestamp and the attribute values of the
+     * original and the current feature.
+     */
+    protected byte[] encode( FeatureBufferState state ) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream( 1024 );
+        ObjectOutputStream out = new ObjectOutputStream( bout );
+        try {
+            out.writeUTF( state.state().name() );
+            out.writeLong( state.timestamp() );
+            out.writeObject( ((SimpleFeature)state.original()).getAttributes().toArray() );
+            // copy-on-write: the feature is the original until modified
+            boolean copied = state.feature() != state.original();
+            out.writeBoolean( copied );
+            if (copied) {
+                out.writeObject( ((SimpleFeature)state.feature()).getAttributes().toArray() );
+            }
+        }
+        finally {
+            out.close();
+        }
+        return bout.toByteArray();
+    }
+
+
+    protected FeatureBufferState decode( String fid, byte[] bytes ) throws Exception {
+        ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+        try {
+            FeatureBufferState.State state = FeatureBufferState.State.valueOf( in.readUTF() );
+            long timestamp = in.readLong();
+            SimpleFeatureBuilder builder = new SimpleFeatureBuilder( schema );
+            builder.addAll( (Object[])in.readObject() );
+            Feature original = builder.buildFeature( fid );
+            original.getUserData().put( FeatureBufferState.TIMESTAMP_KEY, timestamp );
+
+            Feature feature = original;
+            if (in.readBoolean()) {
+                builder.addAll( (Object[])in.readObject() );
+                feature = builder.buildFeature( fid );
+            }
+            return new FeatureBufferState( original, feature, state, timestamp );
+        }
+        finally {
+            in.close();
+        }
+    }
+
+}
@@ -15,16 +15,25 @@
  */
 package org.polymap.core.data.feature.lucene;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.StringWriter;
 
 import org.geotools.data.Query;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
@@ -35,6 +44,7 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -45,313 +55,327 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.Fieldable;
-import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ReaderUtil;
+import org.apache.lucene.util.Version;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
 
-import org.polymap.core.data.pipeline.PipelineIncubationException;
+import org.polymap.core.data.FeatureChangeEvent;
 import org.polymap.core.project.ILayer;
 import org.polymap.core.runtime.Polymap;
 import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.event.Event;
+import org.polymap.core.runtime.event.EventFilter;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
 
 /**
  * Feature cache backed by Lucene.
  * <p/>
  * All cache processors for the same layer share one instance (aquired by
- * {@link #instance(ILayer)}) across all sessions!
- * 
+ * {@link #aquire(ILayer, FeatureType)}) across all sessions! The index is
+ * persistent in the cache dir of the workspace, so it survives restarts.
+ * <p/>
+ * Concurrent readers do not block each other or the writer: every
+ * {@link #getFeatures(Query)} acquires a searcher from a near-real-time
+ * {@link SearcherManager} and releases it when its result is
+ * {@link CachedFeatures#close() closed} or iterated to the end. Writes go to one
+ * {@link IndexWriter} that is open as long as the cache.
+ * <p/>
+ * The cache is updated incrementally: {@link FeatureChangeEvent}s of the layer
+ * delete the changed features from the index; their ids are {@link #staleFids()
+ * stale} until they are loaded again via {@link #putFeatures(List, long)}. Every
+ * invalidation has a {@link #version()}; features that were fetched before a
+ * newer invalidation cannot clear its stale mark. Changes are visible to new
+ * searchers immediately; the commit to disk is delayed by {@link #COMMIT_DELAY}.
+ * Geometries are stored as WKB.
+ *
  * @author <a href="http://www.polymap.de">Falko Braeutigam</a>
  * @since 3.1
  */
-@SuppressWarnings("deprecation")
 public class LuceneCache {
 
     private static final Log log = LogFactory.getLog( LuceneCache.class );
 
+    public static final Version             VERSION = Version.LUCENE_36;
+
     static final String                     FIELD_MAXX = "_maxx_";
     static final String                     FIELD_MAXY = "_maxy_";
     static final String                     FIELD_MINX = "_minx_";
     static final String                     FIELD_MINY = "_miny_";
-    
-    private static Map<String,LuceneCache>  instances = new HashMap();
-    
-    private static ReentrantReadWriteLock   instancesLock = new ReentrantReadWriteLock();
-    
-    
-    public static synchronized LuceneCache aquire( ILayer layer, FeatureType schema )
+
+    static final String                     FIELD_FID = "fid";
+
+    /** Commit user data: the stale fids, separated by {@link #STALE_SEPARATOR}. */
+    static final String                     STALE_KEY = "stale";
+
+    static final String                     STALE_SEPARATOR = "\n";
+
+    /** The delay of the commit after puts and invalidations in millis. */
+    public static final int                 COMMIT_DELAY = 3000;
+
+    private static ConcurrentMap<String,LuceneCache> instances = new ConcurrentHashMap();
+
+
+    public static LuceneCache aquire( ILayer layer, FeatureType schema )
     throws IOException {
-        try {
-            instancesLock.readLock().lock();
-            LuceneCache cache = instances.get( layer.id() );
-            
-            if (cache == null) {
-                instancesLock.readLock().unlock();
-                instancesLock.writeLock().lock();
-                
-                cache = new LuceneCache( layer, schema );
-                instances.put( layer.id(), cache );
-            }
-            return cache;
-        }
-        finally {
-            if (instancesLock.writeLock().isHeldByCurrentThread()) {
-                instancesLock.readLock().lock();
-                instancesLock.writeLock().unlock();
+        LuceneCache cache = instances.get( layer.id() );
+        if (cache == null) {
+            synchronized (instances) {
+                cache = instances.get( layer.id() );
+                if (cache == null) {
+                    cache = new LuceneCache( layer, schema );
+                    instances.put( layer.id(), cache );
+                }
             }
-            instancesLock.readLock().unlock();
         }
+        cache.refs.incrementAndGet();
+        return cache;
     }
 
-    
+
+    /**
+     * Releases a cache aquired via {@link #aquire(ILayer, FeatureType)}. The index
+     * is kept open even if there are no more references, as it is shared by all
+     * sessions; it is closed by {@link #dispose()}.
+     */
     public static void release( LuceneCache cache ) {
+        cache.refs.decrementAndGet();
     }
-    
-    
+
+
     // instance *******************************************
-    
+
+    private String              layerId;
+
     private Directory           directory;
 
-    private Analyzer            analyzer = new WhitespaceAnalyzer();
+    private Analyzer            analyzer = new WhitespaceAnalyzer( VERSION );
 
-    private IndexSearcher       searcher;
+    private IndexWriter         writer;
+
+    private SearcherManager     searcherManager;
+
+    private AtomicInteger       refs = new AtomicInteger();
 
-    /** Synchronizing access is left to Lucene. */
-    private IndexReader         indexReader;
-    
-    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-    
     private FeatureType         schema;
-    
+
+    /** Decodes geometries of indexes that were created before WKB was used. */
     private GeometryJSON        jsonCoder = new GeometryJSON( 6 );
-    
-    private boolean             isEmpty = false;
+
+    private volatile boolean    isEmpty = false;
+
+    /**
+     * The fids of the features that were changed but not loaded again, mapped to
+     * the {@link #version()} of their invalidation.
+     */
+    private ConcurrentMap<String,Long> stale = new ConcurrentHashMap();
+
+    /** The version of the last invalidation. */
+    private AtomicLong          invalidations = new AtomicLong();
+
+    /** Synchronizes the writes to the index with the {@link #stale} marks. */
+    private Object              writeLock = new Object();
+
+    private CommitJob           commitJob = new CommitJob();
 
     /**
-     * The memory cache (see {@link #cacheKey(int, Query)}.
+     * The memory cache: {@link FeatureKey} -> {@link Feature}.
      * <p/>
      * For normal Browser settings with 6-8 concurrent requests 4 concurrent threads
      * in the cache is insufficient, but in most cases actual concurrent cache
      * request are between 1-4. The smaller the number the faster the cache reads.
-     * <p/>
-     * FIXME Map doc id into Feature, so that no Lucene document needs to be loaded
-     * after query if the feature is in cache
      */
-    private ConcurrentReferenceHashMap<Object,Feature> cache = 
-            new ConcurrentReferenceHashMap( 16*1024, 0.75f, 4, 
+    private ConcurrentReferenceHashMap<FeatureKey,Feature> cache =
+            new ConcurrentReferenceHashMap( 16*1024, 0.75f, 4,
             ConcurrentReferenceHashMap.ReferenceType.STRONG, ConcurrentReferenceHashMap.ReferenceType.SOFT, null );
-    
-    
-    LuceneCache( ILayer layer, FeatureType schema ) 
+
+
+    LuceneCache( ILayer layer, FeatureType schema )
     throws IOException {
         this.schema = schema;
-        
+        this.layerId = layer.id();
+
         File luceneCacheDir = new File( Polymap.getCacheDir(), "luceneCache_" + layer.id() );
         luceneCacheDir.mkdirs();
 
         directory = FSDirectory.open( luceneCacheDir );
-        
-        if (directory.listAll().length == 0) {
-            log.info( "No index found, creating..." );
-            IndexWriter iwriter = new IndexWriter( directory, analyzer, true, new IndexWriter.MaxFieldLength( 25000 ) );
-            iwriter.commit();
-            iwriter.close();
-            isEmpty = true;
+
+        IndexWriterConfig config = new IndexWriterConfig( VERSION, analyzer )
+                .setOpenMode( OpenMode.CREATE_OR_APPEND );
+        writer = new IndexWriter( directory, config );
+        writer.commit();
+
+        searcherManager = new SearcherManager( writer, true, null );
+
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            isEmpty = reader.numDocs() == 0;
+
+            Map<String,String> userData = reader.getCommitUserData();
+            String staleData = userData != null ? userData.get( STALE_KEY ) : null;
+            if (staleData != null && staleData.length() > 0) {
+                for (String fid : StringUtils.split( staleData, STALE_SEPARATOR )) {
+                    stale.put( fid, 0L );
+                }
+            }
+            log.info( "Index opened: " + reader.numDocs() + " features, stale: " + stale.size() );
         }
-        
-//        log.info( "    creating index reader..." );
-//        indexReader = IndexReader.open( directory, true );
-//        log.info( "    creating index searcher..." );
-//        searcher = new IndexSearcher( indexReader );
+        finally {
+            searcherManager.release( searcher );
+        }
+
+        EventManager.instance().subscribe( this, new EventFilter<EventObject>() {
+            public boolean apply( EventObject ev ) {
+                return ev instanceof FeatureChangeEvent
+                        && ((FeatureChangeEvent)ev).getSource().id().equals( layerId );
+            }
+        });
     }
-    
-    
-    public void dispose() 
+
+
+    public void dispose()
     throws IOException {
+        EventManager.instance().unsubscribe( this );
+        instances.remove( layerId, this );
+        commitJob.cancel();
+        if (writer != null) {
+            commit();
+        }
         if (cache != null) {
             cache.clear();
             cache = null;
         }
-        if (searcher != null) {
-            searcher.close();
-            searcher = null;
+        if (searcherManager != null) {
+            searcherManager.close();
+            searcherManager = null;
         }
-        if (indexReader != null) {
-            indexReader.close();
-            indexReader = null;
+        if (writer != null) {
+            writer.close();
+            writer = null;
         }
         directory.close();
         directory = null;
     }
-    
-    
-    public boolean isEmpty() 
+
+
+    public boolean isEmpty()
     throws IOException {
         return isEmpty;
     }
 
-    
+
+    /**
+     * The ids of the features that were changed since they were cached. These
+     * features are not in the index; they have to be loaded from the underlying
+     * store and {@link #putFeatures(List, long) put} into the cache again. Ids
+     * that are not found in the store anymore have to be
+     * {@link #clearStale(Collection, long) cleared}.
+     */
+    public Set<String> staleFids() {
+        return Collections.unmodifiableSet( stale.keySet() );
+    }
+
+
+    /**
+     * The current version of the invalidations. Must be retrieved <b>before</b>
+     * features are fetched from the underlying store and given to
+     * {@link #putFeatures(List, long)} and {@link #clearStale(Collection, long)}.
+     */
+    public long version() {
+        return invalidations.get();
+    }
+
+
     public boolean supports( Filter filter ) {
         return LuceneQueryParser.supports( filter );
     }
 
-    
-    public Iterable<Feature> getFeatures( final Query query ) 
+
+    /**
+     * Executes the given query against the index.
+     * <p/>
+     * The caller is responsible of {@link CachedFeatures#close() closing} the
+     * result, if it is not iterated to the end.
+     */
+    public CachedFeatures getFeatures( final Query query )
     throws IOException {
         Timer timer = new Timer();
-        
-        LuceneQueryParser queryParser = new LuceneQueryParser( schema, query.getFilter() );
 
-        if (indexReader == null) {
-            rwLock.writeLock().lock();
-            try {
-                if (indexReader == null) {
-                    indexReader = IndexReader.open( directory, true );
-                    searcher = new IndexSearcher( indexReader );
-                    log.info( "Index reloaded." );
-                }
-            }
-            finally {
-                rwLock.writeLock().unlock();
-            }
-        }
-
-//        rwLock.readLock().lock();
-        
         // check schema
         if (schema == null) {
             throw new RuntimeException( "schema is null, call getFeatureType() first." );
         }
 
-        // execute Lucene query
-        TopDocs topDocs = searcher.search( queryParser.getQuery(), query.getMaxFeatures() );
-        final ScoreDoc[] scoreDocs = topDocs.scoreDocs;
-        final int count = scoreDocs.length;
-        log.info( "    results: " + count + " (" + timer.elapsedTime() + "ms)" );
-
-        // skip unwanted properties
-        final FieldSelector fieldSelector = new QueryFieldSelector( query );
-        
-        return new Iterable<Feature>() {
-            public Iterator<Feature> iterator() {
-          
-                return new Iterator<Feature>() {
-
-                    private SimpleFeatureBuilder    builder = new SimpleFeatureBuilder( (SimpleFeatureType)schema );
-                    private int                     index = 0;
-                    private boolean                 unlocked = false;
-                    private int                     cacheHits = 0;
-
-                    protected void finalize()
-                    throws Throwable {
-                        if (unlocked == false) {
-                            rwLock.readLock().unlock();
-                        }
-                    }
-
-                    public boolean hasNext() {
-                        boolean result = index < count;
-                        if (result == false && unlocked == false) {
-//                            rwLock.readLock().unlock();
-                            unlocked = true;
-                        }
-                        if (result == false) {
-                            log.info( "CACHE: gets=" + count + ", hits=" + cacheHits + ", cache=" + cache.size() );
-                        }
-                        return result;
-                    }
-
-                    public Feature next() {
-                        if (!hasNext()) {
-                            throw new NoSuchElementException( "Query result count: " + scoreDocs.length );
-                        }
-                        try {
-                            int docnum = scoreDocs[ index++ ].doc;
-                            
-                            Feature result = null;
-                            
-                            result = cache.get( cacheKey( docnum, query ) );
-                            if (result != null) {
-                                ++cacheHits;
-                                return result;
-                            }
-                            
-                            Document doc = searcher.doc( docnum, fieldSelector );
-//                            result = new LuceneFeature( doc, (SimpleFeatureType)schema );
-                        
-                            String fid = null;
-                            for (Fieldable field : doc.getFields()) {
-                                if (schema == null) {
-                                    throw new RuntimeException( "schema is null, call getFeatureType() first." );
-                                }
-                                // fid
-                                if (field.name().equals( "fid" )) {
-                                    fid = field.stringValue();
-                                    continue;
-                                }
-                                        
-                                PropertyDescriptor descriptor = schema.getDescriptor( field.name() );
-                                if (descriptor == null) {
-                                    throw new RuntimeException( "No descriptor for: " + field.name() );
-                                }
-                                Class valueType = descriptor.getType().getBinding();
-                                // Geometry
-                                if (Geometry.class.isAssignableFrom( valueType )) {
-                                    Geometry geom = jsonCoder.read( new StringReader( field.stringValue() ) );
-                                    builder.set( field.name(), geom );
-                                }
-                                // other
-                                else {
-                                    Object value = ValueCoder.decode( field, valueType );
-                                    builder.set( field.name(), value );
-                                }
-                            }
-                            result = builder.buildFeature( fid );
-
-                            cache.put( cacheKey( docnum, query ), result );
-                            return result;
-                        }
-                        catch (Exception e) {
-                            throw new RuntimeException( e );
-                        }
-                    }
-
-                    public void remove() {
-                        throw new UnsupportedOperationException( "remove()" );
-                    }
-                    
-                };
-            }
-        };
-    }
-    
-    
-    public void putFeatures( List<Feature> features )
-    throws CorruptIndexException, IOException, PipelineIncubationException {
+        LuceneQueryParser queryParser = new LuceneQueryParser( schema, query.getFilter() );
 
-        IndexWriter iwriter = null;
+        IndexSearcher searcher = searcherManager.acquire();
         try {
-            long start = System.currentTimeMillis();
-            rwLock.writeLock().lock();
+            // execute Lucene query
+            TopDocs topDocs = searcher.search( queryParser.getQuery(), query.getMaxFeatures() );
+            log.debug( "    results: " + topDocs.scoreDocs.length + " (" + timer.elapsedTime() + "ms)" );
+            return new CachedFeatures( searcher, topDocs.scoreDocs, query );
+        }
+        catch (IOException e) {
+            searcherManager.release( searcher );
+            throw e;
+        }
+        catch (RuntimeException e) {
+            searcherManager.release( searcher );
+            throw e;
+        }
+    }
 
-            iwriter = new IndexWriter( directory, analyzer, false, new IndexWriter.MaxFieldLength( 25000 ) );
 
-            int size = 0;        
-            int indexed = 0;
+    /**
+     * Adds the given features to the index, or updates features that are
+     * already in the index. Features that were invalidated after the given
+     * version are skipped, as they are outdated already.
+     *
+     * @param features
+     * @param fetchVersion The {@link #version()} before the features were
+     *        fetched from the underlying store.
+     */
+    public void putFeatures( List<Feature> features, long fetchVersion )
+    throws IOException {
+        Timer timer = new Timer();
+        WKBWriter wkbWriter = new WKBWriter();
+        int indexed = 0, skipped = 0;
 
+        Set<String> fids = new HashSet( features.size() * 2 );
+        synchronized (writeLock) {
             for (Feature feature : features) {
+                String fid = feature.getIdentifier().getID();
+                Long staleVersion = stale.get( fid );
+                if (staleVersion != null && staleVersion > fetchVersion) {
+                    skipped++;
+                    continue;
+                }
                 Document doc = new Document();
-                
+
                 for (Property prop : feature.getProperties()) {
                     String propName = prop.getName().getLocalPart();
-                    //log.debug( "        prop: " + propName );
 
                     // no value
                     if (prop.getValue() == null) {
@@ -360,73 +384,344 @@ public class LuceneCache {
                     // Geometry
                     else if (Geometry.class.isAssignableFrom( prop.getValue().getClass() ) ) {
                         Geometry geom = (Geometry)prop.getValue();
-                        StringWriter out = new StringWriter( 1024 );
-                        jsonCoder.write( geom, out );
-                        doc.add( new Field( propName, out.toString(), Field.Store.YES, Field.Index.NO ) );
-                        
+                        doc.add( new Field( propName, wkbWriter.write( geom ) ) );
+
                         Envelope envelop = geom.getEnvelopeInternal();
-                        doc.add( ValueCoder.encode( propName+FIELD_MAXX, envelop.getMaxX(), 
+                        doc.add( ValueCoder.encode( propName+FIELD_MAXX, envelop.getMaxX(),
                                 Double.class, Field.Store.NO, true ) );
-                        doc.add( ValueCoder.encode( propName+FIELD_MAXY, envelop.getMaxY(), 
+                        doc.add( ValueCoder.encode( propName+FIELD_MAXY, envelop.getMaxY(),
                                 Double.class, Field.Store.NO, true ) );
-                        doc.add( ValueCoder.encode( propName+FIELD_MINX, envelop.getMinX(), 
+                        doc.add( ValueCoder.encode( propName+FIELD_MINX, envelop.getMinX(),
                                 Double.class, Field.Store.NO, true ) );
-                        doc.add( ValueCoder.encode( propName+FIELD_MINY, envelop.getMinY(), 
+                        doc.add( ValueCoder.encode( propName+FIELD_MINY, envelop.getMinY(),
                                 Double.class, Field.Store.NO, true ) );
                     }
                     // other
                     else {
                         Class valueType = prop.getType().getBinding();
-                        Fieldable field = ValueCoder.encode( propName, prop.getValue(), valueType, 
+                        Fieldable field = ValueCoder.encode( propName, prop.getValue(), valueType,
                                 Field.Store.YES, true );
                         doc.add( field );
-                        //log.debug( "    field: " + field );
                     }
                     indexed++;
                 }
 
-                doc.add( new Field( "fid", feature.getIdentifier().getID(), Field.Store.YES, Field.Index.NOT_ANALYZED ) );
-                //log.info( "DOC: " + doc );
-                iwriter.addDocument( doc );
-                size++;
+                doc.add( new Field( FIELD_FID, fid, Field.Store.YES, Field.Index.NOT_ANALYZED ) );
+                writer.updateDocument( new Term( FIELD_FID, fid ), doc );
+                if (staleVersion != null) {
+                    stale.remove( fid, staleVersion );
+                }
+                fids.add( fid );
             }
-            iwriter.commit();
-            iwriter.close();
-            iwriter = null;
-            isEmpty = false;
-            log.debug( "    document: count=" + size + " indexed=" + indexed );
+        }
+        removeCached( fids );
+        refresh();
+        isEmpty = false;
+        log.debug( "Added features: " + fids.size() + ", skipped: " + skipped + ", indexed fields: " + indexed + " (" + timer.elapsedTime() + "ms)" );
+    }
 
-            log.info( "Added features: " + features.size() + " (" + (System.currentTimeMillis()-start) + "ms)" );
 
-            if (indexReader != null) {
-                searcher.close();
+    /**
+     * Removes the features with the given ids from the index and marks them as
+     * {@link #staleFids() stale}. This also applies to features that were removed
+     * from the underlying store: so a put of features that were fetched before
+     * cannot bring them back. Their marks are {@link #clearStale(Collection, long)
+     * cleared} when the reload does not find them.
+     */
+    public void invalidate( Set<String> fids )
+    throws IOException {
+        synchronized (writeLock) {
+            Long invalidation = invalidations.incrementAndGet();
+            for (String fid : fids) {
+                writer.deleteDocuments( new Term( FIELD_FID, fid ) );
+                stale.put( fid, invalidation );
+            }
+        }
+        removeCached( fids );
+        refresh();
+        log.debug( "Invalidated: " + fids.size() + ", stale: " + stale.size() );
+    }
+
+
+    /**
+     * Clears the stale marks of the given fids that were not invalidated after
+     * the given version. Called after the stale features were loaded from the
+     * underlying store; this removes the ids that were not found there anymore.
+     *
+     * @param fids The fids that were requested from the underlying store.
+     * @param fetchVersion The {@link #version()} before the features were
+     *        fetched.
+     */
+    public void clearStale( Collection<String> fids, long fetchVersion ) {
+        int cleared = 0;
+        synchronized (writeLock) {
+            for (String fid : fids) {
+                Long staleVersion = stale.get( fid );
+                if (staleVersion != null && staleVersion <= fetchVersion
+                        && stale.remove( fid, staleVersion )) {
+                    cleared++;
+                }
+            }
+        }
+        if (cleared > 0) {
+            commitJob.schedule( COMMIT_DELAY );
+        }
+        log.debug( "Cleared stale: " + cleared + ", stale: " + stale.size() );
+    }
+
+
+    @EventHandler(scope=Event.Scope.JVM, delay=1000)
+    protected void featureChanges( List<FeatureChangeEvent> events )
+    throws IOException {
+        Set<String> fids = new HashSet();
+        for (FeatureChangeEvent ev : events) {
+            for (FeatureId fid : ev.getFids()) {
+                fids.add( fid.getID() );
+            }
+        }
+        if (!fids.isEmpty()) {
+            invalidate( fids );
+        }
+    }
+
+
+    /**
+     * Makes the changes visible to new searchers and schedules the delayed
+     * {@link #commit()}.
+     */
+    protected void refresh() throws IOException {
+        searcherManager.maybeRefresh();
+        commitJob.schedule( COMMIT_DELAY );
+    }
+
+
+    /**
+     * Commits the writer, storing the {@link #stale} fids.
+     */
+    protected void commit() throws IOException {
+        synchronized (writeLock) {
+            writer.commit( Collections.singletonMap( STALE_KEY,
+                    StringUtils.join( stale.keySet(), STALE_SEPARATOR ) ) );
+        }
+    }
+
+
+    /**
+     * Does the delayed {@link LuceneCache#commit()}; commits all changes of the
+     * period.
+     */
+    class CommitJob
+            extends Job {
+
+        public CommitJob() {
+            super( "LuceneCache commit" );
+            setSystem( true );
+        }
+
+        protected IStatus run( IProgressMonitor monitor ) {
+            try {
+                if (writer != null) {
+                    commit();
+                }
+            }
+            catch (Exception e) {
+                log.warn( "Error during delayed commit.", e );
+            }
+            return Status.OK_STATUS;
+        }
+    }
+
+
+    protected void removeCached( Set<String> fids ) {
+        for (Iterator<FeatureKey> it = cache.keySet().iterator(); it.hasNext(); ) {
+            if (fids.contains( it.next().fid )) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * The result of {@link LuceneCache#getFeatures(Query)}. It holds the searcher
+     * of the query until it is closed or iterated to the end.
+     */
+    public class CachedFeatures
+            implements Iterable<Feature> {
+
+        private IndexSearcher           searcher;
+
+        private ScoreDoc[]              scoreDocs;
+
+        private Query                   query;
+
+        /** Skip unwanted properties. */
+        private FieldSelector           fieldSelector;
+
+        private long                    propNamesHash;
+
+        private List<IndexReader>       segments = new ArrayList();
+
+        private int[]                   docStarts;
+
+        private AtomicBoolean           closed = new AtomicBoolean();
+
+
+        CachedFeatures( IndexSearcher searcher, ScoreDoc[] scoreDocs, Query query ) {
+            this.searcher = searcher;
+            this.scoreDocs = scoreDocs;
+            this.query = query;
+            this.fieldSelector = new QueryFieldSelector( query );
+            if (query.getPropertyNames() != null) {
+                // this is not exact but I don't want to store the big joined strings
+                // as keys in the cache
+                propNamesHash = StringUtils.join( query.getPropertyNames(), "_" ).hashCode();
+            }
+            ReaderUtil.gatherSubReaders( segments, searcher.getIndexReader() );
+            docStarts = new int[ segments.size() ];
+            for (int i=0, docStart=0; i<segments.size(); i++) {
+                docStarts[i] = docStart;
+                docStart += segments.get( i ).maxDoc();
+            }
+        }
+
+
+        public int size() {
+            return scoreDocs.length;
+        }
+
+
+        /**
+         * Releases the searcher of this result. Subsequent calls are ignored.
+         */
+        public void close() {
+            if (closed.compareAndSet( false, true )) {
+                try {
+                    searcherManager.release( searcher );
+                }
+                catch (IOException e) {
+                    log.warn( "Unable to release searcher.", e );
+                }
                 searcher = null;
-                indexReader.close();
-                indexReader = null;
             }
-//            indexReader = IndexReader.open( directory, true );
-//            searcher = new IndexSearcher( indexReader );
-//            log.info( "Index reloaded." );
         }
-        catch (Exception e) {
-            log.error( "Fehler beim Indizieren:" + e.getLocalizedMessage() );
-            log.debug( e.getLocalizedMessage(), e );
+
+
+        protected String fid( int docnum ) throws IOException {
+            int segment = ReaderUtil.subIndex( docnum, docStarts );
+            String[] fids = FieldCache.DEFAULT.getStrings( segments.get( segment ), FIELD_FID );
+            return fids[docnum - docStarts[segment]];
         }
-        finally {
-            if (iwriter != null) { iwriter.close(); }
-            rwLock.writeLock().unlock();
+
+
+        protected Feature load( int docnum, String fid, SimpleFeatureBuilder builder, WKBReader wkbReader )
+        throws Exception {
+            Document doc = searcher.doc( docnum, fieldSelector );
+            for (Fieldable field : doc.getFields()) {
+                // fid
+                if (field.name().equals( FIELD_FID )) {
+                    continue;
+                }
+                PropertyDescriptor descriptor = schema.getDescriptor( field.name() );
+                if (descriptor == null) {
+                    throw new RuntimeException( "No descriptor for: " + field.name() );
+                }
+                Class valueType = descriptor.getType().getBinding();
+                // Geometry
+                if (Geometry.class.isAssignableFrom( valueType )) {
+                    Geometry geom = field.isBinary()
+                            ? wkbReader.read( field.getBinaryValue() )
+                            : jsonCoder.read( new StringReader( field.stringValue() ) );
+                    builder.set( field.name(), geom );
+                }
+                // other
+                else {
+                    Object value = ValueCoder.decode( field, valueType );
+                    builder.set( field.name(), value );
+                }
+            }
+            return builder.buildFeature( fid );
+        }
+
+
+        public Iterator<Feature> iterator() {
+            if (closed.get()) {
+                throw new IllegalStateException( "Result is closed already." );
+            }
+            return new Iterator<Feature>() {
+
+                private SimpleFeatureBuilder    builder = new SimpleFeatureBuilder( (SimpleFeatureType)schema );
+                private WKBReader               wkbReader = new WKBReader();
+                private int                     index = 0;
+                private int                     cacheHits = 0;
+
+                public boolean hasNext() {
+                    boolean result = index < scoreDocs.length;
+                    if (result == false && !closed.get()) {
+                        log.debug( "CACHE: gets=" + scoreDocs.length + ", hits=" + cacheHits + ", cache=" + cache.size() );
+                        close();
+                    }
+                    return result;
+                }
+
+                public Feature next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException( "Query result count: " + scoreDocs.length );
+                    }
+                    try {
+                        int docnum = scoreDocs[ index++ ].doc;
+                        String fid = fid( docnum );
+                        FeatureKey key = new FeatureKey( fid, propNamesHash );
+
+                        Feature result = cache.get( key );
+                        if (result != null) {
+                            ++cacheHits;
+                            return result;
+                        }
+                        result = load( docnum, fid, builder, wkbReader );
+                        cache.put( key, result );
+                        return result;
+                    }
+                    catch (Exception e) {
+                        close();
+                        throw new RuntimeException( e );
+                    }
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException( "remove()" );
+                }
+            };
         }
     }
 
-    
-    private Object cacheKey( int docnum, Query query ) {
-        // this is not exact but I don't want to store the big joined strings
-        // as keys in the cache
-        long propNamesHash = 0;
-        if (query.getPropertyNames() != null) {
-            propNamesHash = StringUtils.join( query.getPropertyNames(), "_" ).hashCode();
+
+    /**
+     * The key of the memory cache: the fid of the feature and the property names
+     * of the query. The fid does not change if the index is merged or updated,
+     * other than the docnum.
+     */
+    static final class FeatureKey {
+
+        final String        fid;
+
+        final long          propNamesHash;
+
+        FeatureKey( String fid, long propNamesHash ) {
+            this.fid = fid;
+            this.propNamesHash = propNamesHash;
+        }
+
+        public int hashCode() {
+            return fid.hashCode() ^ (int)propNamesHash;
+        }
+
+        public boolean equals( Object obj ) {
+            if (obj instanceof FeatureKey) {
+                FeatureKey rhs = (FeatureKey)obj;
+                return propNamesHash == rhs.propNamesHash && fid.equals( rhs.fid );
+            }
+            return false;
         }
-        return Long.valueOf( docnum | (propNamesHash << 32) );
     }
-    
+
 }
@@ -16,13 +16,19 @@
 package org.polymap.core.data.feature.lucene;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import org.geotools.data.DefaultQuery;
 import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -64,6 +70,8 @@ public class LuceneFeatureCacheProcessor
             new Class[] {GetFeatureTypeResponse.class, GetFeaturesResponse.class, GetFeaturesSizeResponse.class}
             );
 
+    private static final FilterFactory2     ff = CommonFactoryFinder.getFilterFactory2( null );
+
     public static ProcessorSignature signature( LayerUseCase usecase ) {
         return signature;
     }
@@ -99,6 +107,8 @@ public class LuceneFeatureCacheProcessor
             // empty cache
             if (cache.isEmpty()) {
                 context.put( "query", request.getQuery() );
+                context.put( "version", cache.version() );
+                context.put( "reload", new HashSet( cache.staleFids() ) );
                 
                 GetFeaturesRequest all = new GetFeaturesRequest( new DefaultQuery( schema.getName().getLocalPart() ) );
                 context.sendRequest( all );
@@ -110,18 +120,48 @@ public class LuceneFeatureCacheProcessor
             }
             // cache
             else {
+                // stale marks newer than this version are not cleared by the reload
+                long version = cache.version();
+                Set<String> stale = new HashSet( cache.staleFids() );
+                
                 List<Feature> chunk = new ArrayList( DEFAULT_CHUNK_SIZE );
-                for (Feature feature : cache.getFeatures( request.getQuery() )) {
-                    chunk.add( feature );
-                    if (chunk.size() >= DEFAULT_CHUNK_SIZE) {
-                        context.sendResponse( new GetFeaturesResponse( chunk ) );
-                        chunk = new ArrayList( DEFAULT_CHUNK_SIZE );
+                LuceneCache.CachedFeatures features = cache.getFeatures( request.getQuery() );
+                try {
+                    for (Feature feature : features) {
+                        chunk.add( feature );
+                        if (chunk.size() >= DEFAULT_CHUNK_SIZE) {
+                            context.sendResponse( new GetFeaturesResponse( chunk ) );
+                            chunk = new ArrayList( DEFAULT_CHUNK_SIZE );
+                        }
                     }
                 }
+                finally {
+                    features.close();
+                }
                 if (!chunk.isEmpty()) {
                     context.sendResponse( new GetFeaturesResponse( chunk ) );
                 }
-                context.sendResponse( ProcessorResponse.EOP );
+                
+                // stale features: fetch all of them by id from upstream, so that
+                // the stale marks get cleared; the response is put in the cache
+                // and filtered against the orig query
+                if (!stale.isEmpty()) {
+                    Set<FeatureId> fids = new HashSet( stale.size() * 2 );
+                    for (String fid : stale) {
+                        fids.add( ff.featureId( fid ) );
+                    }
+                    log.debug( "    stale features: " + fids.size() );
+                    context.put( "query", request.getQuery() );
+                    context.put( "version", version );
+                    context.put( "reload", stale );
+                    
+                    Filter filter = ff.id( fids );
+                    context.sendRequest( new GetFeaturesRequest( 
+                            new DefaultQuery( schema.getName().getLocalPart(), filter ) ) );
+                }
+                else {
+                    context.sendResponse( ProcessorResponse.EOP );
+                }
             }
         }
         
@@ -169,7 +209,7 @@ public class LuceneFeatureCacheProcessor
                 // FIXME
                 if (putBuffer.size() >= 2000 || response.count() < DataSourceProcessor.DEFAULT_CHUNK_SIZE) {
                     // store in cache
-                    cache.putFeatures( putBuffer );
+                    cache.putFeatures( putBuffer, (Long)context.get( "version" ) );
                     putBuffer.clear();
                 }
 
@@ -196,6 +236,20 @@ public class LuceneFeatureCacheProcessor
             context.sendResponse( response );
         }
         
+        // EOP: store the rest of the buffer, clear the stale fids that were not found
+        else if (r == ProcessorResponse.EOP) {
+            List<Feature> putBuffer = (List<Feature>)context.get( "putBuffer" );
+            if (putBuffer != null && !putBuffer.isEmpty()) {
+                cache.putFeatures( putBuffer, (Long)context.get( "version" ) );
+                putBuffer.clear();
+            }
+            Set<String> reload = (Set<String>)context.get( "reload" );
+            if (reload != null) {
+                cache.clearStale( reload, (Long)context.get( "version" ) );
+            }
+            context.sendResponse( r );
+        }
+        
         // other
         else {
             context.sendResponse( r );
@@ -28,6 +28,7 @@ import org.geotools.filter.visitor.DefaultFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.filter.And;
 import org.opengis.filter.BinaryComparisonOperator;
 import org.opengis.filter.ExcludeFilter;
@@ -45,6 +46,7 @@ import org.opengis.filter.PropertyIsLessThanOrEqualTo;
 import org.opengis.filter.PropertyIsLike;
 import org.opengis.filter.PropertyIsNotEqualTo;
 import org.opengis.filter.PropertyIsNull;
+import org.opengis.filter.expression.Add;
 import org.opengis.filter.expression.Divide;
 import org.opengis.filter.expression.Expression;
 import org.opengis.filter.expression.Literal;
@@ -52,6 +54,8 @@ import org.opengis.filter.expression.Multiply;
 import org.opengis.filter.expression.PropertyName;
 import org.opengis.filter.expression.Subtract;
 import org.opengis.filter.identity.Identifier;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
 import org.opengis.filter.spatial.BBOX;
 import org.opengis.filter.spatial.Beyond;
 import org.opengis.filter.spatial.BinarySpatialOperator;
@@ -59,6 +63,7 @@ import org.opengis.filter.spatial.Contains;
 import org.opengis.filter.spatial.Crosses;
 import org.opengis.filter.spatial.DWithin;
 import org.opengis.filter.spatial.Disjoint;
+import org.opengis.filter.spatial.Equals;
 import org.opengis.filter.spatial.Intersects;
 import org.opengis.filter.spatial.Overlaps;
 import org.opengis.filter.spatial.Touches;
@@ -70,19 +75,29 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 
+import com.google.common.base.Predicate;
+
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.Aggregates;
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordState;
 import org.polymap.core.runtime.recordstore.IRecordStore;
 import org.polymap.core.runtime.recordstore.QueryExpression;
 import org.polymap.core.runtime.recordstore.RecordQuery;
 import org.polymap.core.runtime.recordstore.ResultSet;
+import org.polymap.core.runtime.recordstore.lucene.GeometryPredicateFilter;
 import org.polymap.core.runtime.recordstore.lucene.GeometryValueCoder;
 import org.polymap.core.runtime.recordstore.lucene.LuceneRecordQuery;
 import org.polymap.core.runtime.recordstore.lucene.LuceneRecordState;
@@ -110,20 +125,56 @@ public final class LuceneQueryDialect
     }
 
 
-    public QueryCapabilities getQueryCapabilities() {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+    /**
+     * Sorting is done by the index, for every property of the schema that is not a
+     * geometry. Offset is not supported by the record store. See
+     * {@link #supports(Filter)} for the filters that are answered by the index.
+     */
+    public QueryCapabilities getQueryCapabilities( final RFeatureStore fs ) {
+        return new QueryCapabilities() {
+            public boolean supportsSorting( SortBy[] sortAttributes ) {
+                if (sortAttributes != null) {
+                    for (SortBy sortBy : sortAttributes) {
+                        if (!supportsSorting( fs.getSchema(), sortBy )) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+            public boolean isOffsetSupported() {
+                return false;
+            }
+        };
     }
 
 
+    /**
+     * True if the index can sort by the given property: it has to be a
+     * non-geometry property of the schema, or natural order.
+     */
+    protected static boolean supportsSorting( FeatureType schema, SortBy sortBy ) {
+        PropertyName prop = sortBy.getPropertyName();
+        if (prop == null) {
+            return true;
+        }
+        PropertyDescriptor descriptor = schema.getDescriptor( prop.getPropertyName() );
+        return descriptor != null 
+                && !Geometry.class.isAssignableFrom( descriptor.getType().getBinding() );
+    }
+
+
+    /**
+     * Counts via {@link IRecordStore#count(RecordQuery)}. Filters that cannot be
+     * transformed into the record query are not applied; the count is an upper
+     * bound in this case. The same is true for {@link #getBounds(RFeatureStore, Query)}.
+     */
     public int getCount( RFeatureStore fs, Query query )
     throws IOException {
-        // XXX handle postProcess
         Transformer transformer = new Transformer();
         RecordQuery rsQuery = transformer.transform( fs, query );
         try {
-            ResultSet resultSet = fs.ds.getStore().find( rsQuery );
-            return resultSet.count();
+            return fs.ds.getStore().count( rsQuery );
         }
         catch (IOException e) {
             throw e;
@@ -142,38 +193,25 @@ public final class LuceneQueryDialect
         String geomName = schema.getGeometryDescriptor().getLocalName();
 
         // type/name query
-        // XXX handle postProcess
         Transformer transformer = new Transformer();
         RecordQuery rsQuery = transformer.transform( fs, query );
-        rsQuery.setMaxResults( 1 );
 
         try {
-            // MinX
-            String fieldName = geomName+GeometryValueCoder.FIELD_MINX;
-            rsQuery.sort( fieldName, RecordQuery.ASC, Double.class );
-            ResultSet resultSet = fs.ds.getStore().find( rsQuery );
-            if (resultSet.count() == 0) {
+            // one pass over the bbox columns of all hits
+            String minXName = geomName+GeometryValueCoder.FIELD_MINX;
+            String maxXName = geomName+GeometryValueCoder.FIELD_MAXX;
+            String minYName = geomName+GeometryValueCoder.FIELD_MINY;
+            String maxYName = geomName+GeometryValueCoder.FIELD_MAXY;
+            Aggregates aggregates = fs.ds.getStore().aggregate( rsQuery, new ColumnFieldSelector()
+                    .add( minXName, Double.class ).add( maxXName, Double.class )
+                    .add( minYName, Double.class ).add( maxYName, Double.class ) );
+            if (aggregates.count() == 0 || aggregates.get( minXName ).count() == 0) {
                 return ReferencedEnvelope.EVERYTHING;
             }
-            double minX = resultSet.get( 0 ).get( fieldName );
-
-            // MaxX
-            fieldName = geomName+GeometryValueCoder.FIELD_MAXX;
-            rsQuery.sort( fieldName, RecordQuery.DESC, Double.class );
-            resultSet = fs.ds.getStore().find( rsQuery );
-            double maxX = resultSet.get( 0 ).get( fieldName );
-
-            // MinY
-            fieldName = geomName+GeometryValueCoder.FIELD_MINY;
-            rsQuery.sort( fieldName, RecordQuery.ASC, Double.class );
-            resultSet = fs.ds.getStore().find( rsQuery );
-            double minY = resultSet.get( 0 ).get( fieldName );
-
-            // MaxX
-            fieldName = geomName+GeometryValueCoder.FIELD_MAXY;
-            rsQuery.sort( fieldName, RecordQuery.DESC, Double.class );
-            resultSet = fs.ds.getStore().find( rsQuery );
-            double maxY = resultSet.get( 0 ).get( fieldName );
+            double minX = aggregates.get( minXName ).min();
+            double maxX = aggregates.get( maxXName ).max();
+            double minY = aggregates.get( minYName ).min();
+            double maxY = aggregates.get( maxYName ).max();
 
             log.debug( "Bounds: ... (" + timer.elapsedTime() + "ms)" );
             
@@ -243,6 +281,10 @@ public final class LuceneQueryDialect
                 public int size() {
                     return results.count();
                 }
+                @Override
+                public void close() {
+                    results.close();
+                }
             };
         }
         catch (IOException e) {
@@ -283,16 +325,14 @@ public final class LuceneQueryDialect
                 luceneQuery = typeQuery;
             }
 
+            log.debug( "LUCENE: " + luceneQuery );
+
+            LuceneRecordQuery result = new LuceneRecordQuery( (LuceneRecordStore)fs.ds.store, luceneQuery );
+
             // sort
             if (query.getSortBy() != null && query.getSortBy().length > 0) {
-                throw new UnsupportedOperationException( "Not implemented yet: sortBy" );
-                //            for (SortBy sortby : query.getSortBy()) {
-                //                
-                //            }
+                result.setSort( processSortBy( query.getSortBy() ) );
             }
-            log.debug( "LUCENE: " + luceneQuery );
-
-            RecordQuery result = new LuceneRecordQuery( (LuceneRecordStore)fs.ds.store, luceneQuery );
             if (query.getStartIndex() != null) {
                 result.setFirstResult( query.getStartIndex() );
             }
@@ -330,10 +370,8 @@ public final class LuceneQueryDialect
             }
             // NOT
             else if (filter instanceof Not) {
-                BooleanQuery result = new BooleanQuery();
                 Filter child = ((Not)filter).getFilter();
-                result.add( processFilter( child ), BooleanClause.Occur.MUST_NOT );
-                return result;
+                return not( processFilter( child ) );
             }
             // INCLUDE
             else if (filter instanceof IncludeFilter) {
@@ -375,11 +413,11 @@ public final class LuceneQueryDialect
             }
             // isNull
             else if (filter instanceof PropertyIsNull) {
-                throw new UnsupportedOperationException( "PropertyIsNull" );
+                return processIsNull( (PropertyIsNull)filter );
             }
             // between
             else if (filter instanceof PropertyIsBetween) {
-                throw new UnsupportedOperationException( "PropertyIsBetween" );
+                return processBetween( (PropertyIsBetween)filter );
             }
             else {
                 throw new UnsupportedOperationException( "Unsupported filter type: " + filter.getClass() );
@@ -408,27 +446,175 @@ public final class LuceneQueryDialect
         }
 
 
+        /**
+         * Spatial predicates other than BBOX are answered by a
+         * {@link GeometryPredicateFilter}: the bbox of the literal is the
+         * prefilter, for the candidates just the geometry is decoded and
+         * checked. {@link Disjoint} and {@link Beyond} are the negation of
+         * {@link Intersects} and {@link DWithin}.
+         */
         protected org.apache.lucene.search.Query processBinarySpatial( BinarySpatialOperator filter ) {
-            PropertyName prop = (PropertyName)filter.getExpression1();
-            Literal literal = (Literal)filter.getExpression2();
+            PropertyName prop = null;
+            Literal literal = null;
+            boolean swapped = false;
+            if (filter.getExpression1() instanceof PropertyName && filter.getExpression2() instanceof Literal) {
+                prop = (PropertyName)filter.getExpression1();
+                literal = (Literal)filter.getExpression2();
+            }
+            else if (filter.getExpression1() instanceof Literal && filter.getExpression2() instanceof PropertyName) {
+                prop = (PropertyName)filter.getExpression2();
+                literal = (Literal)filter.getExpression1();
+                swapped = true;
+            }
+            else {
+                throw new UnsupportedOperationException( "Spatial expressions not supported: " + filter );
+            }
             
             // fieldName
             final String fieldName = prop.getPropertyName().equals( "" ) 
                     ? schema.getGeometryDescriptor().getLocalName() 
                     : prop.getPropertyName();
 
-            // query bbox
-            Envelope bounds = null;
-            if (literal.getValue() instanceof Geometry) {
-                bounds = ((Geometry)literal.getValue()).getEnvelopeInternal();
+            // literal
+            Geometry geom = literal.getValue() instanceof Geometry
+                    ? (Geometry)literal.getValue()
+                    : literal.evaluate( null, Geometry.class );
+            if (geom == null) {
+                throw new IllegalArgumentException( "Geometry type not supported: " + literal.getValue() );
+            }
+            double distance = filter instanceof DWithin ? ((DWithin)filter).getDistance()
+                    : filter instanceof Beyond ? ((Beyond)filter).getDistance() : 0;
+            
+            // predicate
+            SpatialPredicate predicate = null;
+            if (filter instanceof Intersects || filter instanceof Disjoint) {
+                predicate = new SpatialPredicate( Intersects.class, geom, 0 );
+            }
+            else if (filter instanceof DWithin || filter instanceof Beyond) {
+                predicate = new SpatialPredicate( DWithin.class, geom, distance );
+            }
+            else if (filter instanceof Within) {
+                predicate = new SpatialPredicate( swapped ? Contains.class : Within.class, geom, 0 );
+            }
+            else if (filter instanceof Contains) {
+                predicate = new SpatialPredicate( swapped ? Within.class : Contains.class, geom, 0 );
+            }
+            else if (filter instanceof Crosses) {
+                predicate = new SpatialPredicate( Crosses.class, geom, 0 );
+            }
+            else if (filter instanceof Overlaps) {
+                predicate = new SpatialPredicate( Overlaps.class, geom, 0 );
+            }
+            else if (filter instanceof Touches) {
+                predicate = new SpatialPredicate( Touches.class, geom, 0 );
+            }
+            else if (filter instanceof Equals) {
+                predicate = new SpatialPredicate( Equals.class, geom, 0 );
             }
             else {
-                throw new IllegalArgumentException( "Geometry type not supported: " + literal.getValue() );
+                throw new UnsupportedOperationException( "Spatial filter not supported: " + filter.getClass() );
             }
-            // and post-process
-            postProcess.add( filter );
-            return store.getValueCoders().searchQuery( 
+
+            // bbox prefilter and exact check
+            Envelope bounds = new Envelope( geom.getEnvelopeInternal() );
+            bounds.expandBy( distance );
+            org.apache.lucene.search.Query candidates = store.getValueCoders().searchQuery( 
                     new QueryExpression.BBox( fieldName, bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY() ) );
+            org.apache.lucene.search.Query result = new ConstantScoreQuery( 
+                    new GeometryPredicateFilter( fieldName, candidates, predicate ) );
+
+            // negation: records without geometry do not match
+            if (filter instanceof Disjoint || filter instanceof Beyond) {
+                BooleanQuery negated = new BooleanQuery();
+                negated.add( ALL, BooleanClause.Occur.MUST );
+                negated.add( store.getValueCoders().searchQuery( 
+                        new QueryExpression.IsNull( fieldName ) ), BooleanClause.Occur.MUST_NOT );
+                negated.add( result, BooleanClause.Occur.MUST_NOT );
+                return negated;
+            }
+            return result;
+        }
+
+
+        protected org.apache.lucene.search.Query processIsNull( PropertyIsNull predicate ) {
+            if (!(predicate.getExpression() instanceof PropertyName)) {
+                throw new UnsupportedOperationException( "Expression type not supported: " + predicate.getExpression() );
+            }
+            String fieldname = ((PropertyName)predicate.getExpression()).getPropertyName();
+            return store.getValueCoders().searchQuery( new QueryExpression.IsNull( fieldname ) );
+        }
+
+
+        protected org.apache.lucene.search.Query processBetween( PropertyIsBetween predicate ) {
+            if (!(predicate.getExpression() instanceof PropertyName)
+                    || !(predicate.getLowerBoundary() instanceof Literal)
+                    || !(predicate.getUpperBoundary() instanceof Literal)) {
+                throw new UnsupportedOperationException( "Expression types not supported: " + predicate );
+            }
+            String fieldname = ((PropertyName)predicate.getExpression()).getPropertyName();
+            Object lower = literalValue( fieldname, (Literal)predicate.getLowerBoundary() );
+            Object upper = literalValue( fieldname, (Literal)predicate.getUpperBoundary() );
+
+            BooleanQuery result = new BooleanQuery();
+            result.add( store.getValueCoders().searchQuery( 
+                    new QueryExpression.GreaterOrEqual( fieldname, lower ) ), BooleanClause.Occur.MUST );
+            result.add( store.getValueCoders().searchQuery( 
+                    new QueryExpression.LessOrEqual( fieldname, upper ) ), BooleanClause.Occur.MUST );
+            return result;
+        }
+
+
+        /**
+         * Sort by the index. Natural order is the order of the documents in the
+         * index.
+         */
+        protected Sort processSortBy( SortBy[] sortBy ) {
+            SortField[] fields = new SortField[ sortBy.length ];
+            for (int i=0; i<sortBy.length; i++) {
+                boolean desc = sortBy[i].getSortOrder() == SortOrder.DESCENDING;
+                PropertyName prop = sortBy[i].getPropertyName();
+                if (prop == null) {
+                    fields[i] = new SortField( null, SortField.DOC, desc );
+                }
+                else {
+                    String fieldname = prop.getPropertyName();
+                    if (!supportsSorting( schema, sortBy[i] )) {
+                        throw new UnsupportedOperationException( "Sorting is not supported for: " + fieldname 
+                                + "; see QueryCapabilities#supportsSorting()" );
+                    }
+                    Class<?> binding = schema.getDescriptor( fieldname ).getType().getBinding();
+                    fields[i] = LuceneRecordQuery.sortField( fieldname, binding, 
+                            desc ? RecordQuery.DESC : RecordQuery.ASC );
+                }
+            }
+            return new Sort( fields );
+        }
+
+
+        /**
+         * The value of the given literal converted to the binding of the given
+         * property. Literals have correct type, or are Strings in case of SLD.
+         */
+        protected Object literalValue( String fieldname, Literal literal ) {
+            Object value = literal.getValue();
+            Class<?> binding = schema.getDescriptor( fieldname ).getType().getBinding();
+            if (binding == Integer.class && value instanceof String) {
+                value = Integer.valueOf( (String)value );
+            }
+            else if (binding == Long.class && value instanceof String) {
+                value = Long.valueOf( (String)value );
+            }
+            else if (binding == Float.class && value instanceof String) {
+                value = Float.valueOf( (String)value );
+            }
+            else if (binding == Double.class && value instanceof String) {
+                value = Double.valueOf( (String)value );
+            }
+            // check actual value type and binding
+            if (!binding.isAssignableFrom( value.getClass() )) {
+                throw new RuntimeException( "Unsupported literal/binding: " + value.getClass().getSimpleName() + "/" + binding.getSimpleName() );
+            }
+            return value;
         }
 
 
@@ -466,26 +652,8 @@ public final class LuceneQueryDialect
             }
 
             // fieldname and value/type
-            // Literals have correkt type, or are Strings in case of SLD
             String fieldname = prop.getPropertyName();
-            Object value = literal.getValue();
-            Class<?> binding = schema.getDescriptor( fieldname ).getType().getBinding();
-            if (binding == Integer.class && value instanceof String) {
-                value = Integer.valueOf( (String)value );
-            }
-            else if (binding == Long.class && value instanceof String) {
-                value = Long.valueOf( (String)value );
-            }
-            else if (binding == Float.class && value instanceof String) {
-                value = Float.valueOf( (String)value );
-            }
-            else if (binding == Double.class && value instanceof String) {
-                value = Double.valueOf( (String)value );
-            }
-            // check actual value type and binding
-            if (!binding.isAssignableFrom( value.getClass() )) {
-                throw new RuntimeException( "Unsupported literal/binding: " + value.getClass().getSimpleName() + "/" + binding.getSimpleName() );
-            }
+            Object value = literalValue( fieldname, literal );
             
             // equals
             if (predicate instanceof PropertyIsEqualTo) {
@@ -494,11 +662,8 @@ public final class LuceneQueryDialect
             }
             // not equals
             if (predicate instanceof PropertyIsNotEqualTo) {
-                org.apache.lucene.search.Query arg = store.getValueCoders().searchQuery( 
-                        new QueryExpression.Equal( fieldname, value ) );
-                BooleanQuery result = new BooleanQuery();
-                result.add( arg, BooleanClause.Occur.MUST_NOT );
-                return result;
+                return not( store.getValueCoders().searchQuery( 
+                        new QueryExpression.Equal( fieldname, value ) ) );
             }
             // ge
             else if (predicate instanceof PropertyIsGreaterThanOrEqualTo) {
@@ -538,67 +703,126 @@ public final class LuceneQueryDialect
             return store.getValueCoders().searchQuery( 
                     new QueryExpression.Match( fieldname, value ) );
         }
+
+
+        /**
+         * A BooleanQuery with just a MUST_NOT clause matches nothing, so the
+         * negation is: all documents but the given ones.
+         */
+        protected org.apache.lucene.search.Query not( org.apache.lucene.search.Query query ) {
+            BooleanQuery result = new BooleanQuery();
+            result.add( ALL, BooleanClause.Occur.MUST );
+            result.add( query, BooleanClause.Occur.MUST_NOT );
+            return result;
+        }
     }
-    
 
-    public static boolean supports( Filter _filter ) {
-        final List notSupported = new ArrayList();
-        _filter.accept( new DefaultFilterVisitor() {
-            public Object visit( Beyond filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
+
+    /**
+     * The exact check of a {@link GeometryPredicateFilter}. The literal geometry
+     * is prepared once, so checking many candidates against a complex literal
+     * is fast.
+     */
+    static class SpatialPredicate
+            implements Predicate<Geometry> {
+
+        private Class               type;
+
+        private Geometry            literal;
+
+        private PreparedGeometry    prepared;
+
+        private double              distance;
+
+
+        /**
+         * @param type The type of the spatial filter: record geometry -> type -> literal.
+         */
+        public SpatialPredicate( Class type, Geometry literal, double distance ) {
+            this.type = type;
+            this.literal = literal;
+            this.prepared = PreparedGeometryFactory.prepare( literal );
+            this.distance = distance;
+        }
+
+        public boolean apply( Geometry geom ) {
+            if (type == Intersects.class) {
+                return prepared.intersects( geom );
             }
-            public Object visit( Contains filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
+            else if (type == Within.class) {
+                return prepared.contains( geom );
             }
-            public Object visit( Crosses filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
+            else if (type == Contains.class) {
+                return prepared.within( geom );
             }
-            public Object visit( Disjoint filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
+            else if (type == Crosses.class) {
+                return prepared.crosses( geom );
             }
-            public Object visit( Divide expression, Object data ) {
-                notSupported.add( expression );
+            else if (type == Overlaps.class) {
+                return prepared.overlaps( geom );
+            }
+            else if (type == Touches.class) {
+                return prepared.touches( geom );
+            }
+            else if (type == Equals.class) {
+                return geom.equals( literal );
+            }
+            else if (type == DWithin.class) {
+                return geom.isWithinDistance( literal, distance );
+            }
+            throw new IllegalStateException( "Unknown type: " + type );
+        }
+
+        public String toString() {
+            return type.getSimpleName() + (distance > 0 ? "(" + distance + ")" : "");
+        }
+    }
+    
+
+    /**
+     * True if the given filter is answered by the index entirely, without
+     * post-processing.
+     *
+     * @see #unsupported(Filter)
+     */
+    public static boolean supports( Filter filter ) {
+        return unsupported( filter ).isEmpty();
+    }
+
+
+    /**
+     * Reports the parts of the given filter that cannot be answered by the
+     * index: functions and math expressions. Comparisons, like, null, between,
+     * FID, BBOX and all other spatial predicates of property/literal pairs are
+     * supported.
+     *
+     * @return List of the unsupported {@link Filter}s and {@link Expression}s.
+     */
+    public static List<Object> unsupported( Filter filter ) {
+        final List<Object> result = new ArrayList();
+        filter.accept( new DefaultFilterVisitor() {
+            public Object visit( Add expression, Object data ) {
+                result.add( expression );
                 return super.visit( expression, data );
             }
-            public Object visit( DWithin filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
+            public Object visit( Divide expression, Object data ) {
+                result.add( expression );
+                return super.visit( expression, data );
             }
             public Object visit( org.opengis.filter.expression.Function expression, Object data ) {
-                notSupported.add( expression );
+                result.add( expression );
                 return super.visit( expression, data );
             }
-            public Object visit( Intersects filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
-            }
             public Object visit( Multiply expression, Object data ) {
-                notSupported.add( expression );
+                result.add( expression );
                 return super.visit( expression, data );
             }
-            public Object visit( Overlaps filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
-            }
             public Object visit( Subtract expression, Object data ) {
-                notSupported.add( expression );
+                result.add( expression );
                 return super.visit( expression, data );
             }
-            public Object visit( Touches filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
-            }
-            public Object visit( Within filter, Object data ) {
-                notSupported.add( filter );
-                return super.visit( filter, data );
-            }
-        }, notSupported );
-
-        return notSupported.isEmpty();
+        }, result );
+        return result;
     }
 
 }
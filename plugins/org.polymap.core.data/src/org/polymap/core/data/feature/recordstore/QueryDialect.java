@@ -36,7 +36,7 @@ import org.polymap.core.runtime.recordstore.IRecordStore;
  */
 public abstract class QueryDialect {
 
-    public abstract QueryCapabilities getQueryCapabilities();
+    public abstract QueryCapabilities getQueryCapabilities( RFeatureStore fs );
 
     public abstract void initStore( IRecordStore store );
     
@@ -64,6 +64,12 @@ public abstract class QueryDialect {
          */
         public int size();
         
+        /**
+         * Releases the underlying result set. This is done automatically when an
+         * iterator is exhausted.
+         */
+        public void close();
+        
     }
     
 }
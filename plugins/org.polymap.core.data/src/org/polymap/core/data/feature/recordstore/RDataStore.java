@@ -95,34 +95,39 @@ public class RDataStore
     protected void initSchemas() throws Exception {
         ResultSet resultSet = store.find( new SimpleQuery().eq( "type", "FeatureType" ).setMaxResults( 100 ) );
 
-        Exception exception = null;
-        schemas = new HashMap( resultSet.count()*2 );
-        for (IRecordState entry : resultSet) {
-            try {
-                FeatureType schema = schemaCoder.decode( (String)entry.get( "content" ) );
-                //log.trace( "JSON schema: " + entry.get( "content" ) );
-                log.debug( "Decoded schema: " + schema.getName() + " :: " + schema );
+        try {
+            Exception exception = null;
+            schemas = new HashMap( resultSet.count()*2 );
+            for (IRecordState entry : resultSet) {
+                try {
+                    FeatureType schema = schemaCoder.decode( (String)entry.get( "content" ) );
+                    //log.trace( "JSON schema: " + entry.get( "content" ) );
+                    log.debug( "Decoded schema: " + schema.getName() + " :: " + schema );
                 
-                // check if schema is simple; build SimpleFeatureType for compatibility
-                // This is needed as long as pipeline does not fully support complex types
-                SimpleFeatureTypeBuilder ftb = new SimpleFeatureTypeBuilder();
-                ftb.setName( schema.getName() );
-                for (PropertyDescriptor prop : schema.getDescriptors()) {
-                    if (prop instanceof GeometryDescriptor) {
-                        ftb.add( prop.getName().getLocalPart(), prop.getType().getBinding(),
-                                ((GeometryDescriptor)prop).getCoordinateReferenceSystem() );                    
-                    }
-                    else {
-                        ftb.add( prop.getName().getLocalPart(), prop.getType().getBinding() );
+                    // check if schema is simple; build SimpleFeatureType for compatibility
+                    // This is needed as long as pipeline does not fully support complex types
+                    SimpleFeatureTypeBuilder ftb = new SimpleFeatureTypeBuilder();
+                    ftb.setName( schema.getName() );
+                    for (PropertyDescriptor prop : schema.getDescriptors()) {
+                        if (prop instanceof GeometryDescriptor) {
+                            ftb.add( prop.getName().getLocalPart(), prop.getType().getBinding(),
+                                    ((GeometryDescriptor)prop).getCoordinateReferenceSystem() );                    
+                        }
+                        else {
+                            ftb.add( prop.getName().getLocalPart(), prop.getType().getBinding() );
+                        }
                     }
+                    schemas.put( schema.getName(), ftb.buildFeatureType() );
+                }
+                catch (Exception e) {
+                    log.warn( "", e );
+                    exception = e;
                 }
-                schemas.put( schema.getName(), ftb.buildFeatureType() );
-            }
-            catch (Exception e) {
-                log.warn( "", e );
-                exception = e;
             }
         }
+        finally {
+            resultSet.close();
+        }
 //        if (exception != null) {
 //            throw exception;
 //        }
@@ -286,6 +291,7 @@ public class RDataStore
                     .eq( "name", name.getLocalPart() ) );
 
             IRecordState record = rs.get( 0 );
+            rs.close();
             String schemaContent = schemaCoder.encode( newSchema );
             log.debug( "Updated schema: " + schemaContent );
             record.put( "content", schemaContent );
@@ -324,6 +330,7 @@ public class RDataStore
                     .eq( "name", schema.getName().getLocalPart() ) );
 
             tx.remove( rs.get( 0 ) );
+            rs.close();
             
             schemas.remove( schema.getName() );
             tx.apply();
@@ -37,8 +37,8 @@ import org.opengis.util.ProgressListener;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 
 import org.polymap.core.data.feature.recordstore.QueryDialect.PostProcessResultSet;
@@ -111,9 +111,14 @@ class RFeatureCollection
             public Integer get() {
                 try {
                     PostProcessResultSet results = queryDialect.getFeatureStates( fs, query );
-                    return results.hasPostProcessing()
-                            ? Iterators.size( results.iterator() )
-                            : results.size();
+                    try {
+                        return results.hasPostProcessing()
+                                ? Iterators.size( results.iterator() )
+                                : results.size();
+                    }
+                    finally {
+                        results.close();
+                    }
                 }
                 catch (Exception e) {
                     throw new RuntimeException( e );
@@ -160,41 +165,51 @@ class RFeatureCollection
     
     public Iterator iterator() {
         try {
-            final PostProcessResultSet results = queryDialect.getFeatureStates( fs, query );
-            
-            // build features
-            Iterator<Feature> result = new Iterator<Feature>() {
-                private Iterator<IRecordState>  delegate = results.iterator();
-                @Override
-                public boolean hasNext() {
-                    return delegate.hasNext(); 
-                }
-                @Override                
-                public Feature next() {
-                    return schema instanceof SimpleFeatureType
-                            ? new RSimpleFeature( delegate.next(), schema )
-                            : new RFeature( delegate.next(), schema );
-                }
-                @Override
-                public void remove() {
-                    delegate.remove();
-                }
-            };
-            // post-process
-            if (results.hasPostProcessing()) {
-                result = Iterators.filter( result, new Predicate<Feature>() {
-                    public boolean apply( Feature input ) {
-                        return results.postProcess( input );
-                    }
-                });
-            }
-            return result;
+            return new ResultIterator( queryDialect.getFeatureStates( fs, query ) );
         }
         catch (Exception e) {
             throw new RuntimeException( e );
         }
     }
 
+
+    /**
+     * Builds and post-processes the features of the records. The result set is
+     * released when the iterator is exhausted or {@link RFeatureCollection#close(Iterator) closed}.
+     */
+    class ResultIterator
+            extends AbstractIterator<Feature> {
+        
+        private PostProcessResultSet    results;
+        
+        private Iterator<IRecordState>  delegate;
+        
+        
+        ResultIterator( PostProcessResultSet results ) {
+            this.results = results;
+            this.delegate = results.iterator();
+        }
+
+        @Override
+        protected Feature computeNext() {
+            while (delegate.hasNext()) {
+                IRecordState state = delegate.next();
+                Feature feature = schema instanceof SimpleFeatureType
+                        ? new RSimpleFeature( state, schema )
+                        : new RFeature( state, schema );
+                if (!results.hasPostProcessing() || results.postProcess( feature )) {
+                    return feature;
+                }
+            }
+            close();
+            return endOfData();
+        }
+        
+        public void close() {
+            results.close();
+        }
+    }
+
     
     public FeatureIterator features() {
         return new DelegateFeatureIterator( this, iterator() );
@@ -202,13 +217,15 @@ class RFeatureCollection
 
 
     public void close( FeatureIterator close ) {
-//        open.remove( close );
+        if (close != null) {
+            close.close();
+        }
     }
 
     public void close( Iterator close ) {
-//        if (close != null) {
-//            open.remove( close );
-//        }
+        if (close instanceof ResultIterator) {
+            ((ResultIterator)close).close();
+        }
     }
 
     
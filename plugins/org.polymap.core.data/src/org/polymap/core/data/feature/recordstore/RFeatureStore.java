@@ -95,7 +95,7 @@ public class RFeatureStore
 
     
     public QueryCapabilities getQueryCapabilities() {
-        return ds.queryDialect.getQueryCapabilities();
+        return ds.queryDialect.getQueryCapabilities( this );
     }
 
 
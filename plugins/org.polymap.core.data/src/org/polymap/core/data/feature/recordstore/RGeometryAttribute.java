@@ -23,8 +23,13 @@ import org.opengis.geometry.BoundingBox;
 
 import com.vividsolutions.jts.geom.Geometry;
 
+import org.polymap.core.runtime.recordstore.lucene.LazyGeometry;
+import org.polymap.core.runtime.recordstore.lucene.LuceneRecordState;
+
 /**
- * 
+ * Geometry attribute of a {@link RFeature}. If the feature is backed by a
+ * {@link LuceneRecordState} then the geometry is decoded once, on first access of
+ * the value; {@link #getBounds()} does not decode the geometry at all.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -32,6 +37,10 @@ class RGeometryAttribute
         extends RAttribute
         implements GeometryAttribute {
 
+    /** Lazily initialized; reset by {@link #setValue(Object)}. */
+    private LazyGeometry        lazy;
+    
+    
     public RGeometryAttribute( RFeature feature, StoreKey baseKey, GeometryType type, Identifier id ) {
         super( feature, baseKey, type, id );
     }
@@ -52,10 +61,28 @@ class RGeometryAttribute
     }
 
 
+    public Object getValue() {
+        LazyGeometry geom = lazyGeometry();
+        return geom != null ? geom.getGeometry() : super.getValue();
+    }
+
+
+    public void setValue( Object newValue ) 
+    throws IllegalArgumentException, IllegalStateException {
+        lazy = null;
+        super.setValue( newValue );
+    }
+
+
     public BoundingBox getBounds() {
-        Geometry geom = (Geometry)getValue();
+        LazyGeometry lazyGeom = lazyGeometry();
+        Geometry geom = lazyGeom == null ? (Geometry)getValue() : null;
+        
         ReferencedEnvelope result = new ReferencedEnvelope( getType().getCoordinateReferenceSystem() );
-        if (geom != null) {
+        if (lazyGeom != null) {
+            result.expandToInclude( lazyGeom.getEnvelope() );
+        }
+        else if (geom != null) {
             result.expandToInclude( geom.getEnvelopeInternal() );
         }
         else {
@@ -65,6 +92,20 @@ class RGeometryAttribute
     }
 
 
+    /**
+     * The {@link LazyGeometry} of this attribute, or null if the state does not
+     * support lazy geometries or there is no value.
+     */
+    protected LazyGeometry lazyGeometry() {
+        if (lazy == null
+                && descriptor.getMaxOccurs() == 1
+                && feature.state instanceof LuceneRecordState) {
+            lazy = ((LuceneRecordState)feature.state).getLazyGeometry( key.toString() );
+        }
+        return lazy;
+    }
+
+
     public void setBounds( BoundingBox bounds ) {
         // XXX Auto-generated method stub
         throw new RuntimeException( "not yet implemented." );
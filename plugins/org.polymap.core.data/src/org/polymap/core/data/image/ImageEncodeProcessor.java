@@ -51,8 +51,6 @@ import org.polymap.core.data.util.ChunkedResponseOutputStream;
 import org.polymap.core.project.LayerUseCase;
 import org.polymap.core.runtime.Timer;
 
-import com.objectplanet.image.PngEncoder;
-
 /**
  * Encode the image of a {@link ImageResponse} into PNG byte chunks of an
  * {@link EncodedImageResponse}.
@@ -79,6 +77,9 @@ public class ImageEncodeProcessor
 
     public static final String[]    FORMATS = { "image/png", "image/jpeg" };
 
+    /** Thread safe, shared by all processors. */
+    private static final ParallelPngEncoder pngEncoder = new ParallelPngEncoder();
+
     
     // instance *******************************************
         
@@ -173,8 +174,7 @@ public class ImageEncodeProcessor
 
     private void opEncodePNG( Image image, ChunkedResponseOutputStream out )
     throws IOException {
-        PngEncoder encoder = new PngEncoder( PngEncoder.COLOR_TRUECOLOR_ALPHA /*, PngEncoder.BEST_COMPRESSION*/ );
-        encoder.encode( image, out );
+        pngEncoder.encode( image, out );
     }
     
 
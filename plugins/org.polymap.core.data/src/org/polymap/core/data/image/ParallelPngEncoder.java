@@ -0,0 +1,710 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * PNG encoder for rendered tiles. Compared to the single threaded encoders it
+ * improves on:
+ * <ul>
+ * <li><b>Palette reduction:</b> Images with at most 256 colors (including
+ * alpha) are written as 8 bit indexed color with a tRNS chunk.</li>
+ * <li><b>Parallel filtering and deflate:</b> The rows are split into bands
+ * that are filtered and deflated concurrently, each band into an independent
+ * deflate block sequence that ends on a byte boundary (sync flush). The blocks
+ * are joined into one zlib stream; the Adler32 checksums of the bands are
+ * combined. This needs <code>Deflater.SYNC_FLUSH</code> of Java 7; on older VMs the
+ * bands are filtered in parallel but deflated in one stream.</li>
+ * <li><b>Reuse:</b> The {@link Deflater} and the row buffers are kept per
+ * thread.</li>
+ * </ul>
+ * Fully transparent pixels are written as transparent black, regardless of
+ * their color components.
+ * <p/>
+ * Instances are immutable and thread safe.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class ParallelPngEncoder {
+
+    private static Log log = LogFactory.getLog( ParallelPngEncoder.class );
+
+    /** The min number of rows of a band processed by one thread. */
+    public static final int         MIN_BAND_ROWS = 64;
+
+    public static final int         MAX_PALETTE_SIZE = 256;
+
+    private static final byte[]     SIGNATURE = { (byte)137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int        COLOR_INDEXED = 3;
+
+    private static final int        COLOR_TRUECOLOR_ALPHA = 6;
+
+    private static final int        FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_PAETH = 4;
+
+    private static final int        ADLER_BASE = 65521;
+
+    private static final int        NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Deflater.deflate(byte[],int,int,int) of Java 7, or null. */
+    private static final Method     syncDeflate;
+
+    private static final int        SYNC_FLUSH = 2;
+
+    static {
+        Method m = null;
+        try {
+            m = Deflater.class.getMethod( "deflate", byte[].class, Integer.TYPE, Integer.TYPE, Integer.TYPE );
+        }
+        catch (NoSuchMethodException e) {
+            log.info( "No Deflater.SYNC_FLUSH: deflating sequentially." );
+        }
+        syncDeflate = m;
+    }
+
+    /** Shared by all instances; the threads just process bands, they never wait for other tasks. */
+    private static final ExecutorService executor = Executors.newFixedThreadPool( NUM_THREADS, new ThreadFactory() {
+        private AtomicInteger count = new AtomicInteger();
+        public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "PngEncoder-" + count.getAndIncrement() );
+            t.setDaemon( true );
+            return t;
+        }
+    });
+
+    private static final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+
+    // instance *******************************************
+
+    private int                     level;
+
+    private boolean                 paletteReduction;
+
+    private boolean                 adaptiveFilter;
+
+    private int                     numThreads;
+
+
+    /**
+     * Creates an encoder with default compression, palette reduction, no row
+     * filter and as many threads as there are processors.
+     */
+    public ParallelPngEncoder() {
+        this( Deflater.DEFAULT_COMPRESSION, true, false, NUM_THREADS );
+    }
+
+
+    /**
+     * @param level The compression level of the {@link Deflater}.
+     * @param paletteReduction Write images with at most 256 colors as indexed
+     *        color.
+     * @param adaptiveFilter Choose the row filter per row of truecolor images;
+     *        otherwise no filter is used. Map tiles with large transparent
+     *        areas and thin lines compress better without filter.
+     * @param numThreads The max number of threads per image; 1 encodes in the
+     *        calling thread.
+     */
+    public ParallelPngEncoder( int level, boolean paletteReduction, boolean adaptiveFilter, int numThreads ) {
+        this.level = level;
+        this.paletteReduction = paletteReduction;
+        this.adaptiveFilter = adaptiveFilter;
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
+
+    public void encode( Image image, OutputStream out )
+    throws IOException {
+        BufferedImage bimage = toBufferedImage( image );
+        int width = bimage.getWidth();
+        int height = bimage.getHeight();
+        int[] pixels = pixels( bimage );
+
+        // palette
+        Palette palette = paletteReduction ? Palette.analyse( pixels ) : null;
+        int bpp = palette != null ? 1 : 4;
+        int colorType = palette != null ? COLOR_INDEXED : COLOR_TRUECOLOR_ALPHA;
+
+        // bands
+        int numBands = Math.max( 1, Math.min( numThreads, height / MIN_BAND_ROWS ) );
+        boolean parallelDeflate = syncDeflate != null && numBands > 1;
+        List<Band> bands = new ArrayList( numBands );
+        int bandRows = (height + numBands - 1) / numBands;
+        for (int y=0; y<height; y+=bandRows) {
+            bands.add( new Band( pixels, width, palette, bpp, level, adaptiveFilter, y, Math.min( height, y + bandRows ) ) );
+        }
+        bands.get( bands.size()-1 ).last = true;
+        run( bands, parallelDeflate );
+
+        // write
+        out.write( SIGNATURE );
+        Chunk ihdr = new Chunk( "IHDR", 13 );
+        ihdr.writeInt( width );
+        ihdr.writeInt( height );
+        ihdr.write( 8 );            // bit depth
+        ihdr.write( colorType );
+        ihdr.write( 0 );            // compression
+        ihdr.write( 0 );            // filter
+        ihdr.write( 0 );            // interlace
+        ihdr.writeTo( out );
+
+        if (palette != null) {
+            Chunk plte = new Chunk( "PLTE", palette.size * 3 );
+            Chunk trns = new Chunk( "tRNS", palette.size );
+            for (int i=0; i<palette.size; i++) {
+                int argb = palette.colors[i];
+                plte.write( argb >>> 16 );
+                plte.write( argb >>> 8 );
+                plte.write( argb );
+                trns.write( argb >>> 24 );
+            }
+            plte.writeTo( out );
+            trns.writeTo( out );
+        }
+
+        if (parallelDeflate) {
+            // zlib header, raw deflate blocks of the bands, combined Adler32
+            long adler = 1;
+            for (int i=0; i<bands.size(); i++) {
+                Band band = bands.get( i );
+                adler = adler32Combine( adler, band.adler, band.rawLength );
+
+                Chunk idat = new Chunk( "IDAT", band.deflatedLength + 6 );
+                if (i == 0) {
+                    idat.write( 0x78 );
+                    idat.write( zlibFlags() );
+                }
+                idat.write( band.deflated, 0, band.deflatedLength );
+                if (band.last) {
+                    idat.writeInt( (int)adler );
+                }
+                idat.writeTo( out );
+            }
+        }
+        else {
+            // one zlib stream over all bands
+            Worker worker = workers.get();
+            Deflater deflater = worker.deflater( level, false );
+            for (Band band : bands) {
+                deflater.setInput( band.filtered, 0, band.rawLength );
+                if (band.last) {
+                    deflater.finish();
+                }
+                while (band.last ? !deflater.finished() : !deflater.needsInput()) {
+                    int len = deflater.deflate( worker.out );
+                    if (len > 0) {
+                        Chunk idat = new Chunk( "IDAT", len );
+                        idat.write( worker.out, 0, len );
+                        idat.writeTo( out );
+                    }
+                }
+            }
+        }
+
+        new Chunk( "IEND", 0 ).writeTo( out );
+        out.flush();
+    }
+
+
+    /**
+     * Filters, and optionally deflates, the bands. The first band is processed
+     * by the calling thread.
+     */
+    protected void run( List<Band> bands, final boolean deflate )
+    throws IOException {
+        List<Future> futures = new ArrayList( bands.size() );
+        for (final Band band : bands.subList( 1, bands.size() )) {
+            futures.add( executor.submit( new Callable() {
+                public Object call() throws Exception {
+                    band.process( deflate );
+                    return null;
+                }
+            }));
+        }
+        bands.get( 0 ).process( deflate );
+        try {
+            for (Future future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new IOException( "Interrupted while encoding PNG." );
+        }
+        catch (ExecutionException e) {
+            throw (IOException)new IOException( "Error while encoding PNG." ).initCause( e.getCause() );
+        }
+    }
+
+
+    protected int zlibFlags() {
+        // FLEVEL and FCHECK, so that (0x78 * 256 + flags) % 31 == 0
+        switch (level) {
+            case 0: case 1: return 0x01;
+            case 2: case 3: case 4: case 5: return 0x5e;
+            case 7: case 8: case 9: return 0xda;
+            default: return 0x9c;
+        }
+    }
+
+
+    /**
+     * The Adler32 of the concatenation of two sequences, see adler32_combine()
+     * of zlib.
+     */
+    protected static long adler32Combine( long adler1, long adler2, long len2 ) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) { sum1 -= ADLER_BASE; }
+        if (sum1 >= ADLER_BASE) { sum1 -= ADLER_BASE; }
+        if (sum2 >= (ADLER_BASE << 1)) { sum2 -= (ADLER_BASE << 1); }
+        if (sum2 >= ADLER_BASE) { sum2 -= ADLER_BASE; }
+        return sum1 | (sum2 << 16);
+    }
+
+
+    protected BufferedImage toBufferedImage( Image image ) {
+        if (image instanceof BufferedImage) {
+            return (BufferedImage)image;
+        }
+        BufferedImage result = new BufferedImage( image.getWidth( null ), image.getHeight( null ),
+                BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage( image, 0, 0, null );
+        }
+        finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+
+    /**
+     * The non-premultiplied ARGB pixels of the image, row by row. The raster
+     * array is used directly if possible; it is not modified.
+     */
+    protected int[] pixels( BufferedImage image ) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel
+                && image.getRaster().getParent() == null) {
+            DataBufferInt buffer = (DataBufferInt)image.getRaster().getDataBuffer();
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)image.getRaster().getSampleModel();
+            if (buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                    && sm.getScanlineStride() == width && buffer.getData().length == width * height) {
+                return buffer.getData();
+            }
+        }
+        return image.getRGB( 0, 0, width, height, null, 0, width );
+    }
+
+
+    /**
+     * The colors of an image with at most {@link #MAX_PALETTE_SIZE} colors.
+     */
+    static class Palette {
+
+        /** Open addressing hash: ARGB -> index+1; 0 is empty. */
+        private int[]       keys = new int[1024], values = new int[1024];
+
+        int[]               colors = new int[MAX_PALETTE_SIZE];
+
+        int                 size;
+
+
+        /**
+         * @return The palette, or null if the image has more than
+         *         {@link #MAX_PALETTE_SIZE} colors.
+         */
+        static Palette analyse( int[] pixels ) {
+            Palette result = new Palette();
+            int last = 0, lastIndex = -1;
+            for (int i=0; i<pixels.length; i++) {
+                int argb = normalize( pixels[i] );
+                if (argb == last && lastIndex >= 0) {
+                    continue;
+                }
+                if ((lastIndex = result.index( argb, true )) < 0) {
+                    return null;
+                }
+                last = argb;
+            }
+            return result;
+        }
+
+        /**
+         * @return The index of the color, or -1 if the palette is full.
+         */
+        int index( int argb, boolean add ) {
+            int mask = keys.length - 1;
+            for (int slot=(argb * 0x9E3779B9) >>> 22 & mask; ; slot=(slot + 1) & mask) {
+                if (values[slot] == 0) {
+                    if (!add || size == MAX_PALETTE_SIZE) {
+                        return -1;
+                    }
+                    keys[slot] = argb;
+                    values[slot] = size + 1;
+                    colors[size] = argb;
+                    return size ++;
+                }
+                else if (keys[slot] == argb) {
+                    return values[slot] - 1;
+                }
+            }
+        }
+    }
+
+
+    protected static int normalize( int argb ) {
+        return (argb & 0xff000000) == 0 ? 0 : argb;
+    }
+
+
+    /**
+     * A range of rows filtered and deflated by one thread.
+     */
+    static class Band {
+
+        private int[]       pixels;
+
+        private int         width, bpp, level, fromRow, toRow;
+
+        private boolean     adaptiveFilter;
+
+        private Palette     palette;
+
+        boolean             last;
+
+        /** The filtered rows, valid until the band is deflated. */
+        byte[]              filtered;
+
+        int                 rawLength;
+
+        byte[]              deflated;
+
+        int                 deflatedLength;
+
+        long                adler;
+
+
+        Band( int[] pixels, int width, Palette palette, int bpp, int level, boolean adaptiveFilter,
+                int fromRow, int toRow ) {
+            this.pixels = pixels;
+            this.width = width;
+            this.palette = palette;
+            this.bpp = bpp;
+            this.level = level;
+            this.adaptiveFilter = adaptiveFilter;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+
+        void process( boolean deflate ) {
+            int rowBytes = width * bpp;
+            rawLength = (rowBytes + 1) * (toRow - fromRow);
+            Worker worker = workers.get();
+            // the filtered rows must survive this call if they are deflated by the caller
+            filtered = deflate ? worker.filtered( rawLength ) : new byte[rawLength];
+
+            int pos = 0;
+            if (!adaptiveFilter || palette != null) {
+                for (int y=fromRow; y<toRow; y++) {
+                    filtered[pos++] = FILTER_NONE;
+                    raw( y, filtered, pos );
+                    pos += rowBytes;
+                }
+            }
+            else {
+                byte[] prev = worker.row( 0, rowBytes );
+                byte[] cur = worker.row( 1, rowBytes );
+                if (fromRow > 0) {
+                    raw( fromRow - 1, prev, 0 );
+                }
+                else {
+                    Arrays.fill( prev, 0, rowBytes, (byte)0 );
+                }
+                for (int y=fromRow; y<toRow; y++) {
+                    raw( y, cur, 0 );
+                    pos = filterAdaptive( cur, prev, rowBytes, worker, pos );
+                    byte[] swap = prev; prev = cur; cur = swap;
+                }
+            }
+            assert pos == rawLength;
+
+            if (deflate) {
+                Adler32 checksum = new Adler32();
+                checksum.update( filtered, 0, rawLength );
+                adler = checksum.getValue();
+                deflate( worker );
+                filtered = null;
+            }
+        }
+
+
+        void raw( int y, byte[] row, int off ) {
+            int offset = y * width;
+            if (palette != null) {
+                int last = 0, lastIndex = palette.index( 0, false );
+                for (int x=0; x<width; x++) {
+                    int argb = normalize( pixels[offset + x] );
+                    if (argb != last) {
+                        last = argb;
+                        lastIndex = palette.index( argb, false );
+                    }
+                    row[off + x] = (byte)lastIndex;
+                }
+            }
+            else {
+                for (int x=0, i=off; x<width; x++) {
+                    int argb = normalize( pixels[offset + x] );
+                    row[i++] = (byte)(argb >>> 16);
+                    row[i++] = (byte)(argb >>> 8);
+                    row[i++] = (byte)argb;
+                    row[i++] = (byte)(argb >>> 24);
+                }
+            }
+        }
+
+
+        /**
+         * Chooses the filter with the min sum of absolute differences, the
+         * heuristic recommended by the PNG spec.
+         */
+        int filterAdaptive( byte[] cur, byte[] prev, int rowBytes, Worker worker, int pos ) {
+            byte[] sub = worker.row( 2, rowBytes );
+            byte[] up = worker.row( 3, rowBytes );
+            byte[] paeth = worker.row( 4, rowBytes );
+            long sumNone = 0, sumSub = 0, sumUp = 0, sumPaeth = 0;
+            for (int i=0; i<rowBytes; i++) {
+                int x = cur[i] & 0xff;
+                int a = i >= bpp ? cur[i-bpp] & 0xff : 0;
+                int b = prev[i] & 0xff;
+                int c = i >= bpp ? prev[i-bpp] & 0xff : 0;
+
+                sub[i] = (byte)(x - a);
+                up[i] = (byte)(x - b);
+                int p = a + b - c;
+                int pa = Math.abs( p - a ), pb = Math.abs( p - b ), pc = Math.abs( p - c );
+                paeth[i] = (byte)(x - ((pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c));
+
+                sumNone += Math.abs( cur[i] );
+                sumSub += Math.abs( sub[i] );
+                sumUp += Math.abs( up[i] );
+                sumPaeth += Math.abs( paeth[i] );
+            }
+            int type = FILTER_NONE;
+            byte[] result = cur;
+            long min = sumNone;
+            if (sumSub < min) { min = sumSub; type = FILTER_SUB; result = sub; }
+            if (sumUp < min) { min = sumUp; type = FILTER_UP; result = up; }
+            if (sumPaeth < min) { min = sumPaeth; type = FILTER_PAETH; result = paeth; }
+
+            filtered[pos++] = (byte)type;
+            System.arraycopy( result, 0, filtered, pos, rowBytes );
+            return pos + rowBytes;
+        }
+
+
+        /**
+         * Deflates the filtered rows into raw deflate blocks. All bands but the
+         * last end with a sync flush, so that the blocks can be concatenated.
+         */
+        void deflate( Worker worker ) {
+            Deflater deflater = worker.deflater( level, true );
+            deflater.setInput( filtered, 0, rawLength );
+            byte[] buf = worker.out;
+            deflated = new byte[Math.max( 1024, rawLength / 4 )];
+            deflatedLength = 0;
+            try {
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        append( buf, deflater.deflate( buf ) );
+                    }
+                }
+                else {
+                    int len;
+                    do {
+                        len = (Integer)syncDeflate.invoke( deflater, buf, 0, buf.length, SYNC_FLUSH );
+                        append( buf, len );
+                    } while (len == buf.length || !deflater.needsInput());
+                }
+            }
+            catch (Exception e) {
+                throw new RuntimeException( e );
+            }
+        }
+
+
+        void append( byte[] buf, int len ) {
+            if (deflatedLength + len > deflated.length) {
+                deflated = Arrays.copyOf( deflated, Math.max( deflated.length * 2, deflatedLength + len ) );
+            }
+            System.arraycopy( buf, 0, deflated, deflatedLength, len );
+            deflatedLength += len;
+        }
+    }
+
+
+    /**
+     * The {@link Deflater} and buffers of a thread.
+     */
+    static class Worker {
+
+        private Deflater        deflater;
+
+        private int             deflaterLevel;
+
+        private boolean         deflaterNowrap;
+
+        private byte[]          filtered = new byte[0];
+
+        private byte[][]        rows = new byte[5][0];
+
+        byte[]                  out = new byte[64 * 1024];
+
+
+        /**
+         * The reset deflater of this thread.
+         */
+        Deflater deflater( int level, boolean nowrap ) {
+            if (deflater == null || nowrap != deflaterNowrap) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                deflater = new Deflater( level, nowrap );
+                deflaterNowrap = nowrap;
+                deflaterLevel = level;
+            }
+            else {
+                deflater.reset();
+                if (level != deflaterLevel) {
+                    deflater.setLevel( level );
+                    deflaterLevel = level;
+                }
+            }
+            return deflater;
+        }
+
+        byte[] filtered( int size ) {
+            if (filtered.length < size) {
+                filtered = new byte[size];
+            }
+            return filtered;
+        }
+
+        byte[] row( int index, int size ) {
+            if (rows[index].length < size) {
+                rows[index] = new byte[size];
+            }
+            return rows[index];
+        }
+    }
+
+
+    /**
+     * A PNG chunk: length, type, data, CRC.
+     */
+    static class Chunk {
+
+        private String      type;
+
+        private byte[]      data;
+
+        private int         length;
+
+
+        Chunk( String type, int capacity ) {
+            this.type = type;
+            this.data = new byte[capacity];
+        }
+
+        void write( int b ) {
+            if (length == data.length) {
+                data = Arrays.copyOf( data, Math.max( 16, data.length * 2 ) );
+            }
+            data[length++] = (byte)b;
+        }
+
+        void write( byte[] b, int off, int len ) {
+            if (length + len > data.length) {
+                data = Arrays.copyOf( data, length + len );
+            }
+            System.arraycopy( b, off, data, length, len );
+            length += len;
+        }
+
+        void writeInt( int v ) {
+            write( v >>> 24 );
+            write( v >>> 16 );
+            write( v >>> 8 );
+            write( v );
+        }
+
+        void writeTo( OutputStream out ) throws IOException {
+            byte[] typeBytes = type.getBytes( "US-ASCII" );
+            writeInt( out, length );
+            out.write( typeBytes );
+            out.write( data, 0, length );
+            CRC32 crc = new CRC32();
+            crc.update( typeBytes );
+            crc.update( data, 0, length );
+            writeInt( out, (int)crc.getValue() );
+        }
+
+        private static void writeInt( OutputStream out, int v ) throws IOException {
+            out.write( v >>> 24 );
+            out.write( v >>> 16 );
+            out.write( v >>> 8 );
+            out.write( v );
+        }
+    }
+
+}
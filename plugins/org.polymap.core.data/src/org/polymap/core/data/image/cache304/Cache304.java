@@ -33,6 +33,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.base.Supplier;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 import org.eclipse.jface.preference.IPersistentPreferenceStore;
@@ -53,13 +54,16 @@ import org.polymap.core.runtime.CachedLazyInit;
 import org.polymap.core.runtime.LazyInit;
 import org.polymap.core.runtime.Polymap;
 import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordState;
 import org.polymap.core.runtime.recordstore.IRecordStore;
+import org.polymap.core.runtime.recordstore.QueryExpression;
 import org.polymap.core.runtime.recordstore.RecordQuery;
 import org.polymap.core.runtime.recordstore.ResultSet;
 import org.polymap.core.runtime.recordstore.SimpleQuery;
 import org.polymap.core.runtime.recordstore.lucene.LuceneRecordStore;
+import org.polymap.core.style.IStyle;
 
 /**
  * The central API and mediator of the module.
@@ -67,10 +71,14 @@ import org.polymap.core.runtime.recordstore.lucene.LuceneRecordStore;
  * The cache uses the {@link org.polymap.core.runtime.recordstore} package to provide
  * a fast, persistent, plugable persistent backend store. By default the based Lucene
  * engine is used. The structure of the records in the store are defined by
- * {@link CachedTile}.
+ * {@link CachedTile}. The data of the tiles is packed into the segments of the
+ * {@link TileDataStore}. Lookups of tiles are answered by the in-memory
+ * {@link TileKeyIndex} and a primary key lookup in the store instead of a
+ * query.
  * <p/>
  * Updating the backend store is done by the {@link CacheUpdateQueue} only. It
- * bufferes updates as queue of {@link CacheUpdateQueue#Command}s.
+ * buffers the latest {@link CacheUpdateQueue#Command} per tile until the
+ * {@link Updater} flushes them.
  * 
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  * @since 3.1
@@ -86,11 +94,32 @@ public class Cache304 {
     
     public static final String          PREF_TOTAL_STORE_SIZE = "totalStoreSize";
     
+    /** 
+     * The buffer (in pixels) around a changed area in which tiles are
+     * invalidated too, as symbols and labels of the features might reach
+     * into the neighbour tiles. The pixels are converted into map units at
+     * the scale of each tile.
+     */
+    public static final String          PREF_STYLE_BUFFER = "styleBuffer";
+    
+    public static final int             DEFAULT_STYLE_BUFFER = 32;
+    
     public static final int             DEFAULT_MAX_TILE_LIVETIME = 8;
+    
+    /**
+     * The max time (millis) a request waits for the rendering of the same tile by
+     * another request. This should be near the render time of a tile, as it also
+     * limits the time a stale flight blocks waiting requests.
+     */
+    public static final String          PROP_COALESCE_TIMEOUT = "coalesceTimeout";
+    
+    public static final int             DEFAULT_COALESCE_TIMEOUT = 5 * 1000;
     public static final int             DEFAULT_MAX_STORE_SIZE = 100 * 1024 * 1024;
     
     private static CacheStatistics      statistics = new CacheStatistics();
     
+    private static InFlightTiles        inFlight = new InFlightTiles();
+    
     /**
      * No one should hold a permanent ref to the cache as every access uses {@link #instance()}.
      * If the {@link #updater} job is scheduled, then it holds a strong ref and keeps it from GC.
@@ -129,6 +158,10 @@ public class Cache304 {
         return statistics;
     }
     
+    static InFlightTiles inFlight() {
+        return inFlight;
+    }
+    
     public static final Cache304 instance() {
         return instance.get();
     }
@@ -141,6 +174,14 @@ public class Cache304 {
     /** The directory to store the actual tile data files. */
     private File                dataDir;
     
+    /** The segments of the tile data in {@link #dataDir}. */
+    private TileDataStore       dataStore;
+    
+    private TileKeyIndex        keyIndex = new TileKeyIndex( 10000 );
+    
+    /** True if {@link #keyIndex} contains all tiles of the store. */
+    private volatile boolean    keyIndexComplete;
+    
     protected AtomicLong        dataDirSize;
     
     private CacheUpdateQueue    updateQueue = new CacheUpdateQueue( this );
@@ -156,6 +197,15 @@ public class Cache304 {
     /** Defaults to {@link #DEFAULT_MAX_STORE_SIZE}. */
     private long                maxStoreSizeInByte = DEFAULT_MAX_STORE_SIZE;
     
+    /** Defaults to {@link #DEFAULT_STYLE_BUFFER}. */
+    private int                 styleBuffer = DEFAULT_STYLE_BUFFER;
+    
+    /**
+     * The largest {@link CachedTile#resolution()} of the cached tiles. Used to
+     * find the candidates of {@link #updateLayer(ILayer, Geometry)}. 
+     */
+    private volatile double     maxResolution;
+    
     /** Update lastAccessed() time (for LRU), only if it is older then this time (30min.) */
     private long                accessTimeRasterMillis = 30 * 60 * 1000;
     
@@ -165,7 +215,10 @@ public class Cache304 {
     
     protected Cache304() {
         try {
-            store = new LuceneRecordStore( new File( Polymap.getCacheDir(), "tiles.index" ), false );            
+            LuceneRecordStore luceneStore = new LuceneRecordStore( new File( Polymap.getCacheDir(), "tiles.index" ), false );            
+            // tiles lost on crash are just rendered again
+            luceneStore.setCommitPolicy( 3000, LuceneRecordStore.DEFAULT_COMMIT_MAX_OPS );
+            store = luceneStore;
             store.setIndexFieldSelector( new IRecordFieldSelector() {
                 public boolean accept( String key ) {
                     return !key.equals( CachedTile.TYPE.data.name() );
@@ -173,21 +226,18 @@ public class Cache304 {
             });
             
             dataDir = new File( Polymap.getCacheDir(), "tiles.data" );
-            dataDir.mkdirs();
+            dataStore = new TileDataStore( dataDir );
             log.info( "Data dir: "  + dataDir + " - Checking size..." );
             Timer timer = new Timer();
-            long fileSize = 0, count = 0;
-//            SimpleQuery query = new SimpleQuery();
-//            query.setMaxResults( 1000000 );
-//            for (IRecordState record : store.find( query )) {
-//                fileSize += new CachedTile( record ).filesize.get();
-//                count ++;
-//            }
+            long fileSize = 0;
+            // tile files of previous versions
             for (File f : dataDir.listFiles()) {
-                fileSize += f.length(); 
-                count ++;
+                if (!f.getName().endsWith( ".data" )) {
+                    fileSize += f.length();
+                }
             }
-            dataDirSize = new AtomicLong( fileSize );
+            int count = rebuildKeyIndex();
+            dataDirSize = new AtomicLong( fileSize + dataStore.liveSize() );
             log.info( "  -> "  
                     + FileUtils.byteCountToDisplaySize( dataDirSize.get() )
                     + " in " + count + " tiles"
@@ -195,6 +245,8 @@ public class Cache304 {
             
             prefs.setDefault( PREF_TOTAL_STORE_SIZE, DEFAULT_MAX_STORE_SIZE );
             maxStoreSizeInByte = prefs.getInt( PREF_TOTAL_STORE_SIZE );
+            prefs.setDefault( PREF_STYLE_BUFFER, DEFAULT_STYLE_BUFFER );
+            styleBuffer = prefs.getInt( PREF_STYLE_BUFFER );
         }
         catch (Exception e) {
             log.error( "Error starting Cache304.", e );
@@ -202,6 +254,69 @@ public class Cache304 {
     }
     
     
+    /**
+     * Fills the {@link #keyIndex} with all tiles of the store and counts the live
+     * bytes of the segments of the {@link #dataStore}. Just the columns of the key
+     * and the location of the data are loaded.
+     * 
+     * @return The number of tiles in the store.
+     */
+    protected int rebuildKeyIndex() throws Exception {
+        SimpleQuery query = new SimpleQuery();
+        query.setMaxResults( Integer.MAX_VALUE );
+        query.setFieldSelector( keyColumns() );
+        
+        int count = 0;
+        boolean complete = true;
+        ResultSet resultSet = store.find( query );
+        try {
+            for (IRecordState state : resultSet) {
+                CachedTile tile = new CachedTile( state, dataStore );
+                try {
+                    keyIndex.put( TileKeyIndex.hash( tile ), Long.parseLong( (String)state.id() ) );
+                }
+                catch (Exception e) {
+                    log.warn( "Unable to index tile: " + state.id() + " (" + e + ")" );
+                    complete = false;
+                }
+                adjustMaxResolution( tile.resolution() );
+                if (tile.isPacked()) {
+                    dataStore.live( tile.segment.get(), tile.offset.get(), tile.filesize.get() );
+                }
+                count ++;
+            }
+        }
+        finally {
+            resultSet.close();
+        }
+        dataStore.deleteEmptySegments();
+        keyIndexComplete = complete;
+        return count;
+    }
+    
+    
+    /**
+     * The columns of the key of the tiles and the location of their data.
+     */
+    protected ColumnFieldSelector keyColumns() {
+        CachedTile t = CachedTile.TYPE;
+        return new ColumnFieldSelector()
+                .add( t.layerId.name(), String.class )
+                .add( t.style.name(), String.class )
+                .add( t.format.name(), String.class )
+                .add( t.width.name(), Integer.class )
+                .add( t.height.name(), Integer.class )
+                .add( t.minx.name(), Double.class )
+                .add( t.miny.name(), Double.class )
+                .add( t.maxx.name(), Double.class )
+                .add( t.maxy.name(), Double.class )
+                .add( t.segment.name(), Integer.class )
+                .add( t.offset.name(), Integer.class )
+                .add( t.filesize.name(), Integer.class )
+                .add( t.filename.name(), String.class );
+    }
+    
+    
     @Override
     protected void finalize() throws Throwable {
         log.info( "FINALIZE..." );
@@ -210,6 +325,7 @@ public class Cache304 {
                 // write pending changes and cleanup
                 updater.run( new NullProgressMonitor() );
                 store.close();
+                dataStore.close();
             }
         }
         catch (Exception e) {
@@ -233,6 +349,22 @@ public class Cache304 {
         }
     }
 
+    
+    public int getStyleBuffer() {
+        return styleBuffer;
+    }
+    
+    public void setStyleBuffer( int buffer ) {
+        this.styleBuffer = buffer;
+        try {
+            prefs.setValue( PREF_STYLE_BUFFER, buffer );
+            prefs.save();
+        }
+        catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+    }
+
 
     /**
      *
@@ -247,21 +379,40 @@ public class Cache304 {
             // Command from queue and writing to store
             lock.readLock().lock();
             
-            // search the store
-            RecordQuery query = buildQuery( request, layers );
-            query.setMaxResults( 2 );
-            ResultSet resultSet = store.find( query );
-            if (resultSet.count() > 1) {
-                log.warn( "More than one tile for query: " + request ); 
-            }
-
             List<CachedTile> result = new ArrayList();
-            for (IRecordState state : resultSet) {
-                result.add( new CachedTile( state, dataDir ) );
-            }
+            RecordQuery query = buildQuery( request, layers );
+            long key = keyHash( request, layers );
+            long id = -1;
             
             // search the queue
-            updateQueue.adaptCacheResult( result, query );
+            CachedTile pending = updateQueue.get( key );
+            if (pending != null) {
+                if (matches( pending, (SimpleQuery)query )) {
+                    result.add( pending );
+                }
+            }
+            // search the key index
+            else if ((id = keyIndex.get( key )) > 0) {
+                IRecordState state = store.get( String.valueOf( id ) );
+                if (state != null) {
+                    CachedTile tile = new CachedTile( state, dataStore );
+                    if (matches( tile, (SimpleQuery)query )) {
+                        result.add( tile );
+                    }
+                }
+            }
+            // search the store; just if the index is not (yet) complete
+            else if (!keyIndexComplete) {
+                query.setMaxResults( 2 );
+                ResultSet resultSet = store.find( query );
+                if (resultSet.count() > 1) {
+                    log.warn( "More than one tile for query: " + request ); 
+                }
+                for (IRecordState state : resultSet) {
+                    result.add( new CachedTile( state, dataStore ) );
+                }
+                resultSet.close();
+            }
             
             if (result.size() > 1) {
                 log.warn( "More than one tile in result: " + result.size() ); 
@@ -272,7 +423,7 @@ public class Cache304 {
                 long now = System.currentTimeMillis();
                 
                 if (!cachedTile.dataExists()) {
-                    log.warn( "Tile data file lost for: " + cachedTile.filename.get() );
+                    log.warn( "Tile data lost for: " + cachedTile.state().id() );
                     return null;
                 }
                 
@@ -281,7 +432,7 @@ public class Cache304 {
                 if ((cachedTile.lastAccessed.get() + accessTimeRasterMillis) < now) {
                     cachedTile.lastAccessed.put( now );
                     updateQueue.push( new CacheUpdateQueue.TouchCommand( cachedTile ) );
-                    updater.reSchedule();
+                    updater.reSchedule( updateQueue.size() );
                 }
                 
                 statistics.incLayerHitCounter( layers, false );
@@ -316,19 +467,13 @@ public class Cache304 {
     public CachedTile put( GetMapRequest request, Set<ILayer> layers, byte[] data, long created, Properties props ) {
         try {
             CachedTile cachedTile = get( request, layers, props );
-            if (cachedTile == null) {
-                cachedTile = new CachedTile( store.newRecord(), dataDir );
-
-                // XXX there is a race cond between threads of different user sessions
-                // that request/update the same tile; so this push should have semantics
-                // of "pufIfAbsent"
-                updateQueue.push( new CacheUpdateQueue.StoreCommand( cachedTile ) );
-                updater.reSchedule();
+            boolean isNew = cachedTile == null;
+            if (isNew) {
+                cachedTile = new CachedTile( store.newRecord(), dataStore );
             }
             else {
-                // touch only if tile was already there
-                updateQueue.push( new CacheUpdateQueue.TouchCommand( cachedTile ) );
-                updater.reSchedule();                
+                Integer filesize = cachedTile.filesize.get();
+                dataDirSize.addAndGet( data.length - (filesize != null ? filesize : 0) );
             }
             cachedTile.created.put( created );
             cachedTile.lastModified.put( created );
@@ -345,8 +490,7 @@ public class Cache304 {
             cachedTile.width.put( request.getWidth() );
             cachedTile.height.put( request.getHeight() );
 
-            String styleHash = "hash" + layer.getStyle().createSLD( new NullProgressMonitor() ).hashCode();
-            cachedTile.style.put( styleHash );
+            cachedTile.style.put( styleHash( layer ) );
 
             cachedTile.format.put( request.getFormat() );
             
@@ -357,9 +501,18 @@ public class Cache304 {
             cachedTile.miny.put( bbox.getMinY() );
             cachedTile.maxx.put( bbox.getMaxX() );
             cachedTile.maxy.put( bbox.getMaxY() );
+            adjustMaxResolution( cachedTile.resolution() );
 
             cachedTile.data.put( data );
 
+            // push after the tile is complete, so that concurrent get() does not see
+            // a tile without data; the queue keeps the latest command of a tile key,
+            // so concurrent put() of the same tile does not store it twice
+            updateQueue.push( isNew
+                    ? new CacheUpdateQueue.StoreCommand( cachedTile )
+                    // touch only if tile was already there
+                    : new CacheUpdateQueue.TouchCommand( cachedTile ) );
+            updater.reSchedule( updateQueue.size() );
             return cachedTile;
         }
         catch (Exception e) {
@@ -369,42 +522,132 @@ public class Cache304 {
     }
     
     
+    /**
+     * Removes the tiles of the given layer that intersect the given changed
+     * area, buffered by {@link #getStyleBuffer()} pixels at the scale of each
+     * tile. Pending commands of these tiles are dropped, so that the Updater
+     * does not store them again.
+     * 
+     * @param layer
+     * @param changed The changed area in the CRS of the tiles, or null to remove
+     *        all tiles of the layer.
+     */
     public void updateLayer( ILayer layer, Geometry changed ) {
         // flush queue
         if (!updateQueue.isEmpty()) {
             log.warn( "Queue is not empty before updateLayer()!" );
         }
 
-        // remove all tiles for layer
+        SimpleQuery query = new SimpleQuery();
+        query.eq( CachedTile.TYPE.layerId.name(), layer.id() );
+        Envelope area = changed != null ? changed.getEnvelopeInternal() : null;
+        if (area != null) {
+            // candidates: buffer of the tiles with the largest resolution;
+            // the exact buffer of each tile is checked below
+            Envelope bounds = new Envelope( area );
+            bounds.expandBy( styleBuffer * maxResolution );
+            query.greater( CachedTile.TYPE.maxx.name(), bounds.getMinX() );
+            query.less( CachedTile.TYPE.minx.name(), bounds.getMaxX() );
+            query.greater( CachedTile.TYPE.maxy.name(), bounds.getMinY() );
+            query.less( CachedTile.TYPE.miny.name(), bounds.getMaxY() );
+        }
+        query.setMaxResults( Integer.MAX_VALUE );
+        query.setFieldSelector( keyColumns() );
+
         IRecordStore.Updater tx = null;
         try {
             lock.writeLock().tryLock( 3, TimeUnit.SECONDS );
             
-            SimpleQuery query = new SimpleQuery();
-            query.eq( CachedTile.TYPE.layerId.name(), layer.id() );
-            query.setMaxResults( 1000000 );
-            ResultSet resultSet = store.find( query );
-            log.debug( "Removing tiles: " + resultSet.count() );
-            
+            // drop pending commands before they re-insert their tiles
             Timer timer = new Timer();
+            int dropped = updateQueue.drop( layer.id(), area, styleBuffer );
+
+            // free data and key index entries; just the columns are loaded
+            int count = 0;
             tx = store.prepareUpdate();
-            for (IRecordState record : resultSet) {
-                deleteTile( record, tx );
+            ResultSet resultSet = store.find( query );
+            try {
+                for (IRecordState record : resultSet) {
+                    CachedTile tile = new CachedTile( record, dataStore );
+                    if (area == null || tile.intersects( area, styleBuffer )) {
+                        releaseTile( tile, record.id() );
+                        if (area != null) {
+                            tx.remove( record );
+                        }
+                        count ++;
+                    }
+                }
+            }
+            finally {
+                resultSet.close();
             }
-            tx.apply( true );
-            log.debug( "done. (" + timer.elapsedTime() + "ms)" );
+            
+            // all tiles of the layer: delete records by query
+            if (area == null) {
+                tx.remove( query );
+            }
+            tx.apply( false );
+            log.debug( "Removed tiles: " + count + ", dropped commands: " + dropped + " (" + timer.elapsedTime() + "ms)" );
         }
         catch (Exception e) {
+            log.warn( "Error while removing tiles of layer: " + layer.id(), e );
             if (tx != null) {
                 tx.discard();
             }
         }
         finally {
-            lock.writeLock().unlock();
+            if (lock.writeLock().isHeldByCurrentThread()) {
+                lock.writeLock().unlock();
+            }
         }
     }
 
 
+    protected void adjustMaxResolution( double resolution ) {
+        if (resolution > maxResolution) {
+            synchronized (this) {
+                maxResolution = Math.max( maxResolution, resolution );
+            }
+        }
+    }
+    
+    
+    /**
+     * The hash of the canonical key of the tile of the given request.
+     */
+    protected long keyHash( GetMapRequest request, Set<ILayer> layers ) {
+        assert layers.size() == 1 : "keyHash(): more than one layer in request: " + layers;
+        ILayer layer = layers.iterator().next();
+        ReferencedEnvelope bbox = request.getBoundingBox();
+        return TileKeyIndex.hash( layer.id(), styleHash( layer ), request.getFormat(), 
+                request.getWidth(), request.getHeight(),
+                bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY() );
+    }
+    
+    
+    /**
+     * The style of the given layer as stored in {@link CachedTile#style}. Uses the
+     * cached {@link IStyle#fingerprint()} instead of creating the SLD.
+     */
+    protected String styleHash( ILayer layer ) {
+        return "hash" + layer.getStyle().fingerprint();
+    }
+    
+    
+    /**
+     * Checks the tile found in the {@link #keyIndex} against the query, as
+     * different keys might have the same hash.
+     */
+    protected boolean matches( CachedTile tile, SimpleQuery query ) {
+        for (QueryExpression exp : query.expressions()) {
+            if (!exp.evaluate( tile.state() )) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
     protected RecordQuery buildQuery( GetMapRequest request, Set<ILayer> layers ) {
         SimpleQuery query = new SimpleQuery();
 
@@ -440,8 +683,7 @@ public class Cache304 {
             query.eq( CachedTile.TYPE.layerId.name(), layer.id() );
 
             // style
-            String styleHash = "hash" + layer.getStyle().createSLD( new NullProgressMonitor() ).hashCode();
-            query.eq( CachedTile.TYPE.style.name(), styleHash );
+            query.eq( CachedTile.TYPE.style.name(), styleHash( layer ) );
             
             // format
             query.eq( CachedTile.TYPE.format.name(), request.getFormat() );
@@ -454,9 +696,20 @@ public class Cache304 {
     
     
     protected CachedTile deleteTile( IRecordState record, IRecordStore.Updater tx ) throws Exception {
+        CachedTile cachedTile = new CachedTile( record, dataStore );
+        releaseTile( cachedTile, record.id() );
+        // delete record from index
+        tx.remove( record );
+        return cachedTile;
+    }
+    
+    
+    /**
+     * Frees the data of the given tile and removes it from the
+     * {@link #keyIndex}. The record of the tile is not modified.
+     */
+    protected void releaseTile( CachedTile cachedTile, Object id ) {
         // adapt dataDirSize
-        CachedTile cachedTile = new CachedTile( record, dataDir );
-        
         Integer filesize = cachedTile.filesize.get();
         if (filesize == null /*|| filesize.intValue() == 0*/) {
             if (cachedTile.dataExists()) {
@@ -467,12 +720,16 @@ public class Cache304 {
             }
         }
         long current = dataDirSize.addAndGet( -filesize.longValue() );
-        log.debug( "  Deleting: lastAccessed=" + cachedTile.lastAccessed.get() + ", dataSizeDir=" + current );
-        // delete file
-        cachedTile.data.put( null );
-        // delete record from index
-        tx.remove( record );
-        return cachedTile;
+        log.debug( "  Deleting: " + id + ", dataSizeDir=" + current );
+        // free data
+        cachedTile.releaseData();
+        // remove from key index
+        try {
+            keyIndex.remove( TileKeyIndex.hash( cachedTile ), Long.parseLong( (String)id ) );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to remove tile from key index: " + id + " (" + e + ")" );
+        }
     }
     
     
@@ -485,8 +742,8 @@ public class Cache304 {
 
         private long            normDelay = 3000;
         
-        /** normDelay / queueCountDelayFactor * queue.count */
-        private double          queueCountDelayFactor = 0.02;
+        /** Flush immediately if the queue has more elements than this. */
+        private int             flushSize = 500;
         
         private long            lastAccess = System.currentTimeMillis(); 
         
@@ -506,12 +763,15 @@ public class Cache304 {
                 queueState = updateQueue.state(); 
                 log.debug( "Updater: flushing elements in queue: " + queueState.size() );
                 for (CacheUpdateQueue.Command command: queueState) {
+                    if (command.dropped) {
+                        continue;
+                    }
                     try {
                         command.apply( tx );
 
                         // adapt dataDirSize
                         if (command instanceof StoreCommand) {
-                            CachedTile cachedTile = ((StoreCommand)command).tile;
+                            CachedTile cachedTile = command.tile;
                             long current = dataDirSize.addAndGet( cachedTile.filesize.get() );
                             log.debug( "Data size: " + current );
                         }
@@ -521,6 +781,7 @@ public class Cache304 {
                     }
                 }
                 log.debug( "writing commands done. (" + timer.elapsedTime() + "ms)" );
+                dataStore.sync();
                 
                 // external synchronization of Lucene is not a good idea in general;
                 // I don't see another way to make apply() and remove() one atomar
@@ -532,6 +793,25 @@ public class Cache304 {
                 timer.start();
                 tx.apply( false );                
                 log.debug( "commit done. (" + timer.elapsedTime() + "ms)" );
+                
+                // index new tiles; the records have their ids after apply()
+                IRecordStore.Updater removeTx = null;
+                for (CacheUpdateQueue.Command command: queueState) {
+                    // dropped by updateLayer() while applying; remove the record again
+                    if (command.dropped && command.applied) {
+                        removeTx = removeTx != null ? removeTx : store.prepareUpdate();
+                        removeTx.remove( command.tile.state() );
+                        if (command instanceof StoreCommand) {
+                            dataDirSize.addAndGet( -command.tile.filesize.get() );
+                        }
+                    }
+                    else if (command instanceof StoreCommand && !command.dropped) {
+                        keyIndex.put( command.key, Long.parseLong( (String)command.tile.state().id() ) );
+                    }
+                }
+                if (removeTx != null) {
+                    removeTx.apply( false );
+                }
             }
             catch (Exception e) {
                 tx.discard();
@@ -540,8 +820,8 @@ public class Cache304 {
             finally {
                 // remove command from queue no matter if tx failed to avoid
                 // overflow if somethinf is wrong with backend
-                if (queueState != null && !updateQueue.remove( queueState )) {
-                    log.warn( "!!! UNABLE TO REMOVE COMMAND FROM QUEUE: " + queueState.size() );
+                if (queueState != null) {
+                    updateQueue.remove( queueState );
                 }
                 if (lock.writeLock().isHeldByCurrentThread()) {
                     lock.writeLock().unlock();
@@ -563,6 +843,7 @@ public class Cache304 {
                 for (IRecordState state : expiredTiles) {
                     deleteTile( state, tx );
                 }
+                expiredTiles.close();
                 lock.writeLock().lock();
                 tx.apply( false );
             }
@@ -592,6 +873,7 @@ public class Cache304 {
                     for (IRecordState state : expiredTiles) {
                         deleteTile( state, tx );
                     }
+                    expiredTiles.close();
                     lock.writeLock().lock();
                     tx.apply( true );
                 }
@@ -605,12 +887,76 @@ public class Cache304 {
                     }
                 }
             }
+            
+            // compact segments *************************
+            for (Integer segment : dataStore.compactionCandidates()) {
+                compact( segment );
+            }
+            dataStore.purgeRetired();
             return Status.OK_STATUS;
         }
         
         
+        /**
+         * Moves the live tiles of the given segment to the current segment and
+         * retires the segment.
+         * <p/>
+         * This runs under the write lock, so that {@link Cache304#get} cannot
+         * queue a {@link CacheUpdateQueue.TouchCommand} of a tile while it is moved. A pending
+         * command of a tile has the old location of the tile, and flushing it
+         * after the move would point the record to the retired segment. Such
+         * tiles are skipped and the segment is not retired; it is compacted
+         * again in the next run, after the queue was flushed.
+         */
+        protected void compact( Integer segment ) {
+            log.debug( "Updater: compacting segment: " + segment );
+            Timer timer = new Timer();
+            IRecordStore.Updater tx = store.prepareUpdate();
+            try {
+                lock.writeLock().lock();
+
+                SimpleQuery query = new SimpleQuery();
+                query.setMaxResults( Integer.MAX_VALUE );
+                query.eq( CachedTile.TYPE.segment.name(), segment );
+                
+                int count = 0, skipped = 0;
+                ResultSet resultSet = store.find( query );
+                for (IRecordState state : resultSet) {
+                    CachedTile cachedTile = new CachedTile( state, dataStore );
+                    if (updateQueue.get( TileKeyIndex.hash( cachedTile ) ) != null) {
+                        skipped ++;
+                        continue;
+                    }
+                    byte[] data = cachedTile.data.get();
+                    if (data != null) {
+                        cachedTile.data.put( data );
+                        tx.store( state );
+                        count ++;
+                    }
+                }
+                resultSet.close();
+                dataStore.sync();
+                tx.apply( false );
+                if (skipped == 0) {
+                    dataStore.retire( segment );
+                }
+                log.debug( "    moved tiles: " + count + ", skipped: " + skipped + " (" + timer.elapsedTime() + "ms)" );
+            }
+            catch (Exception e) {
+                tx.discard();
+                log.error( "Error while compacting segment: " + segment, e );
+            }
+            finally {
+                if (lock.writeLock().isHeldByCurrentThread()) {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+        
+        
         public boolean shouldRun() {
-            if (lastAccess <= (System.currentTimeMillis() - normDelay)) {
+            if (lastAccess <= (System.currentTimeMillis() - normDelay)
+                    || updateQueue.size() >= flushSize) {
                 return true;
             }
             else {
@@ -625,6 +971,18 @@ public class Cache304 {
             schedule( normDelay );
         }
         
+        
+        /**
+         * Schedules the flush after {@link #normDelay}, or immediately if the
+         * queue has reached {@link #flushSize}.
+         * 
+         * @param queueSize The current size of the queue.
+         */
+        public void reSchedule( int queueSize ) {
+            lastAccess = System.currentTimeMillis();
+            schedule( queueSize >= flushSize ? 0 : normDelay );
+        }
+        
     }
 
 }
@@ -35,6 +35,12 @@ public class CacheStatistics {
     
     private ConcurrentMap<String,AtomicInteger> layerMissCounters = new ConcurrentHashMap( 128 );
     
+    /** Misses that got the tile rendered by a concurrent request. */
+    private ConcurrentMap<String,AtomicInteger> layerCoalescedCounters = new ConcurrentHashMap( 128 );
+    
+    /** Misses that waited for a concurrent request but rendered the tile on their own. */
+    private ConcurrentMap<String,AtomicInteger> layerCoalesceTimeoutCounters = new ConcurrentHashMap( 128 );
+    
     
     CacheStatistics() {
     }
@@ -62,6 +68,21 @@ public class CacheStatistics {
     }
     
     
+    void incLayerCoalescedCounter( Set<ILayer> layers, boolean timeout ) {
+        assert layers != null;
+        
+        for (ILayer layer : layers) {
+            ConcurrentMap<String,AtomicInteger> counters = timeout 
+                    ? layerCoalesceTimeoutCounters : layerCoalescedCounters;
+            AtomicInteger counter = counters.get( layer.id() );
+            if (counter == null) {
+                counters.putIfAbsent( layer.id(), counter = new AtomicInteger() );
+            }
+            counter.incrementAndGet();
+        }
+    }
+    
+    
     public int layerHitCount( ILayer layer ) {
         assert layer != null;
         AtomicInteger counter = layerHitCounters.get( layer.id() );
@@ -74,6 +95,18 @@ public class CacheStatistics {
         return counter != null ? counter.intValue() : 0;
     }
     
+    public int layerCoalescedCount( ILayer layer ) {
+        assert layer != null;
+        AtomicInteger counter = layerCoalescedCounters.get( layer.id() );
+        return counter != null ? counter.intValue() : 0;
+    }
+    
+    public int layerCoalesceTimeoutCount( ILayer layer ) {
+        assert layer != null;
+        AtomicInteger counter = layerCoalesceTimeoutCounters.get( layer.id() );
+        return counter != null ? counter.intValue() : 0;
+    }
+    
     public long layerStoreSize( Cache304 cache, ILayer layer ) {
         try {
             SimpleQuery query = new SimpleQuery();
@@ -85,6 +118,7 @@ public class CacheStatistics {
             for (IRecordState state : resultSet) {
                 result += new CachedTile( state, null ).filesize.get();
             }
+            resultSet.close();
             return result;
         }
         catch (Exception e) {
@@ -99,7 +133,9 @@ public class CacheStatistics {
             query.eq( CachedTile.TYPE.layerId.name(), layer.id() );
 
             ResultSet resultSet = cache.store.find( query );
-            return resultSet.count();
+            int result = resultSet.count();
+            resultSet.close();
+            return result;
         }
         catch (Exception e) {
             return -1;
@@ -16,18 +16,20 @@ package org.polymap.core.data.image.cache304;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.polymap.core.runtime.recordstore.QueryExpression;
-import org.polymap.core.runtime.recordstore.RecordQuery;
-import org.polymap.core.runtime.recordstore.SimpleQuery;
+import com.vividsolutions.jts.geom.Envelope;
+
 import org.polymap.core.runtime.recordstore.IRecordStore.Updater;
 
 /**
- * 
+ * The pending writes of the {@link Cache304}. The queue holds the latest
+ * {@link Command} per tile, keyed by the {@link TileKeyIndex#hash(CachedTile)
+ * hash} of the tile key. A lookup of a pending tile is just one map access.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -37,9 +39,8 @@ public class CacheUpdateQueue {
 
     private Cache304            cache;
 
-    private Queue<Command>      queue = new ConcurrentLinkedQueue();
-    
-    //private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Tile key hash -> latest command. */
+    private ConcurrentMap<Long,Command> pending = new ConcurrentHashMap( 256 );
     
     
     public CacheUpdateQueue( Cache304 cache ) {
@@ -48,24 +49,49 @@ public class CacheUpdateQueue {
 
     
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return pending.isEmpty();
     }
     
     
+    public int size() {
+        return pending.size();
+    }
+    
+    
+    /**
+     * Adds the given command, merged with the pending command of the same tile.
+     * A {@link StoreCommand} that is not yet applied is kept if the new command
+     * refers to the same tile, as it stores the changes as well. Otherwise the
+     * new command replaces the pending one.
+     */
     public void push( final Command command ) {
-        queue.add( command );    
+        while (true) {
+            Command current = pending.putIfAbsent( command.key, command );
+            if (current == null) {
+                return;
+            }
+            if (current instanceof StoreCommand && !current.applied && current.tile == command.tile) {
+                return;
+            }
+            if (pending.replace( command.key, current, command )) {
+                // a concurrent put() of the same tile; drop the data of the other tile
+                if (current instanceof StoreCommand && !current.applied && current.tile != command.tile) {
+                    current.tile.releaseData();
+                }
+                return;
+            }
+        }
     }
 
 
     /**
-     * Called during {@link Cache304#get()} in order to adapt the result according
-     * the commands in the queue.
+     * The pending tile of the given key.
+     *
+     * @return The tile of the pending command, or null.
      */
-    public void adaptCacheResult( List<CachedTile> tiles, RecordQuery query ) {
-        log.debug( "adaptCacheResult(): elements in queue: " + queue.size() );
-        for (Command command : queue) {
-            command.adaptCacheResult( tiles, query );
-        }
+    public CachedTile get( long key ) {
+        Command command = pending.get( key );
+        return command != null ? command.tile : null;
     }
 
 
@@ -75,93 +101,100 @@ public class CacheUpdateQueue {
      * backend.
      */
     public List<Command> state() {
-        return new ArrayList( queue );        
+        return new ArrayList( pending.values() );        
     }
     
         
-    public boolean remove( List<Command> commands ) {
-        // should be O(n) as both list are in same order
-        return queue.removeAll( commands );
+    /**
+     * Removes the given commands. Commands that were replaced by newer commands
+     * of the same tile meanwhile are kept.
+     */
+    public void remove( List<Command> commands ) {
+        for (Command command : commands) {
+            pending.remove( command.key, command );
+        }
     }
     
-        
-//    public synchronized void flush() {
-//        Timer timer = new Timer();
-//        
-//        Updater updater = cache.store.prepareUpdate();
-//        log.debug( "flush(): elements in queue: " + queue.size() );
-//        while (!queue.isEmpty()) {
-//            try {
-//                queue.poll().apply( updater );
-//            }
-//            catch (Exception e) {
-//                log.error( "Error while flushing command queue: ", e );
-//            }
-//        }
-//        updater.apply();
-//        log.debug( "flush(): done. (" + timer.elapsedTime() + "ms)" );
-//    }
-    
     
     /**
-     * 
+     * Drops the pending commands of the tiles of the given layer that intersect
+     * the given area, buffered by the given pixels at the scale of each tile.
+     * The data of dropped new tiles is released. A dropped
+     * command that the {@link Cache304.Updater} has applied already is
+     * removed from the store by the Updater.
+     * <p/>
+     * The caller has to hold the write lock of the cache.
+     *
+     * @param changed The area in the CRS of the tiles, or null to drop all
+     *        commands of the layer.
+     * @param bufferPixels See {@link CachedTile#intersects(Envelope, int)}.
+     * @return The number of dropped commands.
      */
-    abstract static class Command {
-        
-        public abstract void apply( Updater updater ) throws Exception;
-        
-        public abstract void adaptCacheResult( List<CachedTile> tiles, RecordQuery query );
+    public int drop( String layerId, Envelope changed, int bufferPixels ) {
+        int count = 0;
+        for (Command command : pending.values()) {
+            CachedTile tile = command.tile;
+            if (layerId.equals( tile.layerId.get() )
+                    && (changed == null || tile.intersects( changed, bufferPixels ))
+                    && pending.remove( command.key, command )) {
+                command.dropped = true;
+                if (command instanceof StoreCommand) {
+                    tile.releaseData();
+                }
+                count ++;
+            }
+        }
+        return count;
     }
     
     
     /**
      * 
      */
-    static final class StoreCommand
-            extends Command {
+    abstract static class Command {
         
         protected CachedTile        tile;
         
+        protected long              key;
+        
+        protected volatile boolean  applied;
+        
+        /** The tile was removed by {@link CacheUpdateQueue#drop(String, Envelope, int)}. */
+        protected volatile boolean  dropped;
+        
 
-        public StoreCommand( CachedTile tile ) {
+        public Command( CachedTile tile ) {
             this.tile = tile;
+            this.key = TileKeyIndex.hash( tile );
         }
         
         public void apply( Updater updater ) throws Exception {
             updater.store( tile.state() );
+            applied = true;
         }
-
-        public void adaptCacheResult( List<CachedTile> tiles, RecordQuery query ) {
-            SimpleQuery simpleQuery = (SimpleQuery)query;
-            for (QueryExpression exp : simpleQuery.expressions()) {
-                if (!exp.evaluate( tile.state() )) {
-                    return;
-                }
-            }
-            tiles.add( tile );
-            log.debug( "StoreCommand: APAPTED: TILE ADDED" );
+    }
+    
+    
+    /**
+     * Stores a new tile.
+     */
+    static final class StoreCommand
+            extends Command {
+        
+        public StoreCommand( CachedTile tile ) {
+            super( tile );
         }
     }
 
     
     /**
-     * 
+     * Updates an existing tile.
      */
     static final class TouchCommand
             extends Command {
         
-        private CachedTile          tile;
-        
-
         public TouchCommand( CachedTile tile ) {
-            this.tile = tile;
-        }
-        
-        public void apply( Updater updater ) throws Exception {
-            updater.store( tile.state() );
-        }
-
-        public void adaptCacheResult( List<CachedTile> tiles, RecordQuery query ) {
+            super( tile );
         }
     }
     
@@ -14,8 +14,6 @@
  */
 package org.polymap.core.data.image.cache304;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -23,11 +21,15 @@ import java.io.RandomAccessFile;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 import org.polymap.core.runtime.recordstore.IRecordState;
 import org.polymap.core.runtime.recordstore.RecordModel;
 
 /**
- * 
+ * The record of a tile of {@link Cache304}. The data of the tile is stored in the
+ * {@link TileDataStore} at {@link #segment} and {@link #offset}. Tiles of
+ * previous versions have their data in a separate {@link #filename file}.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -38,7 +40,8 @@ public class CachedTile
     
     public static final CachedTile TYPE = type( CachedTile.class );
 
-    private static AtomicLong   filenameCount = new AtomicLong( System.currentTimeMillis() );
+    
+    protected TileDataStore     dataStore;
     
     protected File              basedir;
     
@@ -52,9 +55,10 @@ public class CachedTile
     /**
      * Ctor to access tile {@link #data}.
      */
-    public CachedTile( IRecordState record, File basedir ) {
+    public CachedTile( IRecordState record, TileDataStore dataStore ) {
         super( record );
-        this.basedir = basedir;
+        this.dataStore = dataStore;
+        this.basedir = dataStore != null ? dataStore.getDir() : null;
     }
 
     public Property<Long>       created = new Property<Long>( "created" );
@@ -87,10 +91,21 @@ public class CachedTile
     
     public Property<String>     filename = new Property<String>( "filename" );
     
+    /** The segment of the data in the {@link TileDataStore}; null or 0 if the data is in a file. */
+    public Property<Integer>    segment = new Property<Integer>( "segment" );
+    
+    public Property<Integer>    offset = new Property<Integer>( "offset" );
+    
     public Property<byte[]>     data = new Property<byte[]>( "data" ) {
 
+        /**
+         * @return The data of the tile, or null if the data was lost.
+         */
         @Override
         public byte[] get() {
+            if (isPacked()) {
+                return dataStore.read( segment.get(), offset.get(), filesize.get() );
+            }
             RandomAccessFile raf = null;
             try {
                 raf = new RandomAccessFile( new File( basedir, filename.get() ), "r" );
@@ -109,35 +124,32 @@ public class CachedTile
         
         @Override
         public RecordModel put( byte[] value ) {
-            // delete file
-            if (value == null) {
-                if (!new File( basedir, filename.get() ).delete()) {
-                    // just log - don't break the entire Updater run
-                    log.warn( "Unable to delete file: " + filename.get() );
-                }
+            // free old data
+            if (isPacked()) {
+                releaseData();
+                segment.put( 0 );
+                filesize.put( 0 );
+            }
+            else if (filename.get() != null && filename.get().length() > 0) {
+                releaseData();
+                filename.put( "" );
                 filesize.put( 0 );
             }
-            // write file
-            else {
-                RandomAccessFile raf = null;
+            // append to store
+            if (value != null) {
                 try {
-                    if (filename.get() == null) {
-                        filename.put( String.valueOf( filenameCount.getAndIncrement() ) );
-                    }
-                    raf = new RandomAccessFile( new File( basedir, filename.get() ), "rw" );
-                    raf.write( value );
+                    long location = dataStore.write( value );
+                    offset.put( (int)location );
                     filesize.put( value.length );
+                    segment.put( (int)(location >>> 32) );
                 }
                 catch (IOException e) {
                     throw new RuntimeException( e );
                 }
-                finally {
-                    closeQuietly( raf );
-                }
             }
             return CachedTile.this;
         }
-
+        
         protected void closeQuietly( RandomAccessFile raf ) {
             if (raf != null) {
                 try {
@@ -157,11 +169,61 @@ public class CachedTile
     
     /**
      * Returns true if {@link #data} actually contains and returns bytes. As the data of
-     * the tile is stored in separate file it might get deleted while the record in the index
-     * still remains. This is a quick check. 
+     * the tile is stored in separate segment or file it might get deleted while the record
+     * in the index still remains. This is a quick check. 
      */
     public boolean dataExists() {
-        return new File( basedir, filename.get() ).exists();
+        if (isPacked()) {
+            return dataStore.exists( segment.get() );
+        }
+        String name = filename.get();
+        return name != null && name.length() > 0 && new File( basedir, name ).exists();
+    }
+    
+    
+    /**
+     * Frees the data of this tile in the {@link TileDataStore}, or deletes its
+     * file. The record is not modified, so this works for read-only records too.
+     */
+    public void releaseData() {
+        if (isPacked()) {
+            Integer size = filesize.get();
+            dataStore.free( segment.get(), size != null ? size : 0 );
+        }
+        else if (filename.get() != null && filename.get().length() > 0) {
+            if (!new File( basedir, filename.get() ).delete()) {
+                // just log - don't break the entire Updater run
+                log.warn( "Unable to delete file: " + filename.get() );
+            }
+        }
+    }
+    
+    
+    /**
+     * Checks if the bbox of this tile, expanded by the given number of pixels at
+     * the scale of this tile, intersects the given area.
+     * 
+     * @param area The area in the CRS of the tile.
+     * @param bufferPixels The buffer in pixels of this tile.
+     */
+    public boolean intersects( Envelope area, int bufferPixels ) {
+        Envelope bbox = new Envelope( minx.get(), maxx.get(), miny.get(), maxy.get() );
+        bbox.expandBy( bufferPixels * resolution() );
+        return bbox.intersects( area );
+    }
+    
+    
+    /**
+     * The map units per pixel of this tile.
+     */
+    public double resolution() {
+        return (maxx.get() - minx.get()) / width.get();
+    }
+    
+    
+    protected boolean isPacked() {
+        Integer result = segment.get();
+        return result != null && result.intValue() > 0;
     }
     
 }
@@ -59,6 +59,7 @@ public class ClearCacheAction
     public void run( IAction action ) {
         for (ILayer layer : selected) {
             try {
+                // explicit clear by the user: all tiles of the layer, no changed area
                 Cache304.instance().updateLayer( layer, null );
                 layer.setRerender( true );
             }
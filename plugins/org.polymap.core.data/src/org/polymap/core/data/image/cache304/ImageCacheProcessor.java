@@ -26,12 +26,16 @@ import java.beans.PropertyChangeEvent;
 import java.io.ByteArrayOutputStream;
 import java.lang.ref.WeakReference;
 
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.filter.identity.FeatureId;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 
 import org.polymap.core.data.FeatureChangeEvent;
 import org.polymap.core.data.image.EncodedImageResponse;
@@ -39,6 +43,7 @@ import org.polymap.core.data.image.GetLayerTypesRequest;
 import org.polymap.core.data.image.GetLayerTypesResponse;
 import org.polymap.core.data.image.GetLegendGraphicRequest;
 import org.polymap.core.data.image.GetMapRequest;
+import org.polymap.core.data.image.cache304.InFlightTiles.Flight;
 import org.polymap.core.data.pipeline.PipelineExecutor.ProcessorContext;
 import org.polymap.core.data.pipeline.PipelineProcessor;
 import org.polymap.core.data.pipeline.ProcessorRequest;
@@ -113,11 +118,29 @@ public class ImageCacheProcessor
     }
 
     
-    protected void updateAndActivate( boolean updateCache ) {
+    /**
+     * 
+     * @param updateCache True if the tiles of the changed area should be removed.
+     * @param changed The bounds of the changed features, or null if the entire
+     *        layer has changed.
+     */
+    protected void updateAndActivate( boolean updateCache, ReferencedEnvelope changed ) {
         log.debug( "CACHE: activating for layer: " + layer.getLabel() );
         if (!active) {
             if (updateCache) {
-                Cache304.instance().updateLayer( layer, null );
+                // the tiles have the CRS of the map
+                Geometry area = null;
+                if (changed != null) {
+                    try {
+                        Envelope bounds = changed.getCoordinateReferenceSystem() != null
+                                ? changed.transform( layer.getMap().getCRS(), true ) : changed;
+                        area = JTS.toGeometry( bounds );
+                    }
+                    catch (Exception e) {
+                        log.warn( "Unable to transform changed bounds, updating entire layer: " + e );
+                    }
+                }
+                Cache304.instance().updateLayer( layer, area );
             }
             active = true;
             layer.setEditable( false );
@@ -169,23 +192,66 @@ public class ImageCacheProcessor
             // in cache but modified
             else {
                 byte[] data = cachedTile.data.get();
-                log.debug( "### CACHE: Hit. (" + data.length + " bytes) -- " + timer.elapsedTime() + "ms" );
-                EncodedImageResponse response = new EncodedImageResponse( data, data.length );
-                response.setLastModified( cachedTile.lastModified.get() );
-                response.setExpires( cachedTile.expires.get() );
-                context.sendResponse( response );
-                context.sendResponse( ProcessorResponse.EOP );
+                // segment of the data might have been retired meanwhile
+                if (data == null) {
+                    log.warn( "Tile data lost: " + cachedTile.state().id() );
+                    cachedTile = null;
+                }
+                else {
+                    log.debug( "### CACHE: Hit. (" + data.length + " bytes) -- " + timer.elapsedTime() + "ms" );
+                    EncodedImageResponse response = new EncodedImageResponse( data, data.length );
+                    response.setLastModified( cachedTile.lastModified.get() );
+                    response.setExpires( cachedTile.expires.get() );
+                    context.sendResponse( response );
+                    context.sendResponse( ProcessorResponse.EOP );
+                }
             }
         }
         
         // not in cache -> send request down the pipeline 
-        else {
+        if (cachedTile == null) {
             log.debug( "### CACHE: Miss. (...) -- " + timer.elapsedTime() + "ms" );
+            
+            // tile is rendered by another request already -> wait for result
+            long timeout = Long.parseLong( props.getProperty( 
+                    Cache304.PROP_COALESCE_TIMEOUT, String.valueOf( Cache304.DEFAULT_COALESCE_TIMEOUT ) ) );
+            InFlightTiles inFlight = Cache304.inFlight();
+            long key = Cache304.instance().keyHash( request, context.getLayers() );
+            Flight flight = inFlight.lead( key, timeout );
+            if (flight == null) {
+                Flight leader = inFlight.await( key, timeout );
+                if (leader != null) {
+                    Cache304.statistics().incLayerCoalescedCounter( context.getLayers(), false );
+                    byte[] data = leader.data();
+                    log.debug( "### CACHE: Coalesced. (" + data.length + " bytes) -- " + timer.elapsedTime() + "ms" );
+                    EncodedImageResponse response = new EncodedImageResponse( data, data.length );
+                    response.setLastModified( leader.lastModified() );
+                    if (leader.expires() != null) {
+                        response.setExpires( leader.expires() );
+                    }
+                    context.sendResponse( response );
+                    context.sendResponse( ProcessorResponse.EOP );
+                    return;
+                }
+                // timeout or leader failed -> render on our own
+                Cache304.statistics().incLayerCoalescedCounter( context.getLayers(), true );
+            }
+            
             ByteArrayOutputStream cacheBuf = new ByteArrayOutputStream( 128*1024 );
+            context.put( "flight", flight );
             context.put( "cacheBuf", cacheBuf );
             context.put( "request", request );
             context.put( "created", System.currentTimeMillis() );
-            context.sendRequest( request );
+            try {
+                context.sendRequest( request );
+            }
+            catch (Exception e) {
+                // no EOP will complete the flight; release waiting requests now
+                if (flight != null) {
+                    Cache304.inFlight().complete( flight, null, 0, null );
+                }
+                throw e;
+            }
         }
     }
 
@@ -194,6 +260,11 @@ public class ImageCacheProcessor
     throws Exception {
         // active?
         if (!active) {
+            // release requests waiting for the tile
+            Flight flight = (Flight)context.get( "flight" );
+            if (r == ProcessorResponse.EOP && flight != null) {
+                Cache304.inFlight().complete( flight, null, 0, null );
+            }
             context.sendResponse( r );
             return;            
         }
@@ -211,13 +282,27 @@ public class ImageCacheProcessor
         // EOP
         else if (r == ProcessorResponse.EOP) {
             GetMapRequest request = (GetMapRequest)context.get( "request" );
-            if (cacheBuf.size() > 0) {
-                Cache304.instance().put( 
-                        request, context.getLayers(), cacheBuf.toByteArray(),
-                        (Long)context.get( "created" ), props );
+            Flight flight = (Flight)context.get( "flight" );
+            Long created = (Long)context.get( "created" );
+            byte[] data = null;
+            Long expires = null;
+            try {
+                if (cacheBuf.size() > 0) {
+                    data = cacheBuf.toByteArray();
+                    CachedTile cachedTile = Cache304.instance().put( 
+                            request, context.getLayers(), data, created, props );
+                    expires = cachedTile != null ? cachedTile.expires.get() : null;
+                }
+                else {
+                    log.warn( "Empty response buf! -> not stored in Cache." );
+                }
             }
-            else {
-                log.warn( "Empty response buf! -> not stored in Cache." );
+            finally {
+                // release requests waiting for the tile; after put() so that
+                // subsequent requests find the tile in the cache
+                if (flight != null) {
+                    Cache304.inFlight().complete( flight, data, created, expires );
+                }
             }
 
             context.sendResponse( ProcessorResponse.EOP );
@@ -248,6 +333,12 @@ public class ImageCacheProcessor
         
         private Set<FeatureId>              modified = new HashSet();
         
+        /** The bounds of the {@link #modified} features. */
+        private ReferencedEnvelope          changed;
+        
+        /** The bounds of a change are not known; update the entire layer. */
+        private boolean                     changedAll;
+        
         
         public LayerListener( ILayer layer, ImageCacheProcessor processor ) {
             this.layer = layer;
@@ -296,8 +387,10 @@ public class ImageCacheProcessor
                 if (!proc.active) {
                     // XXX if we are not active and some entities are committed, 
                     // then this is probable a general save
-                    proc.updateAndActivate( true );
+                    proc.updateAndActivate( true, changedAll ? null : changed );
                     modified.clear();
+                    changed = null;
+                    changedAll = false;
 
                     // does not work properly for entity features
 //                    // XXX so we guess based on the committed fids ...
@@ -329,13 +422,23 @@ public class ImageCacheProcessor
             else {
                 // just activate update if changes have been dropped
                 if (ev.getType() == FeatureChangeEvent.Type.FLUSHED) {
-                    proc.updateAndActivate( false );
+                    proc.updateAndActivate( false, null );
                 }
                 // deactivate cache when features have been modified
                 // FIXME there is a race cond. with MapEditor.reloadLayer()
                 else {
                     proc.deactivate();
                     modified.addAll( ev.getFids() );
+                    
+                    if (ev.getBounds() == null) {
+                        changedAll = true;
+                    }
+                    else if (changed == null) {
+                        changed = new ReferencedEnvelope( ev.getBounds() );
+                    }
+                    else {
+                        changed.expandToInclude( ev.getBounds() );
+                    }
                 }
             }
         }                        
@@ -358,6 +461,7 @@ public class ImageCacheProcessor
                 // check this and don't disable in this case
                 if (!ev.getPropertyName().equals( ILayer.PROP_RERENDER )) {
                     proc.deactivate();
+                    changedAll = true;
                 }
             }
         }                        
@@ -113,6 +113,13 @@ public class ImageCacheProcessorConfig
         missField.setEnabled( false, fieldParent );
         missField.setStringValue( mbFormat.format( stats.layerMissCount( (ILayer)holder ) ) );
 
+        // coalesced count
+        fieldParent = getFieldEditorParent();
+        StringFieldEditor coalescedField = new StringFieldEditor( "coalesced", "Coalesced misses (timeouts)", fieldParent );
+        coalescedField.setEnabled( false, fieldParent );
+        coalescedField.setStringValue( mbFormat.format( stats.layerCoalescedCount( (ILayer)holder ) )
+                + " (" + mbFormat.format( stats.layerCoalesceTimeoutCount( (ILayer)holder ) ) + ")" );
+
         // layer size
         fieldParent = getFieldEditorParent();
         StringFieldEditor layerSizeField = new StringFieldEditor( "layerSize", "Layer cache size (MB)", fieldParent );
@@ -0,0 +1,152 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.image.cache304;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of the tiles that are currently rendered after a cache miss. The
+ * first request of a tile becomes the leader of the {@link Flight} and renders
+ * the tile. Concurrent requests of the same tile {@link #await(long, long) wait}
+ * for the result of the leader instead of rendering the tile again.
+ * <p/>
+ * The leader has to {@link #complete(Flight, byte[], long, Long) complete} its
+ * flight, also if rendering failed. Flights that are not completed are replaced
+ * by the next request after the timeout.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class InFlightTiles {
+
+    private static Log log = LogFactory.getLog( InFlightTiles.class );
+
+    private ConcurrentMap<Long,Flight>   flights = new ConcurrentHashMap( 64 );
+
+
+    /**
+     * Registers a new flight for the given tile key.
+     *
+     * @param key The key of the tile; see {@link Cache304#keyHash}.
+     * @param timeout The timeout in millis after which a flight is stale.
+     * @return The newly registered flight, or null if another request is
+     *         rendering this tile already.
+     */
+    public Flight lead( long key, long timeout ) {
+        Flight flight = new Flight( key );
+        Flight current = flights.putIfAbsent( key, flight );
+        if (current == null) {
+            return flight;
+        }
+        // replace stale flight of a leader that never completed
+        else if (current.started + timeout < flight.started
+                && flights.replace( key, current, flight )) {
+            log.warn( "Stale flight replaced: " + key );
+            current.complete( null, 0, null );
+            return flight;
+        }
+        return null;
+    }
+
+
+    /**
+     * Waits for the result of the flight of the given tile key.
+     *
+     * @return The completed flight, or null if there is no flight for this key
+     *         anymore, the timeout elapsed or the leader failed.
+     * @throws InterruptedException
+     */
+    public Flight await( long key, long timeout ) throws InterruptedException {
+        Flight flight = flights.get( key );
+        if (flight == null) {
+            return null;
+        }
+        long remaining = flight.started + timeout - System.currentTimeMillis();
+        if (remaining <= 0 || !flight.latch.await( remaining, TimeUnit.MILLISECONDS )) {
+            return null;
+        }
+        return flight.data != null ? flight : null;
+    }
+
+
+    /**
+     * Publishes the result of the given flight and releases the waiting
+     * requests.
+     *
+     * @param data The data of the tile, or null if rendering failed.
+     */
+    public void complete( Flight flight, byte[] data, long lastModified, Long expires ) {
+        flights.remove( flight.key, flight );
+        flight.complete( data, lastModified, expires );
+    }
+
+
+    public int size() {
+        return flights.size();
+    }
+
+
+    /**
+     * The rendering of a tile.
+     */
+    static class Flight {
+
+        final long              key;
+
+        final long              started = System.currentTimeMillis();
+
+        final CountDownLatch    latch = new CountDownLatch( 1 );
+
+        volatile byte[]         data;
+
+        volatile long           lastModified;
+
+        volatile Long           expires;
+
+
+        Flight( long key ) {
+            this.key = key;
+        }
+
+        /** Completes this flight; subsequent calls are ignored. */
+        synchronized void complete( byte[] _data, long _lastModified, Long _expires ) {
+            if (latch.getCount() == 0) {
+                return;
+            }
+            this.data = _data;
+            this.lastModified = _lastModified;
+            this.expires = _expires;
+            latch.countDown();
+        }
+
+        public byte[] data() {
+            return data;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public Long expires() {
+            return expires;
+        }
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.image.cache304;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only store of the tile data of {@link Cache304}. The tiles are packed
+ * into a few big segment files instead of one file per tile. The segments are
+ * memory mapped. New tiles are appended to the current segment; if it is full,
+ * then a new segment is started. Removing a tile just counts its bytes as
+ * garbage of the segment. Segments with more garbage than
+ * {@link #COMPACT_THRESHOLD} are compacted by {@link Cache304}: the live tiles
+ * are copied to the current segment and the old segment is
+ * {@link #retire(int) retired}.
+ * <p/>
+ * The live bytes of the segments are not persistent. They are counted via
+ * {@link #live(int, int, int)} when the index is rebuilt on startup.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class TileDataStore {
+
+    private static Log log = LogFactory.getLog( TileDataStore.class );
+
+    public static final int         SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Segments with less live bytes than this ratio are compacted. */
+    public static final double      COMPACT_THRESHOLD = 0.5;
+
+    /** Retired segments are kept readable for this time (millis). */
+    public static final long        RETIRE_DELAY = 60 * 1000;
+
+    private static final String     PREFIX = "segment-";
+
+    private static final String     SUFFIX = ".data";
+
+    private File                    dir;
+
+    private ConcurrentMap<Integer,Segment> segments = new ConcurrentHashMap();
+
+    private List<Segment>           retired = new ArrayList();
+
+    private ReentrantLock           writeLock = new ReentrantLock();
+
+    private Segment                 current;
+
+
+    /**
+     * Opens the segments in the given directory. Other files in the directory are
+     * ignored.
+     */
+    public TileDataStore( File dir ) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            String name = f.getName();
+            if (name.startsWith( PREFIX ) && name.endsWith( SUFFIX )) {
+                int id = Integer.parseInt( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) );
+                segments.put( id, new Segment( id, f, true ) );
+            }
+        }
+        log.info( "Segments: " + segments.size() );
+    }
+
+
+    public File getDir() {
+        return dir;
+    }
+
+
+    public void close() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        for (Segment segment : retired) {
+            segment.close();
+        }
+    }
+
+
+    /**
+     * Appends the given data to the current segment.
+     *
+     * @return The location of the data: segment id in the upper and offset in the
+     *         lower 32 bits.
+     */
+    public long write( byte[] data ) throws IOException {
+        if (data.length > SEGMENT_SIZE) {
+            throw new IOException( "Tile too big for segment: " + data.length );
+        }
+        Segment segment = null;
+        int offset = -1;
+        writeLock.lock();
+        try {
+            if (current == null || current.used + data.length > SEGMENT_SIZE) {
+                int id = 1;
+                for (Integer existing : segments.keySet()) {
+                    id = Math.max( id, existing + 1 );
+                }
+                for (Segment s : retired) {
+                    id = Math.max( id, s.id + 1 );
+                }
+                current = new Segment( id, new File( dir, PREFIX + id + SUFFIX ), false );
+                segments.put( id, current );
+                log.debug( "New segment: " + id );
+            }
+            segment = current;
+            offset = segment.used;
+            segment.used += data.length;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        // copy outside lock; the location is not published before we return
+        ByteBuffer buf = segment.buf.duplicate();
+        buf.position( offset );
+        buf.put( data );
+        segment.live.addAndGet( data.length );
+        return ((long)segment.id << 32) | offset;
+    }
+
+
+    /**
+     * Reads the data at the given location.
+     *
+     * @return The data, or null if the segment does not exist (anymore).
+     */
+    public byte[] read( int segmentId, int offset, int length ) {
+        Segment segment = segments.get( segmentId );
+        if (segment == null) {
+            segment = findRetired( segmentId );
+        }
+        if (segment == null || offset + length > segment.buf.capacity()) {
+            return null;
+        }
+        ByteBuffer buf = segment.buf.duplicate();
+        buf.position( offset );
+        byte[] result = new byte[ length ];
+        buf.get( result );
+        return result;
+    }
+
+
+    public boolean exists( int segmentId ) {
+        return segments.containsKey( segmentId ) || findRetired( segmentId ) != null;
+    }
+
+
+    /**
+     * Counts the given bytes as garbage of their segment.
+     */
+    public void free( int segmentId, int length ) {
+        Segment segment = segments.get( segmentId );
+        if (segment != null) {
+            segment.live.addAndGet( -length );
+        }
+    }
+
+
+    /**
+     * Counts the given bytes as live. Used when the index is rebuilt.
+     */
+    public void live( int segmentId, int offset, int length ) {
+        Segment segment = segments.get( segmentId );
+        if (segment != null) {
+            segment.live.addAndGet( length );
+            segment.used = Math.max( segment.used, offset + length );
+        }
+    }
+
+
+    /**
+     * Deletes the segments that have no live data after the index was rebuilt.
+     */
+    public void deleteEmptySegments() {
+        for (Iterator<Segment> it=segments.values().iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment != current && segment.live.get() <= 0) {
+                it.remove();
+                segment.close();
+                segment.file.delete();
+                log.info( "Empty segment deleted: " + segment.id );
+            }
+        }
+    }
+
+
+    /**
+     * The total number of live bytes in all segments.
+     */
+    public long liveSize() {
+        long result = 0;
+        for (Segment segment : segments.values()) {
+            result += segment.live.get();
+        }
+        return result;
+    }
+
+
+    /**
+     * The segments that are to be compacted. The current segment is never
+     * compacted.
+     */
+    public List<Integer> compactionCandidates() {
+        List<Integer> result = new ArrayList();
+        for (Segment segment : segments.values()) {
+            if (segment != current && segment.used > 0
+                    && segment.live.get() < segment.used * COMPACT_THRESHOLD) {
+                result.add( segment.id );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Removes the given segment after its live tiles have been moved. The segment
+     * stays readable for {@link #RETIRE_DELAY} for the readers that got the old
+     * location before.
+     */
+    public void retire( int segmentId ) {
+        Segment segment = segments.remove( segmentId );
+        if (segment != null) {
+            segment.retired = System.currentTimeMillis();
+            synchronized (retired) {
+                retired.add( segment );
+            }
+            log.debug( "Segment retired: " + segmentId );
+        }
+    }
+
+
+    /**
+     * Deletes the files of the retired segments.
+     */
+    public void purgeRetired() {
+        long deadline = System.currentTimeMillis() - RETIRE_DELAY;
+        synchronized (retired) {
+            for (Iterator<Segment> it=retired.iterator(); it.hasNext(); ) {
+                Segment segment = it.next();
+                if (segment.retired < deadline) {
+                    it.remove();
+                    segment.close();
+                    if (!segment.file.delete()) {
+                        log.warn( "Unable to delete segment: " + segment.file );
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Forces the data of the current segment to disk.
+     */
+    public void sync() {
+        Segment segment = current;
+        if (segment != null) {
+            segment.buf.force();
+        }
+    }
+
+
+    protected Segment findRetired( int segmentId ) {
+        synchronized (retired) {
+            for (Segment segment : retired) {
+                if (segment.id == segmentId) {
+                    return segment;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * A segment file.
+     */
+    static class Segment {
+
+        int                 id;
+
+        File                file;
+
+        RandomAccessFile    raf;
+
+        MappedByteBuffer    buf;
+
+        /** The write position; guarded by the write lock. */
+        volatile int        used;
+
+        AtomicLong          live = new AtomicLong();
+
+        long                retired;
+
+
+        Segment( int id, File file, boolean readOnly ) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile( file, readOnly ? "r" : "rw" );
+            this.buf = readOnly
+                    ? raf.getChannel().map( MapMode.READ_ONLY, 0, raf.length() )
+                    : raf.getChannel().map( MapMode.READ_WRITE, 0, SEGMENT_SIZE );
+        }
+
+        void close() {
+            try {
+                raf.close();
+            }
+            catch (IOException e) {
+                log.warn( "", e );
+            }
+        }
+    }
+
+}
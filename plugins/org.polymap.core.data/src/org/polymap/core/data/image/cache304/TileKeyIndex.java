@@ -0,0 +1,221 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.image.cache304;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the tiles of {@link Cache304}: maps the hash of the
+ * canonical key of a tile (layer, style, format, size and bounds) to the id of
+ * its record. The index is an open addressing hash table of primitive longs, so
+ * it takes 16 bytes per tile. It is not persistent and rebuilt on startup.
+ * <p/>
+ * Different keys might have the same hash. The caller has to check the
+ * properties of the found record.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class TileKeyIndex {
+
+    /** Marks an empty slot in {@link #ids}. */
+    private static final long       EMPTY = 0;
+
+    /** Marks a removed slot in {@link #ids}. */
+    private static final long       REMOVED = -1;
+
+    private static final float      LOAD_FACTOR = 0.5f;
+
+    /**
+     * Computes the hash of the canonical key of a tile.
+     */
+    public static long hash( String layerId, String style, String format,
+            int width, int height, double minx, double miny, double maxx, double maxy ) {
+        long h = 0xcbf29ce484222325L;
+        h = mix( h, layerId != null ? layerId.hashCode() : 0 );
+        h = mix( h, style != null ? style.hashCode() : 0 );
+        h = mix( h, format != null ? format.hashCode() : 0 );
+        h = mix( h, ((long)width << 32) | height );
+        h = mix( h, Double.doubleToLongBits( minx ) );
+        h = mix( h, Double.doubleToLongBits( miny ) );
+        h = mix( h, Double.doubleToLongBits( maxx ) );
+        h = mix( h, Double.doubleToLongBits( maxy ) );
+        // finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    public static long hash( CachedTile tile ) {
+        return hash( tile.layerId.get(), tile.style.get(), tile.format.get(),
+                tile.width.get(), tile.height.get(),
+                tile.minx.get(), tile.miny.get(), tile.maxx.get(), tile.maxy.get() );
+    }
+
+
+    private static long mix( long h, long value ) {
+        return (h ^ value) * 0x100000001b3L;
+    }
+
+
+    // instance *******************************************
+
+    private long[]                  keys;
+
+    private long[]                  ids;
+
+    /** The number of used slots, including removed. */
+    private int                     used;
+
+    private int                     size;
+
+    private ReentrantReadWriteLock  lock = new ReentrantReadWriteLock();
+
+
+    public TileKeyIndex( int initialCapacity ) {
+        int capacity = Integer.highestOneBit( Math.max( 16, (int)(initialCapacity / LOAD_FACTOR) ) - 1 ) << 1;
+        keys = new long[ capacity ];
+        ids = new long[ capacity ];
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the record id of the given key hash.
+     *
+     * @return The record id, or -1 if the key is not in the index.
+     */
+    public long get( long hash ) {
+        lock.readLock().lock();
+        try {
+            int mask = keys.length - 1;
+            for (int i=slot( hash, mask); ids[i] != EMPTY; i=(i+1) & mask) {
+                if (keys[i] == hash && ids[i] != REMOVED) {
+                    return ids[i];
+                }
+            }
+            return -1;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Maps the given key hash to the given record id. An existing mapping is
+     * replaced.
+     *
+     * @param id The record id; must be > 0.
+     */
+    public void put( long hash, long id ) {
+        assert id > 0 : "Record id must be > 0: " + id;
+        lock.writeLock().lock();
+        try {
+            int mask = keys.length - 1;
+            int free = -1;
+            int i = slot( hash, mask );
+            for (; ids[i] != EMPTY; i=(i+1) & mask) {
+                if (ids[i] == REMOVED) {
+                    free = free < 0 ? i : free;
+                }
+                else if (keys[i] == hash) {
+                    ids[i] = id;
+                    return;
+                }
+            }
+            if (free < 0) {
+                free = i;
+                used ++;
+            }
+            keys[free] = hash;
+            ids[free] = id;
+            size ++;
+
+            if (used > keys.length * LOAD_FACTOR) {
+                rehash( size > keys.length * LOAD_FACTOR / 2 ? keys.length * 2 : keys.length );
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes the mapping of the given key hash, if it maps to the given id.
+     */
+    public void remove( long hash, long id ) {
+        lock.writeLock().lock();
+        try {
+            int mask = keys.length - 1;
+            for (int i=slot( hash, mask); ids[i] != EMPTY; i=(i+1) & mask) {
+                if (keys[i] == hash && ids[i] == id) {
+                    ids[i] = REMOVED;
+                    size --;
+                    return;
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            keys = new long[ 16 ];
+            ids = new long[ 16 ];
+            used = size = 0;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    private void rehash( int capacity ) {
+        long[] oldKeys = keys, oldIds = ids;
+        keys = new long[ capacity ];
+        ids = new long[ capacity ];
+        int mask = capacity - 1;
+        for (int j=0; j<oldIds.length; j++) {
+            if (oldIds[j] != EMPTY && oldIds[j] != REMOVED) {
+                int i = slot( oldKeys[j], mask );
+                while (ids[i] != EMPTY) {
+                    i = (i+1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                ids[i] = oldIds[j];
+            }
+        }
+        used = size;
+    }
+
+
+    private static int slot( long hash, int mask ) {
+        return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+
+}
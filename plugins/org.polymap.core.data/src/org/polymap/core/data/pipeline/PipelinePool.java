@@ -0,0 +1,300 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.data.pipeline;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.data.feature.FeatureRenderProcessor2.LayerStyleListener;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.project.LayerUseCase;
+import org.polymap.core.project.PipelineProcessorConfiguration;
+
+/**
+ * Refcounted pool of {@link Pipeline}s. A pipeline is keyed by the layer, the
+ * usecase, the processor configurations of the layer, the style version of the
+ * layer and a scope. Clients {@link #acquire(ILayer, LayerUseCase, Object, Callable)}
+ * a pipeline and {@link #release(Pipeline)} it when done; the pipeline and the
+ * processors in it (including the {@link org.geotools.map.MapContext} of a
+ * {@link org.polymap.core.data.feature.FeatureRenderProcessor2}) are shared by
+ * all clients of the same key and are dropped when the last client releases.
+ * <p/>
+ * The style version is incremented by the {@link LayerStyleListener} when the
+ * style of a layer changes. The pipelines of the old version are removed from
+ * the pool; clients check {@link #isValid(Pipeline)} and acquire a new one.
+ * <p/>
+ * <b>Scope:</b> Pipelines reference the {@link ILayer} entities of the session
+ * that created them and the feature pipelines contain the edit buffer of this
+ * session. The MapContext of a render pipeline holds these feature pipelines
+ * too, so it cannot be shared with other sessions either. Pipelines used within
+ * a user session have to be scoped by the session: they are shared by the maps
+ * and servers of this session and survive the reload of a map, but every
+ * session builds its own pipelines. A null scope shares the pipeline in the
+ * entire JVM; this is only valid for pipelines that do not depend on a session.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class PipelinePool {
+
+    private static Log log = LogFactory.getLog( PipelinePool.class );
+
+    private static final PipelinePool   instance = new PipelinePool();
+
+
+    public static PipelinePool instance() {
+        return instance;
+    }
+
+
+    // instance *******************************************
+
+    private ConcurrentMap<PipelineKey,Entry>    entries = new ConcurrentHashMap();
+
+    /** The entries of the acquired pipelines; {@link Pipeline} does not override equals(). */
+    private ConcurrentMap<Pipeline,Entry>       acquired = new ConcurrentHashMap();
+
+    /** Layer id -> style version. */
+    private ConcurrentMap<String,AtomicInteger> styleVersions = new ConcurrentHashMap();
+
+
+    /**
+     * Gets the pipeline for the given key or creates a new one using the given
+     * factory. The caller is responsible of {@link #release(Pipeline) releasing}
+     * the pipeline.
+     *
+     * @param layer
+     * @param usecase
+     * @param scope The scope of the pipeline, usually the session; null specifies
+     *        a JVM wide pipeline.
+     * @param factory Creates a new pipeline for the given key.
+     * @return The shared pipeline.
+     */
+    public Pipeline acquire( ILayer layer, LayerUseCase usecase, Object scope, Callable<Pipeline> factory )
+    throws PipelineIncubationException {
+        PipelineKey key = new PipelineKey( layer, usecase, scope, styleVersion( layer.id() ).get() );
+        while (true) {
+            Entry entry = entries.get( key );
+            if (entry == null) {
+                synchronized (this) {
+                    entry = entries.get( key );
+                    if (entry == null) {
+                        entry = new Entry( key, layer, newPipeline( factory ) );
+                        entries.put( key, entry );
+                        acquired.put( entry.pipeline, entry );
+                        log.info( "PIPELINE created: " + key + ", pool: " + entries.size() );
+                    }
+                }
+            }
+            // entry might be released by another thread meanwhile
+            if (entry.acquire()) {
+                return entry.pipeline;
+            }
+        }
+    }
+
+
+    /**
+     * Releases a pipeline acquired via
+     * {@link #acquire(ILayer, LayerUseCase, Object, Callable)}.
+     */
+    public void release( Pipeline pipeline ) {
+        Entry entry = acquired.get( pipeline );
+        if (entry == null) {
+            throw new IllegalArgumentException( "Pipeline was not acquired from this pool: " + pipeline );
+        }
+        if (entry.release()) {
+            synchronized (this) {
+                entries.remove( entry.key, entry );
+                acquired.remove( pipeline );
+            }
+            entry.dispose();
+            log.debug( "PIPELINE released: " + entry.key + ", pool: " + entries.size() );
+        }
+    }
+
+
+    /**
+     * True if the given pipeline is still current. A pipeline becomes invalid if
+     * the style of its layer was changed.
+     */
+    public boolean isValid( Pipeline pipeline ) {
+        Entry entry = acquired.get( pipeline );
+        return entry != null && entries.get( entry.key ) == entry;
+    }
+
+
+    /**
+     * Increments the style version of the given layer and removes the pipelines
+     * of the previous version from the pool. Called by {@link LayerStyleListener}.
+     */
+    public void styleChanged( String layerId ) {
+        int version = styleVersion( layerId ).incrementAndGet();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (entry.key.layerId.equals( layerId ) && entry.key.styleVersion < version) {
+                    entries.remove( entry.key, entry );
+                }
+            }
+        }
+        log.debug( "Style changed: " + layerId + ", version: " + version );
+    }
+
+
+    protected AtomicInteger styleVersion( String layerId ) {
+        AtomicInteger result = styleVersions.get( layerId );
+        if (result == null) {
+            AtomicInteger newVersion = new AtomicInteger();
+            result = styleVersions.putIfAbsent( layerId, newVersion );
+            result = result != null ? result : newVersion;
+        }
+        return result;
+    }
+
+
+    protected Pipeline newPipeline( Callable<Pipeline> factory )
+    throws PipelineIncubationException {
+        try {
+            return factory.call();
+        }
+        catch (PipelineIncubationException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new PipelineIncubationException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * A pooled pipeline and its refcount.
+     */
+    static class Entry {
+
+        PipelineKey         key;
+
+        Pipeline            pipeline;
+
+        private ILayer      layer;
+
+        private LayerStyleListener listener;
+
+        /** The number of clients; -1 if released. */
+        private int         refs;
+
+
+        Entry( PipelineKey key, ILayer layer, Pipeline pipeline ) {
+            this.key = key;
+            this.layer = layer;
+            this.pipeline = pipeline;
+            // watch layer for style changes
+            this.listener = new LayerStyleListener( null );
+            layer.addPropertyChangeListener( listener );
+        }
+
+        synchronized boolean acquire() {
+            if (refs < 0) {
+                return false;
+            }
+            refs ++;
+            return true;
+        }
+
+        /** @return True if this was the last reference. */
+        synchronized boolean release() {
+            assert refs > 0;
+            if (--refs == 0) {
+                refs = -1;
+                return true;
+            }
+            return false;
+        }
+
+        void dispose() {
+            layer.removePropertyChangeListener( listener );
+        }
+    }
+
+
+    /**
+     * The key of a pooled pipeline.
+     */
+    static class PipelineKey {
+
+        String              layerId;
+
+        /** {@link LayerUseCase} does not override equals(). */
+        String              usecase;
+
+        Object              scope;
+
+        int                 styleVersion;
+
+        /** extension id -> config of the processors of the layer */
+        Map<String,Map>     configs = new TreeMap();
+
+
+        PipelineKey( ILayer layer, LayerUseCase usecase, Object scope, int styleVersion ) {
+            this.layerId = layer.id();
+            this.usecase = usecase.asString();
+            this.scope = scope;
+            this.styleVersion = styleVersion;
+            for (PipelineProcessorConfiguration config : layer.getProcessorConfigs()) {
+                configs.put( config.getExtensionId(), new TreeMap( config.getConfig() ) );
+            }
+        }
+
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + layerId.hashCode();
+            result = prime * result + usecase.hashCode();
+            result = prime * result + (scope != null ? scope.hashCode() : 0);
+            result = prime * result + styleVersion;
+            result = prime * result + configs.hashCode();
+            return result;
+        }
+
+        public boolean equals( Object obj ) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof PipelineKey) {
+                PipelineKey rhs = (PipelineKey)obj;
+                return layerId.equals( rhs.layerId )
+                        && usecase.equals( rhs.usecase )
+                        && (scope != null ? scope.equals( rhs.scope ) : rhs.scope == null)
+                        && styleVersion == rhs.styleVersion
+                        && configs.equals( rhs.configs );
+            }
+            return false;
+        }
+
+        public String toString() {
+            return "PipelineKey[layer=" + layerId + ", usecase=" + usecase + ", styleVersion=" + styleVersion
+                    + ", configs=" + configs.keySet() + "]";
+        }
+    }
+
+}
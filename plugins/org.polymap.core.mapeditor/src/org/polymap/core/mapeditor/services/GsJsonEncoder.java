@@ -9,6 +9,7 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 
 import org.geoserver.wfs.response.GeoJSONBuilder;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.NamedIdentifier;
@@ -78,17 +79,20 @@ class GsJsonEncoder
             List<AttributeDescriptor> types;
 
             int featureCount = 0;
-            for (Feature f : features) {
+            FeatureIterator<Feature> it = openFeatures();
+            while (it.hasNext()) {
+                Feature f = it.next();
                 // check byte limit
                 if (out.getCount() > maxBytes) {
                     log.warn( "    Byte limit reached. Features encoded: " + featureCount );
                     final int encoded = featureCount;
+                    final int size = featuresSize();
                     display.asyncExec( new Runnable() {
                         public void run() {
                             MessageDialog.openInformation(
                                     PolymapWorkbench.getShellToParentOn(),
                                     Messages.get( "GsJsonEncoder_toManyFeatures_title" ),
-                                    Messages.get( "GsJsonEncoder_toManyFeatures_msg", features.size(), encoded ) );
+                                    Messages.get( "GsJsonEncoder_toManyFeatures_msg", size, encoded ) );
                         }
                     } );
                     break;
@@ -159,6 +163,7 @@ class GsJsonEncoder
                 jsonWriter.endObject(); // end the feature
                 featureCount++;
             }
+            it.close();
 
             jsonWriter.endArray(); // end features
 
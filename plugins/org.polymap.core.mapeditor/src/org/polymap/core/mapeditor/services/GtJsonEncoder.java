@@ -13,8 +13,6 @@
  */
 package org.polymap.core.mapeditor.services;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Set;
 
@@ -40,6 +38,7 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geojson.GeoJSONUtil;
@@ -178,31 +177,37 @@ class GtJsonEncoder
             out.write( "[" );            
             try {
                 int featureCount = 0;
-                Iterator<Feature> it = new ArrayList( features ).iterator();
-                while (it.hasNext()) {
-                    // check byte limit
-                    if (byteCounter.getCount() > maxBytes) {
-                        log.warn( "Byte limit reached. Features encoded: " + featureCount );
-                        final int encoded = featureCount;
-                       
-                        display.asyncExec( new Runnable() {
-                            public void run() {
-                                MessageDialog.openInformation(
-                                        PolymapWorkbench.getShellToParentOn(),
-                                        Messages.get( "GsJsonEncoder_toManyFeatures_title" ),
-                                        Messages.get( "GsJsonEncoder_toManyFeatures_msg", features.size(), encoded ) );
-                            }
-                        } );
-                        break;
-                    }
-                    
-                    if (featureCount > 0) { 
-                        out.write( "," ); 
-                    }
+                FeatureIterator<Feature> it = openFeatures();
+                try {
+                    while (it.hasNext()) {
+                        // check byte limit
+                        if (byteCounter.getCount() > maxBytes) {
+                            log.warn( "Byte limit reached. Features encoded: " + featureCount );
+                            final int encoded = featureCount;
+                            final int size = featuresSize();
+                           
+                            display.asyncExec( new Runnable() {
+                                public void run() {
+                                    MessageDialog.openInformation(
+                                            PolymapWorkbench.getShellToParentOn(),
+                                            Messages.get( "GsJsonEncoder_toManyFeatures_title" ),
+                                            Messages.get( "GsJsonEncoder_toManyFeatures_msg", size, encoded ) );
+                                }
+                            } );
+                            break;
+                        }
+                        
+                        if (featureCount > 0) { 
+                            out.write( "," ); 
+                        }
 
-                    // encode feature
-                    fjson.writeFeature( transform( (SimpleFeature)it.next() ), out );
-                    featureCount++;
+                        // encode feature
+                        fjson.writeFeature( transform( (SimpleFeature)it.next() ), out );
+                        featureCount++;
+                    }
+                }
+                finally {
+                    it.close();
                 }
             }
             catch (IOException e) {
@@ -16,6 +16,8 @@ package org.polymap.core.mapeditor.services;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
 
 import java.io.IOException;
 
@@ -32,6 +34,7 @@ import org.apache.commons.logging.LogFactory;
 import org.eclipse.swt.widgets.Display;
 
 import org.polymap.core.runtime.Polymap;
+import org.polymap.core.runtime.SessionContext;
 
 /**
  * API: holds information about a 'layer' provided by a {@link SimpleJsonServer}.
@@ -46,8 +49,9 @@ public abstract class JsonEncoder {
 
     public static JsonEncoder newInstance() {
         // GsJsonEncoder might be slower than GtJsonEncoder but it handles
-        // transformation in all cases; see GtJsonEncoder for a list of issues
-        return new GtJsonEncoder();
+        // transformation in all cases; see GtJsonEncoder for a list of issues;
+        // StreamingJsonEncoder writes the same output as GtJsonEncoder, faster
+        return new StreamingJsonEncoder();
     }
     
     
@@ -57,6 +61,12 @@ public abstract class JsonEncoder {
     
     protected Collection<Feature>       features;
     
+    /** The lazily fetched features; set instead of {@link #features}. */
+    protected FeatureCollection         featureCollection;
+    
+    /** The session of the caller, in which {@link #featureCollection} is iterated. */
+    protected SessionContext            sessionContext;
+    
     protected CoordinateReferenceSystem mapCRS;
 
     protected int                       maxBytes = SimpleJsonServer.DEFAULT_MAX_BYTES;
@@ -67,6 +77,8 @@ public abstract class JsonEncoder {
 
     private boolean                     oneShot;
 
+    private double                      simplifyPixels;
+
     
     @SuppressWarnings("hiding")
     public void init( String name, Collection<Feature> features, CoordinateReferenceSystem mapCRS ) {
@@ -74,6 +86,7 @@ public abstract class JsonEncoder {
         this.features = features;
         this.mapCRS = mapCRS;
         this.display = Polymap.getSessionDisplay();
+        this.sessionContext = SessionContext.current();
     }
 
 
@@ -81,6 +94,54 @@ public abstract class JsonEncoder {
     throws IOException;
     
     
+    /**
+     * Encodes the current features with geometries simplified by the given
+     * tolerance. This default implementation does not simplify.
+     * 
+     * @param tolerance The simplification tolerance in map units, or 0.
+     */
+    public void encode( CountingOutputStream out, String encoding, double tolerance )
+    throws IOException {
+        encode( out, encoding );
+    }
+    
+    
+    /**
+     * Encodes the current features for a request of the client map with the given
+     * resolution. A {@link #setFeatures(FeatureCollection) FeatureCollection} is
+     * iterated inside the session context of the caller of setFeatures(), as the
+     * pipeline behind the collection depends on it.
+     * 
+     * @param resolution The resolution of the client map in map units per pixel,
+     *        or -1 if unknown.
+     */
+    public void encodeRequest( final CountingOutputStream out, final String encoding, double resolution )
+    throws IOException {
+        final double tolerance = getSimplifyTolerance( resolution );
+        if (featureCollection == null || sessionContext == null) {
+            encode( out, encoding, tolerance );
+            return;
+        }
+        try {
+            sessionContext.execute( new Callable() {
+                public Object call() throws Exception {
+                    encode( out, encoding, tolerance );
+                    return null;
+                }
+            });
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException( e );
+        }
+    }
+    
+    
     public int getDecimals() {
         return decimals;
     }
@@ -110,6 +171,29 @@ public abstract class JsonEncoder {
         this.maxBytes = maxBytes;
     }
 
+    /**
+     * The max distance of simplified geometries from the original, in pixels of
+     * the client map. Default: 0, no simplification.
+     */
+    public void setSimplifyPixels( double simplifyPixels ) {
+        this.simplifyPixels = simplifyPixels;
+    }
+
+    public double getSimplifyPixels() {
+        return simplifyPixels;
+    }
+
+    /**
+     * The simplification tolerance in map units for the given resolution of the
+     * client map, derived from {@link #setSimplifyPixels(double)}.
+     * 
+     * @param resolution The resolution in map units per pixel, or -1 if unknown.
+     * @return The tolerance, or 0 if geometries are not to be simplified.
+     */
+    public double getSimplifyTolerance( double resolution ) {
+        return simplifyPixels > 0 && resolution > 0 ? simplifyPixels * resolution : 0;
+    }
+
 
     /**
      * Update the features of this server. Subsequent request will receive the
@@ -121,6 +205,7 @@ public abstract class JsonEncoder {
      */
     public void setFeatures( Collection<Feature> features ) {
         log.info( "new features: " + features.size() );
+        this.featureCollection = null;
         this.features = new ArrayList( features.size() );
         for (Feature feature : features) {
             if (feature instanceof SimpleFeature) {
@@ -135,20 +220,50 @@ public abstract class JsonEncoder {
     
     /**
      * Update the features of this server. Subsequent request will receive
-     * the new features.
+     * the new features. The features are not copied; they are fetched from the
+     * given collection when a request is encoded, inside the session context
+     * of the caller of this method.
      */
     public void setFeatures( FeatureCollection fc ) {
-        log.info( "new features: " + features.size() );
-        this.features = new ArrayList( 1024 );
-        FeatureIterator it = fc.features();
-        try {
-            while (it.hasNext()) {
-                features.add( it.next() );
-            }
+        log.info( "new features: " + fc );
+        SessionContext current = SessionContext.current();
+        if (current != null) {
+            this.sessionContext = current;
         }
-        finally {
-            it.close();
+        this.features = null;
+        this.featureCollection = fc;
+    }
+
+
+    /**
+     * Opens an iterator over the current features. The features of a
+     * {@link FeatureCollection} are fetched lazily. The caller is responsible of
+     * closing the iterator.
+     */
+    protected FeatureIterator<Feature> openFeatures() {
+        if (featureCollection != null) {
+            return featureCollection.features();
         }
+        final Iterator<Feature> it = new ArrayList( features ).iterator();
+        return new FeatureIterator<Feature>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            public Feature next() {
+                return it.next();
+            }
+            public void close() {
+            }
+        };
+    }
+
+
+    /**
+     * The number of the current features. This might execute a query if the
+     * features are fetched lazily.
+     */
+    protected int featuresSize() {
+        return featureCollection != null ? featureCollection.size() : features.size();
     }
 
 
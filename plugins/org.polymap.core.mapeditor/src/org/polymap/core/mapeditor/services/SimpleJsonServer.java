@@ -189,7 +189,18 @@ public class SimpleJsonServer
         synchronized (layers) {
             layer = layers.get( layerName );
         }
-        layer.encode( out, response.getCharacterEncoding() );
+        // client map resolution for simplification
+        double resolution = -1;
+        String param = request.getParameter( "resolution" );
+        if (param != null) {
+            try {
+                resolution = Double.parseDouble( param );
+            }
+            catch (NumberFormatException e) {
+                log.warn( "Illegal resolution param: " + param );
+            }
+        }
+        layer.encodeRequest( out, response.getCharacterEncoding(), resolution );
         out.close();
         
         log.info( "    JSON bytes: " + out.getCount() + " (" + timer.elapsedTime() + "ms)" );
@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import javax.servlet.ServletException;
@@ -56,6 +57,7 @@ import org.polymap.core.data.pipeline.DefaultPipelineIncubator;
 import org.polymap.core.data.pipeline.IPipelineIncubator;
 import org.polymap.core.data.pipeline.Pipeline;
 import org.polymap.core.data.pipeline.PipelineIncubationException;
+import org.polymap.core.data.pipeline.PipelinePool;
 import org.polymap.core.data.pipeline.ProcessorRequest;
 import org.polymap.core.data.pipeline.ProcessorResponse;
 import org.polymap.core.data.pipeline.ResponseHandler;
@@ -94,8 +96,11 @@ public class SimpleWmsServer
 
     private IPipelineIncubator      pipelineIncubator = new DefaultPipelineIncubator();
 
-    /** Maps layer name into corresponding Pipeline. */
-    private Map<String,Pipeline>    pipelines = new HashMap();
+    /**
+     * Maps layer name into corresponding Pipeline. The pipelines are acquired from
+     * the {@link PipelinePool} and released in {@link #destroy()}.
+     */
+    private Map<String,Pipeline>    pipelines = new ConcurrentHashMap();
     
     private SessionContext          sessionContext;
     
@@ -112,7 +117,12 @@ public class SimpleWmsServer
     
     public void destroy() {
         super.destroy();
-        pipelines = null;
+        synchronized (pipelines) {
+            for (Pipeline pipeline : pipelines.values()) {
+                PipelinePool.instance().release( pipeline );
+            }
+            pipelines.clear();
+        }
     }
 
 
@@ -225,10 +235,11 @@ public class SimpleWmsServer
     
     
     /**
-     * Creates a new processing {@link Pipeline} for the given {@link ILayer}
-     * and usecase.
-     * <p>
-     * XXX The result needs to be cached
+     * Gets the processing {@link Pipeline} for the given {@link ILayer} from the
+     * {@link PipelinePool}. The pipelines are scoped by the session: they are
+     * shared with other servers of this session, but not with other sessions, as
+     * they contain the layers and the edit buffer of the session. A pipeline is
+     * acquired again if the style of the layer has been changed.
      * 
      * @throws IOException 
      * @throws PipelineIncubationException 
@@ -242,28 +253,40 @@ public class SimpleWmsServer
         }
         
         Pipeline result = pipelines.get( layerRenderKey );
-        
-        if (result == null) {
-            synchronized (pipelines) {
-                result = pipelines.get( layerRenderKey );
-                if (result == null) {
-                    ILayer layer = findLayer( layerRenderKey );
-                    IService service = findService( layer );
-                    try {
-                        result = pipelineIncubator.newPipeline( LayerUseCase.ENCODED_IMAGE, layer.getMap(), layer, service );
-                        if (result.length() == 0) {
-                            throw new ServiceException( "Unable to build processor pipeline for layer: " + layer );                        
+        if (result != null && PipelinePool.instance().isValid( result )) {
+            return result;
+        }
+        synchronized (pipelines) {
+            result = pipelines.get( layerRenderKey );
+            
+            // style changed
+            if (result != null && !PipelinePool.instance().isValid( result )) {
+                pipelines.remove( layerRenderKey );
+                PipelinePool.instance().release( result );
+                result = null;
+            }
+            if (result == null) {
+                final ILayer layer = findLayer( layerRenderKey );
+                final IService service = findService( layer );
+                try {
+                    result = PipelinePool.instance().acquire( layer, LayerUseCase.ENCODED_IMAGE, sessionContext, new Callable<Pipeline>() {
+                        public Pipeline call() throws Exception {
+                            Pipeline pipeline = pipelineIncubator.newPipeline( LayerUseCase.ENCODED_IMAGE, layer.getMap(), layer, service );
+                            if (pipeline.length() == 0) {
+                                throw new ServiceException( "Unable to build processor pipeline for layer: " + layer );                        
+                            }
+                            log.info( "PIPELINE build for: " + layer.getRenderKey() + " (layer: " + layer.getLabel() + ")" );
+                            return pipeline;
                         }
-                        log.info( "PIPELINE build for: " + layerRenderKey + " (layer: " + layer.getLabel() + ")" );
-                        pipelines.put( layerRenderKey, result );
-                    }
-                    catch (PipelineIncubationException e) {
-                        throw new RuntimeException( e );
-                    }
+                    });
+                    pipelines.put( layerRenderKey, result );
+                }
+                catch (PipelineIncubationException e) {
+                    throw new RuntimeException( e );
                 }
             }
+            return result;
         }
-        return result;
     }
 
 
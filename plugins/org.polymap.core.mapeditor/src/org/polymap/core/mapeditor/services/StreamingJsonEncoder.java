@@ -0,0 +1,386 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.mapeditor.services;
+
+import java.util.Set;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.NamedIdentifier;
+import org.opengis.feature.Feature;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.referencing.ReferenceIdentifier;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+import org.eclipse.jface.dialogs.MessageDialog;
+
+import org.polymap.core.mapeditor.Messages;
+import org.polymap.core.workbench.PolymapWorkbench;
+
+/**
+ * GeoJSON encoder that writes the features straight to the output. The features
+ * are fetched lazily from the {@link JsonEncoder#openFeatures() iterator}; the
+ * coordinates are written from the {@link CoordinateSequence} of the geometries
+ * with fixed decimals, without building intermediate JSON objects or strings.
+ * Just the default geometry and the id of the features are encoded, like
+ * {@link GtJsonEncoder} does.
+ * <p/>
+ * If a simplification tolerance is given, then the geometries are simplified
+ * after the transformation into the map CRS.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class StreamingJsonEncoder
+        extends JsonEncoder {
+
+    private static final Log log = LogFactory.getLog( StreamingJsonEncoder.class );
+
+    private static final long[]     POW10 = new long[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i=1; i<POW10.length; i++) {
+            POW10[i] = POW10[i-1] * 10;
+        }
+    }
+
+
+    // instance *******************************************
+
+    public void encode( CountingOutputStream out, String encoding )
+    throws IOException {
+        encode( out, encoding, 0 );
+    }
+
+
+    public void encode( CountingOutputStream out, String encoding, double tolerance )
+    throws IOException {
+        Writer writer = new BufferedWriter( new OutputStreamWriter( out, encoding ), 16*1024 );
+        new Encoder( writer, out, tolerance ).encode();
+        writer.flush();
+    }
+
+
+    /**
+     * The state of one encode run.
+     */
+    class Encoder {
+
+        private Writer                      out;
+
+        private CountingOutputStream        byteCounter;
+
+        private char[]                      buf = new char[32];
+
+        private long                        scale;
+
+        private double                      tolerance;
+
+        private CoordinateReferenceSystem   featureCRS;
+
+        private MathTransform               transform;
+
+
+        Encoder( Writer out, CountingOutputStream byteCounter, double tolerance ) {
+            this.out = out;
+            this.byteCounter = byteCounter;
+            this.tolerance = tolerance;
+            this.scale = POW10[Math.max( 0, Math.min( 15, decimals ) )];
+        }
+
+
+        void encode() throws IOException {
+            out.write( "{\"type\":\"FeatureCollection\",\"features\":[" );
+
+            int featureCount = 0;
+            FeatureIterator it = openFeatures();
+            try {
+                while (it.hasNext()) {
+                    // check byte limit
+                    if (byteCounter.getCount() > maxBytes) {
+                        log.warn( "Byte limit reached. Features encoded: " + featureCount );
+                        final int encoded = featureCount;
+                        final int size = featuresSize();
+                        display.asyncExec( new Runnable() {
+                            public void run() {
+                                MessageDialog.openInformation(
+                                        PolymapWorkbench.getShellToParentOn(),
+                                        Messages.get( "GsJsonEncoder_toManyFeatures_title" ),
+                                        Messages.get( "GsJsonEncoder_toManyFeatures_msg", size, encoded ) );
+                            }
+                        });
+                        break;
+                    }
+                    if (featureCount++ > 0) {
+                        out.write( ',' );
+                    }
+                    writeFeature( it.next() );
+                }
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new IOException( e );
+            }
+            finally {
+                it.close();
+            }
+            out.write( ']' );
+
+            writeCRS();
+            out.write( '}' );
+        }
+
+
+        void writeFeature( Feature feature ) throws Exception {
+            out.write( "{\"type\":\"Feature\",\"geometry\":" );
+            GeometryAttribute prop = feature.getDefaultGeometryProperty();
+            Geometry geom = prop != null ? (Geometry)prop.getValue() : null;
+            if (geom != null) {
+                geom = transform( geom, prop.getType().getCoordinateReferenceSystem() );
+                if (tolerance > 0) {
+                    geom = DouglasPeuckerSimplifier.simplify( geom, tolerance );
+                }
+                writeGeometry( geom );
+            }
+            else {
+                out.write( "null" );
+            }
+            out.write( ",\"properties\":{},\"id\":" );
+            writeString( feature.getIdentifier().getID() );
+            out.write( '}' );
+        }
+
+
+        Geometry transform( Geometry geom, CoordinateReferenceSystem crs ) throws Exception {
+            if (crs == null || mapCRS == null || crs.equals( mapCRS )) {
+                return geom;
+            }
+            if (crs != featureCRS) {
+                featureCRS = crs;
+                transform = CRS.findMathTransform( crs, mapCRS, true );
+            }
+            return JTS.transform( geom, transform );
+        }
+
+
+        void writeGeometry( Geometry geom ) throws IOException {
+            if (geom instanceof Point) {
+                out.write( "{\"type\":\"Point\",\"coordinates\":" );
+                writeCoordinate( ((Point)geom).getCoordinateSequence(), 0 );
+            }
+            else if (geom instanceof LineString) {
+                out.write( "{\"type\":\"LineString\",\"coordinates\":" );
+                writeCoordinates( ((LineString)geom).getCoordinateSequence() );
+            }
+            else if (geom instanceof Polygon) {
+                out.write( "{\"type\":\"Polygon\",\"coordinates\":" );
+                writePolygon( (Polygon)geom );
+            }
+            else if (geom instanceof MultiPoint) {
+                out.write( "{\"type\":\"MultiPoint\",\"coordinates\":[" );
+                for (int i=0; i<geom.getNumGeometries(); i++) {
+                    if (i > 0) { out.write( ',' ); }
+                    writeCoordinate( ((Point)geom.getGeometryN( i )).getCoordinateSequence(), 0 );
+                }
+                out.write( ']' );
+            }
+            else if (geom instanceof MultiLineString) {
+                out.write( "{\"type\":\"MultiLineString\",\"coordinates\":[" );
+                for (int i=0; i<geom.getNumGeometries(); i++) {
+                    if (i > 0) { out.write( ',' ); }
+                    writeCoordinates( ((LineString)geom.getGeometryN( i )).getCoordinateSequence() );
+                }
+                out.write( ']' );
+            }
+            else if (geom instanceof MultiPolygon) {
+                out.write( "{\"type\":\"MultiPolygon\",\"coordinates\":[" );
+                for (int i=0; i<geom.getNumGeometries(); i++) {
+                    if (i > 0) { out.write( ',' ); }
+                    writePolygon( (Polygon)geom.getGeometryN( i ) );
+                }
+                out.write( ']' );
+            }
+            else if (geom instanceof GeometryCollection) {
+                out.write( "{\"type\":\"GeometryCollection\",\"geometries\":[" );
+                for (int i=0; i<geom.getNumGeometries(); i++) {
+                    if (i > 0) { out.write( ',' ); }
+                    writeGeometry( geom.getGeometryN( i ) );
+                }
+                out.write( ']' );
+            }
+            else {
+                throw new IllegalArgumentException( "Unhandled geometry type: " + geom.getGeometryType() );
+            }
+            out.write( '}' );
+        }
+
+
+        void writePolygon( Polygon polygon ) throws IOException {
+            out.write( '[' );
+            writeCoordinates( polygon.getExteriorRing().getCoordinateSequence() );
+            for (int i=0; i<polygon.getNumInteriorRing(); i++) {
+                out.write( ',' );
+                writeCoordinates( polygon.getInteriorRingN( i ).getCoordinateSequence() );
+            }
+            out.write( ']' );
+        }
+
+
+        void writeCoordinates( CoordinateSequence seq ) throws IOException {
+            out.write( '[' );
+            for (int i=0; i<seq.size(); i++) {
+                if (i > 0) { out.write( ',' ); }
+                writeCoordinate( seq, i );
+            }
+            out.write( ']' );
+        }
+
+
+        void writeCoordinate( CoordinateSequence seq, int index ) throws IOException {
+            if (seq.size() == 0) {
+                out.write( "[]" );
+                return;
+            }
+            out.write( '[' );
+            writeNumber( seq.getX( index ) );
+            out.write( ',' );
+            writeNumber( seq.getY( index ) );
+            out.write( ']' );
+        }
+
+
+        /**
+         * Writes the given value with {@link JsonEncoder#decimals} decimals;
+         * trailing zeros are omitted.
+         */
+        void writeNumber( double value ) throws IOException {
+            double scaled = value * scale;
+            if (Double.isNaN( value ) || Double.isInfinite( value )) {
+                out.write( "null" );
+                return;
+            }
+            if (Math.abs( scaled ) >= Long.MAX_VALUE / 10) {
+                out.write( String.valueOf( value ) );
+                return;
+            }
+            long l = Math.round( scaled );
+            int pos = buf.length;
+            boolean negative = l < 0;
+            l = Math.abs( l );
+
+            // fraction, without trailing zeros
+            long s = scale;
+            boolean digits = false;
+            while (s > 1) {
+                int digit = (int)(l % 10);
+                l /= 10;
+                s /= 10;
+                if (digit != 0 || digits) {
+                    buf[--pos] = (char)('0' + digit);
+                    digits = true;
+                }
+            }
+            if (digits) {
+                buf[--pos] = '.';
+            }
+            // integer part
+            do {
+                buf[--pos] = (char)('0' + (int)(l % 10));
+                l /= 10;
+            } while (l > 0);
+
+            if (negative && (pos < buf.length - 1 || buf[pos] != '0')) {
+                buf[--pos] = '-';
+            }
+            out.write( buf, pos, buf.length - pos );
+        }
+
+
+        void writeString( String s ) throws IOException {
+            out.write( '"' );
+            for (int i=0; i<s.length(); i++) {
+                char c = s.charAt( i );
+                switch (c) {
+                    case '"': out.write( "\\\"" ); break;
+                    case '\\': out.write( "\\\\" ); break;
+                    case '\n': out.write( "\\n" ); break;
+                    case '\r': out.write( "\\r" ); break;
+                    case '\t': out.write( "\\t" ); break;
+                    default:
+                        if (c < 0x20) {
+                            out.write( "\\u00" );
+                            out.write( Character.forDigit( c >> 4, 16 ) );
+                            out.write( Character.forDigit( c & 0xf, 16 ) );
+                        }
+                        else {
+                            out.write( c );
+                        }
+                }
+            }
+            out.write( '"' );
+        }
+
+
+        void writeCRS() throws IOException {
+            if (mapCRS == null) {
+                return;
+            }
+            Set<ReferenceIdentifier> ids = mapCRS.getIdentifiers();
+            // WKT defined crs might not have identifiers at all
+            if (ids != null && ids.size() > 0) {
+                NamedIdentifier namedIdent = (NamedIdentifier)ids.iterator().next();
+                String csStr = namedIdent.getCodeSpace().toUpperCase();
+                if (csStr.equals( "EPSG" )) {
+                    out.write( ",\"crs\":{\"type\":" );
+                    writeString( csStr );
+                    out.write( ",\"properties\":{\"code\":" );
+                    writeString( namedIdent.getCode() );
+                    out.write( "}}" );
+                }
+                else {
+                    log.warn( "Non-EPSG code not supported: " + csStr );
+                }
+            }
+            else {
+                log.warn( "No CRS identifier for CRS: " + mapCRS );
+            }
+        }
+    }
+
+}
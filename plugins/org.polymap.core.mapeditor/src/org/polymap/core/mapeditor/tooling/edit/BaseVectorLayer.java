@@ -14,19 +14,15 @@
  */
 package org.polymap.core.mapeditor.tooling.edit;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Collections;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.GeoTools;
 import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
-import org.opengis.feature.Feature;
 import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.spatial.Intersects;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -93,12 +89,6 @@ public abstract class BaseVectorLayer
     
     private SelectFeatureControl    hoverControl;
     
-    /** The features that were last selected via {@link #selectFeatures(Collection)}. */
-    private List<Feature>           features = new ArrayList();
-    
-    /** Maximum number of features; default: limited by JSON/browser only. */
-    private int                     maxFeatures = Integer.MAX_VALUE;
-
     protected LayerFeatureSelectionManager fsm;
 
     private boolean                 active;
@@ -115,7 +105,7 @@ public abstract class BaseVectorLayer
         // jsonEncoder
         CoordinateReferenceSystem crs = mapEditor.getMap().getCRS();
         SimpleJsonServer jsonServer = SimpleJsonServer.instance();
-        JsonEncoder jsonEncoder = jsonServer.newLayer( features, crs, false );
+        JsonEncoder jsonEncoder = jsonServer.newLayer( Collections.EMPTY_LIST, crs, false );
         // 3 decimals should be enough even for lat/long values
         //jsonEncoder.setDecimals( 3 );
 
@@ -257,29 +247,13 @@ public abstract class BaseVectorLayer
     public synchronized void selectFeatures( FeatureCollection _features ) {
         // this method is called directly and from propertyChange(); the event might be
         // the result of the same action but arrives in different thread; so synchronize
-        // and check feature size before refreshing
-        List<Feature> previous = new ArrayList( features );
-        
-        // copy features
-        features.clear();
-        FeatureIterator it = _features.features();
-        try {
-            while (it.hasNext() && features.size() <= maxFeatures) {
-                features.add( it.next() );
-            }
-        }
-        finally {
-            it.close();
-        }
         
         // still initializing?
         if (vectorLayer != null) {
-            // avoid subsequent refresh after several calls of this method
-            vectorLayer.getJsonEncoder().setFeatures( features );
-            
-//            if (features.size() != previous.size()) {
-                vectorLayer.refresh();
-//            }
+            // the features are not copied; the encoder fetches them inside this
+            // session when the client requests them
+            vectorLayer.getJsonEncoder().setFeatures( _features );
+            vectorLayer.refresh();
         }
     }
 
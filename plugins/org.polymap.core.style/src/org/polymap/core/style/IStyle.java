@@ -45,6 +45,12 @@ public abstract class IStyle
 
     private IStyleInfo          info;
     
+    /** Cached result of {@link #fingerprint()}; null if not yet computed. */
+    private volatile Integer    fingerprint;
+    
+    /** Incremented by {@link #styleChanged()}. */
+    private volatile int        version;
+    
     
     public synchronized IStyleInfo getInfo( IProgressMonitor monitor ) {
         if (info == null) {
@@ -102,6 +108,46 @@ public abstract class IStyle
     public abstract String createSLD( IProgressMonitor monitor );
 
 
+    /**
+     * A fingerprint of the content of this style: the hash code of the
+     * {@link #createSLD(IProgressMonitor) SLD}. Used by the image cache to
+     * identify the tiles of a style. The result is cached until
+     * {@link #styleChanged()}.
+     */
+    public int fingerprint() {
+        Integer result = fingerprint;
+        if (result == null) {
+            int startVersion = version;
+            result = createSLD( new NullProgressMonitor() ).hashCode();
+            synchronized (this) {
+                // don't cache the result if the style was changed meanwhile
+                if (startVersion == version) {
+                    fingerprint = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    
+    /**
+     * The version of this style. Incremented by {@link #styleChanged()}.
+     */
+    public int version() {
+        return version;
+    }
+
+
+    /**
+     * Signals that the content of this style has changed. This increments the
+     * {@link #version()} and invalidates the {@link #fingerprint()}.
+     */
+    public synchronized void styleChanged() {
+        version ++;
+        fingerprint = null;
+    }
+
+
     /**
      * Attempts to store the style resource represented by this object to its
      * underlying catalog.
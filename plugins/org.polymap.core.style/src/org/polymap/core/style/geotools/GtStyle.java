@@ -121,6 +121,7 @@ public class GtStyle
     public void store( IProgressMonitor monitor )
     throws IOException, UnsupportedOperationException {
         this.sld = null;
+        styleChanged();
         catalog.storeSLD( id, createSLD( monitor ) );
     }
 
@@ -183,6 +184,7 @@ public class GtStyle
     public void setStyle( Style new_style ) {
     	this.style = new_style;
     	this.sld = null;
+    	styleChanged();
     }
 
 }
@@ -24,7 +24,15 @@ import org.polymap.core.runtime.Timer;
 import org.polymap.core.runtime.cache.Cache;
 import org.polymap.core.runtime.cache.CacheConfig;
 import org.polymap.core.runtime.cache.CacheLoader;
+import org.polymap.core.runtime.cache.CacheManager;
+import org.polymap.core.runtime.cache.CacheStats;
+import org.polymap.core.runtime.cache.ElementSerializers;
+import org.polymap.core.runtime.cache.GuavaCacheManager;
+import org.polymap.core.runtime.cache.LUCacheManager;
+import org.polymap.core.runtime.cache.OffHeapCacheManager;
 import org.polymap.core.runtime.cache.Soft2CacheManager;
+import org.polymap.core.runtime.cache.UnknownSizeCacheLoader;
+import org.polymap.core.runtime.cache.Weighers;
 
 /**
  * 
@@ -110,6 +118,65 @@ public class PerformanceCacheTest
     }
 
     
+    public void testMaxMemSize() throws Exception {
+        CacheManager[] managers = { LUCacheManager.instance(), Soft2CacheManager.instance(),
+                GuavaCacheManager.instance() };
+        for (CacheManager manager : managers) {
+            long maxMemSize = 1024 * 1024;
+            Cache<Object,byte[]> bounded = manager.newCache( CacheConfig.DEFAULT
+                    .weigher( Weighers.BYTES ).maxMemSize( maxMemSize ) );
+            CacheLoader<Object,byte[],Exception> loader = new UnknownSizeCacheLoader<Object,byte[],Exception>() {
+                public byte[] load( Object key ) throws Exception {
+                    return new byte[10*1024];
+                }
+            };
+            try {
+                for (int i=0; i<1000; i++) {
+                    bounded.get( i, loader );
+                }
+                CacheStats stats = bounded.stats();
+                log.println( manager.getClass().getSimpleName() + ": " + stats );
+                assertEquals( 1000, stats.misses() );
+                assertTrue( stats.evictions() > 0 );
+                assertTrue( stats.memSize() <= maxMemSize + Weighers.weighBytes( new byte[10*1024] ) );
+                assertTrue( bounded.size() < 1000 );
+            }
+            finally {
+                bounded.dispose();
+            }
+        }
+    }
+
+    
+    public void testOffHeapTier() throws Exception {
+        OffHeapCacheManager offHeap = new OffHeapCacheManager( 1024 * 1024, 64 * 1024, null );
+        Cache<Object,byte[]> tiered = offHeap.newTieredCache( 
+                LUCacheManager.instance().<Object,byte[]>newCache( CacheConfig.DEFAULT
+                        .weigher( Weighers.BYTES ).maxMemSize( 100 * 1024 ) ),
+                CacheConfig.DEFAULT.serializer( ElementSerializers.BYTES ) );
+        try {
+            for (int i=0; i<200; i++) {
+                byte[] value = new byte[10*1024];
+                value[0] = (byte)i;
+                assertNull( tiered.putIfAbsent( i, value ) );
+            }
+            // the last ones are restored from the off-heap tier
+            for (int i=150; i<200; i++) {
+                byte[] value = tiered.get( i );
+                assertNotNull( "key: " + i, value );
+                assertEquals( (byte)i, value[0] );
+            }
+            // the first ones are evicted from both tiers
+            assertNull( tiered.get( 0 ) );
+            assertTrue( offHeap.memSize() <= 1024 * 1024 );
+            log.println( "OffHeap: " + offHeap.memSize() / 1024 + "KB, " + tiered.stats() );
+        }
+        finally {
+            tiered.dispose();
+        }
+    }
+
+    
     class ByteArrayLoader 
             implements CacheLoader<Object,byte[],Exception> {
 
@@ -26,6 +26,9 @@ import org.apache.commons.logging.LogFactory;
 
 import org.polymap.core.runtime.Polymap;
 import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.Aggregates;
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
+import org.polymap.core.runtime.recordstore.IRecordFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordState;
 import org.polymap.core.runtime.recordstore.IRecordStore;
 import org.polymap.core.runtime.recordstore.RecordModel;
@@ -99,6 +102,119 @@ public abstract class AbstractRecordStoreTest
     }
 
     
+    public void testConcurrentUpdates() throws Exception {
+        final int loops = 100;
+        final int threads = 8;
+        
+        List<Future> results = new ArrayList();
+        for (int i=0; i<threads; i++) {
+            results.add( Polymap.executorService().submit( new Callable() {
+                public Object call() throws Exception {
+                    for (int j=0; j<loops; j++) {
+                        createRecords( 1 );
+                    }
+                    return new Object();
+                }
+            } ) );
+        }
+        for (Future result : results) {
+            result.get();
+        }
+        
+        SimpleQuery query = new SimpleQuery().setMaxResults( 1000000 );
+        TestRecord template = new TestRecord( query );
+        template.type.put( "2" );
+        assertEquals( loops*threads, store.find( query ).count() );
+    }
+
+    
+    public void testBigResult() throws Exception {
+        int loops = 2500;
+        createRecords( loops );
+        
+        SimpleQuery query = new SimpleQuery().setMaxResults( 1000000 );
+        TestRecord template = new TestRecord( query );
+        template.type.put( "2" );
+        
+        Timer timer = new Timer();
+        ResultSet result = store.find( query );
+        assertEquals( loops, result.count() );
+        assertNotNull( result.get( loops-1 ) );
+        assertNotNull( result.get( 0 ) );
+        int found = 0;
+        for (IRecordState record : result) {
+            assertNotNull( record.id() );
+            found ++;
+        }
+        assertEquals( loops, found );
+        // the exhausted iterator has closed the result set
+        try {
+            result.get( 0 );
+            fail( "ResultSet should be closed." );
+        }
+        catch (IllegalStateException e) {
+        }
+        log.info( "Records iterated: " + found + " in " + timer.elapsedTime() + "ms" );
+    }
+
+
+    public void testColumns() throws Exception {
+        int loops = 2500;
+        createRecords( loops );
+
+        SimpleQuery query = new SimpleQuery().setMaxResults( 1000000 );
+        TestRecord template = new TestRecord( query );
+        template.type.put( "2" );
+        query.setFieldSelector( new ColumnFieldSelector()
+                .add( TestRecord.TYPE.count.name(), Integer.class )
+                .add( TestRecord.TYPE.type.name(), String.class ) );
+
+        Timer timer = new Timer();
+        ResultSet result = store.find( query );
+        boolean[] counts = new boolean[ loops ];
+        for (IRecordState record : result) {
+            assertNotNull( record.id() );
+            assertEquals( "2", record.get( TestRecord.TYPE.type.name() ) );
+            counts[ (Integer)record.get( TestRecord.TYPE.count.name() ) ] = true;
+            assertNotNull( record.get( TestRecord.TYPE.payload.name() ) );
+        }
+        for (boolean found : counts) {
+            assertTrue( found );
+        }
+        log.info( "Columns iterated: " + result.count() + " in " + timer.elapsedTime() + "ms" );
+    }
+
+
+    public void testCountAndAggregate() throws Exception {
+        int loops = 2500;
+        createRecords( loops );
+
+        SimpleQuery query = new SimpleQuery().setMaxResults( 1000000 );
+        TestRecord template = new TestRecord( query );
+        template.type.put( "2" );
+
+        Timer timer = new Timer();
+        assertEquals( loops, store.count( query ) );
+
+        String key = TestRecord.TYPE.count.name();
+        ColumnFieldSelector columns = new ColumnFieldSelector().add( key, Integer.class );
+        Aggregates result = store.aggregate( query, columns );
+        assertEquals( loops, result.count() );
+        assertEquals( loops, result.get( key ).count() );
+        assertEquals( 0d, result.get( key ).min() );
+        assertEquals( loops-1d, result.get( key ).max() );
+        assertEquals( (loops-1d) * loops / 2, result.get( key ).sum() );
+        log.info( "Count/aggregate: " + result + " in " + timer.elapsedTime() + "ms" );
+
+        // both respect max results; the query is not modified
+        query.setMaxResults( 10 );
+        assertEquals( 10, store.count( query ) );
+        assertEquals( 10, store.aggregate( query, columns ).count() );
+        assertEquals( 10, query.getMaxResults() );
+        assertSame( IRecordFieldSelector.ALL, query.getFieldSelector() );
+    }
+
+
     protected void createRecords( int loops ) throws Exception {
         start = System.currentTimeMillis();
         final Timer timer = new Timer();
@@ -158,14 +274,13 @@ public abstract class AbstractRecordStoreTest
             if (result.count() > 0) {
                 found ++;
             }
+            result.close();
             
 //            TestRecord record = new TestRecord( result.get( 0 ) );
 //            dummy = record.type.get();
         }
         log.info( "Records queried: " + found + " in " + timer.elapsedTime() + "ms -> " 
                 + (double)timer.elapsedTime()/loops + "ms/loop" );
-        
-        store.close();
     }
 
     
@@ -18,7 +18,17 @@ import java.io.File;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
 
+import org.polymap.core.runtime.cache.Cache;
+import org.polymap.core.runtime.cache.CacheConfig;
+import org.polymap.core.runtime.cache.ElementSerializers;
+import org.polymap.core.runtime.cache.LUCacheManager;
+import org.polymap.core.runtime.cache.OffHeapCacheManager;
+import org.polymap.core.runtime.recordstore.IRecordState;
+import org.polymap.core.runtime.recordstore.IRecordStore.Updater;
+import org.polymap.core.runtime.recordstore.ResultSet;
+import org.polymap.core.runtime.recordstore.SimpleQuery;
 import org.polymap.core.runtime.recordstore.lucene.LuceneRecordStore;
 
 
@@ -49,7 +59,110 @@ public class LuceneRecordStoreTest
 
     protected void tearDown() throws Exception {
         log.info( "closing store..." );
-//        store.close();
+        store.close();
+    }
+
+
+    /**
+     * Records restored from the off-heap tier of the document cache have to be
+     * written back with all their index flags.
+     */
+    public void testUpdateThroughTieredCache() throws Exception {
+        Cache<Object,Document> heap = LUCacheManager.instance().newCache( CacheConfig.DEFAULT );
+        OffHeapCacheManager offHeapManager = new OffHeapCacheManager( 10*1024*1024, 1024*1024, null );
+        ((LuceneRecordStore)store).setDocumentCache( offHeapManager.newTieredCache( heap, 
+                CacheConfig.DEFAULT.serializer( ElementSerializers.DOCUMENT ) ) );
+
+        int loops = 10;
+        createRecords( loops );
+        SimpleQuery query = new SimpleQuery().setMaxResults( 100 );
+        TestRecord template = new TestRecord( query );
+        template.type.put( "2" );
+        ResultSet rs = store.find( query );
+        assertEquals( loops, rs.count() );
+        Object id = rs.get( 0 ).id();
+        rs.close();
+
+        for (int i=0; i<2; i++) {
+            // force the document to be restored from the off-heap tier
+            heap.clear();
+            IRecordState record = store.get( id );
+            assertNotNull( record );
+            
+            Updater tx = store.prepareUpdate();
+            tx.store( record );
+            tx.apply();
+            
+            // still found by id and by query; no duplicate
+            assertNotNull( store.get( id ) );
+            rs = store.find( query );
+            assertEquals( loops, rs.count() );
+            rs.close();
+        }
+    }
+
+
+    /**
+     * An updater with more than {@link LuceneRecordStore#MAX_BUFFERED_OPS}
+     * operations is atomic: not visible before apply, and reverted by discard.
+     */
+    public void testBigUpdater() throws Exception {
+        int loops = 10;
+        createRecords( loops );
+        int big = LuceneRecordStore.MAX_BUFFERED_OPS + 100;
+
+        // discard
+        Updater tx = bigUpdate( big );
+        createRecords( 1 );
+        assertEquals( 0, count( "3" ) );
+        tx.discard();
+        assertEquals( 0, count( "3" ) );
+        assertEquals( 0, count( "4" ) );
+        assertEquals( loops + 1, count( "2" ) );
+
+        // apply
+        tx = bigUpdate( big );
+        assertEquals( 0, count( "3" ) );
+        tx.apply();
+        assertEquals( big, count( "3" ) );
+        assertEquals( 1, count( "4" ) );
+        assertEquals( loops + 1 - 2, count( "2" ) );
+    }
+
+
+    /**
+     * Prepares an updater that adds the given number of records of type "3",
+     * changes one record of type "2" into "4", and removes another one.
+     */
+    protected Updater bigUpdate( int big ) throws Exception {
+        SimpleQuery query = new SimpleQuery().setMaxResults( 2 );
+        new TestRecord( query ).type.put( "2" );
+        ResultSet rs = store.find( query );
+        TestRecord modified = new TestRecord( rs.get( 0 ) );
+        IRecordState removed = rs.get( 1 );
+        rs.close();
+
+        Updater tx = store.prepareUpdate();
+        for (int i=0; i<big; i++) {
+            TestRecord record = new TestRecord( store.newRecord() );
+            record.type.put( "3" );
+            record.count.put( i );
+            tx.store( record.state() );
+            
+            if (i == 10) {
+                modified.type.put( "4" );
+                tx.store( modified.state() );
+                tx.remove( removed );
+            }
+        }
+        return tx;
+    }
+
+
+    protected int count( String type ) throws Exception {
+        SimpleQuery query = new SimpleQuery().setMaxResults( 1000000 );
+        new TestRecord( query ).type.put( type );
+        return store.count( query );
     }
     
 }
@@ -0,0 +1,121 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.test;
+
+import java.util.Random;
+
+import java.io.File;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.search.Query;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.IRecordState;
+import org.polymap.core.runtime.recordstore.IRecordStore.Updater;
+import org.polymap.core.runtime.recordstore.QueryExpression;
+import org.polymap.core.runtime.recordstore.SimpleQuery;
+import org.polymap.core.runtime.recordstore.lucene.GeometryValueCoder;
+import org.polymap.core.runtime.recordstore.lucene.LuceneRecordQuery;
+import org.polymap.core.runtime.recordstore.lucene.LuceneRecordStore;
+
+/**
+ * Compares the {@link GeometryValueCoder} BBOX query via numeric range queries with
+ * the query via the spatial index.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class SpatialIndexPerfTest
+        extends TestCase {
+
+    public static final int     NUM_GEOMS = 1000000;
+
+    public static final int     NUM_QUERIES = 1000;
+
+    PrintStream                 log = System.err;
+
+    LuceneRecordStore           store;
+
+    Random                      random = new Random( 0 );
+
+
+    protected void setUp() throws Exception {
+        store = new LuceneRecordStore( new File( "/tmp", "SpatialIndexPerfTest" ), false );
+        store.getValueCoders().addValueCoder( new GeometryValueCoder( true ) );
+
+        if (store.find( new SimpleQuery().setMaxResults( 1 ) ).count() == 0) {
+            Timer timer = new Timer();
+            GeometryFactory gf = new GeometryFactory();
+            Updater tx = store.prepareUpdate();
+            for (int i=0; i<NUM_GEOMS; i++) {
+                double x = random.nextDouble() * 100000, y = random.nextDouble() * 100000;
+                double w = random.nextDouble() * 100, h = random.nextDouble() * 100;
+                IRecordState record = store.newRecord();
+                record.put( "geom", gf.toGeometry( new Envelope( x, x+w, y, y+h ) ) );
+                tx.store( record );
+            }
+            tx.apply( true );
+            log.println( "Geometries created: " + NUM_GEOMS + " (" + timer.elapsedTime() + "ms)" );
+        }
+    }
+
+
+    protected void tearDown() throws Exception {
+        store.close();
+    }
+
+
+    public void testBBoxQuery() throws Exception {
+        GeometryValueCoder rangeCoder = new GeometryValueCoder( false );
+        GeometryValueCoder indexCoder = new GeometryValueCoder( true );
+
+        // warm up: builds the segment trees
+        query( indexCoder, new Coordinate( 0, 0 ), 1 );
+
+        long rangeTime = 0, indexTime = 0;
+        for (int i=0; i<NUM_QUERIES; i++) {
+            Coordinate origin = new Coordinate( random.nextDouble() * 100000, random.nextDouble() * 100000 );
+            double size = random.nextDouble() * 2000;
+
+            Timer timer = new Timer();
+            int rangeCount = query( rangeCoder, origin, size );
+            rangeTime += timer.elapsedTime();
+
+            timer.start();
+            int indexCount = query( indexCoder, origin, size );
+            indexTime += timer.elapsedTime();
+
+            assertEquals( rangeCount, indexCount );
+        }
+        log.println( "Queries: " + NUM_QUERIES
+                + ", numeric ranges: " + rangeTime + "ms (" + (double)rangeTime/NUM_QUERIES + "ms/query)"
+                + ", spatial index: " + indexTime + "ms (" + (double)indexTime/NUM_QUERIES + "ms/query)" );
+    }
+
+
+    protected int query( GeometryValueCoder coder, Coordinate origin, double size ) throws Exception {
+        Query query = coder.searchQuery( new QueryExpression.BBox( "geom",
+                origin.x, origin.y, origin.x+size, origin.y+size ) );
+        return new LuceneRecordQuery( store, query )
+                .setMaxResults( LuceneRecordQuery.BIG_BUT_NOT_MAX_VALUE )
+                .execute().count();
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.io.File;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.IRecordState;
+import org.polymap.core.runtime.recordstore.IRecordStore.Updater;
+import org.polymap.core.runtime.recordstore.ResultSet;
+import org.polymap.core.runtime.recordstore.SimpleQuery;
+import org.polymap.core.runtime.recordstore.lucene.LuceneRecordStore;
+import org.polymap.core.runtime.recordstore.lucene.NumericValueCoder;
+import org.polymap.core.runtime.recordstore.lucene.StringValueCoder;
+
+/**
+ * Decodes wide records concurrently and checks that the schema of the
+ * ValueCoders is persisted.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class ValueCodersPerfTest
+        extends TestCase {
+
+    public static final int     NUM_RECORDS = 2000;
+
+    public static final int     NUM_FIELDS = 200;
+
+    public static final int     NUM_THREADS = 4;
+
+    PrintStream                 log = System.err;
+
+    File                        dir = new File( "/tmp", "ValueCodersPerfTest" );
+
+    LuceneRecordStore           store;
+
+
+    protected void setUp() throws Exception {
+        FileUtils.deleteDirectory( dir );
+        store = new LuceneRecordStore( dir, true );
+
+        Updater tx = store.prepareUpdate();
+        for (int i=0; i<NUM_RECORDS; i++) {
+            IRecordState record = store.newRecord();
+            for (int j=0; j<NUM_FIELDS; j++) {
+                switch (j % 4) {
+                    case 0: record.put( "field" + j, "value" + i ); break;
+                    case 1: record.put( "field" + j, i * j ); break;
+                    case 2: record.put( "field" + j, (double)i / (j+1) ); break;
+                    case 3: record.put( "field" + j, new Date( i ) ); break;
+                }
+            }
+            tx.store( record );
+        }
+        tx.apply( true );
+    }
+
+
+    protected void tearDown() throws Exception {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+
+    public void testWideRecords() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool( NUM_THREADS );
+        try {
+            for (int round=0; round<3; round++) {
+                Timer timer = new Timer();
+                List<Future<Integer>> results = new ArrayList();
+                for (int t=0; t<NUM_THREADS; t++) {
+                    results.add( executor.submit( new Callable<Integer>() {
+                        public Integer call() throws Exception {
+                            int count = 0;
+                            ResultSet rs = store.find( new SimpleQuery().setMaxResults( NUM_RECORDS ) );
+                            for (IRecordState record : rs) {
+                                for (int j=0; j<NUM_FIELDS; j++) {
+                                    count += record.get( "field" + j ) != null ? 1 : 0;
+                                }
+                            }
+                            rs.close();
+                            return count;
+                        }
+                    }));
+                }
+                for (Future<Integer> result : results) {
+                    assertEquals( NUM_RECORDS * NUM_FIELDS, result.get().intValue() );
+                }
+                long decoded = (long)NUM_THREADS * NUM_RECORDS * NUM_FIELDS;
+                log.println( "Round " + round + ": " + decoded + " values decoded ("
+                        + timer.elapsedTime() + "ms, " + NUM_THREADS + " threads)" );
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+
+    public void testSchemaPersisted() throws Exception {
+        assertTrue( store.getValueCoders().coder( "field0" ) instanceof StringValueCoder );
+        store.close();
+
+        store = new LuceneRecordStore( dir, false );
+        assertTrue( store.getValueCoders().coder( "field0" ) instanceof StringValueCoder );
+        assertTrue( store.getValueCoders().coder( "field1" ) instanceof NumericValueCoder );
+        assertNull( store.getValueCoders().coder( "unknown" ) );
+    }
+
+}
@@ -91,25 +91,33 @@ public class RecordStoreUnitOfWork
     public <T extends Entity> Collection find( Class<T> entityClass ) {
         try {
             // XXX cache result for subsequent loadEntityState() (?)
-            final ResultSet results = store.find( 
-                    new SimpleQuery().eq( TYPE_KEY, entityClass.getName() ).setMaxResults( Integer.MAX_VALUE ) );
+            final SimpleQuery query = new SimpleQuery().eq( TYPE_KEY, entityClass.getName() ).setMaxResults( Integer.MAX_VALUE );
             
+            // every iterator executes the query; the ResultSet is closed
+            // when the iterator is exhausted
             return new AbstractCollection() {
 
                 public Iterator iterator() {
-                    return Iterators.transform( results.iterator(), new Function<IRecordState,Object>() {
-                        public Object apply( IRecordState input ) {
-                            return input.id();
-                        }
-                    });
+                    try {
+                        ResultSet results = store.find( query );
+                        return Iterators.transform( results.iterator(), new Function<IRecordState,Object>() {
+                            public Object apply( IRecordState input ) {
+                                return input.id();
+                            }
+                        });
+                    }
+                    catch (Exception e) {
+                        throw new ModelRuntimeException( e );
+                    }
                 }
 
                 public int size() {
-                    return results.count();
-                }
-
-                protected void finalize() throws Throwable {
-                    results.close();
+                    try {
+                        return store.count( query );
+                    }
+                    catch (Exception e) {
+                        throw new ModelRuntimeException( e );
+                    }
                 }
             };
         }
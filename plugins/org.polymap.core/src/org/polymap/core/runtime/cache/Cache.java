@@ -105,6 +105,12 @@ public interface Cache<K,V> {
 
     public Iterable<V> values();
 
+    /**
+     * The statistics of this cache: hits, misses, evictions and the memory size of
+     * the elements.
+     */
+    public CacheStats stats();
+
 //    public boolean addEvictionListener( CacheEvictionListener listener );
 //
 //    public boolean removeEvictionListener( CacheEvictionListener listener );
@@ -33,6 +33,8 @@ public class CacheConfig {
      * <li>{@link #elementMemSize}: 10Kb
      * <li>{@link #concurrencyLevel}: 2 x available processors
      * <li>{@link #initSize}: 1024
+     * <li>{@link #weigher}: {@link Weighers#DEFAULT}
+     * <li>{@link #maxMemSize}: unbounded
      * </ul>
      */
     public static final CacheConfig DEFAULT = new CacheConfig();
@@ -46,6 +48,13 @@ public class CacheConfig {
     
     protected int                   initSize = DEFAULT_INIT_SIZE;
 
+    protected Weigher               weigher = Weighers.DEFAULT;
+    
+    /** The max sum of the sizes of the elements of the cache; -1: unbounded. */
+    protected long                  maxMemSize = -1;
+    
+    protected ElementSerializer     serializer;
+
     
     /**
      * Creates a new cache config with default value.
@@ -57,7 +66,9 @@ public class CacheConfig {
         this.concurrencyLevel = other.concurrencyLevel;
         this.initSize = other.initSize;
         this.elementMemSize = other.elementMemSize;
-        
+        this.weigher = other.weigher;
+        this.maxMemSize = other.maxMemSize;
+        this.serializer = other.serializer;
     }
     
     public CacheConfig defaultElementSize( int value ) {
@@ -78,4 +89,63 @@ public class CacheConfig {
         return result;
     }
 
+    /**
+     * Sets the {@link Weigher} that estimates the size of elements whose size is
+     * not given by the client code. Defaults to {@link Weighers#DEFAULT}; null
+     * specifies that the {@link #defaultElementSize(int) default element size} is
+     * used for all such elements.
+     * 
+     * @see Weighers
+     */
+    public CacheConfig weigher( Weigher value ) {
+        CacheConfig result = new CacheConfig( this );
+        result.weigher = value;
+        return result;
+    }
+
+    /**
+     * Bounds the sum of the sizes of the elements of the cache. If the bound is
+     * exceeded then the cache evicts elements until 90% of the bound is reached.
+     * 
+     * @param value The max size in bytes, or -1 for unbounded.
+     */
+    public CacheConfig maxMemSize( long value ) {
+        assert value == -1 || value > 0;
+        CacheConfig result = new CacheConfig( this );
+        result.maxMemSize = value;
+        return result;
+    }
+
+    /**
+     * Sets the {@link ElementSerializer} of caches that store their elements
+     * outside the Java heap.
+     * 
+     * @see OffHeapCacheManager
+     * @see ElementSerializers
+     */
+    public CacheConfig serializer( ElementSerializer value ) {
+        CacheConfig result = new CacheConfig( this );
+        result.serializer = value;
+        return result;
+    }
+
+    
+    /**
+     * The size of the given element: the given size if known, otherwise the
+     * size estimated by the {@link #weigher}, or the default
+     * {@link #elementMemSize}.
+     */
+    int elementSize( Object key, Object value, int memSize ) {
+        if (memSize > 0) {
+            return memSize;
+        }
+        if (weigher != null) {
+            int result = weigher.weigh( key, value );
+            if (result > 0) {
+                return result;
+            }
+        }
+        return elementMemSize;
+    }
+
 }
@@ -27,7 +27,9 @@ public interface CacheLoader<K,V,E extends Throwable> {
     /**
      * Returns the size of the last element returned by {@link #load(Object)}.
      * 
-     * @return The size in Bytes of the element previously created by this loader.
+     * @return The size in Bytes of the element previously created by this loader,
+     *         or {@link Cache#ELEMENT_SIZE_UNKNOW} if the {@link Weigher} of the
+     *         cache should estimate the size.
      * @throws Exception
      */
     public int size() throws E;
@@ -29,6 +29,31 @@ public abstract class CacheManager {
     
     // instance *******************************************
 
+    /** The max sum of the sizes of the elements of all caches; -1: unbounded. */
+    protected volatile long         maxMemSize = -1;
+    
+    
+    /**
+     * Bounds the sum of the sizes of the elements of all caches of this manager.
+     * If the bound is exceeded then elements of all caches are evicted until 90%
+     * of the bound is reached. The bound of one cache is set via
+     * {@link CacheConfig#maxMemSize(long)}.
+     *
+     * @param maxMemSize The max size in bytes, or -1 for unbounded.
+     * @return this
+     */
+    public CacheManager setMaxMemSize( long maxMemSize ) {
+        assert maxMemSize == -1 || maxMemSize > 0;
+        this.maxMemSize = maxMemSize;
+        return this;
+    }
+
+
+    public long getMaxMemSize() {
+        return maxMemSize;
+    }
+
+
     /**
      * Creates a new cache instance.
      * 
@@ -0,0 +1,122 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of one {@link Cache}: hits, misses, evictions and the memory size of
+ * the cached elements as estimated by the {@link Weigher} or given by the client
+ * code.
+ * <p/>
+ * The counters are updated by the cache without synchronization between them, so
+ * the values of a snapshot may be slightly inconsistent.
+ *
+ * @see Cache#stats()
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class CacheStats {
+
+    private String          name;
+
+    private AtomicLong      hits = new AtomicLong();
+
+    private AtomicLong      misses = new AtomicLong();
+
+    private AtomicLong      evictions = new AtomicLong();
+
+    private AtomicLong      evictedMemSize = new AtomicLong();
+
+    private AtomicLong      memSize = new AtomicLong();
+
+
+    CacheStats( String name ) {
+        this.name = name;
+    }
+
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+
+    void added( int elementSize ) {
+        memSize.addAndGet( elementSize );
+    }
+
+
+    void removed( int elementSize ) {
+        memSize.addAndGet( -elementSize );
+    }
+
+
+    void evicted( int elementSize ) {
+        evictions.incrementAndGet();
+        evictedMemSize.addAndGet( elementSize );
+    }
+
+
+    /** The name of the cache. */
+    public String name() {
+        return name;
+    }
+
+    /** The number of lookups that found an element. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** The number of lookups that did not found an element. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** The ratio of hits to all lookups, or 1 if there was no lookup yet. */
+    public double hitRate() {
+        long _hits = hits(), lookups = _hits + misses();
+        return lookups > 0 ? (double)_hits / lookups : 1;
+    }
+
+    /** The number of elements removed by the cache itself. */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /** The sum of the sizes of the evicted elements. */
+    public long evictedMemSize() {
+        return evictedMemSize.get();
+    }
+
+    /** The sum of the sizes of the elements currently in the cache. */
+    public long memSize() {
+        return memSize.get();
+    }
+
+    public String toString() {
+        return "CacheStats[" + name
+                + ": hits=" + hits()
+                + ", misses=" + misses()
+                + ", hitRate=" + Math.round( hitRate() * 100 ) + "%"
+                + ", evictions=" + evictions()
+                + ", evictedMemSize=" + evictedMemSize() / 1024 + "KB"
+                + ", memSize=" + memSize() / 1024 + "KB]";
+    }
+
+}
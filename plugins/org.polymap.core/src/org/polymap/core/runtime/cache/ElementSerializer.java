@@ -0,0 +1,38 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Converts cache elements into bytes and back. Used by caches that store their
+ * elements outside the Java heap. A serializer is set via
+ * {@link CacheConfig#serializer(ElementSerializer)}.
+ * <p/>
+ * Implementations must be thread-safe.
+ *
+ * @see ElementSerializers
+ * @see OffHeapCacheManager
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public interface ElementSerializer<V> {
+
+    public void write( V value, DataOutputStream out ) throws IOException;
+
+    public V read( DataInputStream in ) throws IOException;
+
+}
@@ -0,0 +1,208 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+
+/**
+ * Built-in {@link ElementSerializer}s.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public final class ElementSerializers {
+
+    /** Serializes byte[], for example image tiles. */
+    public static final ElementSerializer<byte[]> BYTES = new ElementSerializer<byte[]>() {
+        public void write( byte[] value, DataOutputStream out ) throws IOException {
+            out.writeInt( value.length );
+            out.write( value );
+        }
+        public byte[] read( DataInputStream in ) throws IOException {
+            byte[] result = new byte[ in.readInt() ];
+            in.readFully( result );
+            return result;
+        }
+    };
+
+    /**
+     * Serializes the stored fields of Lucene {@link Document}s, as loaded from an
+     * index. The index flags of the fields (indexed, tokenized, norms, index
+     * options, precision step of {@link NumericField}s) are kept; so a restored
+     * document can be written back to the index just like the loaded document.
+     */
+    public static final ElementSerializer<Document> DOCUMENT = new ElementSerializer<Document>() {
+        private static final byte   STRING = 0;
+        private static final byte   BINARY = 1;
+        private static final byte   INT = 2;
+        private static final byte   LONG = 3;
+        private static final byte   FLOAT = 4;
+        private static final byte   DOUBLE = 5;
+        
+        private static final int    INDEXED = 1;
+        private static final int    TOKENIZED = 2;
+        private static final int    OMIT_NORMS = 4;
+
+        public void write( Document doc, DataOutputStream out ) throws IOException {
+            out.writeInt( doc.getFields().size() );
+            for (Fieldable field : doc.getFields()) {
+                out.writeUTF( field.name() );
+                out.writeByte( (field.isIndexed() ? INDEXED : 0)
+                        | (field.isTokenized() ? TOKENIZED : 0)
+                        | (field.getOmitNorms() ? OMIT_NORMS : 0) );
+                out.writeByte( field.getIndexOptions().ordinal() );
+                if (field instanceof NumericField) {
+                    int precisionStep = ((NumericField)field).getPrecisionStep();
+                    Number value = ((NumericField)field).getNumericValue();
+                    if (value instanceof Integer) {
+                        out.writeByte( INT );
+                        out.writeInt( precisionStep );
+                        out.writeInt( value.intValue() );
+                    }
+                    else if (value instanceof Long) {
+                        out.writeByte( LONG );
+                        out.writeInt( precisionStep );
+                        out.writeLong( value.longValue() );
+                    }
+                    else if (value instanceof Float) {
+                        out.writeByte( FLOAT );
+                        out.writeInt( precisionStep );
+                        out.writeFloat( value.floatValue() );
+                    }
+                    else {
+                        out.writeByte( DOUBLE );
+                        out.writeInt( precisionStep );
+                        out.writeDouble( value.doubleValue() );
+                    }
+                }
+                else if (field.isBinary()) {
+                    out.writeByte( BINARY );
+                    out.writeInt( field.getBinaryLength() );
+                    out.write( field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength() );
+                }
+                else {
+                    // writeUTF() is limited to 64K
+                    String value = field.stringValue();
+                    out.writeByte( STRING );
+                    out.writeInt( value.length() );
+                    out.writeChars( value );
+                }
+            }
+        }
+
+        public Document read( DataInputStream in ) throws IOException {
+            Document result = new Document();
+            for (int i=in.readInt(); i>0; i--) {
+                String name = in.readUTF();
+                int flags = in.readByte();
+                boolean indexed = (flags & INDEXED) != 0;
+                IndexOptions indexOptions = IndexOptions.values()[ in.readByte() ];
+                byte type = in.readByte();
+                // NumericField sets its norms and index options itself
+                switch (type) {
+                    case INT: result.add( new NumericField( name, in.readInt(), Store.YES, indexed ).setIntValue( in.readInt() ) ); break;
+                    case LONG: result.add( new NumericField( name, in.readInt(), Store.YES, indexed ).setLongValue( in.readLong() ) ); break;
+                    case FLOAT: result.add( new NumericField( name, in.readInt(), Store.YES, indexed ).setFloatValue( in.readFloat() ) ); break;
+                    case DOUBLE: result.add( new NumericField( name, in.readInt(), Store.YES, indexed ).setDoubleValue( in.readDouble() ) ); break;
+                    case BINARY: {
+                        byte[] value = new byte[ in.readInt() ];
+                        in.readFully( value );
+                        result.add( new Field( name, value ) );
+                        break;
+                    }
+                    case STRING: {
+                        char[] value = new char[ in.readInt() ];
+                        for (int c=0; c<value.length; c++) {
+                            value[c] = in.readChar();
+                        }
+                        Field field = new Field( name, new String( value ), Store.YES, 
+                                Index.toIndex( indexed, (flags & TOKENIZED) != 0, (flags & OMIT_NORMS) != 0 ) );
+                        if (indexed) {
+                            field.setIndexOptions( indexOptions );
+                        }
+                        result.add( field );
+                        break;
+                    }
+                    default: throw new IOException( "Unknown field type: " + type );
+                }
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Uses Java serialization. Classes are resolved via the context class loader
+     * of the current thread first.
+     */
+    public static final ElementSerializer<Object> JAVA = new ElementSerializer<Object>() {
+        public void write( Object value, DataOutputStream out ) throws IOException {
+            ObjectOutputStream oout = new ObjectOutputStream( out );
+            oout.writeObject( value );
+            oout.flush();
+        }
+        public Object read( DataInputStream in ) throws IOException {
+            try {
+                return new ContextObjectInputStream( in ).readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException( e );
+            }
+        }
+    };
+
+
+    /**
+     * Resolves classes via the context class loader; the default class loader of
+     * {@link ObjectInputStream} does not see the classes of other bundles.
+     */
+    static class ContextObjectInputStream
+            extends ObjectInputStream {
+
+        public ContextObjectInputStream( InputStream in ) throws IOException {
+            super( in );
+        }
+
+        protected Class<?> resolveClass( ObjectStreamClass desc ) throws IOException, ClassNotFoundException {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl != null) {
+                try {
+                    return Class.forName( desc.getName(), false, cl );
+                }
+                catch (ClassNotFoundException e) {
+                    // fall back to default
+                }
+            }
+            return super.resolveClass( desc );
+        }
+    }
+
+
+    private ElementSerializers() {
+    }
+
+}
@@ -14,7 +14,11 @@
  */
 package org.polymap.core.runtime.cache;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +33,12 @@ import org.polymap.core.runtime.cache.GuavaCacheManager.CacheEntry;
 /**
  * Experimental cache implementation backed by Guava's cache implementation
  * {@link CacheBuilder}.
+ * <p/>
+ * The Guava version we use has no weighers, so the sizes of the entries are kept
+ * in a separate map. If {@link CacheConfig#maxMemSize(long)} is exceeded then
+ * entries are evicted in the order of the underlying map. The sizes are an
+ * approximation: an entry that is re-added while the removal of its predecessor
+ * is still being processed may be accounted with the wrong size.
  * 
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -52,16 +62,29 @@ final class GuavaCache<K,V>
     
     private ListenerList<CacheEvictionListener>     listeners;
     
+    private CacheStats                              stats;
+    
+    /** The sizes of the entries. */
+    private ConcurrentMap<K,Integer>                sizes;
+    
+    private ReentrantLock                           evictLock = new ReentrantLock();
+    
 
     GuavaCache( GuavaCacheManager manager, String name, CacheConfig config ) {
         this.manager = manager;
         this.name = name != null ? name : String.valueOf( hashCode() );
         this.config = config;
+        this.stats = new CacheStats( this.name );
+        this.sizes = new ConcurrentHashMap( config.initSize, 0.75f, config.concurrencyLevel );
         
         loaderWapper = new com.google.common.cache.CacheLoader<K,V>() {
             public V load( K key ) throws Exception {
                 try {
+                    stats.miss();
                     V result = currentLoader.load( key );
+                    if (result != null) {
+                        added( key, config.elementSize( key, result, currentLoader.size() ) );
+                    }
                     GuavaCache.this.manager.event( CacheEntry.ADDED, GuavaCache.this, key, result );
                     return result;
                 }
@@ -76,6 +99,14 @@ final class GuavaCache<K,V>
         
         RemovalListener<K,V> removalListener = new RemovalListener<K,V>() {
             public void onRemoval( RemovalNotification<K,V> notification ) {
+                Integer size = sizes.remove( notification.getKey() );
+                if (size != null) {
+                    stats.removed( size );
+                    GuavaCache.this.manager.removed( size );
+                    if (notification.wasEvicted()) {
+                        stats.evicted( size );
+                    }
+                }
                 // fire event
                 if (notification.wasEvicted() && listeners != null) {
                     for (CacheEvictionListener l : listeners.getListeners()) {
@@ -121,6 +152,12 @@ final class GuavaCache<K,V>
         assert cache != null : "Cache is closed.";
 
         V result = cache.asMap().get( key );
+        if (result != null) {
+            stats.hit();
+        }
+        else {
+            stats.miss();
+        }
         
         manager.event( CacheEntry.ACCESSED, this, key, result );
         
@@ -132,6 +169,13 @@ final class GuavaCache<K,V>
         assert key != null : "Null keys are not allowed.";
         assert cache != null : "Cache is closed.";
         
+        V found = cache.asMap().get( key );
+        if (found != null) {
+            stats.hit();
+            manager.event( CacheEntry.ACCESSED, this, key, found );
+            return found;
+        }
+        
         assert currentLoader == null || currentLoader == loader;
         try {
             currentLoader = loader;
@@ -152,8 +196,7 @@ final class GuavaCache<K,V>
 
     
     public V putIfAbsent( K key, V value ) throws CacheException {
-        manager.event( CacheEntry.ADDED, this, key, value );
-        return putIfAbsent( key, value, config.elementMemSize );
+        return putIfAbsent( key, value, config.elementSize( key, value, ELEMENT_SIZE_UNKNOW ) );
     }
     
     
@@ -163,7 +206,62 @@ final class GuavaCache<K,V>
         assert elementMemSize > 0;
 
         manager.event( CacheEntry.ADDED, this, key, value );
-        return cache.asMap().putIfAbsent( key, value );
+        V previous = cache.asMap().putIfAbsent( key, value );
+        if (previous == null) {
+            added( key, elementMemSize );
+        }
+        return previous;
+    }
+    
+    
+    /**
+     * Called after an entry was added. Evicts entries if the bound of this cache is
+     * exceeded.
+     */
+    protected void added( K key, int elementSize ) {
+        sizes.put( key, elementSize );
+        stats.added( elementSize );
+        manager.added( elementSize );
+        
+        long memSize = stats.memSize();
+        if (config.maxMemSize > 0 && memSize > config.maxMemSize && evictLock.tryLock()) {
+            try {
+                evict( memSize - config.maxMemSize / 10 * 9 );
+            }
+            finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+    
+    /**
+     * Evicts entries in the order of the underlying map until the given amount of
+     * memory is freed.
+     *
+     * @param targetMemSize The amount of memory to free.
+     * @return The amount of memory freed.
+     */
+    long evict( long targetMemSize ) {
+        com.google.common.cache.Cache<K,V> _cache = cache;
+        long freed = 0;
+        if (_cache != null) {
+            for (Iterator<K> it=_cache.asMap().keySet().iterator(); it.hasNext() && freed < targetMemSize; ) {
+                K key = it.next();
+                Integer size = sizes.get( key );
+                V value = _cache.asMap().remove( key );
+                if (value != null && size != null) {
+                    stats.evicted( size );
+                    freed += size;
+                    if (listeners != null) {
+                        for (CacheEvictionListener l : listeners.getListeners()) {
+                            l.onEviction( key, value );
+                        }
+                    }
+                }
+            }
+        }
+        return freed;
     }
     
     
@@ -192,6 +290,11 @@ final class GuavaCache<K,V>
         return cache.asMap().values();        
     }
 
+
+    public CacheStats stats() {
+        return stats;
+    }
+
     
     public boolean addEvictionListener( CacheEvictionListener listener ) {
         if (listeners == null) {
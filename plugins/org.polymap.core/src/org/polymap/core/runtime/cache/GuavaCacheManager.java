@@ -21,6 +21,8 @@ import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -62,6 +64,11 @@ public class GuavaCacheManager
     
     private volatile int                    globalEntryCount;
 
+    /** The sum of the sizes of all cached entries. */
+    private AtomicLong                      memSize = new AtomicLong();
+    
+    private ReentrantLock                   evictLock = new ReentrantLock();
+
     
     protected GuavaCacheManager() {
         this.caches = new MapMaker().initialCapacity( 256 ).weakValues().makeMap();
@@ -97,6 +104,38 @@ public class GuavaCacheManager
             throw new IllegalArgumentException( "Cache name does not exists: " + cache.getName() );
         }
     }
+
+
+    void added( int elementSize ) {
+        long _memSize = memSize.addAndGet( elementSize );
+        if (maxMemSize > 0 && _memSize > maxMemSize && evictLock.tryLock()) {
+            try {
+                long target = _memSize - maxMemSize / 10 * 9;
+                for (GuavaCache cache : caches.values()) {
+                    long share = (long)((double)target * cache.stats().memSize() / _memSize);
+                    if (share > 0) {
+                        cache.evict( share );
+                    }
+                }
+            }
+            finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+    
+    void removed( int elementSize ) {
+        memSize.addAndGet( -elementSize );
+    }
+
+
+    /**
+     * The sum of the sizes of the entries of all caches.
+     */
+    public long memSize() {
+        return memSize.get();
+    }
     
     
     void event( byte cause, GuavaCache cache, Object key, Object value ) {
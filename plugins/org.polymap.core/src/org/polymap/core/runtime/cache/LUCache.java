@@ -14,20 +14,37 @@
  */
 package org.polymap.core.runtime.cache;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
+
 import org.polymap.core.runtime.ListenerList;
+import org.polymap.core.runtime.Timer;
 
 /**
  * Cache backed by a {@link ConcurrentHashMap} with separate thread
  * evicting entries via LRU policy.
+ * <p/>
+ * Every cache has its own clock (second chance FIFO), which is maintained
+ * incrementally: adding an entry appends it to the clock, an access just sets the
+ * referenced bit of the entry. Eviction advances the clock hand: referenced entries
+ * get their bit cleared and a second chance, the others are evicted. So the cost of
+ * an eviction run is proportional to the number of evicted entries, not to the
+ * number of cached entries. See {@link #evict(long)}.
+ * <p/>
+ * The cache evicts its own entries if {@link CacheConfig#maxMemSize(long)} is
+ * exceeded. The {@link LUCacheManager} evicts entries of all caches if memory is
+ * low or its global bound is exceeded.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -36,8 +53,6 @@ final class LUCache<K,V>
 
     private static Log log = LogFactory.getLog( LUCache.class );
     
-    private volatile static int         accessCounter = 0;
-    
     private volatile static int         cacheCounter = 0;
     
     private String                      name;
@@ -50,11 +65,27 @@ final class LUCache<K,V>
     
     private CacheConfig                 config;
     
+    private CacheStats                  stats;
+    
+    /** The clock of the entries; head is the clock hand. */
+    private ConcurrentLinkedQueue<CacheEntry<V>> clock = new ConcurrentLinkedQueue();
+    
+    /** {@link ConcurrentLinkedQueue#size()} is O(n). */
+    private AtomicInteger               clockSize = new AtomicInteger();
+    
+    /** Number of entries in the clock that have been removed from the cache. */
+    private AtomicInteger               removedInClock = new AtomicInteger();
+    
+    private ReentrantLock               purgeLock = new ReentrantLock();
+    
+    private ReentrantLock               evictLock = new ReentrantLock();
+    
 
     LUCache( LUCacheManager manager, String name, CacheConfig config ) {
         this.manager = manager;
         this.name = name != null ? name : String.valueOf( cacheCounter++ );
         this.config = config;
+        this.stats = new CacheStats( this.name );
         
         this.entries = new ConcurrentHashMap( config.initSize, 0.75f, config.concurrencyLevel );
 
@@ -90,7 +121,12 @@ final class LUCache<K,V>
         assert entries != null : "Cache is closed.";
 
         CacheEntry<V> entry = entries.get( key );
-        return entry != null ? entry.value() : null;
+        if (entry != null) {
+            stats.hit();
+            return entry.value();
+        }
+        stats.miss();
+        return null;
     }
 
     
@@ -100,17 +136,23 @@ final class LUCache<K,V>
         
         CacheEntry<V> entry = entries.get( key );
         if (entry != null) {
+            stats.hit();
             return entry.value();
         }
         else {
+            stats.miss();
             V value = loader.load( key );
-            int memSize = loader.size();
             if (value != null) {
-                entry = new CacheEntry( value, memSize != ELEMENT_SIZE_UNKNOW ? memSize : config.elementMemSize );
+                int memSize = config.elementSize( key, value, loader.size() );
+                entry = new CacheEntry( this, key, value, memSize );
                 CacheEntry<V> previous = entries.putIfAbsent( key, entry );
-                return previous == null
-                        ? entry.value()
-                        : previous.value();
+                if (previous == null) {
+                    added( entry );
+                    return entry.value();
+                }
+                else {
+                    return previous.value();
+                }
             }
             else {
                 return null;
@@ -120,7 +162,7 @@ final class LUCache<K,V>
 
     
     public V putIfAbsent( K key, V value ) throws CacheException {
-        return putIfAbsent( key, value, config.elementMemSize );
+        return putIfAbsent( key, value, config.elementSize( key, value, ELEMENT_SIZE_UNKNOW ) );
     }
     
     
@@ -129,8 +171,13 @@ final class LUCache<K,V>
         assert entries != null : "Cache is closed.";
         assert elementMemSize > 0;
 
-        CacheEntry<V> entry = entries.putIfAbsent( key, new CacheEntry( value, elementMemSize ) );
-        return entry != null ? entry.value() : null;
+        CacheEntry<V> entry = new CacheEntry( this, key, value, elementMemSize );
+        CacheEntry<V> previous = entries.putIfAbsent( key, entry );
+        if (previous == null) {
+            added( entry );
+            return null;
+        }
+        return previous.value();
     }
     
     
@@ -139,7 +186,134 @@ final class LUCache<K,V>
         assert entries != null : "Cache is closed.";
 
         CacheEntry<V> entry = entries.remove( key );
-        return entry != null ? entry.value() : null;
+        if (entry != null) {
+            removed( entry );
+            return entry.value;
+        }
+        return null;
+    }
+
+
+    /**
+     * Called after an entry was added. Evicts entries if the bound of this cache
+     * is exceeded. Just one thread evicts at a time, the others proceed, so the
+     * bound may be exceeded for a short time.
+     */
+    protected void added( CacheEntry<V> entry ) {
+        clock.offer( entry );
+        clockSize.incrementAndGet();
+        stats.added( entry.size() );
+        manager.added( entry.size() );
+        
+        long memSize = stats.memSize();
+        if (config.maxMemSize > 0 && memSize > config.maxMemSize && evictLock.tryLock()) {
+            try {
+                doEvict( memSize - config.maxMemSize / 10 * 9 );
+            }
+            finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Called after an entry was removed. The entry stays in the clock until the
+     * clock hand reaches it or the clock is purged.
+     */
+    protected void removed( CacheEntry<V> entry ) {
+        entry.removed = true;
+        stats.removed( entry.size() );
+        manager.removed( entry.size() );
+        
+        int removed = removedInClock.incrementAndGet();
+        if (removed > LUCacheManager.PURGE_THRESHOLD && removed > clockSize.get() / 2 
+                && purgeLock.tryLock()) {
+            try {
+                purge();
+            }
+            finally {
+                purgeLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Removes the entries from the clock that have been removed from the cache.
+     * Amortized O(1) per removed entry, as it is done only if at least half of the
+     * clock consists of removed entries.
+     */
+    protected void purge() {
+        Timer timer = new Timer();
+        int count = 0;
+        for (Iterator<CacheEntry<V>> it=clock.iterator(); it.hasNext(); ) {
+            if (it.next().removed) {
+                it.remove();
+                clockSize.decrementAndGet();
+                removedInClock.decrementAndGet();
+                count ++;
+            }
+        }
+        log.debug( "Clock purged: " + name + ": " + count + " removed entries (" + timer.elapsedTime() + "ms)" );
+    }
+
+
+    /**
+     * Evicts entries until the given amount of memory is freed or the clock hand
+     * has passed every entry twice. Fires an eviction event for every evicted entry.
+     * 
+     * @param targetMemSize The amount of memory to free.
+     * @return The amount of memory freed.
+     */
+    long evict( long targetMemSize ) {
+        evictLock.lock();
+        try {
+            return doEvict( targetMemSize );
+        }
+        finally {
+            evictLock.unlock();
+        }
+    }
+
+
+    private long doEvict( long targetMemSize ) {
+        Timer timer = new Timer();
+        long freed = 0;
+        int evicted = 0, scanned = 0;
+        int maxScan = 2 * clockSize.get();
+        
+        while (freed < targetMemSize && scanned < maxScan) {
+            CacheEntry<V> entry = clock.poll();
+            if (entry == null) {
+                break;
+            }
+            scanned ++;
+            if (entry.removed) {
+                clockSize.decrementAndGet();
+                removedInClock.decrementAndGet();
+            }
+            else if (entry.referenced) {
+                // second chance
+                entry.referenced = false;
+                clock.offer( entry );
+            }
+            else {
+                clockSize.decrementAndGet();
+                ConcurrentMap<K,CacheEntry<V>> _entries = entries;
+                if (_entries != null && _entries.remove( entry.key, entry )) {
+                    entry.removed = true;
+                    stats.removed( entry.size() );
+                    stats.evicted( entry.size() );
+                    manager.removed( entry.size() );
+                    fireEvictionEvent( (K)entry.key, entry.value );
+                    freed += entry.size();
+                    evicted ++;
+                }
+            }
+        }
+        manager.stats().update( evicted, freed, scanned, timer.elapsedTime() );
+        return freed;
     }
 
     
@@ -157,7 +331,14 @@ final class LUCache<K,V>
     
     public void clear() {
         assert entries != null : "Cache is closed.";
-        entries.clear();
+        for (K key : entries.keySet()) {
+            remove( key );
+        }
+    }
+
+    
+    public CacheStats stats() {
+        return stats;
     }
 
     
@@ -199,44 +380,40 @@ final class LUCache<K,V>
      */
     static class CacheEntry<V> {
 
-        private V               value;
+        final LUCache           cache;
+        
+        final Object            key;
+        
+        final V                 value;
+        
+        private final int       size;
         
-        /** Use short instead of int, saving 2 bytes of memory. */
-        private short           sizeInKB = -1;
+        /** The clock bit: set on every access, cleared by the clock hand. */
+        volatile boolean        referenced = true;
         
-        private volatile int    accessed = accessCounter++;
+        /** Removed from the cache but maybe still in the clock. */
+        volatile boolean        removed;
         
         
-        CacheEntry( V value, int elementSize ) {
+        CacheEntry( LUCache cache, Object key, V value, int elementSize ) {
             assert value != null : "Null values are not allowed.";
-            assert elementSize <= 0 || (elementSize / 1024) <= 256*256;
+            assert elementSize > 0;
             
+            this.cache = cache;
+            this.key = key;
             this.value = value;
-            this.sizeInKB = (short)(elementSize / 1024);
-            assert sizeInKB > 0 : "elementSize=" + elementSize + " -> sizeInKB=" + sizeInKB;
+            this.size = elementSize;
         }
 
-        void dispose() {
-            value = null;
-            accessed = -1;
-        }
-        
         public V value() {
-            assert value != null;
-            accessed = accessCounter++;
-            if (accessed <= 0) {
-                throw new CacheException( "Access counter exceeded!" );
+            if (!referenced) {
+                referenced = true;
             }
             return value;
         }
 
-        public int accessed() {
-            return accessed;
-        }
-        
         public int size() {
-            assert sizeInKB != -1;
-            return 1024*sizeInKB;
+            return size;
         }
     }
 
@@ -15,7 +15,8 @@
 package org.polymap.core.runtime.cache;
 
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
@@ -28,13 +29,20 @@ import org.apache.commons.logging.LogFactory;
 import com.google.common.collect.MapMaker;
 
 import org.polymap.core.runtime.Timer;
-import org.polymap.core.runtime.cache.LUCache.CacheEntry;
 
 /**
  * Memory usage of all caches is periodically checked by the {@link MemoryChecker}
- * thread. If memory is low then the LRU entries ({@link #DEFAULT_EVICTION_SIZE})
+ * thread. If memory is low then the LRU entries ({@link #DEFAULT_EVICTION_MEM_PERCENT})
  * from all caches are evicted. The check interval is calculated from the amount of
  * free memory.
+ * <p/>
+ * The entries of every cache are kept in the clock (second chance FIFO) of the
+ * cache; see {@link LUCache#evict(long)}. An eviction run of the manager asks every
+ * cache to evict its share of the target, which is proportional to the memory size
+ * of the cache. The same happens if the bound set by {@link #setMaxMemSize(long)}
+ * is exceeded. The clock is kept per cache instead of one clock for all caches, so
+ * that a cache that exceeds its own {@link CacheConfig#maxMemSize(long)} can evict
+ * just its own entries, without scanning the entries of all other caches.
  * 
  * @see LUCache
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
@@ -44,9 +52,11 @@ public class LUCacheManager
 
     private static Log log = LogFactory.getLog( LUCacheManager.class );
     
-    private static final int                DEFAULT_EVICTION_SIZE = 1000;
     private static final int                DEFAULT_EVICTION_MEM_PERCENT = 10;
     
+    /** Min number of removed entries in the clock of a cache before it is purged. */
+    static final int                        PURGE_THRESHOLD = 10000;
+    
     private static final LUCacheManager     instance = new LUCacheManager();
     
     
@@ -61,6 +71,13 @@ public class LUCacheManager
     
     private Map<String,LUCache>             caches;
     
+    private ReentrantLock                   evictLock = new ReentrantLock();
+    
+    /** The sum of the sizes of all cached entries. */
+    private AtomicLong                      memSize = new AtomicLong();
+    
+    private EvictionStats                   stats = new EvictionStats();
+    
 
     protected LUCacheManager() {
         // start thread
@@ -99,6 +116,144 @@ public class LUCacheManager
         }
     }
 
+
+    /**
+     * Called by {@link LUCache} after an entry was added. Evicts entries of all
+     * caches if the global bound is exceeded.
+     */
+    void added( int elementSize ) {
+        long _memSize = memSize.addAndGet( elementSize );
+        if (maxMemSize > 0 && _memSize > maxMemSize && evictLock.tryLock()) {
+            try {
+                evict( _memSize - maxMemSize / 10 * 9 );
+            }
+            finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Called by {@link LUCache} after an entry was removed or evicted.
+     */
+    void removed( int elementSize ) {
+        memSize.addAndGet( -elementSize );
+    }
+
+
+    /**
+     * Evicts entries of all caches until the given amount of memory is freed. Every
+     * cache evicts its share of the target, proportional to its memory size.
+     * 
+     * @param targetMemSize The amount of memory to free.
+     * @return The amount of memory freed.
+     */
+    protected long evict( long targetMemSize ) {
+        long total = memSize.get();
+        long freed = 0;
+        if (total > 0) {
+            for (LUCache cache : caches.values()) {
+                long share = (long)((double)targetMemSize * cache.stats().memSize() / total);
+                if (share > 0) {
+                    freed += cache.evict( share );
+                }
+            }
+        }
+        return freed;
+    }
+
+
+    /**
+     * The sum of the sizes of the entries of all caches.
+     */
+    public long memSize() {
+        return memSize.get();
+    }
+
+
+    public EvictionStats stats() {
+        return stats;
+    }
+
+
+    /**
+     * Statistics of the eviction runs of all {@link LUCache}s.
+     */
+    public static class EvictionStats {
+
+        private AtomicLong          runs = new AtomicLong();
+
+        private AtomicLong          evicted = new AtomicLong();
+
+        private AtomicLong          evictedMemSize = new AtomicLong();
+
+        private AtomicLong          scanned = new AtomicLong();
+
+        private AtomicLong          totalMillis = new AtomicLong();
+
+        private volatile long       maxMillis;
+
+        private volatile long       lastMillis;
+
+
+        void update( int evictedCount, long freed, int scannedCount, long millis ) {
+            runs.incrementAndGet();
+            evicted.addAndGet( evictedCount );
+            evictedMemSize.addAndGet( freed );
+            scanned.addAndGet( scannedCount );
+            totalMillis.addAndGet( millis );
+            lastMillis = millis;
+            maxMillis = Math.max( maxMillis, millis );
+        }
+
+        /** The number of eviction runs of all caches so far. */
+        public long runs() {
+            return runs.get();
+        }
+
+        /** The number of evicted entries so far. */
+        public long evicted() {
+            return evicted.get();
+        }
+
+        /** The amount of memory freed so far. */
+        public long evictedMemSize() {
+            return evictedMemSize.get();
+        }
+
+        /** The number of entries the clock hand has passed so far. */
+        public long scanned() {
+            return scanned.get();
+        }
+
+        /** The total time of all eviction runs in milliseconds. */
+        public long totalMillis() {
+            return totalMillis.get();
+        }
+
+        /** The time of the longest eviction run in milliseconds. */
+        public long maxMillis() {
+            return maxMillis;
+        }
+
+        /** The time of the last eviction run in milliseconds. */
+        public long lastMillis() {
+            return lastMillis;
+        }
+
+        public String toString() {
+            long _runs = runs();
+            return "EvictionStats[runs=" + _runs
+                    + ", evicted=" + evicted()
+                    + ", evictedMemSize=" + evictedMemSize() / 1024 + "KB"
+                    + ", scanned=" + scanned()
+                    + ", avg=" + (_runs > 0 ? totalMillis() / _runs : 0) + "ms"
+                    + ", max=" + maxMillis() + "ms"
+                    + ", last=" + lastMillis() + "ms]";
+        }
+    }
+
     
     /**
      * 
@@ -108,16 +263,12 @@ public class LUCacheManager
 
         private MemoryMXBean        memBean = ManagementFactory.getMemoryMXBean();
         
-        private int                 lastEvictionCount = 1000;
-        
 //        private AtomicBoolean       lowMemory = new AtomicBoolean();
         
         private SoftReference       probe;
         
         private ReferenceQueue      probeQueue = new ReferenceQueue();
         
-        private PriorityQueue<EvictionCandidate> evictionQueue = new PriorityQueue( 1000 );
-        
 
         protected MemoryChecker() {
 //            // memory listener
@@ -195,73 +346,12 @@ public class LUCacheManager
                 log.debug( "Eviction..." );
                 log.debug( String.format( "    Heap: used: %dMB, max: %dMB", heap.getUsed()/1024/1024, heap.getMax()/1024/1024 ) );
                 
-                timer.start();
-                
-                // simple eviction algorithm that sorts *all* entries in a fixed size TreeSet;
-                // for a fast, incremental O(1)? algorithm, see the develop-cache-evict branch
-                
-                evictionQueue.clear();
-                int count = 0;
-                int accessThreshold = 0;
-                int evictionMemSize = 0;
-                int memSizeTarget = (int)(heap.getUsed() / 100 * DEFAULT_EVICTION_MEM_PERCENT );
+                long memSizeTarget = heap.getUsed() / 100 * DEFAULT_EVICTION_MEM_PERCENT;
                 log.debug( String.format( "    Eviction target size: %dMB", memSizeTarget/1024/1024 ) );
 
-                // all caches
-                OUTER : for (LUCache cache : caches.values()) {
-                    
-                    Iterable<Map.Entry<Object,CacheEntry>> entries = cache.entries();
-                    for (Map.Entry<Object,CacheEntry> entry : entries) {
-                        count++;
-
-                        // don't spent more than 100ms with collecting
-                        if (count % 1000 == 0
-                                && timer.elapsedTime() > 100
-                                && !evictionQueue.isEmpty()) {
-                            log.info( "    Abort collecting. Spent more than 100ms collecting: " + timer.elapsedTime() + "ms" );
-                            break OUTER;
-                        }
-                        
-                        if (evictionMemSize < memSizeTarget
-                                || entry.getValue().accessed() < accessThreshold) {
-                            
-                            // find last entry and remove
-                            EvictionCandidate last = null;
-                            if (evictionMemSize > memSizeTarget) {
-                                while (evictionMemSize > memSizeTarget) {
-                                    last = evictionQueue.remove();
-
-                                    accessThreshold = last.entry.accessed();
-                                    evictionMemSize -= last.entry.size();
-                                }
-                            }
-                            else {
-                                accessThreshold = Math.max( accessThreshold, entry.getValue().accessed() );
-                            }
-
-                            evictionQueue.add( last != null
-                                    ? last.set( cache, entry.getValue(), entry.getKey() )
-                                    : new EvictionCandidate( cache, entry.getValue(), entry.getKey() ) );
-                            evictionMemSize += entry.getValue().size();
-                        }
-                    }
-                }
-                
-                for (EvictionCandidate candidate : evictionQueue) {
-                    // remove from cache
-                    Object elm = candidate.cache.remove( candidate.key );
-                    assert elm != null : "Unable to remove element from cache: " + candidate.key;
-                    // fire eviction event
-                    candidate.cache.fireEvictionEvent( candidate.key, candidate.entry.value() );
-                    candidate.entry.dispose();
-                }
-            
-                lastEvictionCount = Math.max( 1000, evictionQueue.size() );
-                if (!evictionQueue.isEmpty()) {
-                    log.info( "    Checked: " + count
-                            + " - Evicted: " + evictionQueue.size()
-                            + " / " + evictionMemSize + " bytes"
-                            + ", accessThreshold: " + accessThreshold + " (" + timer.elapsedTime() + "ms)" );
+                long freed = evict( memSizeTarget );
+                if (freed > 0) {
+                    log.info( "    Evicted: " + freed + " bytes (" + timer.elapsedTime() + "ms), " + stats );
                 }
             }
             
@@ -314,75 +404,5 @@ public class LUCacheManager
             }
         }
     }
-    
-    
-    /*
-     * 
-     */
-    class EvictionCandidate
-            implements Comparable {
-       
-        LUCache                     cache;
-        
-        CacheEntry                  entry;
-        
-        Object                      key;
-        
-        /**
-         * Copy of the {@link CacheEntry#accessed} field, keeping the value stable
-         * during one eviction run.
-         */
-        int                         lastAccessed;            
-
-        
-        EvictionCandidate( LUCache cache, CacheEntry entry, Object key ) {
-            this.cache = cache;
-            this.entry = entry;
-            this.key = key;
-            this.lastAccessed = entry.accessed();
-        }
-
-        public EvictionCandidate set( LUCache cache, CacheEntry entry, Object key ) {
-            this.cache = cache;
-            this.entry = entry;
-            this.key = key;
-            return this;
-        }
-
-        public void clear() {
-            cache = null;
-            entry = null;
-            key = null;
-        }
-        
-        public int compareTo( Object obj ) {
-            EvictionCandidate other = (EvictionCandidate)obj;
-            return other.entry != null
-                    // early/small accessTime -> high prio in eviction queue
-                    ? other.lastAccessed - lastAccessed
-                    : 0;
-        }
-
-//        public int hashCode() {
-//            final int prime = 31;
-//            int result = 1;
-//            result = prime * result + ((cache == null) ? 0 : cache.hashCode());
-//            result = prime * result + ((key == null) ? 0 : key.hashCode());
-//            return result;
-//        }
-
-        public boolean equals( Object obj ) {
-            if (obj == this) {
-                return true;
-            }
-            else {  //if (obj instanceof EvictionCandidate) {
-                EvictionCandidate other = (EvictionCandidate)obj;
-                return cache == other.cache
-                        && key.equals( other.key );
-            }
-            //return false;
-        }
-
-    }
 
 }
@@ -0,0 +1,269 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+
+import org.polymap.core.runtime.cache.SlabStore.Location;
+
+/**
+ * Cache that stores its elements serialized in the {@link SlabStore} of its
+ * {@link OffHeapCacheManager}. Just the keys and the locations of the elements are
+ * kept on the heap. Every {@link #get(Object)} deserializes the element, so this
+ * cache is meant to be the second tier behind a heap cache; see
+ * {@link OffHeapCacheManager#newTieredCache(Cache, CacheConfig)}.
+ * <p/>
+ * The size of an element is the size of its serialized form. Elements that cannot
+ * be serialized are not cached.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class OffHeapCache<K,V>
+        implements Cache<K,V> {
+
+    private static Log log = LogFactory.getLog( OffHeapCache.class );
+
+    private static AtomicInteger        cacheCounter = new AtomicInteger();
+
+    private String                      name;
+
+    private OffHeapCacheManager         manager;
+
+    private ElementSerializer<V>        serializer;
+
+    private ConcurrentMap<K,Location>   index;
+
+    private CacheStats                  stats;
+
+
+    OffHeapCache( OffHeapCacheManager manager, String name, CacheConfig config ) {
+        assert config.serializer != null : "No serializer set in CacheConfig.";
+        this.manager = manager;
+        this.name = name != null ? name : "offheap-" + cacheCounter.getAndIncrement();
+        this.serializer = config.serializer;
+        this.stats = new CacheStats( this.name );
+        this.index = new ConcurrentHashMap( config.initSize, 0.75f, config.concurrencyLevel );
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    public void dispose() {
+        if (index != null) {
+            clear();
+            index = null;
+            manager.disposeCache( this );
+        }
+    }
+
+
+    public boolean isDisposed() {
+        return index == null;
+    }
+
+
+    public V get( K key ) throws CacheException {
+        assert key != null : "Null keys are not allowed.";
+        assert index != null : "Cache is closed.";
+
+        Location loc = index.get( key );
+        V result = loc != null ? read( loc ) : null;
+        if (result != null) {
+            stats.hit();
+        }
+        else {
+            stats.miss();
+        }
+        return result;
+    }
+
+
+    public <E extends Throwable> V get( K key, CacheLoader<K,V,E> loader ) throws E {
+        V result = get( key );
+        if (result == null) {
+            result = loader.load( key );
+            if (result != null) {
+                V previous = putIfAbsent( key, result );
+                result = previous != null ? previous : result;
+            }
+        }
+        return result;
+    }
+
+
+    public V putIfAbsent( K key, V value ) throws CacheException {
+        assert key != null : "Null keys are not allowed.";
+        assert index != null : "Cache is closed.";
+
+        Location loc = index.get( key );
+        V previous = loc != null ? read( loc ) : null;
+        if (previous != null) {
+            return previous;
+        }
+        byte[] bytes = serialize( value );
+        loc = bytes != null ? manager.store().write( this, key, bytes ) : null;
+        if (loc != null) {
+            while (true) {
+                Location current = index.putIfAbsent( key, loc );
+                if (current == null) {
+                    stats.added( loc.length );
+                    manager.added( loc.length );
+                    return null;
+                }
+                // added concurrently -> return it; the space of loc is wasted
+                // until its slab is recycled
+                previous = read( current );
+                if (previous != null) {
+                    return previous;
+                }
+                // slab of current recycled -> replace
+                if (index.replace( key, current, loc )) {
+                    stats.removed( current.length );
+                    manager.removed( current.length );
+                    stats.added( loc.length );
+                    manager.added( loc.length );
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * The size of an element is always the size of its serialized form; the given
+     * size is ignored.
+     */
+    public V putIfAbsent( K key, V value, int elementMemSize ) throws CacheException {
+        return putIfAbsent( key, value );
+    }
+
+
+    public V remove( K key ) throws CacheException {
+        assert key != null : "Null keys are not allowed.";
+        assert index != null : "Cache is closed.";
+
+        Location loc = index.remove( key );
+        if (loc != null) {
+            stats.removed( loc.length );
+            manager.removed( loc.length );
+            return read( loc );
+        }
+        return null;
+    }
+
+
+    /**
+     * Called by the {@link SlabStore} if the slab of the given location is
+     * recycled.
+     */
+    void evicted( Location loc ) {
+        ConcurrentMap<K,Location> _index = index;
+        if (_index != null && _index.remove( loc.key, loc )) {
+            stats.removed( loc.length );
+            stats.evicted( loc.length );
+            manager.removed( loc.length );
+        }
+    }
+
+
+    public int size() {
+        assert index != null : "Cache is closed.";
+        return index.size();
+    }
+
+
+    public void clear() {
+        assert index != null : "Cache is closed.";
+        for (K key : index.keySet()) {
+            Location loc = index.remove( key );
+            if (loc != null) {
+                stats.removed( loc.length );
+                manager.removed( loc.length );
+            }
+        }
+    }
+
+
+    /**
+     * Deserializes every element.
+     */
+    public Iterable<V> values() {
+        assert index != null : "Cache is closed.";
+        return Iterables.filter( Iterables.transform( index.values(), new Function<Location,V>() {
+            public V apply( Location input ) {
+                return read( input );
+            }
+        }), Predicates.notNull() );
+    }
+
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+
+    protected byte[] serialize( V value ) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream( 4096 );
+            DataOutputStream out = new DataOutputStream( bout );
+            serializer.write( value, out );
+            out.flush();
+            return bout.toByteArray();
+        }
+        catch (Exception e) {
+            log.debug( "Unable to serialize: " + value.getClass().getName() + " (" + e + ")" );
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads and deserializes the element of the given location.
+     *
+     * @return The element, or null if its slab was recycled.
+     */
+    protected V read( Location loc ) {
+        byte[] bytes = manager.store().read( loc );
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return serializer.read( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+        }
+        catch (IOException e) {
+            throw new CacheException( e );
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Manages caches that store their elements serialized outside the Java heap, in
+ * direct buffers or in a memory mapped file. So the bulk of the cached data is not
+ * seen by the GC. The caches need an {@link ElementSerializer}, set via
+ * {@link CacheConfig#serializer(ElementSerializer)}.
+ * <p/>
+ * All caches of a manager share one {@link SlabStore}. Its capacity is the global
+ * bound of the caches; if it is exhausted then the oldest elements are evicted.
+ * <p/>
+ * Deserializing is much slower than a heap lookup. So usually an off-heap cache is
+ * the second tier behind a heap cache, created via
+ * {@link #newTieredCache(Cache, CacheConfig)}:
+ * <pre>
+ * Cache&lt;Object,Document&gt; cache = OffHeapCacheManager.instance().newTieredCache(
+ *         LUCacheManager.instance().newCache( CacheConfig.DEFAULT.maxMemSize( 50*1024*1024 ) ),
+ *         CacheConfig.DEFAULT.serializer( ElementSerializers.DOCUMENT ) );
+ * </pre>
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class OffHeapCacheManager
+        extends CacheManager {
+
+    private static Log log = LogFactory.getLog( OffHeapCacheManager.class );
+
+    /** System property: the capacity of the default instance in MB. Default: 256 */
+    public static final String          CAPACITY_PROP = "org.polymap.core.runtime.cache.offheap.capacity";
+
+    /** System property: the directory of the mapped file of the default instance. Default: direct buffers. */
+    public static final String          DIR_PROP = "org.polymap.core.runtime.cache.offheap.dir";
+
+    public static final int             DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private static OffHeapCacheManager  instance;
+
+
+    /**
+     * The default instance, configured by {@link #CAPACITY_PROP} and
+     * {@link #DIR_PROP}.
+     */
+    public static synchronized OffHeapCacheManager instance() {
+        if (instance == null) {
+            long capacity = Long.getLong( CAPACITY_PROP, 256 ) * 1024 * 1024;
+            String dir = System.getProperty( DIR_PROP );
+            try {
+                instance = new OffHeapCacheManager( capacity, DEFAULT_SLAB_SIZE,
+                        dir != null ? new File( dir ) : null );
+            }
+            catch (IOException e) {
+                throw new CacheException( "Unable to create off-heap store.", e );
+            }
+        }
+        return instance;
+    }
+
+
+    // instance *******************************************
+
+    private Map<String,OffHeapCache>    caches;
+
+    private SlabStore                   store;
+
+    /** The sum of the sizes of the live elements of all caches. */
+    private AtomicLong                  memSize = new AtomicLong();
+
+
+    /**
+     * Creates a new manager with its own store.
+     *
+     * @param capacity The max number of bytes to store.
+     * @param slabSize The size of one slab, which is also the max size of one
+     *        element. The capacity should be at least 10 slabs, as elements are
+     *        evicted slab by slab.
+     * @param dir The directory of the file to map, or null to use direct buffers.
+     */
+    public OffHeapCacheManager( long capacity, int slabSize, File dir ) throws IOException {
+        this.store = new SlabStore( capacity, slabSize, dir );
+        this.maxMemSize = store.capacity();
+        this.caches = new MapMaker().initialCapacity( 64 ).weakValues().makeMap();
+    }
+
+
+    public <K, V> Cache<K, V> newCache( CacheConfig config ) {
+        return add( new OffHeapCache( this, null, config ) );
+    }
+
+
+    public <K, V> Cache<K, V> getOrCreateCache( String name, CacheConfig config ) {
+        return add( new OffHeapCache( this, name, config ) );
+    }
+
+
+    /**
+     * Creates a new two tier cache. Elements are written through to the given heap
+     * cache and to a new off-heap cache. Elements that are evicted from the heap
+     * cache or reclaimed by the GC are restored from the off-heap tier.
+     *
+     * @param heap The first tier, usually created by {@link LUCacheManager} or
+     *        {@link Soft2CacheManager}.
+     * @param config The config of the off-heap tier, specifying the
+     *        {@link CacheConfig#serializer(ElementSerializer)}.
+     * @return The newly created cache.
+     */
+    public <K, V> Cache<K, V> newTieredCache( Cache<K,V> heap, CacheConfig config ) {
+        OffHeapCache<K,V> offHeap = (OffHeapCache<K,V>)getOrCreateCache( heap.getName() + "-offheap", config );
+        return new TieredCache( heap, offHeap );
+    }
+
+
+    private <K, V> Cache<K, V> add( OffHeapCache cache ) {
+        OffHeapCache elm = caches.put( cache.getName(), cache );
+        if (elm != null) {
+            caches.put( cache.getName(), elm );
+            throw new IllegalArgumentException( "Cache name already exists: " + cache.getName() );
+        }
+        return cache;
+    }
+
+
+    void disposeCache( OffHeapCache cache ) {
+        OffHeapCache elm = caches.remove( cache.getName() );
+        if (elm == null) {
+            throw new IllegalArgumentException( "Cache name does not exists: " + cache.getName() );
+        }
+    }
+
+
+    SlabStore store() {
+        return store;
+    }
+
+
+    void added( int elementSize ) {
+        memSize.addAndGet( elementSize );
+    }
+
+
+    void removed( int elementSize ) {
+        memSize.addAndGet( -elementSize );
+    }
+
+
+    /**
+     * The bound of an off-heap store is its capacity, which is set when the
+     * manager is created.
+     */
+    @Override
+    public CacheManager setMaxMemSize( long maxMemSize ) {
+        throw new UnsupportedOperationException( "The capacity of the off-heap store is fixed." );
+    }
+
+
+    /**
+     * The sum of the sizes of the live elements of all caches. The space of
+     * removed elements is reclaimed when their slab is recycled; so the store may
+     * be exhausted even if this is below the capacity.
+     */
+    public long memSize() {
+        return memSize.get();
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Log structured storage of byte arrays outside the Java heap. The storage is
+ * divided into slabs of fixed size, which are either direct {@link ByteBuffer}s
+ * or memory mapped regions of a file. New elements are appended to the current
+ * slab. If it is full then the next slab becomes the current one. If all slabs are
+ * used then the oldest slab is recycled: all elements stored in it are evicted
+ * from their caches. So the storage is bounded and eviction is FIFO per slab;
+ * removing an element does not free its space until its slab is recycled.
+ * <p/>
+ * Writes are serialized by a lock. Reads do not lock. They check the generation
+ * of the slab before and after copying the bytes, so a read that races with the
+ * recycling of its slab returns null.
+ *
+ * @see OffHeapCacheManager
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class SlabStore {
+
+    private static Log log = LogFactory.getLog( SlabStore.class );
+
+    private final int               slabSize;
+
+    private final ByteBuffer[]      slabs;
+
+    /** Incremented every time a slab is recycled. */
+    private final AtomicIntegerArray generations;
+
+    /** The elements stored in every slab. */
+    private final List<Location>[]  slabEntries;
+
+    private final ReentrantLock     lock = new ReentrantLock();
+
+    private int                     current = -1;
+
+    private int                     position;
+
+    private FileChannel             channel;
+
+
+    /**
+     * Creates a new store.
+     *
+     * @param capacity The max number of bytes to store.
+     * @param slabSize The size of one slab. This is the max size of one element.
+     * @param dir The directory of the file to map, or null to use direct buffers.
+     * @throws IOException If the file could not be created.
+     */
+    public SlabStore( long capacity, int slabSize, File dir ) throws IOException {
+        assert capacity >= 2 * slabSize : "At least 2 slabs are needed.";
+        this.slabSize = slabSize;
+        int count = (int)(capacity / slabSize);
+        this.slabs = new ByteBuffer[ count ];
+        this.generations = new AtomicIntegerArray( count );
+        this.slabEntries = new List[ count ];
+        for (int i=0; i<count; i++) {
+            slabEntries[i] = new ArrayList( 256 );
+        }
+        if (dir != null) {
+            dir.mkdirs();
+            File file = File.createTempFile( "slabs", ".data", dir );
+            file.deleteOnExit();
+            channel = new RandomAccessFile( file, "rw" ).getChannel();
+            log.info( "Slab file: " + file.getAbsolutePath() + ", capacity: " + capacity / 1024 / 1024 + "MB" );
+        }
+    }
+
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+
+    public int slabSize() {
+        return slabSize;
+    }
+
+
+    public long capacity() {
+        return (long)slabSize * slabs.length;
+    }
+
+
+    /**
+     * Stores the given bytes.
+     *
+     * @param cache The cache of the element; evicted elements are reported to it.
+     * @param key The key of the element.
+     * @param data The bytes to store.
+     * @return The location of the stored bytes, or null if the element is too
+     *         big or no memory could be allocated.
+     */
+    public Location write( OffHeapCache cache, Object key, byte[] data ) {
+        if (data.length > slabSize) {
+            return null;
+        }
+        List<Location> evicted = null;
+        Location result = null;
+        lock.lock();
+        try {
+            if (current < 0 || slabs[current] == null || position + data.length > slabSize) {
+                evicted = advance();
+                if (slabs[current] == null) {
+                    return null;
+                }
+            }
+            ByteBuffer buf = slabs[current].duplicate();
+            buf.position( position );
+            buf.put( data );
+            result = new Location( cache, key, current, position, data.length, generations.get( current ) );
+            slabEntries[current].add( result );
+            position += data.length;
+        }
+        finally {
+            lock.unlock();
+            // outside the lock
+            if (evicted != null) {
+                for (Location loc : evicted) {
+                    loc.cache.evicted( loc );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Reads the bytes of the given location.
+     *
+     * @return The bytes, or null if the slab of the location was recycled.
+     */
+    public byte[] read( Location loc ) {
+        if (generations.get( loc.slab ) != loc.generation) {
+            return null;
+        }
+        ByteBuffer buf = slabs[loc.slab].duplicate();
+        buf.position( loc.offset );
+        byte[] result = new byte[ loc.length ];
+        buf.get( result );
+        return generations.get( loc.slab ) == loc.generation ? result : null;
+    }
+
+
+    /**
+     * Makes the next slab the current one. Must be called with lock held.
+     *
+     * @return The elements of the recycled slab.
+     */
+    private List<Location> advance() {
+        current = (current + 1) % slabs.length;
+        position = 0;
+        generations.incrementAndGet( current );
+
+        List<Location> evicted = slabEntries[current];
+        slabEntries[current] = new ArrayList( Math.max( 256, evicted.size() ) );
+
+        if (slabs[current] == null) {
+            try {
+                slabs[current] = channel != null
+                        ? channel.map( MapMode.READ_WRITE, (long)current * slabSize, slabSize )
+                        : ByteBuffer.allocateDirect( slabSize );
+            }
+            catch (Throwable e) {
+                // OutOfMemoryError: Direct buffer memory
+                log.warn( "Unable to allocate slab: " + e );
+            }
+        }
+        return evicted;
+    }
+
+
+    /**
+     * The location of a stored element.
+     */
+    static final class Location {
+
+        final OffHeapCache  cache;
+
+        final Object        key;
+
+        final int           slab;
+
+        final int           offset;
+
+        final int           length;
+
+        final int           generation;
+
+        Location( OffHeapCache cache, Object key, int slab, int offset, int length, int generation ) {
+            this.cache = cache;
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.generation = generation;
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
@@ -28,6 +29,11 @@ import org.apache.commons.logging.LogFactory;
 /**
  * Cache backed by a {@link ConcurrentHashMap} with separate thread
  * for handling {@link ReferenceQueue}.
+ * <p/>
+ * Entries are reclaimed by the GC. Additionally the cache tracks the sizes of its
+ * entries. If {@link CacheConfig#maxMemSize(long)} is exceeded then the cache
+ * evicts entries in the (random) order of the underlying hash map. This cache
+ * does not track accesses, so there is no better order available.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -48,11 +54,16 @@ final class Soft2Cache<K,V>
 
     private CacheConfig                 config;
     
+    private CacheStats                  stats;
+    
+    private ReentrantLock               evictLock = new ReentrantLock();
+    
 
     Soft2Cache( Soft2CacheManager manager, String name, CacheConfig config ) {
         this.manager = manager;
         this.name = name != null ? name : String.valueOf( cacheCounter.getAndIncrement() );
         this.config = config;
+        this.stats = new CacheStats( this.name );
         
         this.entries = new ConcurrentHashMap( config.initSize, 0.75f, config.concurrencyLevel );
     }
@@ -82,7 +93,14 @@ final class Soft2Cache<K,V>
         assert entries != null : "Cache is closed.";
 
         CacheEntry<K,V> entry = entries.get( key );
-        return entry != null ? entry.value() : null;
+        V result = entry != null ? entry.value() : null;
+        if (result != null) {
+            stats.hit();
+        }
+        else {
+            stats.miss();
+        }
+        return result;
     }
 
     
@@ -93,9 +111,11 @@ final class Soft2Cache<K,V>
         CacheEntry<K,V> entry = entries.get( key );
         V value = entry != null ? entry.value() : null;
         if (value != null) {
+            stats.hit();
             return value;
         }
         else {
+            stats.miss();
             // we do not prevent threads from concurrently creating a value for the
             // same key! but we make sure that just one value is retuned to all threads
             value = loader.load( key );
@@ -113,7 +133,7 @@ final class Soft2Cache<K,V>
 
     
     public V putIfAbsent( K key, V value ) throws CacheException {
-        return putIfAbsent( key, value, config.elementMemSize, null );
+        return putIfAbsent( key, value, ELEMENT_SIZE_UNKNOW, null );
     }
     
     
@@ -127,24 +147,27 @@ final class Soft2Cache<K,V>
         assert key != null : "Null keys are not allowed.";
         assert entries != null : "Cache is closed.";
         
-        memSize = memSize > 0 ? memSize : config.elementMemSize;
+        memSize = config.elementSize( key, value, memSize );
 
         CacheEntry<K,V> entry = new CacheEntry<K,V>( this, key, value, memSize, l );
-        CacheEntry<K,V> previous = entries.putIfAbsent( key, entry );
-
-        // previous entry reclaimed?
-        if (previous != null) {
-            value = previous.value();
-            // and was not reclaimed -> return it
-            if (value != null) {
-                return value;
+        while (true) {
+            CacheEntry<K,V> previous = entries.putIfAbsent( key, entry );
+            if (previous == null) {
+                added( entry );
+                return null;
+            }
+            // previous entry not reclaimed -> return it
+            V previousValue = previous.value();
+            if (previousValue != null) {
+                return previousValue;
             }
-            // if reclaimed -> insert new entry; return null                    
-            else {
-                entries.put( key, entry );
+            // if reclaimed -> replace with new entry; return null
+            if (entries.replace( key, previous, entry )) {
+                removed( previous );
+                added( entry );
+                return null;
             }
         }
-        return null;
     }
     
     
@@ -153,15 +176,81 @@ final class Soft2Cache<K,V>
         assert entries != null : "Cache is closed.";
 
         CacheEntry<K,V> entry = entries.remove( key );
-        return entry != null ? entry.value() : null;
+        if (entry != null) {
+            removed( entry );
+            return entry.value();
+        }
+        return null;
     }
 
     
+    /**
+     * Removes an entry that was reclaimed by the GC.
+     */
     boolean removeEntry( K key, CacheEntry entry ) throws CacheException {
         assert key != null : "Null keys are not allowed.";
-        assert entries != null : "Cache is closed.";
 
-        return entries.remove( key, entry );
+        ConcurrentMap<K,CacheEntry<K,V>> _entries = entries;
+        if (_entries != null && _entries.remove( key, entry )) {
+            removed( entry );
+            stats.evicted( entry.size );
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Called after an entry was added. Evicts entries if the bound of this cache is
+     * exceeded. Just one thread evicts at a time, the others proceed, so the bound
+     * may be exceeded for a short time.
+     */
+    protected void added( CacheEntry<K,V> entry ) {
+        stats.added( entry.size );
+        manager.added( entry.size );
+        
+        long memSize = stats.memSize();
+        if (config.maxMemSize > 0 && memSize > config.maxMemSize && evictLock.tryLock()) {
+            try {
+                evict( memSize - config.maxMemSize / 10 * 9 );
+            }
+            finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+    
+    protected void removed( CacheEntry<K,V> entry ) {
+        stats.removed( entry.size );
+        manager.removed( entry.size );
+    }
+
+    
+    /**
+     * Evicts entries in the order of the underlying hash map until the given
+     * amount of memory is freed. Fires an eviction event for every evicted entry.
+     *
+     * @param targetMemSize The amount of memory to free.
+     * @return The amount of memory freed.
+     */
+    long evict( long targetMemSize ) {
+        ConcurrentMap<K,CacheEntry<K,V>> _entries = entries;
+        long freed = 0;
+        if (_entries != null) {
+            for (Iterator<CacheEntry<K,V>> it=_entries.values().iterator(); it.hasNext() && freed < targetMemSize; ) {
+                CacheEntry<K,V> entry = it.next();
+                if (_entries.remove( entry.key(), entry )) {
+                    removed( entry );
+                    stats.evicted( entry.size );
+                    // not enqueued anymore; prevents a second eviction event 
+                    entry.clear();
+                    entry.fireEvictionEvent();
+                    freed += entry.size;
+                }
+            }
+        }
+        return freed;
     }
 
     
@@ -173,7 +262,14 @@ final class Soft2Cache<K,V>
     
     public void clear() {
         assert entries != null : "Cache is closed.";
-        entries.clear();
+        for (K key : entries.keySet()) {
+            remove( key );
+        }
+    }
+
+
+    public CacheStats stats() {
+        return stats;
     }
 
     
@@ -224,8 +320,7 @@ final class Soft2Cache<K,V>
         
         private Soft2Cache          cache;
         
-        /** Use short instead of int, saving 2 bytes of memory. */
-//        private short               sizeInKB = -1;
+        final int                   size;
         
 //        private volatile int        accessed = accessCounter++;
         
@@ -234,10 +329,11 @@ final class Soft2Cache<K,V>
             super( value, cache.manager.refQueue );
             assert value != null : "Null values are not allowed.";
             assert cache != null;
-            assert elementSize <= 0 || (elementSize / 1024) <= 256*256;
+            assert elementSize > 0;
 
             this.cache = cache;
             this.key = key;
+            this.size = elementSize;
             if (value instanceof EvictionAware) {
                 evictionListener = ((EvictionAware)value).newListener();
             }
@@ -245,8 +341,6 @@ final class Soft2Cache<K,V>
                 assert evictionListener == null;
                 evictionListener = l;
             }
-//            this.sizeInKB = (short)(elementSize / 1024);
-//            assert sizeInKB > 0 : "elementSize=" + elementSize + " -> sizeInKB=" + sizeInKB;
         }
 
         void dispose() {
@@ -278,11 +372,6 @@ final class Soft2Cache<K,V>
 
 //        public int accessed() {
 //            return accessed;
-//        }
-        
-//        public int size() {
-//            assert sizeInKB != -1;
-//            return 1024*sizeInKB;
 //        }
     }
 
@@ -15,6 +15,8 @@
 package org.polymap.core.runtime.cache;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.lang.ref.ReferenceQueue;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -24,6 +26,10 @@ import com.google.common.collect.MapMaker;
 import org.polymap.core.runtime.cache.Soft2Cache.CacheEntry;
 
 /**
+ * Manages {@link Soft2Cache}s. Entries are reclaimed by the GC. Additionally the
+ * sizes of the entries of all caches are tracked. If the bound set by
+ * {@link #setMaxMemSize(long)} is exceeded then every cache evicts its share,
+ * proportional to its memory size.
  * 
  * @see Soft2Cache
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
@@ -49,6 +55,11 @@ public class Soft2CacheManager
 
     protected ReferenceQueue                refQueue;
     
+    /** The sum of the sizes of all cached entries. */
+    private AtomicLong                      memSize = new AtomicLong();
+    
+    private ReentrantLock                   evictLock = new ReentrantLock();
+    
 
     protected Soft2CacheManager() {
         caches = new MapMaker().initialCapacity( 256 ).weakValues().makeMap();
@@ -87,6 +98,38 @@ public class Soft2CacheManager
         }
     }
 
+
+    void added( int elementSize ) {
+        long _memSize = memSize.addAndGet( elementSize );
+        if (maxMemSize > 0 && _memSize > maxMemSize && evictLock.tryLock()) {
+            try {
+                long target = _memSize - maxMemSize / 10 * 9;
+                for (Soft2Cache cache : caches.values()) {
+                    long share = (long)((double)target * cache.stats().memSize() / _memSize);
+                    if (share > 0) {
+                        cache.evict( share );
+                    }
+                }
+            }
+            finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+    
+    void removed( int elementSize ) {
+        memSize.addAndGet( -elementSize );
+    }
+
+
+    /**
+     * The sum of the sizes of the entries of all caches.
+     */
+    public long memSize() {
+        return memSize.get();
+    }
+
     
     /**
      * 
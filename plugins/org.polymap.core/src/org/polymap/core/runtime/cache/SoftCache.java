@@ -43,11 +43,14 @@ final class SoftCache<K,V>
     
     private CacheConfig                 config;
     
+    private CacheStats                  stats;
+    
 
     SoftCache( SoftCacheManager manager, String name, CacheConfig config ) {
         this.manager = manager;
         this.name = name != null ? name : String.valueOf( cacheCounter++ );
         this.config = config;
+        this.stats = new CacheStats( this.name );
         
         this.entries = new ConcurrentReferenceHashMap( config.initSize, 0.75f, config.concurrencyLevel,
                 ReferenceType.STRONG, ReferenceType.SOFT, null );
@@ -77,7 +80,14 @@ final class SoftCache<K,V>
         assert key != null : "Null keys are not allowed.";
         assert entries != null : "Cache is closed.";
 
-        return entries.get( key );
+        V result = entries.get( key );
+        if (result != null) {
+            stats.hit();
+        }
+        else {
+            stats.miss();
+        }
+        return result;
     }
 
     
@@ -87,12 +97,16 @@ final class SoftCache<K,V>
         
         V entry = entries.get( key );
         if (entry == null) {
+            stats.miss();
             entry = loader.load( key );
             if (entry != null) {
                 V previous = entries.putIfAbsent( key, entry );
                 entry = previous != null ? previous : entry;
             }
         }
+        else {
+            stats.hit();
+        }
         return entry;
     }
 
@@ -142,6 +156,14 @@ final class SoftCache<K,V>
         return entries.values();
     }
 
+
+    /**
+     * Hits and misses only; the memory size of the elements is not tracked.
+     */
+    public CacheStats stats() {
+        return stats;
+    }
+
     
     public boolean addEvictionListener( CacheEvictionListener listener ) {
         throw new UnsupportedOperationException( "CacheEvictionListener is not supported." );
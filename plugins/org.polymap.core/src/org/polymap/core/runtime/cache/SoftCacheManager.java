@@ -77,5 +77,11 @@ public class SoftCacheManager
         SoftCache elm = caches.remove( cache.getName() );
         assert elm != null;
     }
+
+
+    @Override
+    public CacheManager setMaxMemSize( long maxMemSize ) {
+        throw new UnsupportedOperationException( "Memory bounds are not supported." );
+    }
     
 }
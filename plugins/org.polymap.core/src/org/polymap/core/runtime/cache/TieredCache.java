@@ -0,0 +1,169 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+/**
+ * Two tier cache: a heap cache ({@link LUCache}, {@link Soft2Cache}) in front of
+ * an {@link OffHeapCache}. New elements are written through to both tiers. So the
+ * heap tier can evict or the GC can reclaim elements at any time; they are
+ * restored from the off-heap tier on next access and promoted to the heap tier
+ * again.
+ *
+ * @see OffHeapCacheManager#newTieredCache(Cache, CacheConfig)
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class TieredCache<K,V>
+        implements Cache<K,V> {
+
+    private Cache<K,V>          heap;
+
+    private OffHeapCache<K,V>   offHeap;
+
+    private CacheStats          stats;
+
+
+    TieredCache( Cache<K,V> heap, OffHeapCache<K,V> offHeap ) {
+        this.heap = heap;
+        this.offHeap = offHeap;
+        this.stats = new CacheStats( heap.getName() );
+    }
+
+
+    public String getName() {
+        return heap.getName();
+    }
+
+
+    public void dispose() {
+        heap.dispose();
+        offHeap.dispose();
+    }
+
+
+    public boolean isDisposed() {
+        return heap.isDisposed();
+    }
+
+
+    public V get( K key ) throws CacheException {
+        V result = lookup( key );
+        if (result != null) {
+            stats.hit();
+        }
+        else {
+            stats.miss();
+        }
+        return result;
+    }
+
+
+    /**
+     * Looks up the heap tier first, then the off-heap tier. Elements found in the
+     * off-heap tier are promoted to the heap tier.
+     */
+    protected V lookup( K key ) {
+        V result = heap.get( key );
+        if (result == null) {
+            result = offHeap.get( key );
+            if (result != null) {
+                V previous = heap.putIfAbsent( key, result );
+                result = previous != null ? previous : result;
+            }
+        }
+        return result;
+    }
+
+
+    public <E extends Throwable> V get( K key, CacheLoader<K,V,E> loader ) throws E {
+        V result = get( key );
+        if (result == null) {
+            result = loader.load( key );
+            if (result != null) {
+                int memSize = loader.size();
+                V previous = memSize != ELEMENT_SIZE_UNKNOW
+                        ? heap.putIfAbsent( key, result, memSize )
+                        : heap.putIfAbsent( key, result );
+                if (previous != null) {
+                    return previous;
+                }
+                offHeap.putIfAbsent( key, result );
+            }
+        }
+        return result;
+    }
+
+
+    public V putIfAbsent( K key, V value ) throws CacheException {
+        V previous = lookup( key );
+        if (previous == null) {
+            previous = heap.putIfAbsent( key, value );
+            if (previous == null) {
+                offHeap.putIfAbsent( key, value );
+            }
+        }
+        return previous;
+    }
+
+
+    public V putIfAbsent( K key, V value, int elementMemSize ) throws CacheException {
+        V previous = lookup( key );
+        if (previous == null) {
+            previous = heap.putIfAbsent( key, value, elementMemSize );
+            if (previous == null) {
+                offHeap.putIfAbsent( key, value );
+            }
+        }
+        return previous;
+    }
+
+
+    public V remove( K key ) throws CacheException {
+        V result = heap.remove( key );
+        V offHeapResult = offHeap.remove( key );
+        return result != null ? result : offHeapResult;
+    }
+
+
+    /**
+     * The number of elements of the off-heap tier.
+     */
+    public int size() {
+        return offHeap.size();
+    }
+
+
+    public void clear() {
+        heap.clear();
+        offHeap.clear();
+    }
+
+
+    /**
+     * The elements of the off-heap tier.
+     */
+    public Iterable<V> values() {
+        return offHeap.values();
+    }
+
+
+    /**
+     * Hits and misses of both tiers together. The statistics of the heap tier are
+     * available via the heap cache itself.
+     */
+    public CacheStats stats() {
+        return stats;
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+/**
+ * Estimates the memory size of cache elements. A weigher is set via
+ * {@link CacheConfig#weigher(Weigher)}. It is used for all elements whose size is
+ * not given by the client code, that is, if {@link CacheLoader#size()} returns
+ * {@link Cache#ELEMENT_SIZE_UNKNOW} or if the element was added via
+ * {@link Cache#putIfAbsent(Object, Object)}.
+ * <p/>
+ * The result should be a fair estimation of the heap used by the element.
+ * It must be cheap to compute, as it is called once for every element added to
+ * the cache.
+ *
+ * @see Weighers
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public interface Weigher<K,V> {
+
+    /**
+     * Estimates the memory size of the given element.
+     *
+     * @return The size in bytes, or {@link Cache#ELEMENT_SIZE_UNKNOW} if this
+     *         weigher cannot handle the given element.
+     */
+    public int weigh( K key, V value );
+
+}
@@ -0,0 +1,183 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.cache;
+
+import java.util.Date;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Built-in {@link Weigher}s for the elements typically cached in POLYMAP: Lucene
+ * {@link Document}s, JTS {@link Geometry}s, byte[] (image tiles) and
+ * {@link SimpleFeature}s. The estimations assume a 64bit VM with compressed
+ * references; they are not exact but good enough to bound the memory of a cache.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public final class Weighers {
+
+    /** Object header plus the fields of a typical small object. */
+    public static final int         OBJECT_OVERHEAD = 16;
+
+    /** A {@link com.vividsolutions.jts.geom.Coordinate} plus its reference in the array. */
+    public static final int         COORDINATE_SIZE = 48;
+
+    /** A {@link Geometry} without its coordinates: envelope, factory, sequence. */
+    public static final int         GEOMETRY_OVERHEAD = 120;
+
+    /** A Lucene field without its value: name, flags, boost. */
+    public static final int         FIELD_OVERHEAD = 64;
+
+    /** Feature, type reference, user data, attribute array. */
+    public static final int         FEATURE_OVERHEAD = 96;
+
+    /** Weighs byte[], for example image tiles. */
+    public static final Weigher<Object,byte[]> BYTES = new Weigher<Object,byte[]>() {
+        public int weigh( Object key, byte[] value ) {
+            return weighBytes( value );
+        }
+    };
+
+    /** Weighs JTS {@link Geometry}s. */
+    public static final Weigher<Object,Geometry> GEOMETRY = new Weigher<Object,Geometry>() {
+        public int weigh( Object key, Geometry value ) {
+            return weighGeometry( value );
+        }
+    };
+
+    /** Weighs Lucene {@link Document}s. */
+    public static final Weigher<Object,Document> DOCUMENT = new Weigher<Object,Document>() {
+        public int weigh( Object key, Document value ) {
+            return weighDocument( value );
+        }
+    };
+
+    /** Weighs {@link SimpleFeature}s, including their geometries. */
+    public static final Weigher<Object,SimpleFeature> FEATURE = new Weigher<Object,SimpleFeature>() {
+        public int weigh( Object key, SimpleFeature value ) {
+            return weighFeature( value );
+        }
+    };
+
+    /**
+     * Weighs all types known by this class and {@link Cache#ELEMENT_SIZE_UNKNOW}
+     * for any other type, so that the default element size of the cache is used.
+     */
+    public static final Weigher<Object,Object> DEFAULT = new Weigher<Object,Object>() {
+        public int weigh( Object key, Object value ) {
+            if (value instanceof byte[]) {
+                return weighBytes( (byte[])value );
+            }
+            else if (value instanceof Geometry) {
+                return weighGeometry( (Geometry)value );
+            }
+            else if (value instanceof Document) {
+                return weighDocument( (Document)value );
+            }
+            else if (value instanceof SimpleFeature) {
+                return weighFeature( (SimpleFeature)value );
+            }
+            else if (value instanceof String) {
+                return weighString( (String)value );
+            }
+            return Cache.ELEMENT_SIZE_UNKNOW;
+        }
+    };
+
+
+    public static int weighBytes( byte[] value ) {
+        return OBJECT_OVERHEAD + value.length;
+    }
+
+
+    public static int weighString( String value ) {
+        return 2 * OBJECT_OVERHEAD + 8 + 2 * value.length();
+    }
+
+
+    public static int weighGeometry( Geometry geom ) {
+        if (geom instanceof GeometryCollection) {
+            int result = GEOMETRY_OVERHEAD;
+            for (int i=0; i<geom.getNumGeometries(); i++) {
+                result += 4 + weighGeometry( geom.getGeometryN( i ) );
+            }
+            return result;
+        }
+        else if (geom instanceof Polygon) {
+            // shell and holes are geometries too
+            int rings = ((Polygon)geom).getNumInteriorRing() + 1;
+            return GEOMETRY_OVERHEAD * (rings + 1) + COORDINATE_SIZE * geom.getNumPoints();
+        }
+        else {
+            return GEOMETRY_OVERHEAD + COORDINATE_SIZE * geom.getNumPoints();
+        }
+    }
+
+
+    public static int weighDocument( Document doc ) {
+        int result = OBJECT_OVERHEAD + 16;
+        for (Fieldable field : doc.getFields()) {
+            result += FIELD_OVERHEAD;
+            if (field.isBinary()) {
+                result += OBJECT_OVERHEAD + field.getBinaryLength();
+            }
+            else {
+                String value = field.stringValue();
+                result += value != null ? weighString( value ) : OBJECT_OVERHEAD + 8;
+            }
+        }
+        return result;
+    }
+
+
+    public static int weighFeature( SimpleFeature feature ) {
+        int result = FEATURE_OVERHEAD + weighString( feature.getID() );
+        for (Object value : feature.getAttributes()) {
+            result += 4 + weighAttribute( value );
+        }
+        return result;
+    }
+
+
+    private static int weighAttribute( Object value ) {
+        if (value == null) {
+            return 0;
+        }
+        else if (value instanceof Geometry) {
+            return weighGeometry( (Geometry)value );
+        }
+        else if (value instanceof String) {
+            return weighString( (String)value );
+        }
+        else if (value instanceof Number || value instanceof Boolean || value instanceof Date) {
+            return OBJECT_OVERHEAD + 8;
+        }
+        else if (value instanceof byte[]) {
+            return weighBytes( (byte[])value );
+        }
+        return 2 * OBJECT_OVERHEAD;
+    }
+
+
+    private Weighers() {
+    }
+
+}
@@ -41,6 +41,16 @@ public class EntityHandle {
     }
 
     
+    public String id() {
+        return id;
+    }
+
+    
+    public String type() {
+        return type;
+    }
+
+    
     public int hashCode() {
         return id.hashCode();
     }
@@ -14,6 +14,7 @@
  */
 package org.polymap.core.runtime.entity;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -64,6 +65,15 @@ public class EntityStateEvent<S>
        return eventType;    
     }
     
+    /**
+     * The handles of the entities that have been changed.
+     *
+     * @return Unmodifiable set of handles.
+     */
+    public Set<EntityHandle> getKeys() {
+        return Collections.unmodifiableSet( keys );
+    }
+    
     public boolean hasChanged( IEntityHandleable handleable ) {
         return keys.contains( handleable.handle() );
     }
@@ -0,0 +1,147 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The result of {@link IRecordStore#aggregate(RecordQuery, ColumnFieldSelector)}:
+ * the number of matching records and min/max/sum of the numeric columns over
+ * these records.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class Aggregates {
+
+    /** The column types that can be aggregated. */
+    public static boolean isNumeric( Class type ) {
+        return Number.class.isAssignableFrom( type ) || Date.class.equals( type );
+    }
+
+
+    // instance *******************************************
+
+    private int                     count;
+
+    private Map<String,Aggregate>   aggregates = new LinkedHashMap();
+
+
+    /**
+     * Creates an empty instance with one {@link Aggregate} per column of the
+     * given selector.
+     *
+     * @throws IllegalArgumentException If a column is not numeric.
+     */
+    public Aggregates( ColumnFieldSelector columns ) {
+        for (Map.Entry<String,Class> entry : columns.columns().entrySet()) {
+            if (!isNumeric( entry.getValue() )) {
+                throw new IllegalArgumentException( "Column type cannot be aggregated: " + entry.getValue() );
+            }
+            aggregates.put( entry.getKey(), new Aggregate() );
+        }
+    }
+
+
+    /**
+     * The number of records matching the query.
+     */
+    public int count() {
+        return count;
+    }
+
+    public void setCount( int count ) {
+        this.count = count;
+    }
+
+
+    /**
+     * The aggregate of the given column.
+     *
+     * @return The aggregate, or null if no such column was requested.
+     */
+    public Aggregate get( String key ) {
+        return aggregates.get( key );
+    }
+
+
+    public Map<String,Aggregate> all() {
+        return Collections.unmodifiableMap( aggregates );
+    }
+
+
+    public String toString() {
+        return "Aggregates[count=" + count + ", " + aggregates + "]";
+    }
+
+
+    /**
+     * Min/max/sum of the values of one column. Records without a value are not
+     * counted. {@link Date} values are aggregated as milliseconds.
+     */
+    public static class Aggregate {
+
+        private int         count;
+
+        private double      min = Double.POSITIVE_INFINITY;
+
+        private double      max = Double.NEGATIVE_INFINITY;
+
+        private double      sum;
+
+
+        public void add( double value ) {
+            count ++;
+            sum += value;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        /** The number of records that have a value for this column. */
+        public int count() {
+            return count;
+        }
+
+        /** The min value, or {@link Double#NaN} if {@link #count()} is 0. */
+        public double min() {
+            return count > 0 ? min : Double.NaN;
+        }
+
+        /** The max value, or {@link Double#NaN} if {@link #count()} is 0. */
+        public double max() {
+            return count > 0 ? max : Double.NaN;
+        }
+
+        public double sum() {
+            return sum;
+        }
+
+        /** The average value, or {@link Double#NaN} if {@link #count()} is 0. */
+        public double avg() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        public String toString() {
+            return "[count=" + count + ", min=" + min() + ", max=" + max() + ", sum=" + sum + "]";
+        }
+    }
+
+}
@@ -14,6 +14,8 @@
  */
 package org.polymap.core.runtime.recordstore;
 
+import java.util.Date;
+
 /**
  * Provides common base methods.
  *
@@ -32,5 +34,50 @@ public abstract class BaseRecordStore
     public void setIndexFieldSelector( IRecordFieldSelector indexFieldSelector ) {
         this.indexFieldSelector = indexFieldSelector;
     }
+
+
+    /**
+     * This default implementation executes the query and counts the result.
+     */
+    public int count( RecordQuery query ) throws Exception {
+        ResultSet rs = find( query );
+        try {
+            return rs.count();
+        }
+        finally {
+            rs.close();
+        }
+    }
+
+
+    /**
+     * This default implementation loads the matching records.
+     */
+    public Aggregates aggregate( RecordQuery query, ColumnFieldSelector columns ) throws Exception {
+        Aggregates result = new Aggregates( columns );
+        RecordQuery columnQuery = query.copy();
+        columnQuery.setFieldSelector( columns );
+        ResultSet rs = find( columnQuery );
+        try {
+            int count = 0;
+            for (IRecordState record : rs) {
+                count ++;
+                for (String key : columns.columns().keySet()) {
+                    Object value = record.get( key );
+                    if (value instanceof Number) {
+                        result.get( key ).add( ((Number)value).doubleValue() );
+                    }
+                    else if (value instanceof Date) {
+                        result.get( key ).add( ((Date)value).getTime() );
+                    }
+                }
+            }
+            result.setCount( count );
+            return result;
+        }
+        finally {
+            rs.close();
+        }
+    }
     
 }
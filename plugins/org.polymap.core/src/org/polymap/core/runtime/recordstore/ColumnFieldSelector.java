@@ -0,0 +1,87 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects a few fields of the records of a {@link RecordQuery} whose values are
+ * to be read column-wise. A store that supports this (the Lucene store, for
+ * example) reads the values from per-segment arrays instead of loading the
+ * stored fields of every record. This is much faster if many records but just
+ * 1-3 fields are needed, for example for rendering or table views.
+ * <p/>
+ * The records of the {@link ResultSet} are read-only then. Fields that are not
+ * selected can still be read, but they are loaded the usual way. Stores that do
+ * not support columns just use this as a plain {@link IRecordFieldSelector}.
+ * <p/>
+ * Supported types: {@link #TYPES}. The type of a column must match the type of
+ * the stored values. Strings should be short and indexed, as all distinct
+ * values of a column are held in memory.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class ColumnFieldSelector
+        implements IRecordFieldSelector {
+
+    public static final List<Class> TYPES = Collections.unmodifiableList( Arrays.asList( new Class[] {
+            Integer.class, Long.class, Float.class, Double.class, Date.class, String.class, Boolean.class } ) );
+
+    private Map<String,Class>       columns = new LinkedHashMap();
+
+
+    /**
+     * Adds a column.
+     *
+     * @param key The key of the field.
+     * @param type The type of the values of the field; one of {@link #TYPES}.
+     * @return this
+     */
+    public ColumnFieldSelector add( String key, Class type ) {
+        if (!TYPES.contains( type )) {
+            throw new IllegalArgumentException( "Column type not supported: " + type );
+        }
+        columns.put( key, type );
+        return this;
+    }
+
+
+    /**
+     * The selected columns: key -> type.
+     */
+    public Map<String,Class> columns() {
+        return Collections.unmodifiableMap( columns );
+    }
+
+
+    /**
+     * Accepts the keys of the columns and the keys starting with them, as stores
+     * may encode a value into several fields.
+     */
+    public boolean accept( String key ) {
+        for (String column : columns.keySet()) {
+            if (key.startsWith( column )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
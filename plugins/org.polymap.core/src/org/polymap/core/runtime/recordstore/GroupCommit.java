@@ -0,0 +1,225 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.polymap.core.runtime.Timer;
+
+/**
+ * Merges concurrently applied transactions of a store into one physical commit
+ * (group commit).
+ * <p/>
+ * A thread that commits a transaction puts it into the queue. The first thread that
+ * finds no other thread committing becomes the leader: it drains the queue and
+ * commits all queued transactions at once via {@link #commitGroup(List)}. The other
+ * threads just wait for the {@link Future} of their transaction. So the number of
+ * physical commits does not grow with the number of concurrent writers.
+ * <p/>
+ * {@link #commitGroup(List)} has to be all-or-nothing. If it fails for a group,
+ * then the transactions of the group are committed one by one, so that just the
+ * futures of the transactions that actually fail get the exception.
+ *
+ * @param <T> The type of the transactions.
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public abstract class GroupCommit<T> {
+
+    private static Log log = LogFactory.getLog( GroupCommit.class );
+
+    public static final int         DEFAULT_MAX_GROUP_SIZE = 100;
+
+    private ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue();
+
+    /** True while a leader thread is committing. */
+    private AtomicBoolean           committing = new AtomicBoolean();
+
+    private int                     maxGroupSize = DEFAULT_MAX_GROUP_SIZE;
+
+    private AtomicLong              txCount = new AtomicLong();
+
+    private AtomicLong              groupCount = new AtomicLong();
+
+    private AtomicLong              failedCount = new AtomicLong();
+
+    private AtomicLong              commitMillis = new AtomicLong();
+
+
+    /**
+     * Physically commits the given transactions at once.
+     *
+     * @param group The transactions to commit, in the order they were submitted.
+     */
+    protected abstract void commitGroup( List<T> group ) throws Exception;
+
+
+    public GroupCommit<T> setMaxGroupSize( int maxGroupSize ) {
+        this.maxGroupSize = maxGroupSize;
+        return this;
+    }
+
+
+    /**
+     * Submits the given transaction. If no other thread is committing currently,
+     * then the calling thread commits this and all other queued transactions
+     * before this method returns.
+     *
+     * @return The future that is done when the transaction is committed.
+     */
+    public Future<T> submit( T tx ) {
+        Pending pending = new Pending( tx );
+        queue.add( pending );
+        processQueue();
+        return pending.future;
+    }
+
+
+    /**
+     * Submits the given transaction and waits until it is committed.
+     *
+     * @throws Exception The exception thrown by {@link #commitGroup(List)}.
+     */
+    public void commit( T tx ) throws Exception {
+        try {
+            submit( tx ).get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception)cause : new RuntimeException( cause );
+        }
+    }
+
+
+    protected void processQueue() {
+        // re-check the queue after releasing the leadership; another thread may
+        // have submitted while we were committing
+        while (!queue.isEmpty()) {
+            if (!committing.compareAndSet( false, true )) {
+                return;
+            }
+            try {
+                List<Pending> group = new ArrayList( Math.min( maxGroupSize, 16 ) );
+                for (Pending pending = queue.poll(); pending != null; ) {
+                    group.add( pending );
+                    pending = group.size() < maxGroupSize ? queue.poll() : null;
+                }
+                commit( group );
+            }
+            finally {
+                committing.set( false );
+            }
+        }
+    }
+
+
+    protected void commit( List<Pending> group ) {
+        List<T> txs = new ArrayList( group.size() );
+        for (Pending pending : group) {
+            txs.add( pending.tx );
+        }
+        Timer timer = new Timer();
+        try {
+            commitGroup( txs );
+            for (Pending pending : group) {
+                pending.future.set( pending.tx );
+            }
+        }
+        catch (Throwable e) {
+            if (group.size() == 1) {
+                failedCount.incrementAndGet();
+                group.get( 0 ).future.setException( e );
+            }
+            else {
+                // find the failing transactions; don't fail the others
+                log.warn( "Group commit failed, committing " + group.size() + " transactions one by one: " + e );
+                for (Pending pending : group) {
+                    try {
+                        commitGroup( Collections.singletonList( pending.tx ) );
+                        pending.future.set( pending.tx );
+                    }
+                    catch (Throwable ee) {
+                        failedCount.incrementAndGet();
+                        pending.future.setException( ee );
+                    }
+                }
+            }
+        }
+        finally {
+            commitMillis.addAndGet( timer.elapsedTime() );
+            txCount.addAndGet( group.size() );
+            groupCount.incrementAndGet();
+            log.debug( "Group commit: " + group.size() + " transactions (" + timer.elapsedTime() + "ms)" );
+        }
+    }
+
+
+    /** The number of transactions committed or failed so far. */
+    public long txCount() {
+        return txCount.get();
+    }
+
+    /** The number of physical commits so far. */
+    public long groupCount() {
+        return groupCount.get();
+    }
+
+    /** The number of transactions that failed so far. */
+    public long failedCount() {
+        return failedCount.get();
+    }
+
+    /** The total time of all physical commits in milliseconds. */
+    public long commitMillis() {
+        return commitMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        long groups = groupCount();
+        return "GroupCommit[transactions=" + txCount()
+                + ", commits=" + groups
+                + ", tx/commit=" + (groups > 0 ? (double)txCount() / groups : 0)
+                + ", failed=" + failedCount()
+                + ", time=" + commitMillis() + "ms]";
+    }
+
+
+    /**
+     * A queued transaction.
+     */
+    class Pending {
+
+        T                   tx;
+
+        SettableFuture<T>   future = SettableFuture.create();
+
+        Pending( T tx ) {
+            this.tx = tx;
+        }
+    }
+
+}
@@ -75,6 +75,31 @@ public interface IRecordStore {
      */
     public ResultSet find( RecordQuery query ) throws Exception;
 
+    /**
+     * Counts the records matching the given query, without loading them.
+     *
+     * @param query
+     * @return The number of matching records, but not more than
+     *         {@link RecordQuery#getMaxResults()}.
+     */
+    public int count( RecordQuery query ) throws Exception;
+
+    /**
+     * Computes the number of records matching the given query and min/max/sum of
+     * the given columns over these records, without loading the records.
+     * <p/>
+     * Just like {@link #count(RecordQuery)}, not more than
+     * {@link RecordQuery#getMaxResults()} records are aggregated. The sort order of
+     * the query is ignored; so if more records match, then it is not specified
+     * which of them are aggregated.
+     *
+     * @param query The query; it is not modified.
+     * @param columns The columns to aggregate. Just numeric and {@link java.util.Date}
+     *        columns are supported.
+     * @throws IllegalArgumentException If a column is not numeric.
+     */
+    public Aggregates aggregate( RecordQuery query, ColumnFieldSelector columns ) throws Exception;
+
     
     /**
      * Starts an update of the store. The returned {@link Updater} is used to
@@ -109,6 +134,16 @@ public interface IRecordStore {
         
         void remove( IRecordState record ) throws Exception;
         
+        /**
+         * Removes all records matching the given query, without loading them.
+         * {@link RecordQuery#getMaxResults()} is ignored.
+         *
+         * @param query
+         * @throws UnsupportedOperationException If this store does not support
+         *         the given type of query.
+         */
+        void remove( RecordQuery query ) throws Exception;
+        
         void discard();
         
         /**
@@ -173,6 +173,24 @@ public abstract class QueryExpression {
     }
 
     
+    /**
+     * Matches records that have no value for the given key.
+     */
+    public static class IsNull
+            extends QueryExpression {
+
+        public String       key;
+
+        public IsNull( String key ) {
+            this.key = key;
+        }
+
+        public boolean evaluate( IRecordState record ) {
+            return record.get( key ) == null;
+        }
+    }
+
+
     /**
      * 
      */
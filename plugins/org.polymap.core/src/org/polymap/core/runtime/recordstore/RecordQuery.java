@@ -22,7 +22,8 @@ import java.io.IOException;
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
-public abstract class RecordQuery {
+public abstract class RecordQuery
+        implements Cloneable {
 
     /** The default value returned by {@link #getMaxResults()}. Defaults to 10. */
     public static final int     DEFAULT_MAX_RESULTS = 10;
@@ -108,4 +109,17 @@ public abstract class RecordQuery {
         this.fieldSelector = fieldSelector;
     }
 
+    /**
+     * Creates a copy of this query that can be modified without changing this
+     * query.
+     */
+    public RecordQuery copy() {
+        try {
+            return (RecordQuery)clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new RuntimeException( e );
+        }
+    }
+
 }
@@ -26,6 +26,11 @@ public interface ResultSet
     
     public int count();
     
+    /**
+     * Releases the resources of this result set. Implementations may close the
+     * set when an iterator is exhausted; the records cannot be accessed after
+     * the set was closed. Closing a closed set has no effect.
+     */
     public void close();
     
 }
\ No newline at end of file
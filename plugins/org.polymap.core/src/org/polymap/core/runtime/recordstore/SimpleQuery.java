@@ -56,6 +56,13 @@ public final class SimpleQuery
     }
     
     
+    public SimpleQuery copy() {
+        SimpleQuery result = (SimpleQuery)super.copy();
+        result.expressions = new ArrayList( expressions );
+        return result;
+    }
+
+
     public ResultSet execute() throws IOException {
         throw new RuntimeException( "Method must never be called. Stores have to provide specific logic." );
     }
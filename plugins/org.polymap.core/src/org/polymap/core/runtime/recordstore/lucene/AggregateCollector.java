@@ -0,0 +1,147 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import java.util.Date;
+import java.util.Map;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+
+import org.polymap.core.runtime.recordstore.Aggregates;
+import org.polymap.core.runtime.recordstore.Aggregates.Aggregate;
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
+
+/**
+ * Counts the hits of a query and aggregates the values of numeric columns. The
+ * values are read from the {@link FieldCache} arrays of every segment, the same
+ * arrays that {@link ColumnValues} uses. No stored field is loaded and nothing is
+ * scored.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+final class AggregateCollector
+        extends Collector {
+
+    private Aggregates          result;
+
+    private int                 count;
+
+    private int                 maxResults;
+
+    private String[]            keys;
+
+    private Class[]             types;
+
+    private Aggregate[]         aggregates;
+
+    /** The value arrays of the current segment. */
+    private Object[]            arrays;
+
+    private Bits[]              docsWithField;
+
+
+    /**
+     * @param columns The columns to aggregate.
+     * @param maxResults The max number of hits to aggregate.
+     */
+    public AggregateCollector( ColumnFieldSelector columns, int maxResults ) {
+        this.result = new Aggregates( columns );
+        this.maxResults = maxResults;
+
+        Map<String,Class> types = columns.columns();
+        this.keys = types.keySet().toArray( new String[types.size()] );
+        this.types = new Class[ keys.length ];
+        this.aggregates = new Aggregate[ keys.length ];
+        for (int i=0; i<keys.length; i++) {
+            this.types[i] = types.get( keys[i] );
+            this.aggregates[i] = result.get( keys[i] );
+        }
+        this.arrays = new Object[ keys.length ];
+        this.docsWithField = new Bits[ keys.length ];
+    }
+
+
+    public Aggregates result() {
+        result.setCount( count );
+        return result;
+    }
+
+
+    public void setScorer( Scorer scorer ) throws IOException {
+    }
+
+
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+
+    public void setNextReader( IndexReader segment, int docBase ) throws IOException {
+        FieldCache cache = FieldCache.DEFAULT;
+        for (int i=0; i<keys.length; i++) {
+            Class type = types[i];
+            String field = type.equals( Date.class ) ? keys[i] + DateValueCoder.SUFFIX : keys[i];
+            if (type.equals( Integer.class )) {
+                arrays[i] = cache.getInts( segment, field, FieldCache.NUMERIC_UTILS_INT_PARSER, true );
+            }
+            else if (type.equals( Long.class ) || type.equals( Date.class )) {
+                arrays[i] = cache.getLongs( segment, field, FieldCache.NUMERIC_UTILS_LONG_PARSER, true );
+            }
+            else if (type.equals( Float.class )) {
+                arrays[i] = cache.getFloats( segment, field, FieldCache.NUMERIC_UTILS_FLOAT_PARSER, true );
+            }
+            else if (type.equals( Double.class )) {
+                arrays[i] = cache.getDoubles( segment, field, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true );
+            }
+            else {
+                throw new IllegalArgumentException( "Column type cannot be aggregated: " + type );
+            }
+            docsWithField[i] = cache.getDocsWithField( segment, field );
+        }
+    }
+
+
+    public void collect( int doc ) throws IOException {
+        if (count >= maxResults) {
+            return;
+        }
+        count ++;
+        for (int i=0; i<keys.length; i++) {
+            if (!docsWithField[i].get( doc )) {
+                continue;
+            }
+            Object array = arrays[i];
+            if (array instanceof int[]) {
+                aggregates[i].add( ((int[])array)[doc] );
+            }
+            else if (array instanceof long[]) {
+                aggregates[i].add( ((long[])array)[doc] );
+            }
+            else if (array instanceof float[]) {
+                aggregates[i].add( ((float[])array)[doc] );
+            }
+            else {
+                aggregates[i].add( ((double[])array)[doc] );
+            }
+        }
+    }
+
+}
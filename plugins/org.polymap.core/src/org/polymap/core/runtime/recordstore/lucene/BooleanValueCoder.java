@@ -69,6 +69,10 @@ final class BooleanValueCoder
                 return new TermQuery( new Term( equalExp.key+SUFFIX, equalExp.value.toString()) );
             }
         }
+        // IS NULL
+        else if (exp instanceof QueryExpression.IsNull) {
+            return ValueCoders.isNullQuery( ((QueryExpression.IsNull)exp).key+SUFFIX );
+        }
         return null;
     }
     
@@ -0,0 +1,115 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
+import org.polymap.core.runtime.recordstore.IRecordState;
+
+/**
+ * Read-only record of a query with a {@link ColumnFieldSelector}. The values of the
+ * columns are read from {@link ColumnValues}. All other values are read from the
+ * stored document, which is loaded on first access.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+final class ColumnRecordState
+        implements IRecordState {
+
+    private LuceneRecordStore   store;
+
+    private ColumnValues        columns;
+
+    private int                 docnum;
+
+    private LuceneRecordState   record;
+
+
+    ColumnRecordState( LuceneRecordStore store, ColumnValues columns, int docnum ) {
+        this.store = store;
+        this.columns = columns;
+        this.docnum = docnum;
+    }
+
+
+    /**
+     * The stored document of this record, loaded on first call. The document is
+     * loaded by id, as the docnum is valid just for the reader of the query.
+     */
+    protected LuceneRecordState record() {
+        if (record == null) {
+            try {
+                record = (LuceneRecordState)store.get( id() );
+            }
+            catch (Exception e) {
+                throw new RuntimeException( e );
+            }
+            if (record == null) {
+                throw new IllegalStateException( "Record was removed meanwhile: " + id() );
+            }
+        }
+        return record;
+    }
+
+
+    public Object id() {
+        return columns.id( docnum );
+    }
+
+
+    public <T> T get( String key ) {
+        if (columns.contains( key )) {
+            Object result = columns.get( key, docnum );
+            if (result != ColumnValues.NOT_AVAILABLE) {
+                return (T)result;
+            }
+        }
+        return record().get( key );
+    }
+
+
+    public <T> List<T> getList( String key ) {
+        return record().getList( key );
+    }
+
+
+    public Iterator<Entry<String,Object>> iterator() {
+        return record().iterator();
+    }
+
+
+    public <T> IRecordState put( String key, T value ) {
+        throw new UnsupportedOperationException( "Records of a column query are read-only." );
+    }
+
+
+    public IRecordState add( String key, Object value ) {
+        throw new UnsupportedOperationException( "Records of a column query are read-only." );
+    }
+
+
+    public IRecordState remove( String key ) {
+        throw new UnsupportedOperationException( "Records of a column query are read-only." );
+    }
+
+
+    public String toString() {
+        return "ColumnRecordState[id=" + id() + ", docnum=" + docnum + "]";
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.FieldOption;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ReaderUtil;
+
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
+
+/**
+ * The column values of a {@link ColumnFieldSelector} for one snapshot of the index.
+ * The values are read from the {@link FieldCache} of every segment. The arrays are
+ * built from the indexed terms on first access and are shared by all queries
+ * until the segment is closed; so queries do not touch the stored fields.
+ * <p/>
+ * Fields that are not indexed in a segment cannot be read from columns, for these
+ * {@link #get(String, int)} returns {@link #NOT_AVAILABLE}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+final class ColumnValues {
+
+    /** Value returned if a field of a segment is stored but not indexed. */
+    public static final Object      NOT_AVAILABLE = new Object();
+
+    private int[]                   docStarts;
+
+    private List<IndexReader>       segments = new ArrayList();
+
+    /** The record ids of every segment; loaded on first {@link #id(int)} of the segment. */
+    private String[][]              ids;
+
+    private Map<String,Column>      columns = new HashMap();
+
+
+    /**
+     * Loads the columns of the segments of the given reader.
+     */
+    public ColumnValues( IndexReader reader, Map<String,Class> types ) throws IOException {
+        ReaderUtil.gatherSubReaders( segments, reader );
+
+        docStarts = new int[ segments.size() ];
+        ids = new String[ segments.size() ][];
+        List<Collection<String>> allFields = new ArrayList( segments.size() );
+        List<Collection<String>> indexedFields = new ArrayList( segments.size() );
+        for (int i=0, docStart=0; i<segments.size(); i++) {
+            IndexReader segment = segments.get( i );
+            docStarts[i] = docStart;
+            docStart += segment.maxDoc();
+            allFields.add( segment.getFieldNames( FieldOption.ALL ) );
+            indexedFields.add( segment.getFieldNames( FieldOption.INDEXED ) );
+        }
+        for (Map.Entry<String,Class> entry : types.entrySet()) {
+            columns.put( entry.getKey(), new Column( entry.getKey(), entry.getValue(),
+                    segments, allFields, indexedFields ) );
+        }
+    }
+
+
+    public boolean contains( String key ) {
+        return columns.containsKey( key );
+    }
+
+
+    /**
+     * The record id of the given document. The ids of a segment are loaded into
+     * the {@link FieldCache} on first call, so queries that do not ask for ids do
+     * not pin them in memory.
+     */
+    public String id( int docnum ) {
+        int segment = ReaderUtil.subIndex( docnum, docStarts );
+        String[] segmentIds = ids[segment];
+        if (segmentIds == null) {
+            try {
+                // FieldCache synchronizes concurrent loads of the same segment
+                ids[segment] = segmentIds = FieldCache.DEFAULT.getStrings( 
+                        segments.get( segment ), LuceneRecordState.ID_FIELD );
+            }
+            catch (IOException e) {
+                throw new RuntimeException( e );
+            }
+        }
+        return segmentIds[docnum - docStarts[segment]];
+    }
+
+
+    /**
+     * The value of the given column and document.
+     *
+     * @return The value, null if the document has no value, or
+     *         {@link #NOT_AVAILABLE}.
+     */
+    public Object get( String key, int docnum ) {
+        int segment = ReaderUtil.subIndex( docnum, docStarts );
+        return columns.get( key ).value( segment, docnum - docStarts[segment] );
+    }
+
+
+    /**
+     * The arrays of one column, one per segment.
+     */
+    static class Column {
+
+        private Class           type;
+
+        private String          field;
+
+        /** The value arrays; null if the segment has no such field. */
+        private Object[]        arrays;
+
+        /** Numeric columns only. */
+        private Bits[]          docsWithField;
+
+        private boolean[]       available;
+
+
+        public Column( String key, Class type, List<IndexReader> segments,
+                List<Collection<String>> allFields, List<Collection<String>> indexedFields )
+                throws IOException {
+            this.type = type;
+            this.field = type.equals( Date.class ) ? key + DateValueCoder.SUFFIX
+                    : type.equals( Boolean.class ) ? key + BooleanValueCoder.SUFFIX : key;
+
+            arrays = new Object[ segments.size() ];
+            docsWithField = new Bits[ segments.size() ];
+            available = new boolean[ segments.size() ];
+            for (int i=0; i<segments.size(); i++) {
+                if (!allFields.get( i ).contains( field )) {
+                    available[i] = true;
+                }
+                else if (indexedFields.get( i ).contains( field )) {
+                    arrays[i] = load( segments.get( i ) );
+                    if (!type.equals( String.class ) && !type.equals( Boolean.class )) {
+                        docsWithField[i] = FieldCache.DEFAULT.getDocsWithField( segments.get( i ), field );
+                    }
+                    available[i] = true;
+                }
+            }
+        }
+
+
+        protected Object load( IndexReader segment ) throws IOException {
+            FieldCache cache = FieldCache.DEFAULT;
+            if (type.equals( Integer.class )) {
+                return cache.getInts( segment, field, FieldCache.NUMERIC_UTILS_INT_PARSER, true );
+            }
+            else if (type.equals( Long.class ) || type.equals( Date.class )) {
+                return cache.getLongs( segment, field, FieldCache.NUMERIC_UTILS_LONG_PARSER, true );
+            }
+            else if (type.equals( Float.class )) {
+                return cache.getFloats( segment, field, FieldCache.NUMERIC_UTILS_FLOAT_PARSER, true );
+            }
+            else if (type.equals( Double.class )) {
+                return cache.getDoubles( segment, field, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true );
+            }
+            else {
+                return cache.getStrings( segment, field );
+            }
+        }
+
+
+        public Object value( int segment, int doc ) {
+            if (!available[segment]) {
+                return NOT_AVAILABLE;
+            }
+            Object array = arrays[segment];
+            if (array == null
+                    || (docsWithField[segment] != null && !docsWithField[segment].get( doc ))) {
+                return null;
+            }
+            if (type.equals( Integer.class )) {
+                return ((int[])array)[doc];
+            }
+            else if (type.equals( Long.class )) {
+                return ((long[])array)[doc];
+            }
+            else if (type.equals( Date.class )) {
+                return new Date( ((long[])array)[doc] );
+            }
+            else if (type.equals( Float.class )) {
+                return ((float[])array)[doc];
+            }
+            else if (type.equals( Double.class )) {
+                return ((double[])array)[doc];
+            }
+            else if (type.equals( Boolean.class )) {
+                String value = ((String[])array)[doc];
+                return value != null ? Boolean.valueOf( value ) : null;
+            }
+            else {
+                return ((String[])array)[doc];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Compact binary encoding of 2D {@link Geometry} values. Coordinates are rounded to
+ * a fixed number of decimals and stored as zigzag varint deltas to the previous
+ * coordinate. For typical features this is 3-5 times smaller than WKB.
+ * <p/>
+ * The first byte is {@link #MARKER}, which is never the first byte of WKB (byte
+ * order: 0 or 1). So both formats can be mixed in one index.
+ * <p/>
+ * Layout: marker, decimals, type, body. The body of a point or line is the number
+ * of coordinates followed by the coordinate deltas; polygons and collections have
+ * the number of rings/parts followed by the bodies (collection parts with their
+ * type byte).
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class CompactGeometryFormat {
+
+    public static final byte        MARKER = (byte)0xC7;
+
+    public static final int         MAX_DECIMALS = 12;
+
+    private static final byte       POINT = 1;
+    private static final byte       LINESTRING = 2;
+    private static final byte       POLYGON = 3;
+    private static final byte       MULTIPOINT = 4;
+    private static final byte       MULTILINESTRING = 5;
+    private static final byte       MULTIPOLYGON = 6;
+    private static final byte       COLLECTION = 7;
+    private static final byte       LINEARRING = 8;
+
+
+    public static boolean isCompact( byte[] data, int offset, int length ) {
+        return length > 0 && data[offset] == MARKER;
+    }
+
+
+    // writer *********************************************
+
+    /**
+     * Not thread-safe.
+     */
+    static class Writer {
+
+        private double          scale;
+
+        private int             decimals;
+
+        private byte[]          buf = new byte[ 256 ];
+
+        private int             pos;
+
+        private long            lastX, lastY;
+
+
+        public Writer( int decimals ) {
+            assert decimals >= 0 && decimals <= MAX_DECIMALS : "Decimals out of range: " + decimals;
+            this.decimals = decimals;
+            this.scale = Math.pow( 10, decimals );
+        }
+
+
+        public byte[] write( Geometry geom ) {
+            pos = 0;
+            lastX = lastY = 0;
+            writeByte( MARKER );
+            writeByte( (byte)decimals );
+            writeGeometry( geom );
+            return Arrays.copyOf( buf, pos );
+        }
+
+
+        protected void writeGeometry( Geometry geom ) {
+            // check more special types first
+            if (geom instanceof Point) {
+                writeByte( POINT );
+                writeCoordinates( ((Point)geom).getCoordinateSequence() );
+            }
+            else if (geom instanceof LinearRing) {
+                writeByte( LINEARRING );
+                writeCoordinates( ((LinearRing)geom).getCoordinateSequence() );
+            }
+            else if (geom instanceof LineString) {
+                writeByte( LINESTRING );
+                writeCoordinates( ((LineString)geom).getCoordinateSequence() );
+            }
+            else if (geom instanceof Polygon) {
+                writeByte( POLYGON );
+                writePolygon( (Polygon)geom );
+            }
+            else if (geom instanceof GeometryCollection) {
+                writeByte( geom instanceof MultiPoint ? MULTIPOINT
+                        : geom instanceof MultiLineString ? MULTILINESTRING
+                        : geom instanceof MultiPolygon ? MULTIPOLYGON : COLLECTION );
+                int num = geom.getNumGeometries();
+                writeVarint( num );
+                for (int i=0; i<num; i++) {
+                    writeGeometry( geom.getGeometryN( i ) );
+                }
+            }
+            else {
+                throw new IllegalArgumentException( "Unhandled geometry type: " + geom.getGeometryType() );
+            }
+        }
+
+
+        protected void writePolygon( Polygon polygon ) {
+            if (polygon.isEmpty()) {
+                writeVarint( 0 );
+                return;
+            }
+            writeVarint( polygon.getNumInteriorRing() + 1 );
+            writeCoordinates( polygon.getExteriorRing().getCoordinateSequence() );
+            for (int i=0; i<polygon.getNumInteriorRing(); i++) {
+                writeCoordinates( polygon.getInteriorRingN( i ).getCoordinateSequence() );
+            }
+        }
+
+
+        protected void writeCoordinates( CoordinateSequence seq ) {
+            int size = seq.size();
+            writeVarint( size );
+            for (int i=0; i<size; i++) {
+                long x = Math.round( seq.getOrdinate( i, CoordinateSequence.X ) * scale );
+                long y = Math.round( seq.getOrdinate( i, CoordinateSequence.Y ) * scale );
+                writeZigzag( x - lastX );
+                writeZigzag( y - lastY );
+                lastX = x;
+                lastY = y;
+            }
+        }
+
+
+        protected void writeZigzag( long value ) {
+            writeVarint( (value << 1) ^ (value >> 63) );
+        }
+
+
+        protected void writeVarint( long value ) {
+            ensureCapacity( 10 );
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte)value;
+        }
+
+
+        protected void writeByte( byte b ) {
+            ensureCapacity( 1 );
+            buf[pos++] = b;
+        }
+
+
+        protected void ensureCapacity( int more ) {
+            if (pos + more > buf.length) {
+                buf = Arrays.copyOf( buf, Math.max( buf.length * 2, pos + more ) );
+            }
+        }
+    }
+
+
+    // reader *********************************************
+
+    /**
+     * Reads directly from the given bytes, without copying. Not thread-safe.
+     */
+    static class Reader {
+
+        private GeometryFactory gf;
+
+        private byte[]          data;
+
+        private int             pos, end;
+
+        private double          scale;
+
+        private long            lastX, lastY;
+
+
+        public Reader( GeometryFactory gf ) {
+            this.gf = gf;
+        }
+
+
+        public Geometry read( byte[] _data, int offset, int length ) {
+            this.data = _data;
+            this.pos = offset;
+            this.end = offset + length;
+            this.lastX = lastY = 0;
+            try {
+                if (readByte() != MARKER) {
+                    throw new IllegalArgumentException( "Not a compact geometry." );
+                }
+                scale = Math.pow( 10, readByte() );
+                return readGeometry();
+            }
+            finally {
+                this.data = null;
+            }
+        }
+
+
+        protected Geometry readGeometry() {
+            byte type = readByte();
+            switch (type) {
+                case POINT: {
+                    CoordinateSequence seq = readCoordinates();
+                    return gf.createPoint( seq.size() > 0 ? seq : null );
+                }
+                case LINESTRING:
+                    return gf.createLineString( readCoordinates() );
+                case LINEARRING:
+                    return gf.createLinearRing( readCoordinates() );
+                case POLYGON:
+                    return readPolygon();
+                case MULTIPOINT: {
+                    Point[] parts = new Point[ readCount() ];
+                    for (int i=0; i<parts.length; i++) {
+                        parts[i] = (Point)readGeometry();
+                    }
+                    return gf.createMultiPoint( parts );
+                }
+                case MULTILINESTRING: {
+                    LineString[] parts = new LineString[ readCount() ];
+                    for (int i=0; i<parts.length; i++) {
+                        parts[i] = (LineString)readGeometry();
+                    }
+                    return gf.createMultiLineString( parts );
+                }
+                case MULTIPOLYGON: {
+                    Polygon[] parts = new Polygon[ readCount() ];
+                    for (int i=0; i<parts.length; i++) {
+                        parts[i] = (Polygon)readGeometry();
+                    }
+                    return gf.createMultiPolygon( parts );
+                }
+                case COLLECTION: {
+                    Geometry[] parts = new Geometry[ readCount() ];
+                    for (int i=0; i<parts.length; i++) {
+                        parts[i] = readGeometry();
+                    }
+                    return gf.createGeometryCollection( parts );
+                }
+                default:
+                    throw new IllegalArgumentException( "Unknown geometry type: " + type );
+            }
+        }
+
+
+        protected Polygon readPolygon() {
+            int numRings = readCount();
+            if (numRings == 0) {
+                return gf.createPolygon( (LinearRing)null, null );
+            }
+            LinearRing shell = gf.createLinearRing( readCoordinates() );
+            LinearRing[] holes = new LinearRing[ numRings - 1 ];
+            for (int i=0; i<holes.length; i++) {
+                holes[i] = gf.createLinearRing( readCoordinates() );
+            }
+            return gf.createPolygon( shell, holes );
+        }
+
+
+        protected CoordinateSequence readCoordinates() {
+            int size = readCount();
+            CoordinateSequence result = gf.getCoordinateSequenceFactory().create( size, 2 );
+            for (int i=0; i<size; i++) {
+                lastX += readZigzag();
+                lastY += readZigzag();
+                result.setOrdinate( i, CoordinateSequence.X, lastX / scale );
+                result.setOrdinate( i, CoordinateSequence.Y, lastY / scale );
+            }
+            return result;
+        }
+
+
+        protected int readCount() {
+            long result = readVarint();
+            if (result < 0 || result > end - pos) {
+                throw new IllegalArgumentException( "Invalid count: " + result );
+            }
+            return (int)result;
+        }
+
+
+        protected long readZigzag() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+
+        protected long readVarint() {
+            long result = 0;
+            for (int shift=0; shift<64; shift+=7) {
+                byte b = readByte();
+                result |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException( "Malformed varint." );
+        }
+
+
+        protected byte readByte() {
+            if (pos >= end) {
+                throw new IllegalArgumentException( "Unexpected end of data." );
+            }
+            return data[pos++];
+        }
+    }
+
+}
@@ -71,7 +71,10 @@ public final class DateValueCoder
 
 
     public Query searchQuery( QueryExpression exp ) {
-        if (exp instanceof Comparison) {
+        if (exp instanceof QueryExpression.IsNull) {
+            return ValueCoders.isNullQuery( ((QueryExpression.IsNull)exp).key+SUFFIX );
+        }
+        else if (exp instanceof Comparison) {
             String key = ((Comparison)exp).key;
             Object value = ((Comparison)exp).value;
             
@@ -0,0 +1,112 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.SetBasedFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.FixedBitSet;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.polymap.core.runtime.Timer;
+
+/**
+ * Exact spatial predicate of a geometry field. The candidates are the hits of a
+ * bbox query of {@link GeometryValueCoder}. For every candidate just the geometry
+ * field is loaded and decoded, and the predicate is checked. So the predicate is
+ * answered by the index, instead of building and post-processing the entire
+ * record or feature.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public final class GeometryPredicateFilter
+        extends Filter {
+
+    private static Log log = LogFactory.getLog( GeometryPredicateFilter.class );
+
+    private String                  key;
+
+    private Query                   candidates;
+
+    private Predicate<Geometry>     predicate;
+
+    private FieldSelector           fieldSelector;
+
+
+    /**
+     * Creates a new filter.
+     *
+     * @param key The key of the geometry field.
+     * @param candidates The prefilter, usually a {@link org.polymap.core.runtime.recordstore.QueryExpression.BBox}
+     *        query of the bounds of the predicate.
+     * @param predicate The exact check of the decoded geometries.
+     */
+    public GeometryPredicateFilter( String key, Query candidates, Predicate<Geometry> predicate ) {
+        this.key = key;
+        this.candidates = candidates;
+        this.predicate = predicate;
+        this.fieldSelector = new SetBasedFieldSelector( ImmutableSet.of( key ), ImmutableSet.<String>of() );
+    }
+
+
+    @Override
+    public DocIdSet getDocIdSet( IndexReader reader ) throws IOException {
+        Timer timer = new Timer();
+        FixedBitSet result = new FixedBitSet( reader.maxDoc() );
+        DocIdSet candidateSet = new QueryWrapperFilter( candidates ).getDocIdSet( reader );
+        DocIdSetIterator it = candidateSet != null ? candidateSet.iterator() : null;
+        if (it == null) {
+            return result;
+        }
+        int count = 0, found = 0;
+        for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+            count ++;
+            Document document = reader.document( doc, fieldSelector );
+            Fieldable field = document.getFieldable( key );
+            if (field != null && field.isBinary()) {
+                Geometry geom = GeometryValueCoder.decode(
+                        field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength() );
+                if (predicate.apply( geom )) {
+                    result.set( doc );
+                    found ++;
+                }
+            }
+        }
+        log.debug( "Geometries checked: " + count + ", found: " + found + " (" + timer.elapsedTime() + "ms)" );
+        return result;
+    }
+
+
+    @Override
+    public String toString() {
+        return "GeometryPredicateFilter[" + key + ": " + predicate + ", candidates=" + candidates + "]";
+    }
+
+}
@@ -14,16 +14,22 @@
  */
 package org.polymap.core.runtime.recordstore.lucene;
 
+import java.util.Arrays;
+
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Query;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKBWriter;
 import com.vividsolutions.jts.io.WKTReader;
@@ -40,6 +46,17 @@ import org.polymap.core.runtime.recordstore.QueryExpression.Less;
  * <b>Note:</b> The results generated from {@link #searchQuery(QueryExpression)}
  * should be post-processed to make sure that the geometry <b>actually</b> intersects
  * the bbox. The search just checks that the bounds of the geometry intersect the bbox!
+ * <p/>
+ * By default BBOX queries are answered by a BooleanQuery of four numeric range
+ * queries, which does not need extra memory. Optionally a {@link SpatialIndexFilter}
+ * can be used, which holds an in-memory R-tree per index segment (about 40 bytes
+ * per geometry, as long as the segment is open).
+ * <p/>
+ * Geometries are stored as WKB by default. Optionally the
+ * {@link #setCompactEncoding(int) compact encoding} can be used. Both formats
+ * are decoded, so existing data does not need to be re-encoded. Use
+ * {@link LuceneRecordState#getLazyGeometry(String)} to get the bounds of a
+ * geometry without decoding it.
  * 
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -58,6 +75,12 @@ public final class GeometryValueCoder
         }
     };
     /** Re-used readers per thread. */
+    static final ThreadLocal<CompactGeometryFormat.Reader> compactReaders = new ThreadLocal<CompactGeometryFormat.Reader>() {
+        protected CompactGeometryFormat.Reader initialValue() {
+            return new CompactGeometryFormat.Reader( new GeometryFactory() );
+        }
+    };
+    /** Re-used readers per thread. */
     static final ThreadLocal<WKTReader> wktReaders = new ThreadLocal<WKTReader>() {
         protected WKTReader initialValue() {
             return new WKTReader();
@@ -67,17 +90,82 @@ public final class GeometryValueCoder
     /** The coder used to handle bbox min/max values for queries. */
     private NumericValueCoder           numeric = new NumericValueCoder();
     
+    private boolean                     spatialIndex;
+    
+    /** The number of decimals of the compact encoding, or -1 for WKB. */
+    private int                         compactDecimals = -1;
+    
+    
+    /**
+     * Creates a coder that uses numeric range queries for BBOX queries.
+     */
+    public GeometryValueCoder() {
+        this( false );
+    }
+
+    
+    /**
+     * 
+     * @param spatialIndex True specifies that BBOX queries are answered by a
+     *        {@link SpatialIndexFilter}; false specifies that numeric range queries
+     *        are used.
+     */
+    public GeometryValueCoder( boolean spatialIndex ) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    
     
+    /**
+     * Store geometries in the {@link CompactGeometryFormat compact format}:
+     * coordinates rounded to the given number of decimals, stored as varint deltas.
+     * This is lossy and should be used only if the given precision is enough for
+     * the coordinate system of the data.
+     *
+     * @param decimals The number of decimals to keep, or -1 to store WKB.
+     * @return this
+     */
+    public GeometryValueCoder setCompactEncoding( int decimals ) {
+        if (decimals > CompactGeometryFormat.MAX_DECIMALS) {
+            throw new IllegalArgumentException( "Decimals out of range: " + decimals );
+        }
+        this.compactDecimals = decimals;
+        return this;
+    }
+
+
     protected byte[] encode( Geometry geom ) {
-        return new WKBWriter().write( geom );    
+        return compactDecimals >= 0
+                ? new CompactGeometryFormat.Writer( compactDecimals ).write( geom )
+                : new WKBWriter().write( geom );    
+    }
+
+    
+    /**
+     * Decodes a geometry from the given bytes, in WKB or compact format.
+     */
+    static Geometry decode( byte[] data, int offset, int length ) {
+        if (CompactGeometryFormat.isCompact( data, offset, length )) {
+            return compactReaders.get().read( data, offset, length );
+        }
+        try {
+            // stored fields are loaded into their own array, so no copy normally
+            if (offset != 0 || length != data.length) {
+                data = Arrays.copyOfRange( data, offset, offset + length );
+            }
+            return wkbReaders.get().read( data );
+        }
+        catch (ParseException e) {
+            throw new RuntimeException( e );
+        }
     }
 
     
     public Object decode( Document doc, String key ) {
         if (doc.getFieldable( key+FIELD_MAXX ) != null) {
-            Field field = (Field)doc.getFieldable( key );
+            Fieldable field = doc.getFieldable( key );
             try {
-                return wkbReaders.get().read( field.getBinaryValue() );
+                return decode( field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength() );
             }
             catch (Exception e) {
                 try {
@@ -94,6 +182,31 @@ public final class GeometryValueCoder
     }
 
 
+    /**
+     * Creates a {@link LazyGeometry} for the given field of the given document.
+     *
+     * @return Newly created instance, or null if the document does not contain a
+     *         geometry for the given key.
+     */
+    static LazyGeometry decodeLazy( Document doc, String key ) {
+        Fieldable maxX = doc.getFieldable( key+FIELD_MAXX );
+        Fieldable field = doc.getFieldable( key );
+        if (maxX instanceof NumericField && field != null && field.isBinary()) {
+            return new LazyGeometry( field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength(),
+                    bound( doc, key+FIELD_MINX ), bound( doc, key+FIELD_MINY ),
+                    ((NumericField)maxX).getNumericValue().doubleValue(), bound( doc, key+FIELD_MAXY ) );
+        }
+        else {
+            return null;
+        }
+    }
+
+
+    private static double bound( Document doc, String fieldName ) {
+        return ((NumericField)doc.getFieldable( fieldName )).getNumericValue().doubleValue();
+    }
+
+
     public boolean encode( Document doc, String key, Object value, boolean indexed ) {
         if (value instanceof Geometry) {
             Geometry geom = (Geometry)value;
@@ -142,6 +255,10 @@ public final class GeometryValueCoder
 
             BBox bbox = (QueryExpression.BBox)exp;
             
+            if (spatialIndex) {
+                return new ConstantScoreQuery( new SpatialIndexFilter( bbox ) );
+            }
+            
             BooleanQuery result = new BooleanQuery();
 
             // maxx > bbox.getMinX
@@ -158,6 +275,10 @@ public final class GeometryValueCoder
                     new Less( bbox.key+FIELD_MINY, bbox.maxY ) ), BooleanClause.Occur.MUST );
             return result;
         }
+        // IS NULL: the geometry itself is not indexed
+        else if (exp instanceof QueryExpression.IsNull) {
+            return ValueCoders.isNullQuery( ((QueryExpression.IsNull)exp).key+FIELD_MAXX );
+        }
 //        // EQUALS
 //        else if (exp instanceof QueryExpression.Equal) {
 //            Equal equal = (QueryExpression.Equal)exp;
@@ -0,0 +1,99 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A {@link Geometry} value of a record that is not decoded yet. The envelope is
+ * taken from the bbox fields stored by {@link GeometryValueCoder}, so it is
+ * available without parsing the geometry. The geometry is decoded from the stored
+ * bytes (without copying them) on first access of {@link #getGeometry()}.
+ * <p/>
+ * Not thread-safe. Instances are created via
+ * {@link LuceneRecordState#getLazyGeometry(String)}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public final class LazyGeometry {
+
+    private byte[]          data;
+
+    private int             offset, length;
+
+    private double          minX, minY, maxX, maxY;
+
+    private Envelope        envelope;
+
+    private Geometry        geom;
+
+
+    LazyGeometry( byte[] data, int offset, int length,
+            double minX, double minY, double maxX, double maxY ) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+
+    /**
+     * The bounds of the geometry. Does not decode the geometry.
+     *
+     * @return Newly created {@link Envelope} on first call, the same instance on
+     *         subsequent calls. Must not be modified.
+     */
+    public Envelope getEnvelope() {
+        if (envelope == null) {
+            envelope = geom != null ? geom.getEnvelopeInternal() : new Envelope( minX, maxX, minY, maxY );
+        }
+        return envelope;
+    }
+
+
+    public boolean intersects( Envelope other ) {
+        return !(other.getMinX() > maxX || other.getMaxX() < minX
+                || other.getMinY() > maxY || other.getMaxY() < minY);
+    }
+
+
+    /**
+     * Decodes the geometry on first call. The stored bytes are released afterwards.
+     */
+    public Geometry getGeometry() {
+        if (geom == null) {
+            geom = GeometryValueCoder.decode( data, offset, length );
+            data = null;
+        }
+        return geom;
+    }
+
+
+    public boolean isDecoded() {
+        return geom != null;
+    }
+
+
+    @Override
+    public String toString() {
+        return "LazyGeometry[" + (geom != null ? geom.getGeometryType() : (length + " bytes"))
+                + ", " + minX + "," + minY + " - " + maxX + "," + maxY + "]";
+    }
+
+}
@@ -21,19 +21,31 @@ import java.io.IOException;
 
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.util.FixedBitSet;
 
+import org.polymap.core.runtime.recordstore.Aggregates;
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordFieldSelector;
 import org.polymap.core.runtime.recordstore.IRecordState;
 import org.polymap.core.runtime.recordstore.RecordQuery;
 import org.polymap.core.runtime.recordstore.ResultSet;
 
 /**
- * 
+ * Query of a {@link LuceneRecordStore}.
+ * <p/>
+ * If the field selector of the query is a {@link ColumnFieldSelector}, then the
+ * records of the result are read-only {@link ColumnRecordState}s that read the
+ * selected fields from {@link ColumnValues}, without loading stored fields.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -43,10 +55,20 @@ public class LuceneRecordQuery
     /** Max size of a {@link ResultSet}. */
     public static final int     BIG_BUT_NOT_MAX_VALUE = 1000000;
     
+    /**
+     * Unsorted queries with max results above this value are not executed via
+     * {@link TopDocs}. Instead the matching doc ids are collected into a bitset and
+     * the records are loaded lazily while iterating the {@link DocIdResultSet}.
+     * This avoids allocating one {@link ScoreDoc} per hit for big scans.
+     */
+    public static final int     STREAMING_THRESHOLD = 1000;
+    
     private LuceneRecordStore   store;
 
     private Query               luceneQuery;
 
+    private Sort                sort;
+
 
     /**
      * Creates a new query instance.
@@ -62,42 +84,218 @@ public class LuceneRecordQuery
     }
     
     
+    public Query getLuceneQuery() {
+        return luceneQuery;
+    }
+
+
+    /**
+     * Sorts the result by several fields. This overrides the sort key set via
+     * {@link #sort(String, int, Class)}.
+     *
+     * @see #sortField(String, Class, int)
+     * @return this
+     */
+    public LuceneRecordQuery setSort( Sort sort ) {
+        this.sort = sort;
+        return this;
+    }
+
+
+    /**
+     * Builds the {@link SortField} for the given record key and value type.
+     *
+     * @param key The key of the field to sort.
+     * @param type The type of the values. Other types than {@link ColumnFieldSelector#TYPES}
+     *        are sorted as String.
+     * @param order {@link #ASC} or {@link #DESC}
+     */
+    public static SortField sortField( String key, Class type, int order ) {
+        int sortType = SortField.STRING;
+        if (type == Integer.class) {
+            sortType = SortField.INT;
+        }
+        else if (type == Long.class) {
+            sortType = SortField.LONG;
+        }
+        else if (type == Float.class) {
+            sortType = SortField.FLOAT;
+        }
+        else if (type == Double.class) {
+            sortType = SortField.DOUBLE;
+        }
+        else if (type == Date.class) {
+            sortType = SortField.LONG;
+            key = key + DateValueCoder.SUFFIX;
+        }
+        else if (type == Boolean.class) {
+            sortType = SortField.STRING;
+            key = key + BooleanValueCoder.SUFFIX;
+        }
+        return new SortField( key, sortType, order == DESC );
+    }
+
+
     public RecordQuery setMaxResults( int maxResults ) {
         // Lucene does not like Integer.MAX_VALUE here
         return super.setMaxResults( Math.min( BIG_BUT_NOT_MAX_VALUE, maxResults ) );
     }
 
 
+    /**
+     * Executes this query. The returned {@link ResultSet} holds the searcher of
+     * the query, as the docnums of the result are valid for its reader only. The
+     * searcher is released when the result set is closed.
+     */
     public ResultSet execute() throws IOException {
-        String sortKey = getSortKey();
-        if (sortKey != null) {
-            int sortType = SortField.STRING;
-            if (getSortType() == String.class) {
-                sortType = SortField.STRING;
-            }
-            else if (getSortType() == Integer.class) {
-                sortType = SortField.INT;
+        IndexSearcher searcher = store.acquireSearcher();
+        try {
+            ColumnValues columns = newColumnValues( searcher.getIndexReader() );
+            Sort _sort = sort != null ? sort
+                    : getSortKey() != null ? new Sort( sortField( getSortKey(), getSortType(), getSortOrder() ) ) : null;
+            if (_sort != null) {
+                TopDocs topDocs = searcher.search( luceneQuery, getMaxResults(), _sort );
+                return new LuceneResultSet( searcher, topDocs.scoreDocs, columns );
             }
-            else if (getSortType() == Long.class) {
-                sortType = SortField.LONG;
+            else if (getMaxResults() > STREAMING_THRESHOLD) {
+                DocIdCollector collector = new DocIdCollector( 
+                        searcher.getIndexReader().maxDoc(), getMaxResults() );
+                searcher.search( luceneQuery, collector );
+                return new DocIdResultSet( searcher, collector.docs, collector.count, columns );
             }
-            else if (getSortType() == Float.class) {
-                sortType = SortField.FLOAT;
+            else {
+                TopDocs topDocs = searcher.search( luceneQuery, getMaxResults() );
+                return new LuceneResultSet( searcher, topDocs.scoreDocs, columns );
             }
-            else if (getSortType() == Double.class) {
-                sortType = SortField.DOUBLE;
+        }
+        catch (IOException e) {
+            store.releaseSearcher( searcher );
+            throw e;
+        }
+        catch (RuntimeException e) {
+            store.releaseSearcher( searcher );
+            throw e;
+        }
+    }
+
+    
+    /**
+     * Counts the hits of this query without scoring and without loading any
+     * field.
+     *
+     * @return The number of hits, but not more than {@link #getMaxResults()}.
+     */
+    public int count() throws IOException {
+        IndexSearcher searcher = store.acquireSearcher();
+        try {
+            TotalHitCountCollector collector = new TotalHitCountCollector();
+            searcher.search( luceneQuery, collector );
+            return Math.min( collector.getTotalHits(), getMaxResults() );
+        }
+        finally {
+            store.releaseSearcher( searcher );
+        }
+    }
+
+
+    /**
+     * Computes count and min/max/sum of the given columns over the hits of this
+     * query in one pass. Not more than {@link #getMaxResults()} hits are
+     * aggregated. The sort order is ignored.
+     *
+     * @see AggregateCollector
+     */
+    public Aggregates aggregate( ColumnFieldSelector columns ) throws IOException {
+        IndexSearcher searcher = store.acquireSearcher();
+        try {
+            AggregateCollector collector = new AggregateCollector( columns, getMaxResults() );
+            searcher.search( luceneQuery, collector );
+            return collector.result();
+        }
+        finally {
+            store.releaseSearcher( searcher );
+        }
+    }
+
+
+    /**
+     * Builds the Lucene {@link FieldSelector} for the {@link #getFieldSelector()}
+     * of this query.
+     * 
+     * @return The newly created selector, or null if all fields are to be loaded.
+     */
+    protected FieldSelector newFieldSelector() {
+        final IRecordFieldSelector sel = getFieldSelector();
+        if (sel != null && sel != IRecordFieldSelector.ALL) {
+            return new FieldSelector() {
+                public FieldSelectorResult accept( String fieldName ) {
+                    if (fieldName.equals( LuceneRecordState.ID_FIELD )) {
+                        return FieldSelectorResult.LOAD;
+                    }
+                    else if (sel.accept( fieldName )) { 
+                        return FieldSelectorResult.LOAD;
+                    }
+                    return FieldSelectorResult.NO_LOAD;
+                }
+            };
+        }
+        return null;
+    }
+
+
+    /**
+     * Loads the columns of the {@link ColumnFieldSelector} of this query.
+     * 
+     * @return The newly created columns, or null if the field selector of this
+     *         query is not a {@link ColumnFieldSelector}.
+     */
+    protected ColumnValues newColumnValues( IndexReader reader ) throws IOException {
+        IRecordFieldSelector sel = getFieldSelector();
+        return sel instanceof ColumnFieldSelector
+                ? new ColumnValues( reader, ((ColumnFieldSelector)sel).columns() )
+                : null;
+    }
+
+
+    protected IRecordState record( int doc, FieldSelector fieldSelector, ColumnValues columns, 
+            IndexSearcher searcher )
+    throws Exception {
+        assert searcher != null : "ResultSet is closed.";
+        return columns != null
+                ? new ColumnRecordState( store, columns, doc )
+                : store.get( doc, fieldSelector, searcher );
+    }
+
+    
+    /**
+     * Base of the result sets of this query. Holds the searcher the query was
+     * executed with, until {@link #close()} or until an iterator is exhausted.
+     * The records cannot be accessed after the set was closed.
+     */
+    protected abstract class SearcherResultSet
+            implements ResultSet {
+
+        protected IndexSearcher       searcher;
+        
+        protected SearcherResultSet( IndexSearcher searcher ) {
+            this.searcher = searcher;
+        }
+
+        protected synchronized void checkOpen() {
+            if (searcher == null) {
+                throw new IllegalStateException( "ResultSet is closed." );
             }
-            else if (getSortType() == Date.class) {
-                sortType = SortField.LONG;
-                sortKey = sortKey + DateValueCoder.SUFFIX;
+        }
+
+        public synchronized void close() {
+            if (searcher != null) {
+                store.releaseSearcher( searcher );
+                searcher = null;
             }
-            Sort sort = new Sort( new SortField( sortKey, sortType, getSortOrder() == DESC ) );
-            TopDocs topDocs = store.searcher.search( luceneQuery, getMaxResults(), sort );
-            return new LuceneResultSet( topDocs.scoreDocs );
         }
-        else {
-            TopDocs topDocs = store.searcher.search( luceneQuery, getMaxResults() );
-            return new LuceneResultSet( topDocs.scoreDocs );
+
+        protected void finalize() throws Throwable {
+            close();
         }
     }
 
@@ -106,60 +304,51 @@ public class LuceneRecordQuery
      * 
      */
     protected class LuceneResultSet
-            implements ResultSet {
+            extends SearcherResultSet {
 
         protected ScoreDoc[]          scoreDocs;
 
         protected FieldSelector       idFieldSelector = new IdFieldSelector();
         
         protected FieldSelector       fieldSelector;
+        
+        protected ColumnValues        columns;
 
 
-        protected LuceneResultSet( ScoreDoc[] scoreDocs ) {
+        protected LuceneResultSet( IndexSearcher searcher, ScoreDoc[] scoreDocs, ColumnValues columns ) {
+            super( searcher );
             this.scoreDocs = scoreDocs;
-            
-            // build fieldSelector
-            final IRecordFieldSelector sel = getFieldSelector();
-            if (getFieldSelector() != null && sel != IRecordFieldSelector.ALL) {
-                fieldSelector = new FieldSelector() {
-                    public FieldSelectorResult accept( String fieldName ) {
-                        if (fieldName.equals( LuceneRecordState.ID_FIELD )) {
-                            return FieldSelectorResult.LOAD;
-                        }
-                        else if (sel.accept( fieldName )) { 
-                            return FieldSelectorResult.LOAD;
-                        }
-                        return FieldSelectorResult.NO_LOAD;
-                    }
-                };
-            }
-        }
-
-        public void close() {
-            scoreDocs = null;
+            this.columns = columns;
+            this.fieldSelector = newFieldSelector();
         }
 
         public int count() {
             return scoreDocs.length;
         }
 
-        public LuceneRecordState get( int index )
+        public IRecordState get( int index )
         throws Exception {
             assert index < scoreDocs.length;
+            checkOpen();
             int doc = scoreDocs[index].doc;
-            return store.get( doc, fieldSelector );
+            return record( doc, fieldSelector, columns, searcher );
         }
 
         public Iterator<IRecordState> iterator() {
+            checkOpen();
             return new Iterator<IRecordState>() {
 
                 private int         index;
 
                 public boolean hasNext() {
-                    return index < scoreDocs.length;
+                    if (index < scoreDocs.length) {
+                        return true;
+                    }
+                    close();
+                    return false;
                 }
 
-                public LuceneRecordState next() {
+                public IRecordState next() {
                     try {
                         return get( index++ );
                     }
@@ -176,6 +365,130 @@ public class LuceneRecordQuery
     }
 
     
+    /**
+     * Result set of an unsorted query. Holds the matching docnums in a bitset
+     * (1 bit per document of the index) instead of an array of {@link ScoreDoc}s.
+     * Records are loaded lazily while iterating. Sequential access via
+     * {@link #get(int)} is cheap, random access has to scan the bitset.
+     */
+    protected class DocIdResultSet
+            extends SearcherResultSet {
+
+        protected FixedBitSet         docs;
+        
+        protected int                 size;
+        
+        protected FieldSelector       fieldSelector;
+        
+        protected ColumnValues        columns;
+
+        /** The index and docnum of the last {@link #get(int)} call. */
+        private int                   cursorIndex = -1, cursorDoc = -1;
+        
+
+        protected DocIdResultSet( IndexSearcher searcher, FixedBitSet docs, int size, ColumnValues columns ) {
+            super( searcher );
+            this.docs = docs;
+            this.size = size;
+            this.columns = columns;
+            this.fieldSelector = newFieldSelector();
+        }
+
+        public int count() {
+            return size;
+        }
+
+        public IRecordState get( int index )
+        throws Exception {
+            assert index < size;
+            checkOpen();
+            if (index < cursorIndex) {
+                cursorIndex = -1;
+                cursorDoc = -1;
+            }
+            while (cursorIndex < index) {
+                cursorDoc = docs.nextSetBit( cursorDoc + 1 );
+                cursorIndex ++;
+            }
+            return record( cursorDoc, fieldSelector, columns, searcher );
+        }
+
+        public Iterator<IRecordState> iterator() {
+            checkOpen();
+            return new Iterator<IRecordState>() {
+
+                private int         index;
+                
+                private int         doc = -1;
+
+                public boolean hasNext() {
+                    if (index < size) {
+                        return true;
+                    }
+                    close();
+                    return false;
+                }
+
+                public IRecordState next() {
+                    try {
+                        doc = docs.nextSetBit( doc + 1 );
+                        index ++;
+                        return record( doc, fieldSelector, columns, searcher );
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException( e );
+                    }
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException( "Not supported." );
+                }
+            };
+        }
+    }
+
+    
+    /**
+     * Collects the docnums of the hits into a {@link FixedBitSet}, without scoring.
+     * Stops collecting after maxResults hits.
+     */
+    static class DocIdCollector
+            extends Collector {
+
+        protected FixedBitSet       docs;
+        
+        protected int               count;
+        
+        private int                 maxResults;
+        
+        private int                 docBase;
+        
+
+        public DocIdCollector( int maxDoc, int maxResults ) {
+            this.docs = new FixedBitSet( maxDoc );
+            this.maxResults = maxResults;
+        }
+
+        public void setScorer( Scorer scorer ) throws IOException {
+        }
+
+        public void collect( int doc ) throws IOException {
+            if (count < maxResults) {
+                docs.set( docBase + doc );
+                count ++;
+            }
+        }
+
+        public void setNextReader( IndexReader reader, int _docBase ) throws IOException {
+            this.docBase = _docBase;
+        }
+
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+    }
+
+    
     /**
      * 
      */
@@ -26,8 +26,10 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.IndexSearcher;
 
 import org.polymap.core.runtime.recordstore.IRecordState;
 
@@ -102,12 +104,13 @@ public final class LuceneRecordState
                     
                     sharedDoc = false;
                     
+                    IndexSearcher searcher = store.acquireSearcher();
                     try {
-                        store.lock.readLock().lock();
-                        TermDocs termDocs = store.reader.termDocs( new Term( LuceneRecordState.ID_FIELD, (String)id() ) );
+                        IndexReader reader = searcher.getIndexReader();
+                        TermDocs termDocs = reader.termDocs( new Term( LuceneRecordState.ID_FIELD, (String)id() ) );
                         try {
                             if (termDocs.next()) {
-                                doc = store.reader.document( termDocs.doc() );
+                                doc = reader.document( termDocs.doc() );
                             }
                             else {
                                 throw new RuntimeException( "Unable to copy Lucene document on write." );
@@ -121,7 +124,7 @@ public final class LuceneRecordState
                         throw new RuntimeException( "Unable to copy Lucene document on write." );
                     }
                     finally {
-                        store.lock.readLock().unlock();
+                        store.releaseSearcher( searcher );
                     }
                 }
             }
@@ -178,7 +181,20 @@ public final class LuceneRecordState
         return (T)store.valueCoders.decode( doc, key );
     }
 
-    
+
+    /**
+     * The geometry value of the given key, stored by {@link GeometryValueCoder}.
+     * The bounds of the returned value are available without decoding the
+     * geometry.
+     *
+     * @return Newly created {@link LazyGeometry}, or null if there is no geometry
+     *         for the given key.
+     */
+    public LazyGeometry getLazyGeometry( String key ) {
+        return GeometryValueCoder.decodeLazy( doc, key );
+    }
+
+
     public <T> List<T> getList( String key ) {
         // XXX try a lazy facade!?
         List<T> result = new ArrayList<T>();
@@ -14,15 +14,14 @@
  */
 package org.polymap.core.runtime.recordstore.lucene;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.io.File;
 import java.io.IOException;
@@ -46,6 +45,8 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -54,16 +55,26 @@ import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.util.Constants;
-import org.apache.lucene.util.DummyConcurrentLock;
 import org.apache.lucene.util.Version;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
 import org.polymap.core.runtime.Polymap;
 import org.polymap.core.runtime.Timer;
 import org.polymap.core.runtime.cache.Cache;
 import org.polymap.core.runtime.cache.CacheConfig;
 import org.polymap.core.runtime.cache.CacheLoader;
 import org.polymap.core.runtime.cache.CacheManager;
+import org.polymap.core.runtime.cache.ElementSerializers;
+import org.polymap.core.runtime.cache.OffHeapCacheManager;
+import org.polymap.core.runtime.cache.Weighers;
+import org.polymap.core.runtime.recordstore.Aggregates;
 import org.polymap.core.runtime.recordstore.BaseRecordStore;
+import org.polymap.core.runtime.recordstore.ColumnFieldSelector;
+import org.polymap.core.runtime.recordstore.GroupCommit;
 import org.polymap.core.runtime.recordstore.IRecordState;
 import org.polymap.core.runtime.recordstore.IRecordStore;
 import org.polymap.core.runtime.recordstore.QueryExpression;
@@ -76,6 +87,12 @@ import org.polymap.core.runtime.recordstore.SimpleQuery;
  * <p/>
  * This store supports copy-on-write caching of the underlying Lucene documents. To
  * activate caching call {@link #setDocumentCache(Cache)}.
+ * <p/>
+ * The store holds one long-lived {@link IndexWriter}. Searchers are near-real-time
+ * readers opened from this writer and are ref-counted by a {@link SearcherManager}.
+ * Changes of an {@link Updater} become visible right after {@link Updater#apply()}.
+ * The durable commit of the writer is done separately, depending on the commit
+ * policy (see {@link #setCommitPolicy(long, int)}).
  * 
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -95,7 +112,23 @@ public final class LuceneRecordStore
     public static final double      MAX_DELETED_PERCENT = 10;
     
     /**
-     * The {@link ExecutorService} used by the {@link #searcher}.
+     * Default max delay of the durable commit after changes were applied: {@value}
+     * ms; every apply is committed immediately. Delayed commit has to be enabled
+     * via {@link #setCommitPolicy(long, int)}.
+     */
+    public static final long        DEFAULT_COMMIT_DELAY = 0;
+    
+    /** Default max number of applied but not yet committed operations: {@value}. */
+    public static final int         DEFAULT_COMMIT_MAX_OPS = 10000;
+    
+    /**
+     * Max number of operations an {@link LuceneUpdater} buffers in memory. Bigger
+     * updaters buffer their operations in a private index; see {@link SpillIndex}.
+     */
+    public static final int         MAX_BUFFERED_OPS = 10000;
+    
+    /**
+     * The {@link ExecutorService} used by the searchers of the {@link #searcherManager}.
      * <p/>
      * XXX This is not the {@link Polymap#executorService()}, as this used Eclipse
      * Jobs, which results in deadlocks.
@@ -138,12 +171,35 @@ public final class LuceneRecordStore
      */
     private Cache<Integer,Object>   doc2id = null;
 
-    IndexSearcher                   searcher;
+    /** The reader whose docnums are mapped by {@link #doc2id}. */
+    private volatile IndexReader    doc2idReader;
+
+    /** The shared writer; changes are applied under {@link #writeLock} only. */
+    IndexWriter                     writer;
 
-    IndexReader                     reader;
+    /** Provides near-real-time, ref-counted searchers opened from the {@link #writer}. */
+    volatile SearcherManager        searcherManager;
     
-    /** Prevents {@link #reader} close/reopen by {@link LuceneUpdater} while in use. */
-    ReadWriteLock                   lock; /*= new ReentrantReadWriteLock();*/
+    /** Serializes {@link LuceneUpdater}s that write into the shared {@link #writer}. */
+    ReentrantLock                   writeLock = new ReentrantLock();
+    
+    /**
+     * The operations applied to the {@link #writer} since last commit. They are
+     * re-applied after a {@link #rollback(int)}. At most {@link #commitMaxOps}.
+     */
+    private List<Operation>         uncommitted = new ArrayList( 128 );
+    
+    private long                    commitDelay = DEFAULT_COMMIT_DELAY;
+    
+    private int                     commitMaxOps = DEFAULT_COMMIT_MAX_OPS;
+    
+    private CommitJob               commitJob = new CommitJob();
+    
+    private GroupCommit<LuceneUpdater> groupCommit = new GroupCommit<LuceneUpdater>() {
+        protected void commitGroup( List<LuceneUpdater> group ) throws Exception {
+            applyGroup( group );
+        }
+    };
 
     ValueCoders                     valueCoders = new ValueCoders( this );
     
@@ -183,11 +239,16 @@ public final class LuceneRecordStore
             }
             catch (OutOfMemoryError e) {
                 log.info( "Unable to mmap index: falling back to default.");
+                searcherManager = null;
+                if (writer != null) {
+                    writer.rollback();
+                    writer = null;
+                }
             }
         }
         
         // default
-        if (searcher == null) {
+        if (searcherManager == null) {
             directory = FSDirectory.open( indexDir );
             open( clean );
         }
@@ -212,42 +273,70 @@ public final class LuceneRecordStore
     }
 
     
-    protected ReadWriteLock newLock() {
-        return new IndexReaderReadWriteLock( reader );    
-    }
-    
-    
     protected void open( boolean clean ) throws IOException {
         // create or clear index
-        if (directory.listAll().length == 0 || clean) {
-            IndexWriterConfig config = new IndexWriterConfig( VERSION, analyzer )
-                    .setOpenMode( OpenMode.CREATE );
-            IndexWriter iwriter = new IndexWriter( directory, config );
-            iwriter.close();
+        boolean create = directory.listAll().length == 0 || clean;
+        writer = new IndexWriter( directory, newWriterConfig()
+                .setOpenMode( create ? OpenMode.CREATE : OpenMode.APPEND ) );
+        if (create) {
+            writer.commit();
             log.info( "    Index created." );
         }
+        valueCoders.loadSchema( create ? null : IndexReader.getCommitUserData( directory ) );
+        searcherManager = newSearcherManager();
+    }
+    
+    
+    protected IndexWriterConfig newWriterConfig() {
+        // Defauls:
+        //  - IndexWriterConfig#DEFAULT_RAM_BUFFER_SIZE_MB == 16MB
+        //  - autCommit == false
+        //  - 8 concurrent thread
+        IndexWriterConfig config = new IndexWriterConfig( VERSION, analyzer )
+                .setOpenMode( OpenMode.APPEND )
+                .setRAMBufferSizeMB( MAX_RAMBUFFER_SIZE );
 
-        reader = IndexReader.open( directory );
-        lock = newLock();
-        searcher = new IndexSearcher( reader, executor );
+        // limit segment size for lower pauses on interactive indexing
+        LogByteSizeMergePolicy mergePolicy = new LogByteSizeMergePolicy();
+        mergePolicy.setMaxMergeMB( MAX_MERGE_SIZE );
+        config.setMergePolicy( mergePolicy );
+        config.setMaxBufferedDocs( IndexWriterConfig.DISABLE_AUTO_FLUSH );
+        return config;
+    }
+    
+    
+    protected SearcherManager newSearcherManager() throws IOException {
+        return new SearcherManager( writer, true, new SearcherFactory() {
+            public IndexSearcher newSearcher( IndexReader reader ) throws IOException {
+                return new IndexSearcher( reader, executor );
+            }
+        });
     }
     
     
+    /**
+     * Commits pending changes and closes the writer. Subsequent calls do nothing;
+     * this may be called concurrently by several threads.
+     */
     @Override
     public void close() {
+        commitJob.cancel();
+        writeLock.lock();
         try {
-            if (searcher != null) {
-                searcher.close();
-                searcher = null;
+            if (searcherManager == null) {
+                return;
             }
-            if (reader != null) {
-                reader.close();
-                reader = null;
-                lock = null;
-                directory.close();
-                directory = null;
+            searcherManager.close();
+            searcherManager = null;
+            // commit pending changes with the schema
+            if (!uncommitted.isEmpty() || valueCoders.isSchemaModified()) {
+                doCommit();
             }
-            
+            writer.close();
+            writer = null;
+            directory.close();
+            directory = null;
+
             if (cache != null) {
                 cache.dispose();
                 doc2id.clear();
@@ -256,6 +345,9 @@ public final class LuceneRecordStore
         catch (IOException e) {
             throw new RuntimeException( e );
         }
+        finally {
+            writeLock.unlock();
+        }
     }
     
     
@@ -271,8 +363,165 @@ public final class LuceneRecordStore
     }
 
 
-    public IndexSearcher getIndexSearcher() {
-        return searcher;
+    /**
+     * Acquires the current searcher of this store. The returned searcher has to be
+     * released via {@link #releaseSearcher(IndexSearcher)} after use.
+     */
+    public IndexSearcher acquireSearcher() {
+        while (true) {
+            SearcherManager current = searcherManager;
+            try {
+                return current.acquire();
+            }
+            catch (AlreadyClosedException e) {
+                // the manager was replaced after a rollback of the writer; retry
+                if (current == searcherManager) {
+                    throw e;
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException( e );
+            }
+        }
+    }
+    
+    
+    /**
+     * Releases a searcher acquired via {@link #acquireSearcher()}. The reader of the
+     * searcher is ref-counted; so this works even if the manager the searcher was
+     * acquired from was replaced or closed meanwhile. The reader is closed when
+     * the last searcher is released.
+     */
+    public void releaseSearcher( IndexSearcher searcher ) {
+        try {
+            searcher.getIndexReader().decRef();
+        }
+        catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+    }
+    
+    
+    /**
+     * Specifies when changes, that were applied and visible already, are durable
+     * committed to the index files.
+     * 
+     * @param delay The max delay in milliseconds after an {@link Updater#apply()}
+     *        before the changes are committed. 0 specifies that every apply is
+     *        committed immediately.
+     * @param maxOps The max number of uncommitted operations. The writer is
+     *        committed immediately if this number is exceeded.
+     */
+    public void setCommitPolicy( long delay, int maxOps ) {
+        this.commitDelay = delay;
+        this.commitMaxOps = maxOps;
+    }
+
+    
+    /**
+     * Commits changes that were applied to the writer but not yet committed
+     * according to the commit policy.
+     */
+    public void commit() {
+        writeLock.lock();
+        try {
+            if (!isClosed() && !uncommitted.isEmpty()) {
+                doCommit();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    
+    /**
+     * Must be called with {@link #writeLock} held.
+     */
+    protected void doCommit() throws IOException {
+        assert writeLock.isHeldByCurrentThread();
+        Timer timer = new Timer();
+        // the schema has to be passed with every commit
+        writer.commit( valueCoders.schemaData() );
+        log.debug( "Writer commited: " + uncommitted.size() + " operations (" + timer.elapsedTime() + "ms)"  );
+        uncommitted.clear();
+    }
+
+    
+    /**
+     * Rolls back the writer to the last commit and re-applies the uncommitted
+     * operations before the given mark. So the operations written after the mark
+     * are dropped, without loosing changes of other updaters. Must be called with
+     * {@link #writeLock} held.
+     *
+     * @param mark The size of {@link #uncommitted} before the failed operations
+     *        were written.
+     */
+    protected void rollback( int mark ) throws IOException {
+        assert writeLock.isHeldByCurrentThread();
+        if (mark < uncommitted.size()) {
+            uncommitted.subList( mark, uncommitted.size() ).clear();
+        }
+        log.warn( "Rolling back writer. Re-applying uncommitted operations: " + uncommitted.size() );
+        // closes the writer
+        writer.rollback();
+        writer = new IndexWriter( directory, newWriterConfig() );
+        for (Operation op : uncommitted) {
+            op.apply( writer );
+        }
+        // searchers acquired from the old manager stay valid until released
+        SearcherManager old = searcherManager;
+        searcherManager = newSearcherManager();
+        old.close();
+        
+        if (doc2id != null) {
+            resetDoc2id();
+        }
+    }
+
+    
+    /**
+     * Must be called with {@link #writeLock} held.
+     * 
+     * @param ops The operations that were applied to the writer.
+     */
+    protected void maybeCommit( List<Operation> ops ) throws IOException {
+        uncommitted.addAll( ops );
+        if (!uncommitted.isEmpty()) {
+            if (commitDelay <= 0 || uncommitted.size() >= commitMaxOps) {
+                doCommit();
+            }
+            else {
+                // delayed commit; commits all changes of this period
+                commitJob.schedule( commitDelay );
+            }
+        }
+    }
+    
+    
+    /**
+     * Does the delayed commit of the commit policy.
+     */
+    class CommitJob
+            extends Job {
+
+        public CommitJob() {
+            super( "LuceneRecordStore commit" );
+            setSystem( true );
+        }
+
+        protected IStatus run( IProgressMonitor monitor ) {
+            try {
+                commit();
+            }
+            catch (Exception e) {
+                log.warn( "Error during delayed commit.", e );
+            }
+            return Status.OK_STATUS;
+        }
     }
     
     
@@ -298,10 +547,34 @@ public final class LuceneRecordStore
     }
 
 
+    /**
+     * Activates caching of the {@link Document}s of the records. The cache may be a
+     * tiered cache that keeps the bulk of the documents off-heap, created via
+     * {@link OffHeapCacheManager#newTieredCache(Cache, CacheConfig)} and
+     * {@link ElementSerializers#DOCUMENT}. The memory of the on-heap cache can be
+     * bounded via {@link CacheConfig#maxMemSize(long)}; documents are weighed by
+     * {@link Weighers#DOCUMENT}, which is part of the default weigher.
+     */
     public void setDocumentCache( Cache<Object,Document> cache ) {
         this.cache = cache;
         this.doc2id = CacheManager.instance().newCache( 
                 CacheConfig.DEFAULT.defaultElementSize( 128 ) );
+        resetDoc2id();
+    }
+
+
+    /**
+     * Clears {@link #doc2id} and binds it to the current reader.
+     */
+    protected void resetDoc2id() {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            doc2id.clear();
+            doc2idReader = searcher.getIndexReader();
+        }
+        finally {
+            releaseSearcher( searcher );
+        }
     }
 
 
@@ -335,11 +608,33 @@ public final class LuceneRecordStore
      * @throws Exception
      */
     public LuceneRecordState get( int docnum, FieldSelector fieldSelector ) throws Exception {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            return get( docnum, fieldSelector, searcher );
+        }
+        finally {
+            releaseSearcher( searcher );
+        }
+    }
+
+    
+    /**
+     * Get the record for the given document index of the given searcher.
+     * 
+     * @param docnum The document index for the reader of the given searcher.
+     * @param fieldSelector The field selector, or null.
+     * @param searcher The searcher the docnum was found with.
+     * @see #get(int, FieldSelector)
+     */
+    public LuceneRecordState get( int docnum, FieldSelector fieldSelector, IndexSearcher searcher ) 
+    throws Exception {
         assert !isClosed() : "Store is closed already.";
 
         // if doc2id contains the docnum *and* the cache contains the id, then
-        // we can create a record without accessing the underlying store
-        if (doc2id != null) {
+        // we can create a record without accessing the underlying store;
+        // docnums are valid for the reader of doc2id only
+        boolean currentReader = doc2id != null && searcher.getIndexReader() == doc2idReader;
+        if (currentReader) {
             Object id = doc2id.get( docnum );
             if (id != null) {
                 Document doc = cache.get( id );
@@ -350,18 +645,13 @@ public final class LuceneRecordStore
             }
         }
         
-        Document doc = null;
-        try {
-            lock.readLock().lock();
-            doc = reader.document( docnum, fieldSelector );
-        }
-        finally {
-            lock.readLock().unlock();
-        }
+        Document doc = searcher.getIndexReader().document( docnum, fieldSelector );
         
         LuceneRecordState result = new LuceneRecordState( LuceneRecordStore.this, doc, false );
         if (cache != null) {
-            doc2id.putIfAbsent( docnum, result.id() );
+            if (currentReader) {
+                doc2id.putIfAbsent( docnum, result.id() );
+            }
             //System.out.println( "-" );
             if (cache.putIfAbsent( result.id(), doc ) == null) {
                 result.setShared( true );
@@ -379,9 +669,10 @@ public final class LuceneRecordStore
         
         public Document load( Object id ) throws Exception {
             TermDocs termDocs = null;
+            IndexSearcher searcher = acquireSearcher();
             try {
                 log.trace( "LUCENE: termDocs: " + LuceneRecordState.ID_FIELD + " = " + id.toString() );
-                lock.readLock().lock();
+                IndexReader reader = searcher.getIndexReader();
                 termDocs = reader.termDocs( new Term( LuceneRecordState.ID_FIELD, id.toString() ) );
                 if (termDocs.next()) {
                     return reader.document( termDocs.doc() );
@@ -389,8 +680,8 @@ public final class LuceneRecordStore
                 return null;
             }
             finally {
-                lock.readLock().unlock();
                 if (termDocs != null) { termDocs.close(); }
+                releaseSearcher( searcher );
             }
         }
 
@@ -403,6 +694,44 @@ public final class LuceneRecordStore
     @Override
     public ResultSet find( RecordQuery query ) throws Exception {
         assert !isClosed() : "Store is closed already.";
+        return luceneQuery( query ).execute();
+    }
+
+
+    /**
+     * Counts the hits of the given query without scoring and without loading any
+     * field.
+     */
+    public int count( RecordQuery query ) throws Exception {
+        assert !isClosed() : "Store is closed already.";
+        RecordQuery luceneQuery = luceneQuery( query );
+        if (luceneQuery instanceof LuceneRecordQuery) {
+            return ((LuceneRecordQuery)luceneQuery).count();
+        }
+        return super.count( query );
+    }
+
+
+    /**
+     * Aggregates the values of the given columns in one pass over the hits of the
+     * query. The values are read from the {@link ColumnValues} arrays of the
+     * segments; no field is loaded.
+     */
+    public Aggregates aggregate( RecordQuery query, ColumnFieldSelector columns ) throws Exception {
+        assert !isClosed() : "Store is closed already.";
+        RecordQuery luceneQuery = luceneQuery( query );
+        if (luceneQuery instanceof LuceneRecordQuery) {
+            return ((LuceneRecordQuery)luceneQuery).aggregate( columns );
+        }
+        return super.aggregate( query, columns );
+    }
+
+
+    /**
+     * Converts a {@link SimpleQuery} into a {@link LuceneRecordQuery}. Other queries
+     * are returned as is.
+     */
+    protected RecordQuery luceneQuery( RecordQuery query ) {
         // SimpleQuery
         if (query instanceof SimpleQuery) {
             Query luceneQuery = null;
@@ -417,16 +746,16 @@ public final class LuceneRecordStore
                             valueCoders.searchQuery( exp ), BooleanClause.Occur.MUST );
                 }
             }
-            return new LuceneRecordQuery( this, luceneQuery )
+            RecordQuery luceneRecordQuery = new LuceneRecordQuery( this, luceneQuery )
                     .setMaxResults( query.getMaxResults() )
                     .setFirstResult( query.getFirstResult() )
-                    .sort( query.getSortKey(), query.getSortOrder(), query.getSortType() )
-                    .execute();
-
+                    .sort( query.getSortKey(), query.getSortOrder(), query.getSortType() );
+            luceneRecordQuery.setFieldSelector( query.getFieldSelector() );
+            return luceneRecordQuery;
         }
         // other
         else {
-            return query.execute();
+            return query;
         }
     }
     
@@ -436,39 +765,124 @@ public final class LuceneRecordStore
     }
     
     
-    /*
-     * 
+    /**
+     * Writes the operations of the given updaters into the shared {@link #writer}
+     * and makes them visible by refreshing the {@link #searcherManager}. Called by
+     * the {@link #groupCommit}, so that concurrently applied updaters are merged into
+     * one refresh/commit.
+     * <p/>
+     * If writing fails, then the writer is rolled back, so that no operation of the
+     * failed group remains in the writer. The {@link GroupCommit} then applies the
+     * updaters of the group one by one, so that just the failing updater fails.
+     * An updater that optimizes the index is applied alone.
+     * <p/>
+     * The operations of a {@link SpillIndex} are not kept in {@link #uncommitted},
+     * so a group with a spilled updater is committed immediately.
+     */
+    protected void applyGroup( List<LuceneUpdater> group ) throws IOException {
+        Timer timer = new Timer();
+        writeLock.lock();
+        try {
+            int mark = uncommitted.size();
+            List<Operation> groupOps = new ArrayList( 128 );
+            boolean optimizeIndex = false;
+            boolean spilled = false;
+            try {
+                for (LuceneUpdater updater : group) {
+                    updater.writeTo( writer );
+                    groupOps.addAll( updater.ops );
+                    optimizeIndex |= updater.optimizeIndex;
+                    spilled |= updater.spill != null;
+                }
+
+                double deleted = writer.maxDoc() - writer.numDocs();
+                double total = writer.maxDoc();
+                double percent = 100d / total * deleted; 
+                if (optimizeIndex || percent > MAX_DELETED_PERCENT) {
+                    writer.forceMergeDeletes( true );
+                    log.info( "Writer optimization done. (" + timer.elapsedTime() + "ms)"  );
+                    uncommitted.addAll( groupOps );
+                    doCommit();
+                }
+                else if (spilled) {
+                    uncommitted.addAll( groupOps );
+                    doCommit();
+                }
+                else {
+                    maybeCommit( groupOps );
+                }
+            }
+            catch (IOException e) {
+                rollbackQuietly( mark, e );
+                throw e;
+            }
+            catch (RuntimeException e) {
+                rollbackQuietly( mark, e );
+                throw e;
+            }
+
+            // make changes visible
+            searcherManager.maybeRefresh();
+
+            if (doc2id != null) {
+                resetDoc2id();
+            }
+
+            log.debug( "APPLY: " + group.size() + " updaters, " + groupOps.size() + " operations (" + timer.elapsedTime() + "ms)" );
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    
+    /**
+     * Rolls back after a failure. Errors of the rollback are logged only, so that
+     * the original failure is reported to the caller.
+     */
+    private void rollbackQuietly( int mark, Exception cause ) {
+        try {
+            rollback( mark );
+        }
+        catch (Exception e) {
+            log.error( "Rollback failed. Cause of the rollback: " + cause, e );
+        }
+    }
+    
+    
+    /**
+     * Statistics of the group commit of concurrently applied {@link Updater}s.
+     */
+    public GroupCommit<?> groupCommit() {
+        return groupCommit;
+    }
+    
+    
+    /**
+     * An update transaction of the store. The operations are buffered until
+     * {@link #apply()}, so that several updaters can be prepared concurrently. On
+     * apply the updater is submitted to the {@link #groupCommit}, which writes the
+     * operations into the shared {@link #writer} together with the operations of
+     * other concurrently applied updaters.
+     * <p/>
+     * If more than {@link LuceneRecordStore#MAX_BUFFERED_OPS} are stored then the
+     * operations are buffered in a {@link SpillIndex} instead of the heap. The
+     * shared writer is not touched before apply, so a big update is atomic as
+     * well and {@link #discard()} just drops the spill index.
      */
     class LuceneUpdater
             implements Updater {
 
-        private IndexWriter         writer;
+        private List<Operation>     ops = new ArrayList( 128 );
+        
+        /** The operations beyond {@link LuceneRecordStore#MAX_BUFFERED_OPS}, or null. */
+        private SpillIndex          spill;
+        
+        private boolean             optimizeIndex;
         
 
         LuceneUpdater() {
             assert !isClosed() : "Store is closed already.";
-            try {
-                // Defauls:
-                //  - IndexWriterConfig#DEFAULT_RAM_BUFFER_SIZE_MB == 16MB
-                //  - autCommit == false
-                //  - 8 concurrent thread
-                IndexWriterConfig config = new IndexWriterConfig( VERSION, analyzer )
-                        .setOpenMode( OpenMode.APPEND )
-                        .setRAMBufferSizeMB( MAX_RAMBUFFER_SIZE );
-                
-                // limit segment size for lower pauses on interactive indexing
-                LogByteSizeMergePolicy mergePolicy = new LogByteSizeMergePolicy();
-                mergePolicy.setMaxMergeMB( MAX_MERGE_SIZE );
-                config.setMergePolicy( mergePolicy );
-                config.setMaxBufferedDocs( IndexWriterConfig.DISABLE_AUTO_FLUSH );
-                writer = new IndexWriter( directory, config );
-            }
-            catch (Exception e) {
-                if (writer != null) {
-                    discard();
-                }
-                throw new RuntimeException( e );
-            }
         }
 
         
@@ -484,7 +898,7 @@ public final class LuceneRecordStore
             // add
             if (record.id() == null) {
                 ((LuceneRecordState)record).createId();
-                writer.addDocument( doc );
+                add( new Operation( null, doc ) );
                 
                 if (cache != null) {
                     cache.putIfAbsent( record.id(), doc );
@@ -493,7 +907,7 @@ public final class LuceneRecordStore
             // update
             else {
                 Term idTerm = new Term( LuceneRecordState.ID_FIELD, (String)record.id() );
-                writer.updateDocument( idTerm, ((LuceneRecordState)record).getDocument() );
+                add( new Operation( idTerm, doc ) );
 
                 if (cache != null) {
                     cache.remove( record.id() );
@@ -506,7 +920,7 @@ public final class LuceneRecordStore
             assert record.id() != null : "Record is not yet stored.";
 
             Term idTerm = new Term( LuceneRecordState.ID_FIELD, (String)record.id() );
-            writer.deleteDocuments( idTerm );
+            add( new Operation( idTerm, null ) );
 
             if (cache != null) {
                 cache.remove( record.id() );
@@ -514,137 +928,229 @@ public final class LuceneRecordStore
         }
 
         
+        public void remove( RecordQuery query ) throws Exception {
+            RecordQuery luceneQuery = luceneQuery( query );
+            if (!(luceneQuery instanceof LuceneRecordQuery)) {
+                throw new UnsupportedOperationException( "Query type not supported: " + query );
+            }
+            add( new Operation( ((LuceneRecordQuery)luceneQuery).getLuceneQuery() ) );
+
+            // we don't know the ids of the removed records
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+
+        
+        protected void add( Operation op ) throws IOException {
+            assert ops != null : "Updater is closed.";
+            if (spill != null) {
+                spill.add( op );
+            }
+            else {
+                ops.add( op );
+                if (ops.size() >= MAX_BUFFERED_OPS) {
+                    log.debug( "Spilling updater: " + ops.size() + " operations" );
+                    spill = new SpillIndex();
+                    for (Operation buffered : ops) {
+                        spill.add( buffered );
+                    }
+                    ops.clear();
+                }
+            }
+        }
+        
+        
+        /**
+         * Writes the operations of this updater into the given writer. Must be
+         * called with {@link #writeLock} held.
+         */
+        protected void writeTo( IndexWriter target ) throws IOException {
+            for (Operation op : ops) {
+                op.apply( target );
+            }
+            if (spill != null) {
+                spill.writeTo( target );
+            }
+        }
+        
+        
         public void apply() {
             apply( false );
         }
         
         
         public void apply( boolean optimizeIndex ) {
-            assert writer != null : "Updater is closed.";
-            Timer timer = new Timer();
+            assert ops != null : "Updater is closed.";
+            this.optimizeIndex = optimizeIndex;
             try {
-                writer.commit();
-                log.info( "Writer commited. (" + timer.elapsedTime() + "ms)"  );
-                
-                double deleted = reader.numDeletedDocs();
-                double total = reader.numDocs();
-                double percent = 100d / total * deleted; 
-                if (optimizeIndex || percent > MAX_DELETED_PERCENT) {
-                    //writer.expungeDeletes( true );
-                    writer.forceMergeDeletes( true );
-                    log.info( "Writer optimization done. (" + timer.elapsedTime() + "ms)"  );
-                }
-                writer.close();
-                writer = null;
-                
-                lock.writeLock().lock();
-                searcher.close();
-                IndexReader newReader = IndexReader.openIfChanged( reader );
-                if (newReader != null) {
-                    reader.close();
-                    reader = newReader;
+                // the optimization is not forced upon other updaters of a group
+                if (optimizeIndex) {
+                    applyGroup( Collections.singletonList( this ) );
                 }
-                searcher = new IndexSearcher( reader, executor );
-                
-                if (doc2id != null) {
-                    doc2id.clear();
+                else {
+                    groupCommit.commit( this );
                 }
-                
-                log.info( "COMMIT: " + timer.elapsedTime() + "ms" );
+            }
+            catch (RuntimeException e) {
+                throw e;
             }
             catch (Exception e) {
                 throw new RuntimeException( e );
             }
             finally {
-                lock.writeLock().unlock();
-                lock = newLock();
+                ops = null;
+                disposeSpill();
             }
         }
 
         
         public void discard() {
-            if (writer == null) {
+            if (ops == null) {
                 log.warn( "Updater is already closed." );
                 return;
             }
+            ops = null;
+            disposeSpill();
+        }
+        
+        
+        private void disposeSpill() {
+            if (spill != null) {
+                spill.dispose();
+                spill = null;
+            }
+        }
+    }
+    
+    
+    /**
+     * Buffers the operations of a big {@link LuceneUpdater} in a private index
+     * outside the shared {@link #writer}, in a temp directory or, for an in-memory
+     * store, in memory. Added and updated documents are written into the private
+     * index; deletes are applied to the private index and recorded, so that they
+     * can be applied to the shared writer too. On apply the recorded deletes are
+     * applied to the shared writer and then the private index is merged into it.
+     * As the deletes hit the documents of the private index in order already, this
+     * results in the same index as applying the operations one by one.
+     */
+    class SpillIndex {
+        
+        private File                tmpDir;
+        
+        private Directory           spillDir;
+        
+        private IndexWriter         spillWriter;
+        
+        /** The delete part of the operations, in order. */
+        private List<Operation>     deletes = new ArrayList( 1024 );
+        
+        
+        SpillIndex() throws IOException {
+            if (directory instanceof RAMDirectory) {
+                spillDir = new RAMDirectory();
+            }
+            else {
+                tmpDir = File.createTempFile( "LuceneRecordStore-", ".spill" );
+                tmpDir.delete();
+                tmpDir.mkdirs();
+                spillDir = FSDirectory.open( tmpDir );
+            }
+            spillWriter = new IndexWriter( spillDir, newWriterConfig().setOpenMode( OpenMode.CREATE ) );
+        }
+        
+        
+        public void add( Operation op ) throws IOException {
+            op.apply( spillWriter );
+            Operation deletion = op.deletion();
+            if (deletion != null) {
+                deletes.add( deletion );
+            }
+        }
+        
+        
+        /**
+         * Must be called with {@link #writeLock} held.
+         */
+        public void writeTo( IndexWriter target ) throws IOException {
+            for (Operation op : deletes) {
+                op.apply( target );
+            }
+            IndexReader reader = IndexReader.open( spillWriter, true );
             try {
-                writer.rollback();
-                writer.close();
-                writer = null;
+                target.addIndexes( reader );
             }
-            catch (AlreadyClosedException e) {
+            finally {
+                reader.close();
             }
-            catch (Exception e) {
-                log.warn( "Error during discard()", e );
-                //throw new RuntimeException( e );
+        }
+        
+        
+        public void dispose() {
+            try {
+                spillWriter.rollback();
+                spillDir.close();
+            }
+            catch (IOException e) {
+                log.warn( "Unable to close spill index.", e );
+            }
+            if (tmpDir != null) {
+                FileUtils.deleteQuietly( tmpDir );
             }
         }
     }
     
 
     /**
-     * Use Lucene IndexReader internal mechanism to MROW lock. Maybe(?) less overhead
-     * than {@link ReentrantReadWriteLock}.
-     * 
-     * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+     * A buffered add, update or delete operation of an {@link LuceneUpdater}. 
      */
-    static class IndexReaderReadWriteLock
-            implements ReadWriteLock {
+    static class Operation {
+        
+        /** The id term of the document to update/delete, or null for add. */
+        private Term        idTerm;
+        
+        /** The document to add/update, or null for delete. */
+        private Document    doc;
+
+        /** The query of the documents to delete, or null. */
+        private Query       deleteQuery;
 
-        private IndexReader     indexReader;
+        public Operation( Term idTerm, Document doc ) {
+            this.idTerm = idTerm;
+            this.doc = doc;
+        }
+        
+        public Operation( Query deleteQuery ) {
+            this.deleteQuery = deleteQuery;
+        }
         
         /**
-         * This is just a dummy. The writeLock is aquired just to call
-         * {@link IndexReader#close()}. This calls decRef() itself and so
-         * synchronizes with readers.
+         * The delete part of this operation: this for a delete, a delete of the
+         * id for an update, or null for an add.
          */
-        private Lock            writeLock = DummyConcurrentLock.INSTANCE;
-        
-        private Lock            readLock = new Lock() {
-            @Override
-            public void lock() {
-                indexReader.incRef();
+        public Operation deletion() {
+            if (deleteQuery != null || doc == null) {
+                return this;
             }
-            @Override
-            public void unlock() {
-                try {
-                    indexReader.decRef();
-                }
-                catch (IOException e) {
-                    throw new RuntimeException( e );
-                }
+            else if (idTerm != null) {
+                return new Operation( idTerm, null );
             }
-            @Override
-            public void lockInterruptibly() throws InterruptedException {
-                throw new RuntimeException( "not yet implemented." );
+            return null;
+        }
+        
+        public void apply( IndexWriter writer ) throws IOException {
+            if (deleteQuery != null) {
+                writer.deleteDocuments( deleteQuery );
             }
-            @Override
-            public boolean tryLock() {
-                return indexReader.tryIncRef();
+            else if (idTerm == null) {
+                writer.addDocument( doc );
             }
-
-            @Override
-            public boolean tryLock( long time, TimeUnit unit ) throws InterruptedException {
-                throw new RuntimeException( "not yet implemented." );
+            else if (doc == null) {
+                writer.deleteDocuments( idTerm );
             }
-            @Override
-            public Condition newCondition() {
-                throw new RuntimeException( "not yet implemented." );
+            else {
+                writer.updateDocument( idTerm, doc );
             }
-        };
-        
-        public IndexReaderReadWriteLock( IndexReader indexReader ) {
-            this.indexReader = indexReader;
-        }
-
-        @Override
-        public Lock readLock() {
-            return readLock;
-        }
-
-        @Override
-        public Lock writeLock() {
-            return writeLock;
         }
     }
     
@@ -0,0 +1,354 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.core.runtime.recordstore.lucene;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.recordstore.QueryExpression.BBox;
+
+/**
+ * Answers {@link BBox} queries of {@link GeometryValueCoder} via an in-memory,
+ * packed R-tree per index segment. The tree is built from the bbox fields (
+ * {@link GeometryValueCoder#FIELD_MINX}, ...) of the segment on first access
+ * and cached as long as the segment is open. Segments are shared between
+ * near-real-time readers, so an update of the store re-builds the trees of new
+ * segments only.
+ * <p/>
+ * The filter checks the bounds of the geometries only, just like the numeric range
+ * query of {@link GeometryValueCoder}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public final class SpatialIndexFilter
+        extends Filter {
+
+    private static Log log = LogFactory.getLog( SpatialIndexFilter.class );
+
+    /** Segment core key -> (field -> tree) */
+    private static final Map<Object,Map<String,PackedRTree>> trees = new WeakHashMap();
+
+
+    // instance *******************************************
+
+    private BBox                bbox;
+
+
+    public SpatialIndexFilter( BBox bbox ) {
+        this.bbox = bbox;
+    }
+
+
+    @Override
+    public DocIdSet getDocIdSet( IndexReader reader ) throws IOException {
+        PackedRTree tree = tree( reader, bbox.key );
+        FixedBitSet result = new FixedBitSet( reader.maxDoc() );
+        tree.search( bbox.minX, bbox.minY, bbox.maxX, bbox.maxY, reader, result );
+        return result;
+    }
+
+
+    protected static PackedRTree tree( IndexReader reader, String key ) throws IOException {
+        Map<String,PackedRTree> segmentTrees = null;
+        synchronized (trees) {
+            Object coreKey = reader.getCoreCacheKey();
+            segmentTrees = trees.get( coreKey );
+            if (segmentTrees == null) {
+                trees.put( coreKey, segmentTrees = new HashMap() );
+            }
+        }
+        synchronized (segmentTrees) {
+            PackedRTree result = segmentTrees.get( key );
+            if (result == null) {
+                Timer timer = new Timer();
+                result = PackedRTree.build( reader, key );
+                segmentTrees.put( key, result );
+                log.debug( "Segment tree: " + result.size() + " items (" + timer.elapsedTime() + "ms)" );
+            }
+            return result;
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "SpatialIndexFilter[" + bbox.key + ": " + bbox.minX + "," + bbox.minY
+                + " - " + bbox.maxX + "," + bbox.maxY + "]";
+    }
+
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+
+    @Override
+    public boolean equals( Object obj ) {
+        return obj instanceof SpatialIndexFilter && toString().equals( obj.toString() );
+    }
+
+
+    /**
+     * Static, packed R-tree (sort-tile-recursive) of the bounds of the documents of
+     * one segment. Items and nodes are stored in flat primitive arrays.
+     */
+    static class PackedRTree {
+
+        public static final int     NODE_SIZE = 16;
+
+        /** Bounds of all items and nodes: minX, minY, maxX, maxY. Items first, root last. */
+        private double[]            boxes;
+
+        /** For items: the docnum; for nodes: the index of the first child. */
+        private int[]               indices;
+
+        /** The end index of the items and of every level of nodes. */
+        private int[]               levelEnds;
+
+        private int                 numItems;
+
+
+        /**
+         * Builds the tree from the bbox fields of the given segment.
+         */
+        public static PackedRTree build( IndexReader reader, String key ) throws IOException {
+            int maxDoc = reader.maxDoc();
+            FixedBitSet hasValue = new FixedBitSet( maxDoc );
+            double[] minX = loadValues( reader, key+GeometryValueCoder.FIELD_MINX, hasValue );
+            double[] minY = loadValues( reader, key+GeometryValueCoder.FIELD_MINY, null );
+            double[] maxX = loadValues( reader, key+GeometryValueCoder.FIELD_MAXX, null );
+            double[] maxY = loadValues( reader, key+GeometryValueCoder.FIELD_MAXY, null );
+
+            int[] docs = new int[ hasValue.cardinality() ];
+            for (int i=0, doc=-1; i<docs.length; i++) {
+                docs[i] = doc = hasValue.nextSetBit( doc + 1 );
+            }
+            return new PackedRTree( docs, minX, minY, maxX, maxY );
+        }
+
+
+        /**
+         * Loads the full precision values of the given numeric field, like
+         * FieldCache does, without keeping the arrays in the FieldCache.
+         */
+        protected static double[] loadValues( IndexReader reader, String field, FixedBitSet hasValue )
+        throws IOException {
+            double[] result = new double[ reader.maxDoc() ];
+            TermDocs termDocs = reader.termDocs();
+            TermEnum terms = reader.terms( new Term( field, "" ) );
+            try {
+                do {
+                    Term term = terms.term();
+                    if (term == null || !term.field().equals( field )) {
+                        break;
+                    }
+                    // lower precision terms follow the full precision terms
+                    String text = term.text();
+                    if (text.charAt( 0 ) - NumericUtils.SHIFT_START_LONG > 0) {
+                        break;
+                    }
+                    double value = NumericUtils.sortableLongToDouble( NumericUtils.prefixCodedToLong( text ) );
+                    termDocs.seek( terms );
+                    while (termDocs.next()) {
+                        result[termDocs.doc()] = value;
+                        if (hasValue != null) {
+                            hasValue.set( termDocs.doc() );
+                        }
+                    }
+                } while (terms.next());
+            }
+            finally {
+                termDocs.close();
+                terms.close();
+            }
+            return result;
+        }
+
+
+        protected PackedRTree( int[] docs, double[] minX, double[] minY, double[] maxX, double[] maxY ) {
+            numItems = docs.length;
+
+            // sort items: slices by center x, each slice by center y
+            double[] keys = new double[ numItems ];
+            for (int i=0; i<numItems; i++) {
+                keys[i] = minX[docs[i]] + maxX[docs[i]];
+            }
+            sort( keys, docs, 0, numItems-1 );
+            int numLeaves = (numItems + NODE_SIZE - 1) / NODE_SIZE;
+            int sliceSize = NODE_SIZE * (int)Math.ceil( Math.sqrt( numLeaves ) );
+            for (int i=0; i<numItems; i++) {
+                keys[i] = minY[docs[i]] + maxY[docs[i]];
+            }
+            for (int start=0; start<numItems; start+=sliceSize) {
+                sort( keys, docs, start, Math.min( start+sliceSize, numItems ) - 1 );
+            }
+            keys = null;
+
+            // count boxes and levels
+            int numBoxes = numItems, numLevels = 1;
+            for (int n = numItems; n > 1; numLevels++) {
+                n = (n + NODE_SIZE - 1) / NODE_SIZE;
+                numBoxes += n;
+            }
+            boxes = new double[ Math.max( numBoxes, 1 ) * 4 ];
+            indices = new int[ Math.max( numBoxes, 1 ) ];
+            levelEnds = new int[ numLevels ];
+
+            // items
+            for (int i=0; i<numItems; i++) {
+                int doc = docs[i];
+                indices[i] = doc;
+                boxes[i*4] = minX[doc];
+                boxes[i*4+1] = minY[doc];
+                boxes[i*4+2] = maxX[doc];
+                boxes[i*4+3] = maxY[doc];
+            }
+            levelEnds[0] = numItems;
+
+            // nodes; pack every NODE_SIZE boxes of the level below
+            int pos = numItems;
+            for (int level=1, start=0; level<numLevels; level++) {
+                int end = levelEnds[level-1];
+                for (int child=start; child<end; child+=NODE_SIZE) {
+                    double nodeMinX = Double.POSITIVE_INFINITY, nodeMinY = Double.POSITIVE_INFINITY;
+                    double nodeMaxX = Double.NEGATIVE_INFINITY, nodeMaxY = Double.NEGATIVE_INFINITY;
+                    for (int i=child; i<Math.min( child+NODE_SIZE, end ); i++) {
+                        nodeMinX = Math.min( nodeMinX, boxes[i*4] );
+                        nodeMinY = Math.min( nodeMinY, boxes[i*4+1] );
+                        nodeMaxX = Math.max( nodeMaxX, boxes[i*4+2] );
+                        nodeMaxY = Math.max( nodeMaxY, boxes[i*4+3] );
+                    }
+                    indices[pos] = child;
+                    boxes[pos*4] = nodeMinX;
+                    boxes[pos*4+1] = nodeMinY;
+                    boxes[pos*4+2] = nodeMaxX;
+                    boxes[pos*4+3] = nodeMaxY;
+                    pos ++;
+                }
+                levelEnds[level] = pos;
+                start = end;
+            }
+        }
+
+
+        public int size() {
+            return numItems;
+        }
+
+
+        /**
+         * Sets the docnum of all not deleted items that intersect the given bounds.
+         */
+        public void search( double qMinX, double qMinY, double qMaxX, double qMaxY,
+                IndexReader reader, FixedBitSet result ) {
+            if (numItems == 0) {
+                return;
+            }
+            boolean hasDeletions = reader.hasDeletions();
+            int[] stack = new int[ levelEnds.length * NODE_SIZE ];
+            int stackSize = 0;
+            stack[stackSize++] = levelEnds[levelEnds.length-1] - 1;
+
+            while (stackSize > 0) {
+                int box = stack[--stackSize];
+                if (!intersects( box, qMinX, qMinY, qMaxX, qMaxY )) {
+                    continue;
+                }
+                if (box < numItems) {
+                    int doc = indices[box];
+                    if (!hasDeletions || !reader.isDeleted( doc )) {
+                        result.set( doc );
+                    }
+                }
+                else {
+                    int start = indices[box];
+                    int end = Math.min( start + NODE_SIZE, levelEnd( start ) );
+                    for (int child=start; child<end; child++) {
+                        stack[stackSize++] = child;
+                    }
+                }
+            }
+        }
+
+
+        /**
+         * Same (exclusive) semantics as the numeric range query of
+         * {@link GeometryValueCoder}.
+         */
+        protected final boolean intersects( int box, double qMinX, double qMinY, double qMaxX, double qMaxY ) {
+            int i = box * 4;
+            return boxes[i+2] > qMinX
+                    && boxes[i] < qMaxX
+                    && boxes[i+3] > qMinY
+                    && boxes[i+1] < qMaxY;
+        }
+
+
+        protected final int levelEnd( int index ) {
+            for (int levelEnd : levelEnds) {
+                if (index < levelEnd) {
+                    return levelEnd;
+                }
+            }
+            throw new IllegalStateException( "No level for index: " + index );
+        }
+
+
+        /**
+         * Sorts keys and values by keys (quicksort), without boxing.
+         */
+        protected static void sort( double[] keys, int[] values, int left, int right ) {
+            while (left < right) {
+                double pivot = keys[(left + right) >>> 1];
+                int i = left, j = right;
+                while (i <= j) {
+                    while (keys[i] < pivot) { i++; }
+                    while (keys[j] > pivot) { j--; }
+                    if (i <= j) {
+                        double k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+                        int v = values[i]; values[i] = values[j]; values[j] = v;
+                        i++; j--;
+                    }
+                }
+                // recurse into smaller part, loop over the bigger one
+                if (j - left < right - i) {
+                    sort( keys, values, left, j );
+                    left = i;
+                }
+                else {
+                    sort( keys, values, i, right );
+                    right = j;
+                }
+            }
+        }
+    }
+
+}
@@ -16,19 +16,40 @@ package org.polymap.core.runtime.recordstore.lucene;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermRangeQuery;
 
 import org.polymap.core.runtime.recordstore.QueryExpression;
 
 /**
  * Provides common base methods.
+ * <p/>
+ * The coder of a field is resolved once, when the field is first encoded or
+ * decoded, and is recorded in the schema of the store: field key -> coder. The
+ * collection indexes of keys are ignored, so all elements of a collection share
+ * one entry. Subsequent calls use the coder of the schema, without probing the
+ * other coders. The schema is persisted with every commit of the store (in the
+ * commit user data of the index) and is loaded when the store is opened. Lookups
+ * are thread-safe and do not block.
  *
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
 public final class ValueCoders {
+
+    private static Log log = LogFactory.getLog( ValueCoders.class );
+
+    /** Prefix of the keys of the schema entries in the commit user data. */
+    public static final String          SCHEMA_PREFIX = "coder:";
     
     public static final LuceneValueCoder[] DEFAULT_CODERS = new LuceneValueCoder[] {
             new NumericValueCoder(),
@@ -42,9 +63,19 @@ public final class ValueCoders {
     
     private LuceneRecordStore           store;
     
-    private LuceneValueCoder[]          valueCoders = DEFAULT_CODERS;
+    private volatile LuceneValueCoder[] valueCoders = DEFAULT_CODERS;
+    
+    /** Normalized key -> resolved coder. */
+    private ConcurrentMap<String,LuceneValueCoder> schema = new ConcurrentHashMap( 64 );
     
-    private Map<String,LuceneValueCoder> keyCoderMap = new HashMap( 64 );
+    /**
+     * Normalized key -> coder class name; loaded schema entries whose coder was
+     * not yet added via {@link #addValueCoder(LuceneValueCoder)}.
+     */
+    private ConcurrentMap<String,String> unresolved = new ConcurrentHashMap();
+    
+    /** True if the schema has entries that are not yet persisted. */
+    private volatile boolean            schemaModified;
     
 
     protected ValueCoders( LuceneRecordStore store ) {
@@ -52,21 +83,42 @@ public final class ValueCoders {
     }
 
 
-    public void addValueCoder( LuceneValueCoder valueCoder ) {
+    public synchronized void addValueCoder( LuceneValueCoder valueCoder ) {
         // add first, keep StringValueCoder last
         valueCoders = (LuceneValueCoder[])ArrayUtils.add( valueCoders, 0, valueCoder );
+        
+        // resolve loaded entries of this coder
+        String className = valueCoder.getClass().getName();
+        for (Map.Entry<String,String> entry : unresolved.entrySet()) {
+            if (entry.getValue().equals( className )) {
+                schema.put( entry.getKey(), valueCoder );
+                unresolved.remove( entry.getKey() );
+            }
+        }
     }
 
     
+    /**
+     * The coder of the given field as recorded in the schema of the store.
+     * 
+     * @param key The key of the field.
+     * @return The coder, or null if the field has not been encoded or decoded yet.
+     */
+    public LuceneValueCoder coder( String key ) {
+        return schema.get( normalizedKey( key ) );
+    }
+    
+    
     public boolean encode( Document doc, String key, Object value, boolean indexed ) {
-        LuceneValueCoder valueCoder = keyCoderMap.get( key );
-        if (valueCoder != null) {
-            valueCoder.encode( doc, key, value, indexed );
+        String normalized = normalizedKey( key );
+        LuceneValueCoder valueCoder = schema.get( normalized );
+        if (valueCoder != null && valueCoder.encode( doc, key, value, indexed )) {
             return true;
         }
+        // first value of this key, or type of the value has changed
         for (LuceneValueCoder candidate : valueCoders) {
             if (candidate.encode( doc, key, value, indexed )) {
-                keyCoderMap.put( key, candidate );
+                resolved( normalized, candidate );
                 return true;
             }
         }
@@ -78,14 +130,22 @@ public final class ValueCoders {
         if (key == null) {
             return null;
         }
-        LuceneValueCoder valueCoder = keyCoderMap.get( key );
+        String normalized = normalizedKey( key );
+        LuceneValueCoder valueCoder = schema.get( normalized );
         if (valueCoder != null) {
-            return (T)valueCoder.decode( doc, key );
+            T result = (T)valueCoder.decode( doc, key );
+            // null and no field -> no value; otherwise the value has another type
+            // than the schema says, so probe the coders below
+            if (result != null || doc.getFieldable( key ) == null) {
+                return result;
+            }
         }
         for (LuceneValueCoder candidate : valueCoders) {
             T result = (T)candidate.decode( doc, key );
             if (result != null) {
-                keyCoderMap.put( key, candidate );
+                if (valueCoder == null) {
+                    resolved( normalized, candidate );
+                }
                 return result;
             }
         }
@@ -97,6 +157,13 @@ public final class ValueCoders {
     public final Query searchQuery( QueryExpression exp ) {
         assert exp != null;
         
+        // IsNull: the field names depend on the coder of the key
+        if (exp instanceof QueryExpression.IsNull) {
+            String key = ((QueryExpression.IsNull)exp).key;
+            LuceneValueCoder valueCoder = coder( key );
+            Query result = valueCoder != null ? valueCoder.searchQuery( exp ) : null;
+            return result != null ? result : isNullQuery( key );
+        }
         for (LuceneValueCoder valueCoder : valueCoders) {
             Query result = valueCoder.searchQuery( exp );
             if (result != null) {
@@ -105,5 +172,115 @@ public final class ValueCoders {
         }
         throw new RuntimeException( "No LuceneValueCoder found for query expression: " + exp );
     }
+
+
+    /**
+     * Query that matches the documents that have no indexed term in the given
+     * field. Coders that store their values in other fields than the key of the
+     * value answer {@link QueryExpression.IsNull} with this query for their field.
+     */
+    public static Query isNullQuery( String field ) {
+        BooleanQuery result = new BooleanQuery();
+        result.add( new MatchAllDocsQuery(), BooleanClause.Occur.MUST );
+        result.add( new TermRangeQuery( field, null, null, true, true ), BooleanClause.Occur.MUST_NOT );
+        return result;
+    }
+
+
+    protected void resolved( String normalizedKey, LuceneValueCoder coder ) {
+        // the persisted coder is resolved when it is added
+        if (unresolved.containsKey( normalizedKey )) {
+            return;
+        }
+        LuceneValueCoder previous = schema.put( normalizedKey, coder );
+        if (previous != coder) {
+            schemaModified = true;
+        }
+    }
+    
+    
+    /**
+     * Removes the collection indexes from the given key: <code>a[1]/b[12]</code>
+     * -> <code>a[]/b[]</code>.
+     */
+    protected static String normalizedKey( String key ) {
+        int start = key.indexOf( '[' );
+        if (start < 0) {
+            return key;
+        }
+        StringBuilder result = new StringBuilder( key.length() );
+        boolean inIndex = false;
+        for (int i=0; i<key.length(); i++) {
+            char c = key.charAt( i );
+            if (c == '[') {
+                inIndex = true;
+                result.append( c );
+            }
+            else if (c == ']') {
+                inIndex = false;
+                result.append( c );
+            }
+            else if (!inIndex) {
+                result.append( c );
+            }
+        }
+        return result.toString();
+    }
+    
+    
+    // persistence ****************************************
+    
+    boolean isSchemaModified() {
+        return schemaModified;
+    }
+    
+    
+    /**
+     * The schema as commit user data of the index. Resets the modified flag.
+     */
+    Map<String,String> schemaData() {
+        schemaModified = false;
+        Map<String,String> result = new HashMap( (schema.size() + unresolved.size()) * 2 );
+        for (Map.Entry<String,String> entry : unresolved.entrySet()) {
+            result.put( SCHEMA_PREFIX + entry.getKey(), entry.getValue() );
+        }
+        for (Map.Entry<String,LuceneValueCoder> entry : schema.entrySet()) {
+            result.put( SCHEMA_PREFIX + entry.getKey(), entry.getValue().getClass().getName() );
+        }
+        return result;
+    }
+    
+    
+    /**
+     * Loads the schema from the given commit user data of the index. Entries of
+     * coders that are not yet added are resolved by
+     * {@link #addValueCoder(LuceneValueCoder)}.
+     */
+    synchronized void loadSchema( Map<String,String> commitUserData ) {
+        schema.clear();
+        unresolved.clear();
+        if (commitUserData == null) {
+            return;
+        }
+        for (Map.Entry<String,String> entry : commitUserData.entrySet()) {
+            if (entry.getKey().startsWith( SCHEMA_PREFIX )) {
+                String key = entry.getKey().substring( SCHEMA_PREFIX.length() );
+                LuceneValueCoder coder = null;
+                for (LuceneValueCoder candidate : valueCoders) {
+                    if (candidate.getClass().getName().equals( entry.getValue() )) {
+                        coder = candidate;
+                        break;
+                    }
+                }
+                if (coder != null) {
+                    schema.put( key, coder );
+                }
+                else {
+                    unresolved.put( key, entry.getValue() );
+                }
+            }
+        }
+        log.debug( "Schema loaded: " + schema.size() + " fields, unresolved: " + unresolved.size() );
+    }
     
 }
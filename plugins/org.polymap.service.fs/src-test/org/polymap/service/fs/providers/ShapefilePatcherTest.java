@@ -0,0 +1,303 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.service.fs.providers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureCollections;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+
+/**
+ * Round-trip test of {@link ShapefilePatcher}: patches a generated shapefile and
+ * compares the result with a full export of the same features, read back by the
+ * GeoTools shapefile reader.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+public class ShapefilePatcherTest
+        extends TestCase {
+
+    private static Log log = LogFactory.getLog( ShapefilePatcherTest.class );
+
+    private static final int        COUNT = 50;
+
+    private GeometryFactory         gf = new GeometryFactory();
+
+    private SimpleFeatureType       schema;
+
+    private File                    dir;
+
+    private File                    shpFile;
+
+    private ShapefilePatcher        patcher;
+
+    /** The current state of the features, in the order of the records. */
+    private Map<String,SimpleFeature> current = new LinkedHashMap();
+
+
+    public ShapefilePatcherTest( String name ) {
+        super( name );
+    }
+
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File( System.getProperty( "java.io.tmpdir" ), "ShapefilePatcherTest" );
+        FileUtils.deleteQuietly( dir );
+        dir.mkdirs();
+
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName( "Test" );
+        builder.add( "geom", MultiLineString.class );
+        builder.add( "name", String.class );
+        builder.add( "num", Integer.class );
+        schema = builder.buildFeatureType();
+
+        for (int i=0; i<COUNT; i++) {
+            put( feature( "f" + i, "name" + i, i, 2 + i % 3 ) );
+        }
+        File baseDir = new File( dir, "patched" );
+        baseDir.mkdirs();
+        shpFile = new ShapefileGenerator( new File( baseDir, "test.shp" ) ).writeShapefile( collection( current.values() ) );
+        patcher = new ShapefilePatcher( shpFile );
+    }
+
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteQuietly( dir );
+    }
+
+
+    public void testModifySameSize() throws Exception {
+        put( feature( "f3", "changed", 333, 2 ) );
+        put( feature( "f10", "changed too", 1010, 3 ) );
+        assertEquals( 2, patch( "f3", "f10" ) );
+        assertPatched();
+    }
+
+
+    public void testModifyResize() throws Exception {
+        put( feature( "f5", "bigger", 5, 20 ) );
+        put( feature( "f30", "smaller", 30, 2 ) );
+        assertEquals( 2, patch( "f5", "f30" ) );
+        assertPatched();
+
+        // shrink again, now in front of the previous change
+        put( feature( "f1", "smaller", 1, 2 ) );
+        put( feature( "f5", "smaller", 5, 2 ) );
+        assertEquals( 2, patch( "f1", "f5" ) );
+        assertPatched();
+    }
+
+
+    public void testAdd() throws Exception {
+        put( feature( "a1", "added", 1001, 4 ) );
+        put( feature( "a2", "added", 1002, 7 ) );
+        assertEquals( 2, patch( "a1", "a2" ) );
+        assertPatched();
+    }
+
+
+    public void testRemove() throws Exception {
+        current.remove( "f7" );
+        current.remove( "f20" );
+        current.remove( "f" + (COUNT-1) );
+        assertEquals( 3, patch( "f7", "f20", "f" + (COUNT-1) ) );
+        assertPatched();
+
+        // the record index has been renumbered
+        put( feature( "f21", "after remove", 21, 9 ) );
+        assertEquals( 1, patch( "f21" ) );
+        assertPatched();
+    }
+
+
+    public void testCombined() throws Exception {
+        put( feature( "f2", "same size", 2, 4 ) );
+        put( feature( "f12", "resized", 12, 11 ) );
+        current.remove( "f8" );
+        current.remove( "f40" );
+        put( feature( "a1", "added", 1001, 5 ) );
+        assertEquals( 5, patch( "f2", "f12", "f8", "f40", "a1" ) );
+        assertPatched();
+
+        // the added feature is patched in place afterwards
+        put( feature( "a1", "added changed", 1001, 5 ) );
+        current.remove( "f0" );
+        assertEquals( 2, patch( "a1", "f0" ) );
+        assertPatched();
+    }
+
+
+    // helpers ********************************************
+
+    protected SimpleFeature feature( String fid, String name, int num, int coords ) {
+        Coordinate[] coordinates = new Coordinate[ coords ];
+        for (int i=0; i<coords; i++) {
+            coordinates[i] = new Coordinate( num + i * 0.5, num - i * 0.25 );
+        }
+        LineString line = gf.createLineString( coordinates );
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder( schema );
+        fb.set( "geom", gf.createMultiLineString( new LineString[] {line} ) );
+        fb.set( "name", name );
+        fb.set( "num", num );
+        return fb.buildFeature( fid );
+    }
+
+
+    /** Modifies or appends the given feature in {@link #current}. */
+    protected void put( SimpleFeature feature ) {
+        current.put( feature.getID(), feature );
+    }
+
+
+    protected FeatureCollection<SimpleFeatureType,SimpleFeature> collection( Iterable<SimpleFeature> features ) {
+        FeatureCollection<SimpleFeatureType,SimpleFeature> result = FeatureCollections.newCollection();
+        for (SimpleFeature feature : features) {
+            result.add( feature );
+        }
+        return result;
+    }
+
+
+    /**
+     * Patches the given fids with their {@link #current} state; fids that are
+     * not in current are removed.
+     */
+    protected int patch( String... fids ) throws Exception {
+        List<SimpleFeature> changed = new ArrayList();
+        for (String fid : fids) {
+            if (current.containsKey( fid )) {
+                changed.add( current.get( fid ) );
+            }
+        }
+        Set<String> fidSet = new HashSet( Arrays.asList( fids ) );
+        return patcher.patch( fidSet, collection( changed ) );
+    }
+
+
+    /**
+     * Compares the patched shapefile with a full export of {@link #current}.
+     */
+    protected void assertPatched() throws Exception {
+        File exportDir = new File( dir, "export" + System.nanoTime() );
+        exportDir.mkdirs();
+        File exported = new ShapefileGenerator( new File( exportDir, "test.shp" ) ).writeShapefile( collection( current.values() ) );
+
+        assertShx( shpFile, current.size() );
+        assertShx( exported, current.size() );
+        assertEquals( exported.length(), shpFile.length() );
+
+        List<SimpleFeature> expected = read( exported );
+        List<SimpleFeature> actual = read( shpFile );
+        assertEquals( current.size(), expected.size() );
+        assertEquals( expected.size(), actual.size() );
+        for (int i=0; i<expected.size(); i++) {
+            SimpleFeature e = expected.get( i ), a = actual.get( i );
+            String fid = (String)e.getAttribute( ShapefileGenerator.ORIG_FID_FIELD );
+            assertEquals( "Record: " + i, fid, a.getAttribute( ShapefileGenerator.ORIG_FID_FIELD ) );
+            assertEquals( fid, e.getAttribute( "name" ), a.getAttribute( "name" ) );
+            assertEquals( fid, e.getAttribute( "num" ), a.getAttribute( "num" ) );
+            assertTrue( fid, ((Geometry)e.getDefaultGeometry()).equalsExact( (Geometry)a.getDefaultGeometry() ) );
+        }
+        log.debug( "Patched and exported match: " + actual.size() + " records" );
+    }
+
+
+    protected List<SimpleFeature> read( File file ) throws Exception {
+        ShapefileDataStore ds = new ShapefileDataStore( file.toURI().toURL() );
+        try {
+            List<SimpleFeature> result = new ArrayList();
+            FeatureIterator<SimpleFeature> it = ds.getFeatureSource().getFeatures().features();
+            try {
+                while (it.hasNext()) {
+                    result.add( it.next() );
+                }
+            }
+            finally {
+                it.close();
+            }
+            return result;
+        }
+        finally {
+            ds.dispose();
+        }
+    }
+
+
+    /**
+     * Checks that every .shx entry points to the record header with the
+     * expected record number and length, and that the file lengths in the
+     * headers are correct.
+     */
+    protected void assertShx( File shp, int count ) throws Exception {
+        File shx = new File( shp.getParentFile(), shp.getName().replace( ".shp", ".shx" ) );
+        RandomAccessFile shpIn = new RandomAccessFile( shp, "r" );
+        RandomAccessFile shxIn = new RandomAccessFile( shx, "r" );
+        try {
+            assertEquals( 100 + count * 8, shxIn.length() );
+            shxIn.seek( 24 );
+            assertEquals( shxIn.length() / 2, shxIn.readInt() );
+            shpIn.seek( 24 );
+            assertEquals( shpIn.length() / 2, shpIn.readInt() );
+
+            long end = 100;
+            for (int i=0; i<count; i++) {
+                shxIn.seek( 100 + i * 8 );
+                int offset = shxIn.readInt();
+                int length = shxIn.readInt();
+                assertEquals( "Record: " + i, end, offset * 2L );
+                shpIn.seek( offset * 2L );
+                assertEquals( i + 1, shpIn.readInt() );
+                assertEquals( length, shpIn.readInt() );
+                end = offset * 2L + 8 + length * 2L;
+            }
+            assertEquals( shpIn.length(), end );
+        }
+        finally {
+            shpIn.close();
+            shxIn.close();
+        }
+    }
+
+}
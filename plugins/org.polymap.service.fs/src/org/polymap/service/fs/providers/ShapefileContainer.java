@@ -22,6 +22,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -31,7 +32,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.ParseException;
 
@@ -54,6 +58,7 @@ import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.FilterFactory;
 import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
 import org.opengis.filter.identity.Identifier;
 
 import org.apache.commons.io.FileUtils;
@@ -71,6 +76,7 @@ import org.polymap.core.data.FeatureStateTracker;
 import org.polymap.core.data.FeatureStateListener;
 import org.polymap.core.data.PipelineFeatureSource;
 import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
 import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.entity.EntityStateEvent;
 import org.polymap.core.runtime.entity.EntityStateTracker;
@@ -79,10 +85,15 @@ import org.polymap.core.runtime.entity.EntityStateTracker.Updater;
 import org.polymap.core.runtime.entity.EntityStateEvent.EventType;
 
 import org.polymap.service.fs.spi.IContentSite;
+import org.polymap.service.fs.spi.Range;
 
 /**
  * The container of the files of a shapefile used by the content file implementations
  * of the {@link ShapefileContentProvider}.
+ * <p/>
+ * Features committed by other sessions are patched into an existing shapefile by
+ * the {@link ShapefilePatcher} on next access, instead of re-creating the entire
+ * shapefile.
  * 
  * @author <a href="http://www.polymap.de">Falko Brutigam</a>
  */
@@ -95,6 +106,12 @@ class ShapefileContainer
     
     public static final long        UPDATE_JOB_DELAY = 5000;
     
+    /**
+     * The max number of changed features that are patched into an existing
+     * shapefile; more changes cause the entire shapefile to be re-created.
+     */
+    public static final int         MAX_PATCH_SIZE = 1000;
+    
     File                            file;
     
     /** The exception from last shapefile creation, or null if ok. */
@@ -115,6 +132,11 @@ class ShapefileContainer
     
     private PipelineFeatureSource   layerFs;
     
+    private ShapefilePatcher        patcher;
+    
+    /** The ids of the features changed since last patch. Modified under write lock. */
+    private Set<String>             pendingFids = Collections.newSetFromMap( new ConcurrentHashMap() );
+    
     
     public ShapefileContainer( ILayer layer, IContentSite site ) {
         this.layer = layer;
@@ -135,7 +157,41 @@ class ShapefileContainer
         if (ev.getEventType() == EventType.COMMIT
                 && !ev.isMySession()
                 && layer.id().equals( ((ILayer)ev.getSource()).id() )) {
-            flush();
+            
+            String type = FeatureStateTracker.MODEL_TYPE_PREFIX + layerFs.getSchema().getName().getLocalPart();
+            Set<EntityHandle> keys = ev.getKeys();
+            Set<String> fids = new HashSet();
+            for (EntityHandle key : keys) {
+                if (key.type().equals( type )) {
+                    fids.add( key.id() );
+                }
+            }
+            invalidate( fids );
+        }
+    }
+
+
+    /**
+     * Marks the given features to be patched into the shapefile on next access.
+     * Flushes the shapefile if the features are unknown or too many.
+     */
+    protected void invalidate( Set<String> fids ) {
+        try {
+            lock.writeLock().lock();
+
+            if (file != null) {
+                if (patcher == null || fids.isEmpty() 
+                        || pendingFids.size() + fids.size() > MAX_PATCH_SIZE) {
+                    flush();
+                }
+                else {
+                    pendingFids.addAll( fids );
+                    lastModified = new Date();
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -151,6 +207,8 @@ class ShapefileContainer
                     FileUtils.deleteQuietly( f );
                 }
                 file = null;
+                patcher = null;
+                pendingFids.clear();
                 exception = null;
                 lastModified = new Date();
             }
@@ -203,13 +261,67 @@ class ShapefileContainer
     }
     
 
+    /**
+     * Sends the given range of the file with the given suffix. The file is
+     * memory mapped, so only the requested range is read from disk.
+     *
+     * @param range The range to send, or null to send the entire file.
+     */
+    public void sendContent( String fileSuffix, OutputStream out, Range range )
+    throws IOException {
+        // init shapefile
+        getFileSize( fileSuffix );
+        if (exception != null) {
+            throw exception instanceof IOException 
+                    ? (IOException)exception : new IOException( exception.getLocalizedMessage(), exception );
+        }
+        
+        try {
+            lock.readLock().lock();
+            if (file == null) {
+                throw new IOException( "Shapefile has been flushed meanwhile." );
+            }
+            RandomAccessFile raf = new RandomAccessFile( resolveFile( fileSuffix ), "r" );
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                long start = 0, end = size;
+                if (range != null) {
+                    start = Math.min( range.getStart(), size );
+                    // finish is inclusive
+                    end = range.getFinish() >= range.getStart() ? Math.min( range.getFinish() + 1, size ) : size;
+                }
+                if (end > start) {
+                    MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, start, end - start );
+                    byte[] chunk = new byte[ (int)Math.min( 64*1024, end - start ) ];
+                    while (buf.hasRemaining()) {
+                        int len = Math.min( chunk.length, buf.remaining() );
+                        buf.get( chunk, 0, len );
+                        out.write( chunk, 0, len );
+                    }
+                }
+            }
+            finally {
+                raf.close();
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+
     public synchronized Long getFileSize( String fileSuffix ) {
+        if (file != null && !pendingFids.isEmpty()) {
+            patch();
+        }
         if (file == null) {
             try {
                 exception = null;
 
                 ShapefileGenerator generator = new ShapefileGenerator( layer, site );
                 file = generator.writeShapefile( layerFs.getFeatures() );
+                patcher = new ShapefilePatcher( file );
 
                 lastModified = new Date();
             }
@@ -227,6 +339,38 @@ class ShapefileContainer
     }
     
 
+    /**
+     * Patches the pending feature changes into the shapefile. Flushes the
+     * shapefile if this fails.
+     */
+    protected void patch() {
+        try {
+            lock.writeLock().lock();
+
+            Set<String> fids = new HashSet( pendingFids );
+            pendingFids.clear();
+            if (file == null || fids.isEmpty()) {
+                return;
+            }
+            Set<FeatureId> ids = new HashSet();
+            for (String fid : fids) {
+                ids.add( ff.featureId( fid ) );
+            }
+            Timer timer = new Timer();
+            int count = patcher.patch( fids, layerFs.getFeatures( ff.id( ids ) ) );
+            lastModified = new Date();
+            log.info( "Patched " + count + " records of " + file.getName() + " (" + timer.elapsedTime() + "ms)" );
+        }
+        catch (Exception e) {
+            log.warn( "Patching shapefile failed, re-creating: " + file, e );
+            flush();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+
     protected File resolveFile( String fileSuffix ) {
         return Path.fromOSString( file.getAbsolutePath() )
                 .removeFileExtension().addFileExtension( fileSuffix ).toFile();
@@ -189,13 +189,7 @@ public class ShapefileContentProvider
                 log.warn( "", container.exception );
             }
             else {
-                InputStream in = container.getInputStream( fileSuffix );                
-                try {
-                    IOUtils.copy( in, out );
-                }
-                finally {
-                    IOUtils.closeQuietly( in );
-                }
+                container.sendContent( fileSuffix, out, range );
             }
         }
 
@@ -0,0 +1,666 @@
+/*
+ * polymap.org
+ * Copyright (C) 2014, Falko Brutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.service.fs.providers;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.geotools.data.shapefile.ShpFiles;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.indexed.FidIndexer;
+import org.geotools.data.shapefile.indexed.IndexType;
+import org.geotools.data.shapefile.indexed.ShapeFileIndexer;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.util.NullProgressListener;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Incrementally updates a shapefile created by {@link ShapefileGenerator} for a
+ * set of changed features, instead of exporting the entire layer again.
+ * <ul>
+ *   <li>modified records that keep their size are patched in place</li>
+ *   <li>added features are appended to the .shp, .shx and .dbf</li>
+ *   <li>if records change their size or are removed, then the files are
+ *       rewritten from the first such record on; the records before are not
+ *       touched</li>
+ *   <li>the .qix and .fix indexes are re-created</li>
+ * </ul>
+ * The records are identified by the {@link ShapefileGenerator#ORIG_FID_FIELD}.
+ * If {@link #patch(Set, FeatureCollection)} fails then the files are in an
+ * undefined state and the caller has to re-generate the entire shapefile.
+ * <p/>
+ * This class is not thread safe.
+ *
+ * @author <a href="http://www.polymap.de">Falko Brutigam</a>
+ */
+class ShapefilePatcher {
+
+    private static Log log = LogFactory.getLog( ShapefilePatcher.class );
+
+    /** The charset {@link org.geotools.data.shapefile.ShapefileDataStore} uses by default. */
+    public static final Charset     DBF_CHARSET = Charset.forName( "ISO-8859-1" );
+
+    private static final int        SHP_HEADER_LENGTH = 100;
+
+    /** The number of .dbf records read/written at once. */
+    private static final int        DBF_BLOCK_RECORDS = 1024;
+
+    private File                    shpFile, shxFile, dbfFile, qixFile, fixFile;
+
+    /** Record index -> feature id; lazily read from the .dbf. */
+    private List<String>            recordFids;
+
+    /** Feature id -> record index. */
+    private Map<String,Integer>     recordIndex;
+
+
+    public ShapefilePatcher( File shpFile ) {
+        this.shpFile = shpFile;
+        this.shxFile = sibling( "shx" );
+        this.dbfFile = sibling( "dbf" );
+        this.qixFile = sibling( "qix" );
+        this.fixFile = sibling( "fix" );
+    }
+
+
+    protected File sibling( String fileSuffix ) {
+        String name = shpFile.getName();
+        return new File( shpFile.getParentFile(), name.substring( 0, name.lastIndexOf( '.' ) + 1 ) + fileSuffix );
+    }
+
+
+    /**
+     * Updates the records of the given features.
+     *
+     * @param fids The ids of the features that have been changed.
+     * @param features The current state of the given features; features that
+     *        are missing have been removed.
+     * @return The number of records that have been changed.
+     * @throws IOException If the shapefile could not be updated; the files are in
+     *         an undefined state then.
+     */
+    public int patch( Set<String> fids, FeatureCollection<SimpleFeatureType,SimpleFeature> features )
+    throws IOException {
+        SortedMap<Integer,Record> modified = new TreeMap();
+        List<Record> added = new ArrayList();
+        SortedSet<Integer> removed = new TreeSet();
+
+        RandomAccessFile shp = new RandomAccessFile( shpFile, "rw" );
+        RandomAccessFile shx = new RandomAccessFile( shxFile, "rw" );
+        RandomAccessFile dbf = new RandomAccessFile( dbfFile, "rw" );
+        try {
+            FileChannel shpChannel = shp.getChannel();
+            FileChannel shxChannel = shx.getChannel();
+            FileChannel dbfChannel = dbf.getChannel();
+
+            // headers
+            ByteBuffer shpHeader = ByteBuffer.allocate( SHP_HEADER_LENGTH );
+            readFully( shpChannel, shpHeader, 0 );
+            shpHeader.order( ByteOrder.LITTLE_ENDIAN );
+            ShapeType shapeType = ShapeType.forID( shpHeader.getInt( 32 ) );
+            Envelope bounds = new Envelope( shpHeader.getDouble( 36 ), shpHeader.getDouble( 52 ),
+                    shpHeader.getDouble( 44 ), shpHeader.getDouble( 60 ) );
+
+            dbfChannel.position( 0 );
+            DbaseFileHeader dbfHeader = new DbaseFileHeader();
+            dbfHeader.readHeader( dbfChannel );
+
+            // record offsets/lengths in 16bit words
+            int count = (int)((shxChannel.size() - SHP_HEADER_LENGTH) / 8);
+            int[] offsets = new int[ count ];
+            int[] lengths = new int[ count ];
+            ByteBuffer shxBuf = ByteBuffer.allocate( count * 8 );
+            readFully( shxChannel, shxBuf, SHP_HEADER_LENGTH );
+            for (int i=0; i<count; i++) {
+                offsets[i] = shxBuf.getInt();
+                lengths[i] = shxBuf.getInt();
+            }
+            checkRecordIndex( dbfChannel, dbfHeader );
+            if (recordFids.size() != count || dbfHeader.getNumRecords() != count) {
+                throw new IOException( "Number of records in .shp and .dbf do not match: " + count
+                        + " / " + dbfHeader.getNumRecords() + " / " + recordFids.size() );
+            }
+
+            // encode records
+            RecordEncoder encoder = new RecordEncoder( shapeType, dbfHeader, bounds );
+            Set<String> found = new HashSet();
+            FeatureIterator<SimpleFeature> it = features.features();
+            try {
+                while (it.hasNext()) {
+                    SimpleFeature feature = it.next();
+                    String fid = feature.getID();
+                    if (fids.contains( fid ) && found.add( fid )) {
+                        Record record = encoder.encode( feature );
+                        Integer index = recordIndex.get( fid );
+                        if (index != null) {
+                            modified.put( index, record );
+                        }
+                        else {
+                            added.add( record );
+                        }
+                    }
+                }
+            }
+            finally {
+                it.close();
+            }
+            for (String fid : fids) {
+                Integer index = recordIndex.get( fid );
+                if (index != null && !found.contains( fid )) {
+                    removed.add( index );
+                }
+            }
+
+            // first record that changes its size or is removed
+            int first = removed.isEmpty() ? count : removed.first();
+            for (Map.Entry<Integer,Record> entry : modified.entrySet()) {
+                if (entry.getValue().shp.remaining() != lengths[entry.getKey()] * 2) {
+                    first = Math.min( first, entry.getKey() );
+                }
+            }
+
+            // .shp: patch in place, rewrite tail, append
+            for (Map.Entry<Integer,Record> entry : modified.headMap( first ).entrySet()) {
+                long pos = offsets[entry.getKey()] * 2L + 8;
+                writeFully( shpChannel, entry.getValue().shp.duplicate(), pos );
+            }
+            int newCount = count - removed.size() + added.size();
+            int[] newOffsets = new int[ newCount ];
+            int[] newLengths = new int[ newCount ];
+            System.arraycopy( offsets, 0, newOffsets, 0, Math.min( first, count ) );
+            System.arraycopy( lengths, 0, newLengths, 0, Math.min( first, count ) );
+
+            int index = first < count
+                    ? rewriteShpTail( shpChannel, offsets[first] * 2L, first, count, lengths,
+                            modified, removed, newOffsets, newLengths )
+                    : count;
+            long shpEnd = index > 0 ? (newOffsets[index-1] + 4 + newLengths[index-1]) * 2L : SHP_HEADER_LENGTH;
+            shpChannel.truncate( shpEnd );
+            for (Record record : added) {
+                newOffsets[index] = (int)(shpEnd / 2);
+                newLengths[index] = record.shp.remaining() / 2;
+                ByteBuffer recordHeader = ByteBuffer.allocate( 8 );
+                recordHeader.putInt( index + 1 ).putInt( newLengths[index] ).flip();
+                writeFully( shpChannel, recordHeader, shpEnd );
+                writeFully( shpChannel, record.shp.duplicate(), shpEnd + 8 );
+                shpEnd += 8 + record.shp.remaining();
+                index ++;
+            }
+            assert index == newCount;
+
+            shpHeader.order( ByteOrder.BIG_ENDIAN ).putInt( 24, (int)(shpEnd / 2) );
+            shpHeader.order( ByteOrder.LITTLE_ENDIAN );
+            shpHeader.putDouble( 36, bounds.getMinX() ).putDouble( 44, bounds.getMinY() );
+            shpHeader.putDouble( 52, bounds.getMaxX() ).putDouble( 60, bounds.getMaxY() );
+            shpHeader.clear();
+            writeFully( shpChannel, shpHeader, 0 );
+
+            // .shx: same header as .shp; write entries from first change on
+            int shxFirst = Math.min( first, count );
+            shpHeader.order( ByteOrder.BIG_ENDIAN ).putInt( 24, (SHP_HEADER_LENGTH + newCount * 8) / 2 );
+            shpHeader.clear();
+            writeFully( shxChannel, shpHeader, 0 );
+            ByteBuffer entries = ByteBuffer.allocate( (newCount - shxFirst) * 8 );
+            for (int i=shxFirst; i<newCount; i++) {
+                entries.putInt( newOffsets[i] ).putInt( newLengths[i] );
+            }
+            entries.flip();
+            writeFully( shxChannel, entries, SHP_HEADER_LENGTH + shxFirst * 8L );
+            shxChannel.truncate( SHP_HEADER_LENGTH + newCount * 8L );
+
+            // .dbf: patch in place, compact, append
+            int recordLength = dbfHeader.getRecordLength();
+            long dbfStart = dbfHeader.getHeaderLength();
+            for (Map.Entry<Integer,Record> entry : modified.entrySet()) {
+                writeFully( dbfChannel, ByteBuffer.wrap( entry.getValue().dbf ),
+                        dbfStart + (long)entry.getKey() * recordLength );
+            }
+            long dbfEnd = dbfStart + (long)count * recordLength;
+            if (!removed.isEmpty()) {
+                dbfEnd = compactDbf( dbfChannel, dbfStart, recordLength, count, removed );
+            }
+            for (Record record : added) {
+                writeFully( dbfChannel, ByteBuffer.wrap( record.dbf ), dbfEnd );
+                dbfEnd += recordLength;
+            }
+            writeFully( dbfChannel, ByteBuffer.wrap( new byte[] {0x1a} ), dbfEnd );
+            dbfChannel.truncate( dbfEnd + 1 );
+
+            Calendar now = Calendar.getInstance();
+            ByteBuffer dbfHeaderPatch = ByteBuffer.allocate( 7 ).order( ByteOrder.LITTLE_ENDIAN );
+            dbfHeaderPatch.put( (byte)(now.get( Calendar.YEAR ) - 1900 ) )
+                    .put( (byte)(now.get( Calendar.MONTH ) + 1) )
+                    .put( (byte)now.get( Calendar.DAY_OF_MONTH ) )
+                    .putInt( newCount ).flip();
+            writeFully( dbfChannel, dbfHeaderPatch, 1 );
+
+            // record index
+            if (!removed.isEmpty()) {
+                List<String> newFids = new ArrayList( newCount );
+                for (int i=0; i<count; i++) {
+                    if (removed.contains( i )) {
+                        recordIndex.remove( recordFids.get( i ) );
+                    }
+                    else {
+                        newFids.add( recordFids.get( i ) );
+                    }
+                }
+                recordFids = newFids;
+                for (int i=removed.first(); i<recordFids.size(); i++) {
+                    recordIndex.put( recordFids.get( i ), i );
+                }
+            }
+            for (Record record : added) {
+                recordIndex.put( record.fid, recordFids.size() );
+                recordFids.add( record.fid );
+            }
+
+            log.info( "Patched: " + shpFile.getName() + ", modified: " + modified.size()
+                    + ", added: " + added.size() + ", removed: " + removed.size()
+                    + ", rewritten from: " + (first < count ? first : "-") );
+        }
+        finally {
+            closeQuietly( shp );
+            closeQuietly( shx );
+            closeQuietly( dbf );
+        }
+
+        createIndexes();
+        return modified.size() + added.size() + removed.size();
+    }
+
+
+    /**
+     * Copies the records from the given first on to a temp file, replaces
+     * modified records, skips removed records and renumbers the rest. Then the
+     * tail of the .shp is replaced by the temp file.
+     *
+     * @return The number of records in the new .shp.
+     */
+    protected int rewriteShpTail( FileChannel shpChannel, long start, int first, int count, int[] lengths,
+            SortedMap<Integer,Record> modified, SortedSet<Integer> removed,
+            int[] newOffsets, int[] newLengths )
+    throws IOException {
+        File tmp = File.createTempFile( "tail", ".shp", shpFile.getParentFile() );
+        try {
+            // records are written sequentially without gaps, so the tail can be streamed;
+            // the stream is not closed as this would close the channel
+            DataInputStream in = new DataInputStream( new BufferedInputStream(
+                    Channels.newInputStream( shpChannel.position( start ) ), 64*1024 ) );
+            OutputStream out = new BufferedOutputStream( new FileOutputStream( tmp ), 64*1024 );
+            byte[] buf = new byte[ 64*1024 ];
+            int index = first;
+            long pos = start;
+            try {
+                for (int i=first; i<count; i++) {
+                    int recordNum = in.readInt();
+                    int contentLength = in.readInt();
+                    if (recordNum != i+1 || contentLength != lengths[i]) {
+                        throw new IOException( "Unexpected record: " + recordNum + " (" + (i+1) + ")" );
+                    }
+                    if (removed.contains( i )) {
+                        skipFully( in, contentLength * 2L );
+                        continue;
+                    }
+                    Record record = modified.get( i );
+                    int newLength = record != null ? record.shp.remaining() / 2 : contentLength;
+                    writeInt( out, index + 1 );
+                    writeInt( out, newLength );
+                    if (record != null) {
+                        skipFully( in, contentLength * 2L );
+                        ByteBuffer content = record.shp.duplicate();
+                        while (content.hasRemaining()) {
+                            int len = Math.min( buf.length, content.remaining() );
+                            content.get( buf, 0, len );
+                            out.write( buf, 0, len );
+                        }
+                    }
+                    else {
+                        for (int remaining=contentLength*2; remaining>0; ) {
+                            int len = Math.min( buf.length, remaining );
+                            in.readFully( buf, 0, len );
+                            out.write( buf, 0, len );
+                            remaining -= len;
+                        }
+                    }
+                    newOffsets[index] = (int)(pos / 2);
+                    newLengths[index] = newLength;
+                    pos += 8 + newLength * 2L;
+                    index ++;
+                }
+                out.close();
+            }
+            finally {
+                IOUtils.closeQuietly( out );
+            }
+
+            // replace tail
+            shpChannel.truncate( start );
+            FileInputStream tmpIn = new FileInputStream( tmp );
+            try {
+                FileChannel tmpChannel = tmpIn.getChannel();
+                long size = tmpChannel.size();
+                for (long done=0; done<size; ) {
+                    done += tmpChannel.transferTo( done, size - done, shpChannel.position( start + done ) );
+                }
+            }
+            finally {
+                IOUtils.closeQuietly( tmpIn );
+            }
+            return index;
+        }
+        finally {
+            FileUtils.deleteQuietly( tmp );
+        }
+    }
+
+
+    /**
+     * Removes the given records by moving the following records forward.
+     *
+     * @return The new end of the records.
+     */
+    protected long compactDbf( FileChannel channel, long dbfStart, int recordLength, int count,
+            SortedSet<Integer> removed )
+    throws IOException {
+        int first = removed.first();
+        long readPos = dbfStart + (long)first * recordLength;
+        long writePos = readPos;
+        ByteBuffer in = ByteBuffer.allocate( recordLength * DBF_BLOCK_RECORDS );
+        ByteBuffer out = ByteBuffer.allocate( recordLength * DBF_BLOCK_RECORDS );
+        for (int i=first; i<count; i+=DBF_BLOCK_RECORDS) {
+            int blockCount = Math.min( DBF_BLOCK_RECORDS, count - i );
+            in.clear().limit( blockCount * recordLength );
+            readFully( channel, in, readPos );
+            readPos += blockCount * recordLength;
+
+            out.clear();
+            for (int j=0; j<blockCount; j++) {
+                if (!removed.contains( i + j )) {
+                    in.limit( (j+1) * recordLength ).position( j * recordLength );
+                    out.put( in );
+                }
+            }
+            // writePos never passes readPos
+            out.flip();
+            writePos += writeFully( channel, out, writePos );
+        }
+        return writePos;
+    }
+
+
+    /**
+     * Reads the {@link ShapefileGenerator#ORIG_FID_FIELD} of all records, if
+     * not yet done.
+     */
+    protected void checkRecordIndex( FileChannel dbfChannel, DbaseFileHeader dbfHeader )
+    throws IOException {
+        if (recordFids != null) {
+            return;
+        }
+        int fieldIndex = -1;
+        int fieldOffset = 1;  // deleted flag
+        for (int i=0; i<dbfHeader.getNumFields() && fieldIndex < 0; i++) {
+            if (dbfHeader.getFieldName( i ).equals( ShapefileGenerator.ORIG_FID_FIELD )) {
+                fieldIndex = i;
+            }
+            else {
+                fieldOffset += dbfHeader.getFieldLength( i );
+            }
+        }
+        if (fieldIndex < 0) {
+            throw new IOException( "No field in .dbf: " + ShapefileGenerator.ORIG_FID_FIELD );
+        }
+        int fieldLength = dbfHeader.getFieldLength( fieldIndex );
+        int recordLength = dbfHeader.getRecordLength();
+        int count = dbfHeader.getNumRecords();
+
+        recordFids = new ArrayList( count );
+        recordIndex = new HashMap( count * 2 );
+        ByteBuffer buf = ByteBuffer.allocate( recordLength * DBF_BLOCK_RECORDS );
+        byte[] field = new byte[ fieldLength ];
+        long pos = dbfHeader.getHeaderLength();
+        for (int i=0; i<count; i+=DBF_BLOCK_RECORDS) {
+            int blockCount = Math.min( DBF_BLOCK_RECORDS, count - i );
+            buf.clear().limit( blockCount * recordLength );
+            readFully( dbfChannel, buf, pos );
+            pos += blockCount * recordLength;
+            for (int j=0; j<blockCount; j++) {
+                buf.position( j * recordLength + fieldOffset );
+                buf.get( field );
+                String fid = new String( field, DBF_CHARSET ).trim();
+                recordIndex.put( fid, i + j );
+                recordFids.add( fid );
+            }
+        }
+        log.debug( "Record index: " + count + " records" );
+    }
+
+
+    /**
+     * Re-creates the .qix and .fix files if they exist.
+     */
+    protected void createIndexes()
+    throws IOException {
+        try {
+            ShpFiles shpFiles = new ShpFiles( shpFile );
+            if (fixFile.exists()) {
+                FileUtils.forceDelete( fixFile );
+                FidIndexer.generate( shpFiles );
+            }
+            if (qixFile.exists()) {
+                FileUtils.forceDelete( qixFile );
+                ShapeFileIndexer indexer = new ShapeFileIndexer();
+                indexer.setIdxType( IndexType.QIX );
+                indexer.setShapeFileName( shpFiles );
+                indexer.index( false, new NullProgressListener() );
+            }
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException( "Unable to create indexes: " + e.getLocalizedMessage(), e );
+        }
+    }
+
+
+    protected static void closeQuietly( RandomAccessFile raf ) {
+        try {
+            raf.close();
+        }
+        catch (IOException e) {
+            log.warn( "", e );
+        }
+    }
+
+
+    protected static void readFully( FileChannel channel, ByteBuffer buf, long pos )
+    throws IOException {
+        while (buf.hasRemaining()) {
+            int c = channel.read( buf, pos );
+            if (c < 0) {
+                throw new IOException( "Unexpected end of file." );
+            }
+            pos += c;
+        }
+        buf.flip();
+    }
+
+
+    protected static int writeFully( FileChannel channel, ByteBuffer buf, long pos )
+    throws IOException {
+        int result = 0;
+        while (buf.hasRemaining()) {
+            result += channel.write( buf, pos + result );
+        }
+        return result;
+    }
+
+
+    protected static void skipFully( DataInputStream in, long n )
+    throws IOException {
+        while (n > 0) {
+            int c = in.skipBytes( (int)Math.min( n, Integer.MAX_VALUE ) );
+            if (c <= 0) {
+                throw new IOException( "Unexpected end of file." );
+            }
+            n -= c;
+        }
+    }
+
+
+    protected static void writeInt( OutputStream out, int v )
+    throws IOException {
+        out.write( (v >>> 24) & 0xFF );
+        out.write( (v >>> 16) & 0xFF );
+        out.write( (v >>>  8) & 0xFF );
+        out.write( v & 0xFF );
+    }
+
+
+    /**
+     * The encoded .shp content and .dbf record of a feature.
+     */
+    static class Record {
+
+        String          fid;
+
+        /** The record content, without the record header. */
+        ByteBuffer      shp;
+
+        byte[]          dbf;
+    }
+
+
+    /**
+     * Encodes features the same way as
+     * {@link org.geotools.data.shapefile.ShapefileDataStore} does for the
+     * schema created by {@link ShapefileGenerator}.
+     */
+    static class RecordEncoder {
+
+        private ShapeType           shapeType;
+
+        private ShapeHandler        handler;
+
+        private DbaseFileHeader     dbfHeader;
+
+        private DbaseFileWriter     dbfWriter;
+
+        private ByteArrayOutputStream dbfOut = new ByteArrayOutputStream();
+
+        private Envelope            bounds;
+
+        private String              timestamp = ShapefileGenerator.timestampFormat().format( new Date() );
+
+
+        RecordEncoder( ShapeType shapeType, DbaseFileHeader dbfHeader, Envelope bounds )
+        throws IOException {
+            this.shapeType = shapeType;
+            this.handler = shapeType.getShapeHandler();
+            this.dbfHeader = dbfHeader;
+            this.bounds = bounds;
+            // the writer writes the header first
+            this.dbfWriter = new DbaseFileWriter( dbfHeader, Channels.newChannel( dbfOut ), DBF_CHARSET );
+            this.dbfOut.reset();
+        }
+
+
+        public Record encode( SimpleFeature feature )
+        throws IOException {
+            Record result = new Record();
+            result.fid = feature.getID();
+
+            // .shp
+            Geometry geom = (Geometry)feature.getDefaultGeometry();
+            if (geom == null) {
+                result.shp = ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN );
+                result.shp.putInt( ShapeType.NULL.id );
+            }
+            else {
+                geom = JTSUtilities.convertToCollection( geom, shapeType );
+                result.shp = ByteBuffer.allocate( handler.getLength( geom ) ).order( ByteOrder.LITTLE_ENDIAN );
+                result.shp.putInt( shapeType.id );
+                handler.write( result.shp, geom );
+
+                bounds.expandToInclude( geom.getEnvelopeInternal() );
+            }
+            result.shp.flip();
+
+            // .dbf: non-geometry attributes, orig-fid, timestamp
+            List values = new ArrayList( dbfHeader.getNumFields() );
+            for (AttributeDescriptor attr : feature.getFeatureType().getAttributeDescriptors()) {
+                if (!Geometry.class.isAssignableFrom( attr.getType().getBinding() )) {
+                    values.add( feature.getAttribute( attr.getName() ) );
+                }
+            }
+            values.add( feature.getID() );
+            values.add( timestamp );
+            if (values.size() != dbfHeader.getNumFields()) {
+                throw new IOException( "Schema of the layer has been changed." );
+            }
+            dbfWriter.write( values.toArray() );
+            result.dbf = dbfOut.toByteArray();
+            dbfOut.reset();
+            if (result.dbf.length != dbfHeader.getRecordLength()) {
+                throw new IOException( "Unexpected record length: " + result.dbf.length );
+            }
+            return result;
+        }
+    }
+
+}